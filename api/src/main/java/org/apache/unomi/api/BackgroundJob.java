@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The progress of a job run in the background in steps, each one being a task of the persistence service updating or
+ * removing items.
+ */
+public abstract class BackgroundJob implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The status of a job
+     */
+    public enum Status {
+        RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+    }
+
+    private String jobId;
+    private Status status = Status.RUNNING;
+    private Date startDate;
+    private Date endDate;
+    private int step;
+    private int stepCount;
+    private long total;
+    private long processed;
+    private long versionConflicts;
+    private long estimatedRemainingTime = -1;
+    private String error;
+
+    protected BackgroundJob() {
+    }
+
+    protected BackgroundJob(String jobId, int stepCount) {
+        this.jobId = jobId;
+        this.stepCount = stepCount;
+        this.startDate = new Date();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    /**
+     * @return the date at which the job completed, failed or was cancelled, {@code null} while it is running or paused
+     */
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public void setEndDate(Date endDate) {
+        this.endDate = endDate;
+    }
+
+    /**
+     * @return the index of the current step, starting at 0
+     */
+    public int getStep() {
+        return step;
+    }
+
+    public void setStep(int step) {
+        this.step = step;
+    }
+
+    /**
+     * @return the number of steps of the job
+     */
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    public void setStepCount(int stepCount) {
+        this.stepCount = stepCount;
+    }
+
+    /**
+     * @return the number of items to process, known for the steps that started so far
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return the number of items processed so far, modified or left unchanged
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(long processed) {
+        this.processed = processed;
+    }
+
+    /**
+     * @return the number of items that could not be processed because they were modified at the same time, after the
+     * retries of the steps that can be run again
+     */
+    public long getVersionConflicts() {
+        return versionConflicts;
+    }
+
+    public void setVersionConflicts(long versionConflicts) {
+        this.versionConflicts = versionConflicts;
+    }
+
+    /**
+     * @return the estimated time in milliseconds before the current step completes, or -1 if it is not known yet
+     */
+    public long getEstimatedRemainingTime() {
+        return estimatedRemainingTime;
+    }
+
+    public void setEstimatedRemainingTime(long estimatedRemainingTime) {
+        this.estimatedRemainingTime = estimatedRemainingTime;
+    }
+
+    /**
+     * @return the reason of the failure of the job, if any
+     */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
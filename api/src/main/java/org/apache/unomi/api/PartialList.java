@@ -38,6 +38,7 @@ public class PartialList<T> implements Serializable {
     private Relation totalSizeRelation;
     private String scrollIdentifier = null;
     private String scrollTimeValidity = null;
+    private String continuationToken = null;
 
     /**
      * This enum exists to replicate Lucene's total hits relation in a back-end agnostic way. Basically Lucene will
@@ -178,6 +179,21 @@ public class PartialList<T> implements Serializable {
         this.scrollTimeValidity = scrollTimeValidity;
     }
 
+    /**
+     * Retrieve the opaque token to make it possible to retrieve the next page of a query paginated with a continuation
+     * token. Contrary to a scroll identifier, the token does not reference any resource kept open in the persistence
+     * back-end, so it never expires and doesn't need to be released.
+     * @return a string containing the continuation token, to be sent back in a subsequent request, or null if there
+     * are no more pages to retrieve
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
     /**
      * Retrieve the relation to the total site, wether it is equal to or greater than the value stored in the
      * totalSize property.
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+/**
+ * The progress of a purge of old or scoped data, run in the background in steps removing whole indices or the matching
+ * items of the partially purged ones.
+ */
+public class PurgeJob extends BackgroundJob {
+
+    private static final long serialVersionUID = 1L;
+
+    private String description;
+    private long removedIndices;
+    private long deleted;
+
+    public PurgeJob() {
+    }
+
+    public PurgeJob(String jobId, String description, int stepCount) {
+        super(jobId, stepCount);
+        this.description = description;
+    }
+
+    /**
+     * @return a description of the data removed by the job
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @return the number of indices removed as a whole because all their items had to be purged
+     */
+    public long getRemovedIndices() {
+        return removedIndices;
+    }
+
+    public void setRemovedIndices(long removedIndices) {
+        this.removedIndices = removedIndices;
+    }
+
+    /**
+     * @return the number of items removed one by one so far
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(long deleted) {
+        this.deleted = deleted;
+    }
+}
@@ -20,6 +20,7 @@ package org.apache.unomi.api.query;
 import org.apache.unomi.api.conditions.Condition;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * A query wrapper gathering all elements needed for a potentially complex CXS query: {@link Condition}, offset, limit, sorting specification, etc.
@@ -33,6 +34,8 @@ public class Query implements Serializable {
     private String sortby;
     private Condition condition;
     private boolean forceRefresh;
+    private List<String> includedProperties;
+    private List<String> excludedProperties;
 
     /**
      * Instantiates a new Query.
@@ -150,4 +153,40 @@ public class Query implements Serializable {
     public void setForceRefresh(boolean forceRefresh) {
         this.forceRefresh = forceRefresh;
     }
+
+    /**
+     * Retrieves the properties of the matching items to retrieve, if only some of them are needed.
+     *
+     * @return the properties to retrieve, supporting wildcards such as {@code properties.*}, or {@code null} to retrieve all of them
+     */
+    public List<String> getIncludedProperties() {
+        return includedProperties;
+    }
+
+    /**
+     * Sets the properties of the matching items to retrieve. The items are then only partially populated.
+     *
+     * @param includedProperties the properties to retrieve, supporting wildcards such as {@code properties.*}, or {@code null} to retrieve all of them
+     */
+    public void setIncludedProperties(List<String> includedProperties) {
+        this.includedProperties = includedProperties;
+    }
+
+    /**
+     * Retrieves the properties of the matching items not to retrieve, if any.
+     *
+     * @return the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     */
+    public List<String> getExcludedProperties() {
+        return excludedProperties;
+    }
+
+    /**
+     * Sets the properties of the matching items not to retrieve. The items are then only partially populated.
+     *
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     */
+    public void setExcludedProperties(List<String> excludedProperties) {
+        this.excludedProperties = excludedProperties;
+    }
 }
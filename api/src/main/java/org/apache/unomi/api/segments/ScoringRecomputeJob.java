@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import org.apache.unomi.api.BackgroundJob;
+
+/**
+ * The progress of the update of the profiles scores after a scoring plan was saved or removed. Its steps are the reset
+ * of the existing scores, then one step per scoring element.
+ */
+public class ScoringRecomputeJob extends BackgroundJob {
+
+    private static final long serialVersionUID = 1L;
+
+    private String scoringId;
+    private long updated;
+
+    public ScoringRecomputeJob() {
+    }
+
+    public ScoringRecomputeJob(String jobId, String scoringId, int stepCount) {
+        super(jobId, stepCount);
+        this.scoringId = scoringId;
+    }
+
+    public String getScoringId() {
+        return scoringId;
+    }
+
+    public void setScoringId(String scoringId) {
+        this.scoringId = scoringId;
+    }
+
+    /**
+     * @return the number of profile updates done so far, a profile being updated once per matching step
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import org.apache.unomi.api.Item;
+
+import java.util.Date;
+
+/**
+ * The persisted progress of the update of the profiles of a segment, processed by the context server itself, which
+ * allows to resume the update if the server that was running it stops. The identifier of the checkpoint is the
+ * identifier of the segment.
+ */
+public class SegmentBackfillCheckpoint extends Item {
+
+    /**
+     * The SegmentBackfillCheckpoint ITEM_TYPE.
+     *
+     * @see Item for a discussion of ITEM_TYPE
+     */
+    public static final String ITEM_TYPE = "segmentbackfill";
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The phase adding the segment to the profiles matching its condition
+     */
+    public static final String PHASE_ADD = "add";
+
+    /**
+     * The phase removing the segment from the profiles that don't match its condition anymore
+     */
+    public static final String PHASE_REMOVE = "remove";
+
+    private boolean segmentRemoved;
+    private String phase = PHASE_ADD;
+    private long processedCount = 0;
+    private long updatedCount = 0;
+    private Date startDate;
+    private Date lastUpdateDate;
+
+    public SegmentBackfillCheckpoint() {
+    }
+
+    public SegmentBackfillCheckpoint(String segmentId, boolean segmentRemoved) {
+        super(segmentId);
+        this.segmentRemoved = segmentRemoved;
+        this.phase = segmentRemoved ? PHASE_REMOVE : PHASE_ADD;
+        this.startDate = new Date();
+        this.lastUpdateDate = startDate;
+    }
+
+    /**
+     * @return {@code true} if the segment is being removed from all the profiles, {@code false} if the memberships
+     * are updated after a modification of the segment
+     */
+    public boolean isSegmentRemoved() {
+        return segmentRemoved;
+    }
+
+    public void setSegmentRemoved(boolean segmentRemoved) {
+        this.segmentRemoved = segmentRemoved;
+    }
+
+    /**
+     * @return the current phase of the update, {@link #PHASE_ADD} or {@link #PHASE_REMOVE}
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * @return the number of profiles read so far
+     */
+    public long getProcessedCount() {
+        return processedCount;
+    }
+
+    public void setProcessedCount(long processedCount) {
+        this.processedCount = processedCount;
+    }
+
+    /**
+     * @return the number of profiles updated so far
+     */
+    public long getUpdatedCount() {
+        return updatedCount;
+    }
+
+    public void setUpdatedCount(long updatedCount) {
+        this.updatedCount = updatedCount;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    /**
+     * @return the date at which the checkpoint was last saved, used to detect updates that are not running anymore
+     */
+    public Date getLastUpdateDate() {
+        return lastUpdateDate;
+    }
+
+    public void setLastUpdateDate(Date lastUpdateDate) {
+        this.lastUpdateDate = lastUpdateDate;
+    }
+}
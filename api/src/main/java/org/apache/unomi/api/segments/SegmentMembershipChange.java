@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A profile entering or leaving a segment.
+ */
+public class SegmentMembershipChange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The type of a membership change
+     */
+    public enum Type {
+        ENTERED, LEFT
+    }
+
+    private String segmentId;
+    private String profileId;
+    private Type type;
+    private Date timestamp;
+
+    public SegmentMembershipChange() {
+    }
+
+    public SegmentMembershipChange(String segmentId, String profileId, Type type, Date timestamp) {
+        this.segmentId = segmentId;
+        this.profileId = profileId;
+        this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    public String getSegmentId() {
+        return segmentId;
+    }
+
+    public void setSegmentId(String segmentId) {
+        this.segmentId = segmentId;
+    }
+
+    public String getProfileId() {
+        return profileId;
+    }
+
+    public void setProfileId(String profileId) {
+        this.profileId = profileId;
+    }
+
+    /**
+     * @return whether the profile entered or left the segment
+     */
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the date at which the membership changed
+     */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return profileId + " " + type + " " + segmentId + " at " + timestamp;
+    }
+}
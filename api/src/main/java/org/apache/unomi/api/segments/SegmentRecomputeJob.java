@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import org.apache.unomi.api.BackgroundJob;
+
+/**
+ * The progress of the update of the profiles memberships after a segment was saved or removed.
+ */
+public class SegmentRecomputeJob extends BackgroundJob {
+
+    private static final long serialVersionUID = 1L;
+
+    private String segmentId;
+    private long added;
+    private long removed;
+
+    public SegmentRecomputeJob() {
+    }
+
+    public SegmentRecomputeJob(String jobId, String segmentId, int stepCount) {
+        super(jobId, stepCount);
+        this.segmentId = segmentId;
+    }
+
+    public String getSegmentId() {
+        return segmentId;
+    }
+
+    public void setSegmentId(String segmentId) {
+        this.segmentId = segmentId;
+    }
+
+    /**
+     * @return the number of profiles added to the segment
+     */
+    public long getAdded() {
+        return added;
+    }
+
+    public void setAdded(long added) {
+        this.added = added;
+    }
+
+    /**
+     * @return the number of profiles removed from the segment
+     */
+    public long getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(long removed) {
+        this.removed = removed;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The number of profiles in a segment, as maintained by the context server from the memberships it updates and
+ * periodically reconciled with the profiles stored in the persistence back-end.
+ */
+public class SegmentSize implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String segmentId;
+    private long count;
+    private Date reconciliationDate;
+    private Date lastModificationDate;
+
+    public SegmentSize() {
+    }
+
+    public SegmentSize(String segmentId, long count, Date reconciliationDate, Date lastModificationDate) {
+        this.segmentId = segmentId;
+        this.count = count;
+        this.reconciliationDate = reconciliationDate;
+        this.lastModificationDate = lastModificationDate;
+    }
+
+    public String getSegmentId() {
+        return segmentId;
+    }
+
+    public void setSegmentId(String segmentId) {
+        this.segmentId = segmentId;
+    }
+
+    /**
+     * @return the number of profiles in the segment
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return the date at which the count was last computed from the stored profiles, {@code null} if it never was
+     */
+    public Date getReconciliationDate() {
+        return reconciliationDate;
+    }
+
+    public void setReconciliationDate(Date reconciliationDate) {
+        this.reconciliationDate = reconciliationDate;
+    }
+
+    /**
+     * @return the date at which profiles last entered or left the segment since the reconciliation, {@code null} if
+     * none did
+     */
+    public Date getLastModificationDate() {
+        return lastModificationDate;
+    }
+
+    public void setLastModificationDate(Date lastModificationDate) {
+        this.lastModificationDate = lastModificationDate;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.segments;
+
+import org.apache.unomi.api.Item;
+
+import java.util.Date;
+
+/**
+ * The persisted date of the last update of the profiles crossing the time boundaries of the segments, so that the next
+ * update, possibly on another node or after a restart, starts where the previous one stopped.
+ */
+public class SegmentTimeBoundariesCheck extends Item {
+
+    /**
+     * The SegmentTimeBoundariesCheck ITEM_TYPE.
+     *
+     * @see Item for a discussion of ITEM_TYPE
+     */
+    public static final String ITEM_TYPE = "segmenttimeboundaries";
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The identifier of the single item of this type
+     */
+    public static final String ID = "segmentTimeBoundariesCheck";
+
+    private Date lastCheckDate;
+
+    public SegmentTimeBoundariesCheck() {
+    }
+
+    public SegmentTimeBoundariesCheck(Date lastCheckDate) {
+        super(ID);
+        this.lastCheckDate = lastCheckDate;
+    }
+
+    /**
+     * @return the date up to which the profiles crossing the time boundaries were updated
+     */
+    public Date getLastCheckDate() {
+        return lastCheckDate;
+    }
+
+    public void setLastCheckDate(Date lastCheckDate) {
+        this.lastCheckDate = lastCheckDate;
+    }
+}
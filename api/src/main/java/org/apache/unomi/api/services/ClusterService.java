@@ -18,6 +18,7 @@
 package org.apache.unomi.api.services;
 
 import org.apache.unomi.api.ClusterNode;
+import org.apache.unomi.api.PurgeJob;
 
 import java.io.Serializable;
 import java.util.Date;
@@ -37,19 +38,55 @@ public interface ClusterService {
     List<ClusterNode> getClusterNodes();
 
     /**
-     * Removes all data before the specified date from the context server.
+     * Removes all data before the specified date from the context server. The data is removed in the background by a
+     * purge job, see {@link #getPurgeJobs()}.
      *
      * @param date the Date before which all data needs to be removed
      */
     void purge(final Date date);
 
     /**
-     * Removes all data associated with the provided scope.
+     * Removes all data associated with the provided scope. The data is removed in the background by a purge job, see
+     * {@link #getPurgeJobs()}.
      *
      * @param scope the scope for which we want to remove data
      */
     void purge(final String scope);
 
+    /**
+     * Retrieves the most recent purge jobs, started with the purge methods of this service or by the scheduled purge of
+     * the old profiles, sessions and events. The jobs are only known by the node running them: the node which received
+     * the purge request, or for the scheduled purge the node of the cluster with the smallest identifier.
+     *
+     * @return the list of the recent jobs, running or not
+     */
+    List<PurgeJob> getPurgeJobs();
+
+    /**
+     * Retrieves the purge job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    PurgeJob getPurgeJob(String jobId);
+
+    /**
+     * Pauses the purge job identified by the specified identifier, stopping the removal of its current step.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was running and is now paused, {@code false} otherwise
+     */
+    boolean pausePurgeJob(String jobId);
+
+    /**
+     * Resumes the paused purge job identified by the specified identifier, starting again its current step to remove
+     * the remaining items.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was paused and is now running, {@code false} otherwise
+     */
+    boolean resumePurgeJob(String jobId);
+
     /**
      * This function will send an event to the nodes of the cluster
      * The function takes a Serializable to avoid dependency on any clustering framework
@@ -23,6 +23,7 @@ import org.apache.unomi.api.query.Query;
 
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A service to access and operate on {@link Profile}s, {@link Session}s and {@link Persona}s.
@@ -100,6 +101,16 @@ public interface ProfileService {
      */
     Profile load(String profileId);
 
+    /**
+     * Retrieves the profile identified by the specified identifier without blocking the calling thread, so that other
+     * independent items can be loaded at the same time.
+     *
+     * @param profileId the identifier of the profile to retrieve
+     * @return a future completed with the profile identified by the specified identifier or {@code null} if no such
+     * profile exists
+     */
+    CompletableFuture<Profile> loadAsync(String profileId);
+
     /**
      * Saves the specified profile in the context server.
      *
@@ -150,6 +161,15 @@ public interface ProfileService {
      */
     Session loadSession(String sessionId, Date dateHint);
 
+    /**
+     * Retrieves the session identified by the specified identifier without blocking the calling thread.
+     *
+     * @param sessionId the identifier of the session to be retrieved
+     * @param dateHint  a Date helping in identifying where the item is located
+     * @return a future completed with the session identified by the specified identifier
+     */
+    CompletableFuture<Session> loadSessionAsync(String sessionId, Date dateHint);
+
     /**
      * Saves the specified session.
      *
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.services;
+
+import org.apache.unomi.api.segments.SegmentMembershipChange;
+
+import java.util.List;
+
+/**
+ * A service that gets notified when profiles enter or leave segments, either while processing their events or when
+ * the memberships of existing profiles are updated after a segment was saved or removed.
+ * <p>
+ * The changes are buffered and delivered in batches from a dedicated thread: when the buffer is full because the
+ * listeners are too slow, new changes are dropped. The memberships updated by update by query tasks in the
+ * persistence back-end are not notified, as the updated profiles are not known by the context server.
+ */
+public interface SegmentMembershipListenerService {
+
+    /**
+     * Called with a batch of membership changes, in the order they were made.
+     *
+     * @param changes the membership changes, which must not be modified
+     */
+    void onMembershipChanges(List<SegmentMembershipChange> changes);
+}
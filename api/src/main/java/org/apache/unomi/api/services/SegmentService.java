@@ -17,6 +17,7 @@
 
 package org.apache.unomi.api.services;
 
+import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Metadata;
 import org.apache.unomi.api.PartialList;
@@ -25,10 +26,15 @@ import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.segments.DependentMetadata;
 import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringRecomputeJob;
 import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.api.segments.SegmentRecomputeJob;
+import org.apache.unomi.api.segments.SegmentSize;
 import org.apache.unomi.api.segments.SegmentsAndScores;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A service to access and operate on {@link Segment}s and {@link Scoring}s
@@ -98,6 +104,47 @@ public interface SegmentService {
      */
     DependentMetadata removeSegmentDefinition(String segmentId, boolean validate);
 
+    /**
+     * Retrieves the most recent jobs updating the segments of the existing profiles in the background, when the
+     * profiles are updated in bulk after a segment is saved or removed.
+     *
+     * @return the list of the recent jobs, running or not
+     */
+    List<SegmentRecomputeJob> getSegmentRecomputeJobs();
+
+    /**
+     * Retrieves the job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    SegmentRecomputeJob getSegmentRecomputeJob(String jobId);
+
+    /**
+     * Retrieves the most recent jobs updating the scores of the existing profiles in the background, after a scoring
+     * plan is saved or removed.
+     *
+     * @return the list of the recent jobs, running or not
+     */
+    List<ScoringRecomputeJob> getScoringRecomputeJobs();
+
+    /**
+     * Retrieves the scoring recompute job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    ScoringRecomputeJob getScoringRecomputeJob(String jobId);
+
+    /**
+     * Cancels the scoring recompute job identified by the specified identifier. The profiles already updated by the job
+     * keep their new scores.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was running and is now cancelled, {@code false} otherwise
+     */
+    boolean cancelScoringRecomputeJob(String jobId);
+
     /**
      * Retrieves the list of Segment and Scoring metadata depending on the specified segment.
      * A segment or scoring is depending on a segment if it includes a profileSegmentCondition with a test on this segment.
@@ -129,6 +176,33 @@ public interface SegmentService {
      */
     long getMatchingIndividualsCount(String segmentID);
 
+    /**
+     * Retrieves the number of profiles in the specified segment from the sizes maintained by the context server,
+     * without querying the persistence back-end. Contrary to {@link #getMatchingIndividualsCount(String)}, the count
+     * can miss the latest changes made on other nodes until the next reconciliation.
+     *
+     * @param segmentId the identifier of the segment
+     * @return the size of the segment, with the date of its last reconciliation
+     */
+    SegmentSize getSegmentSize(String segmentId);
+
+    /**
+     * Retrieves the sizes of all the segments, as returned by {@link #getSegmentSize(String)}.
+     *
+     * @return the sizes of the segments by segment identifier
+     */
+    Map<String, SegmentSize> getSegmentSizes();
+
+    /**
+     * Records the segments a profile entered or left when its segments are modified, to update the sizes of the
+     * segments and notify the {@link SegmentMembershipListenerService} services.
+     *
+     * @param profileId        the identifier of the profile
+     * @param previousSegments the segments of the profile before the modification
+     * @param newSegments      the segments of the profile after the modification
+     */
+    void updateSegmentMemberships(String profileId, Set<String> previousSegments, Set<String> newSegments);
+
     /**
      * Determines whether the specified profile is part of the segment identified by the specified identifier.
      *
@@ -142,10 +216,21 @@ public interface SegmentService {
      * Retrieves the segments and scores for the specified profile.
      *
      * @param profile the profile for which we want to retrieve segments and scores
-     * @return a {@link SegmentsAndScores} instance encapsulating the segments and scores for the specified profile
+     * @return a {@link SegmentsAndScores} instance encapsulating the segments and scores for the specified profile,
+     * which may share the segments and scores of the profile if they are unchanged, and must then not be modified
      */
     SegmentsAndScores getSegmentsAndScoresForProfile(Profile profile);
 
+    /**
+     * Retrieves the segments and scores for the profile of the specified event. Only the segments and scoring plans
+     * depending on profile properties modified while processing the event are evaluated, the previous memberships and
+     * scores of the profile are kept for the others. All of them are evaluated when the modifications are not known.
+     *
+     * @param event the event being processed, whose profile we want to retrieve segments and scores for
+     * @return a {@link SegmentsAndScores} instance encapsulating the segments and scores for the profile of the event
+     */
+    SegmentsAndScores getSegmentsAndScoresForProfile(Event event);
+
     /**
      * Retrieves the list of segment metadata for the segments the specified profile is a member of.
      *
@@ -181,7 +266,8 @@ public interface SegmentService {
     Scoring getScoringDefinition(String scoringId);
 
     /**
-     * Persists the specified scoring in the context server.
+     * Persists the specified scoring in the context server. The scores of the existing profiles are recomputed by a
+     * background job, see {@link #getScoringRecomputeJobs()}.
      *
      * @param scoring the scoring to be persisted
      */
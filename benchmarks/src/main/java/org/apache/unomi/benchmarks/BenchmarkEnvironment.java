@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.plugins.baseplugin.conditions.*;
+import org.apache.unomi.services.impl.ConditionOptimizer;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+import org.apache.unomi.services.impl.definitions.DefinitionsServiceImpl;
+import org.apache.unomi.services.impl.rules.RulesServiceImpl;
+import org.apache.unomi.services.impl.segments.InMemoryPersistenceService;
+import org.apache.unomi.services.impl.segments.SegmentServiceImpl;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Wires the services, the condition evaluator dispatcher and the base plugin evaluators and condition types the same
+ * way the blueprint files do, on top of an {@link InMemoryPersistenceService}.
+ */
+public class BenchmarkEnvironment {
+
+    private static final String[] CONDITION_TYPES = {"booleanCondition", "notCondition", "matchAllCondition",
+            "profilePropertyCondition", "sessionPropertyCondition", "eventPropertyCondition", "eventTypeCondition",
+            "sourceEventPropertyCondition", "pastEventCondition", "profileSegmentCondition", "scoringCondition"};
+
+    private final ConditionEvaluatorDispatcher conditionEvaluatorDispatcher;
+    private final PersistenceService persistenceService;
+    private final DefinitionsServiceImpl definitionsService;
+    private final ConditionOptimizer conditionOptimizer;
+    private final ProfileChangeTracker profileChangeTracker = new ProfileChangeTracker();
+
+    public BenchmarkEnvironment() throws IOException {
+        conditionEvaluatorDispatcher = new ConditionEvaluatorDispatcher();
+        persistenceService = InMemoryPersistenceService.create(conditionEvaluatorDispatcher::eval, conditionEvaluatorDispatcher::isLocallyEvaluable);
+
+        definitionsService = new DefinitionsServiceImpl();
+        definitionsService.setPersistenceService(persistenceService);
+        for (String conditionTypeId : CONDITION_TYPES) {
+            URL conditionTypeURL = BooleanConditionEvaluator.class.getClassLoader().getResource("META-INF/cxs/conditions/" + conditionTypeId + ".json");
+            if (conditionTypeURL == null) {
+                throw new IOException("Condition type " + conditionTypeId + " not found");
+            }
+            ConditionType conditionType = CustomObjectMapper.getObjectMapper().readValue(conditionTypeURL, ConditionType.class);
+            // mark the type as up to date so that it is never reloaded from the persistence service
+            conditionType.setVersion(1L);
+            definitionsService.setConditionType(conditionType);
+        }
+
+        PastEventConditionEvaluator pastEventConditionEvaluator = new PastEventConditionEvaluator();
+        pastEventConditionEvaluator.setDefinitionsService(definitionsService);
+        pastEventConditionEvaluator.setPersistenceService(persistenceService);
+        conditionEvaluatorDispatcher.addEvaluator("booleanConditionEvaluator", new BooleanConditionEvaluator());
+        conditionEvaluatorDispatcher.addEvaluator("notConditionEvaluator", new NotConditionEvaluator());
+        conditionEvaluatorDispatcher.addEvaluator("matchAllConditionEvaluator", new MatchAllConditionEvaluator());
+        conditionEvaluatorDispatcher.addEvaluator("propertyConditionEvaluator", new PropertyConditionEvaluator());
+        conditionEvaluatorDispatcher.addEvaluator("sourceEventPropertyConditionEvaluator", new SourceEventPropertyConditionEvaluator());
+        conditionEvaluatorDispatcher.addEvaluator("pastEventConditionEvaluator", pastEventConditionEvaluator);
+
+        conditionOptimizer = new ConditionOptimizer();
+        conditionOptimizer.setDefinitionsService(definitionsService);
+    }
+
+    public ConditionEvaluatorDispatcher getConditionEvaluatorDispatcher() {
+        return conditionEvaluatorDispatcher;
+    }
+
+    public PersistenceService getPersistenceService() {
+        return persistenceService;
+    }
+
+    public DefinitionsServiceImpl getDefinitionsService() {
+        return definitionsService;
+    }
+
+    public ProfileChangeTracker getProfileChangeTracker() {
+        return profileChangeTracker;
+    }
+
+    public RulesServiceImpl createRulesService(List<Rule> rules) {
+        InMemoryPersistenceService.setItems(persistenceService, Rule.class, rules);
+        RulesServiceImpl rulesService = new RulesServiceImpl();
+        rulesService.setPersistenceService(persistenceService);
+        rulesService.setDefinitionsService(definitionsService);
+        rulesService.setConditionOptimizer(conditionOptimizer);
+        rulesService.refreshRules();
+        return rulesService;
+    }
+
+    public SegmentServiceImpl createSegmentService(List<Segment> segments, List<Scoring> scorings) {
+        InMemoryPersistenceService.setItems(persistenceService, Segment.class, segments);
+        InMemoryPersistenceService.setItems(persistenceService, Scoring.class, scorings);
+        SegmentServiceImpl segmentService = new SegmentServiceImpl();
+        segmentService.setPersistenceService(persistenceService);
+        segmentService.setDefinitionsService(definitionsService);
+        segmentService.setConditionOptimizer(conditionOptimizer);
+        segmentService.setProfileChangeTracker(profileChangeTracker);
+        segmentService.refreshSegmentsAndScoring();
+        return segmentService;
+    }
+}
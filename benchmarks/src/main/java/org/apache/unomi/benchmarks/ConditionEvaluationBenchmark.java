@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.apache.unomi.services.impl.segments.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates a condition with the base plugin evaluators against synthetic profiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConditionEvaluationBenchmark {
+
+    @Param({"property", "boolean", "not", "pastEvent"})
+    public String conditionKind;
+
+    @Param({"1000"})
+    public int profileCount;
+
+    private ConditionEvaluatorDispatcher dispatcher;
+    private Condition condition;
+    private List<Profile> profiles;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        dispatcher = environment.getConditionEvaluatorDispatcher();
+        profiles = new SyntheticData(42).profiles(profileCount);
+
+        switch (conditionKind) {
+            case "property":
+                condition = SyntheticData.profilePropertyCondition("properties.age", "greaterThan", 40);
+                break;
+            case "boolean":
+                List<Condition> orConditions = new ArrayList<>(Arrays.asList(
+                        SyntheticData.profilePropertyCondition("properties.city", "equals", "Paris"),
+                        SyntheticData.profilePropertyCondition("properties.city", "equals", "Geneva")));
+                condition = SyntheticData.booleanCondition("and", new ArrayList<>(Arrays.asList(
+                        SyntheticData.profilePropertyCondition("properties.gender", "equals", "female"),
+                        SyntheticData.booleanCondition("or", orConditions),
+                        SyntheticData.profilePropertyCondition("properties.nbOfVisits", "lessThan", 25))));
+                break;
+            case "not":
+                condition = SyntheticData.notCondition(SyntheticData.profilePropertyCondition("properties.gender", "equals", "male"));
+                break;
+            case "pastEvent":
+                condition = SyntheticData.pastEventCondition(3, 2);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown condition kind " + conditionKind);
+        }
+        environment.getDefinitionsService().resolveConditionType(condition);
+    }
+
+    @Benchmark
+    public boolean eval() {
+        Profile profile = profiles.get(index);
+        index = (index + 1) % profiles.size();
+        return dispatcher.eval(condition, profile);
+    }
+}
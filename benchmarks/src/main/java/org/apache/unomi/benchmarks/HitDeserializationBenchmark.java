@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.persistence.elasticsearch.ESCustomObjectMapper;
+import org.apache.unomi.persistence.elasticsearch.ItemSourceReader;
+import org.apache.unomi.services.impl.segments.SyntheticData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the profiles of a page of search hits, either from the sources converted to strings, or straight from their
+ * bytes sequentially or in parallel. Run with {@link BenchmarkRunner} to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HitDeserializationBenchmark {
+
+    @Param({"1000"})
+    public int hitCount;
+
+    private SearchHit[] hits;
+    private ItemSourceReader sequentialReader;
+    private ItemSourceReader parallelReader;
+
+    @Setup
+    public void setup() throws IOException {
+        List<Profile> profiles = new SyntheticData(42).profiles(hitCount);
+        hits = new SearchHit[profiles.size()];
+        for (int i = 0; i < hits.length; i++) {
+            Profile profile = profiles.get(i);
+            SearchHit hit = new SearchHit(i, profile.getItemId(), null, Collections.emptyMap());
+            hit.sourceRef(new BytesArray(ESCustomObjectMapper.getObjectMapper().writeValueAsBytes(profile)));
+            hit.version(1);
+            hits[i] = hit;
+        }
+        sequentialReader = new ItemSourceReader(1, Integer.MAX_VALUE);
+        parallelReader = new ItemSourceReader(Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sequentialReader.close();
+        parallelReader.close();
+    }
+
+    @Benchmark
+    public List<Profile> fromString() throws IOException {
+        List<Profile> results = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            Profile profile = ESCustomObjectMapper.getObjectMapper().readValue(hit.getSourceAsString(), Profile.class);
+            profile.setItemId(hit.getId());
+            profile.setVersion(hit.getVersion());
+            results.add(profile);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<Profile> fromBytes() throws IOException {
+        return sequentialReader.readAll(hits, Profile.class);
+    }
+
+    @Benchmark
+    public List<Profile> fromBytesInParallel() throws IOException {
+        return parallelReader.readAll(hits, Profile.class);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.segments.SegmentsAndScores;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+import org.apache.unomi.services.impl.segments.SegmentServiceImpl;
+import org.apache.unomi.services.impl.segments.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes events updating a single profile property, then computes the segments and scores of the profile either
+ * by evaluating all the segments and scoring plans or only the ones depending on the modified property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncrementalSegmentEvaluationBenchmark {
+
+    @Param({"600", "1200"})
+    public int segmentCount;
+
+    @Param({"10"})
+    public int scoringCount;
+
+    @Param({"1000"})
+    public int profileCount;
+
+    /**
+     * The updated property, used by about half of the synthetic segments for {@code nbOfVisits} and by none of them
+     * for {@code lastName}
+     */
+    @Param({"nbOfVisits", "lastName"})
+    public String updatedProperty;
+
+    private SegmentServiceImpl segmentService;
+    private ProfileChangeTracker profileChangeTracker;
+    private List<Profile> profiles;
+    private Random random;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        SyntheticData data = new SyntheticData(42);
+        profiles = data.profiles(profileCount);
+        segmentService = environment.createSegmentService(data.segments(segmentCount), data.scorings(scoringCount, 5));
+        profileChangeTracker = environment.getProfileChangeTracker();
+        for (Profile profile : profiles) {
+            SegmentsAndScores segmentsAndScores;
+            do {
+                segmentsAndScores = segmentService.getSegmentsAndScoresForProfile(profile);
+            } while (apply(profile, segmentsAndScores));
+        }
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public SegmentsAndScores fullEvaluation() {
+        Event event = updateProperty();
+        SegmentsAndScores segmentsAndScores = segmentService.getSegmentsAndScoresForProfile(event.getProfile());
+        apply(event.getProfile(), segmentsAndScores);
+        return segmentsAndScores;
+    }
+
+    @Benchmark
+    public SegmentsAndScores incrementalEvaluation() {
+        Event event = updateProperty();
+        SegmentsAndScores segmentsAndScores = segmentService.getSegmentsAndScoresForProfile(event);
+        apply(event.getProfile(), segmentsAndScores);
+        return segmentsAndScores;
+    }
+
+    private Event updateProperty() {
+        Profile profile = profiles.get(index);
+        index = (index + 1) % profiles.size();
+        Event event = new Event("view", null, profile, SyntheticData.SCOPE, null, null, new Date());
+        profileChangeTracker.startTracking(event);
+        profile.setProperty(updatedProperty, random.nextInt(50));
+        return event;
+    }
+
+    private static boolean apply(Profile profile, SegmentsAndScores segmentsAndScores) {
+        if (segmentsAndScores.getSegments().equals(profile.getSegments()) && segmentsAndScores.getScores().equals(profile.getScores())) {
+            return false;
+        }
+        profile.setSegments(segmentsAndScores.getSegments());
+        profile.setScores(segmentsAndScores.getScores());
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.services.impl.rules.RulesServiceImpl;
+import org.apache.unomi.services.impl.segments.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches synthetic events against a set of rules combining event type and profile conditions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RulesMatchingBenchmark {
+
+    @Param({"100", "1000"})
+    public int ruleCount;
+
+    @Param({"1000"})
+    public int eventCount;
+
+    private RulesServiceImpl rulesService;
+    private List<Event> events;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        SyntheticData data = new SyntheticData(42);
+        events = data.events(data.profiles(eventCount / 10 + 1), eventCount);
+        rulesService = environment.createRulesService(data.rules(ruleCount));
+    }
+
+    @Benchmark
+    public Set<Rule> getMatchingRules() {
+        Event event = events.get(index);
+        index = (index + 1) % events.size();
+        return rulesService.getMatchingRules(event);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.benchmarks;
+
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.segments.SegmentsAndScores;
+import org.apache.unomi.services.impl.segments.SegmentServiceImpl;
+import org.apache.unomi.services.impl.segments.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the segments and scores of synthetic profiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentEvaluationBenchmark {
+
+    @Param({"50", "500"})
+    public int segmentCount;
+
+    @Param({"10"})
+    public int scoringCount;
+
+    @Param({"1000"})
+    public int profileCount;
+
+    private SegmentServiceImpl segmentService;
+    private List<Profile> profiles;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        SyntheticData data = new SyntheticData(42);
+        profiles = data.profiles(profileCount);
+        segmentService = environment.createSegmentService(data.segments(segmentCount), data.scorings(scoringCount, 5));
+    }
+
+    @Benchmark
+    public SegmentsAndScores getSegmentsAndScoresForProfile() {
+        Profile profile = profiles.get(index);
+        index = (index + 1) % profiles.size();
+        return segmentService.getSegmentsAndScoresForProfile(profile);
+    }
+}
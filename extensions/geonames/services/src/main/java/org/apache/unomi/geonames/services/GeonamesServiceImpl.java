@@ -40,6 +40,10 @@ import java.util.zip.ZipInputStream;
 public class GeonamesServiceImpl implements GeonamesService {
     public static final String GEOCODING_MAX_DISTANCE = "100km";
     private static final Logger logger = LoggerFactory.getLogger(GeonamesServiceImpl.class.getName());
+
+    // the number of entries saved with each bulk request while importing the database
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
     private DefinitionsService definitionsService;
     private PersistenceService persistenceService;
     private SchedulerService schedulerService;
@@ -135,6 +139,8 @@ public class GeonamesServiceImpl implements GeonamesService {
             double lastCompletionPourcentage = 0.0;
             long lastCharCount = 0;
             long importStartTime = System.currentTimeMillis();
+            List<GeonameEntry> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            long failedCount = 0;
             while ((line = reader.readLine()) != null) {
                 String[] values = line.split("\t");
 
@@ -150,7 +156,10 @@ public class GeonamesServiceImpl implements GeonamesService {
                             values[16], values[17],
                             sdf.parse(values[18]));
 
-                    persistenceService.save(geonameEntry, true);
+                    batch.add(geonameEntry);
+                    if (batch.size() >= IMPORT_BATCH_SIZE) {
+                        failedCount += saveBatch(batch);
+                    }
                 }
                 charCount+=line.length();
                 if (fileSize > 0) {
@@ -167,6 +176,10 @@ public class GeonamesServiceImpl implements GeonamesService {
                     }
                 }
             }
+            failedCount += saveBatch(batch);
+            if (failedCount > 0) {
+                logger.warn("{} entries of Geonames database file {} could not be imported", failedCount, f);
+            }
             long totalTimeMillis = System.currentTimeMillis()-importStartTime;
             logger.info("{} characters from Geonames database file {} imported in {}ms. Speed={}MB/s", charCount, f, totalTimeMillis, charCount / (1024*1024) / (totalTimeMillis / 1000));
         } catch (Exception e) {
@@ -174,6 +187,21 @@ public class GeonamesServiceImpl implements GeonamesService {
         }
     }
 
+    /**
+     * Saves the entries with a single bulk request and clears the batch.
+     *
+     * @return the number of entries which could not be saved
+     */
+    private int saveBatch(List<GeonameEntry> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<String> failedItemIds = persistenceService.saveAll(batch);
+        int failedCount = failedItemIds != null ? failedItemIds.size() : batch.size();
+        batch.clear();
+        return failedCount;
+    }
+
     public List<GeonameEntry> getHierarchy(String itemId) {
         return getHierarchy(persistenceService.load(itemId, GeonameEntry.class));
     }
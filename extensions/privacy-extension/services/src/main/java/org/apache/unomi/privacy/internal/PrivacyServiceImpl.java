@@ -36,6 +36,9 @@ public class PrivacyServiceImpl implements PrivacyService {
 
     private static final Logger logger = LoggerFactory.getLogger(PrivacyServiceImpl.class);
 
+    // the event type counts of the server information don't need to be exact
+    private static final long EVENT_TYPE_COUNTS_MAX_AGE = 60000;
+
     private PersistenceService persistenceService;
     private ProfileService profileService;
     private EventService eventService;
@@ -68,7 +71,7 @@ public class PrivacyServiceImpl implements PrivacyService {
         serverInfo.setServerVersion(bundleContext.getBundle().getVersion().toString());
 
         // let's retrieve all the event types the server has seen.
-        Map<String, Long> eventTypeCounts = persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate("eventType"), Event.ITEM_TYPE);
+        Map<String, Long> eventTypeCounts = persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate("eventType"), Event.ITEM_TYPE, EVENT_TYPE_COUNTS_MAX_AGE);
         List<EventInfo> eventTypes = new ArrayList<EventInfo>();
         for (Map.Entry<String, Long> eventTypeEntry : eventTypeCounts.entrySet()) {
             EventInfo eventInfo = new EventInfo();
@@ -166,6 +169,7 @@ public class PrivacyServiceImpl implements PrivacyService {
         if (anonymous) {
             profile.getSystemProperties().remove("goals");
             profile.getSystemProperties().remove("pastEvents");
+            profile.getSystemProperties().remove("pastEventCounters");
         }
         Event profileUpdated = new Event("profileUpdated", null, profile, scope, null, profile, new Date());
         profileUpdated.setPersistent(false);
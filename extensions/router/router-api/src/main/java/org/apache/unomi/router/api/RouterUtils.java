@@ -60,4 +60,19 @@ public class RouterUtils {
         return null;
     }
 
+    /**
+     * Retrieves the profile fields to load to export the columns of the mapping of an export configuration.
+     *
+     * @param mapping the mapping of the export configuration, from the column indexes to the property names
+     * @return the paths of the mapped properties in the profiles
+     */
+    public static String[] getExportedProfileFields(Map<String, String> mapping) {
+        String[] fields = new String[mapping.size()];
+        int i = 0;
+        for (String propertyName : mapping.values()) {
+            fields[i++] = "properties." + propertyName;
+        }
+        return fields;
+    }
+
 }
@@ -17,19 +17,31 @@
 package org.apache.unomi.router.core.bean;
 
 import org.apache.unomi.api.Profile;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.PersistenceService;
 
-import java.util.List;
-
 /**
  * Created by amidani on 28/06/2017.
  */
 public class CollectProfileBean {
 
+    private static final int PAGE_SIZE = 1000;
+
     private PersistenceService persistenceService;
+    private String[] includedFields;
+
+    /**
+     * The profiles are loaded while the route splits them, the iterator is closed by the splitter.
+     */
+    public CloseableIterator<Profile> extractProfileBySegment(String segment) {
+        return persistenceService.queryIterator("segments", segment, null, Profile.class, PAGE_SIZE, includedFields, null);
+    }
 
-    public List<Profile> extractProfileBySegment(String segment) {
-        return persistenceService.query("segments", segment,null, Profile.class);
+    /**
+     * @param includedFields the fields of the profiles needed by the export, {@code null} to load the whole profiles
+     */
+    public void setIncludedFields(String[] includedFields) {
+        this.includedFields = includedFields;
     }
 
     public void setPersistenceService(PersistenceService persistenceService) {
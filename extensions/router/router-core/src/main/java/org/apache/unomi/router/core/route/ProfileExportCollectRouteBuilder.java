@@ -23,6 +23,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.router.api.ExportConfiguration;
 import org.apache.unomi.router.api.RouterConstants;
+import org.apache.unomi.router.api.RouterUtils;
 import org.apache.unomi.router.api.services.ImportExportConfigurationService;
 import org.apache.unomi.router.core.bean.CollectProfileBean;
 import org.slf4j.Logger;
@@ -54,16 +55,16 @@ public class ProfileExportCollectRouteBuilder extends RouterAbstractRouteBuilder
             exportConfigurationList = exportConfigurationService.getAll();
         }
 
-        CollectProfileBean collectProfileBean = new CollectProfileBean();
-        collectProfileBean.setPersistenceService(persistenceService);
-
-
         //Loop on multiple export configuration
         for (final ExportConfiguration exportConfiguration : exportConfigurationList) {
             if (RouterConstants.IMPORT_EXPORT_CONFIG_TYPE_RECURRENT.equals(exportConfiguration.getConfigType()) &&
                     exportConfiguration.getProperties() != null && exportConfiguration.getProperties().size() > 0) {
                 if ((Map<String, String>) exportConfiguration.getProperties().get("mapping") != null) {
                     String destinationEndpoint = (String) exportConfiguration.getProperties().get("destination");
+                    // only the exported properties of the profiles are loaded
+                    CollectProfileBean collectProfileBean = new CollectProfileBean();
+                    collectProfileBean.setPersistenceService(persistenceService);
+                    collectProfileBean.setIncludedFields(RouterUtils.getExportedProfileFields((Map<String, String>) exportConfiguration.getProperties().get("mapping")));
                     if (StringUtils.isNotBlank(destinationEndpoint) && allowedEndpoints.contains(destinationEndpoint.substring(0, destinationEndpoint.indexOf(':')))) {
                         String timerString = "timer://collectProfile?fixedRate=true&period=" + (String) exportConfiguration.getProperties().get("period");
                         if ((String) exportConfiguration.getProperties().get("delay") != null) {
@@ -73,7 +74,7 @@ public class ProfileExportCollectRouteBuilder extends RouterAbstractRouteBuilder
                                 .routeId(exportConfiguration.getItemId())// This allow identification of the route for manual start/stop
                                 .autoStartup(exportConfiguration.isActive())
                                 .bean(collectProfileBean, "extractProfileBySegment(" + exportConfiguration.getProperties().get("segment") + ")")
-                                .split(body())
+                                .split(body()).streaming()
                                 .marshal(jacksonDataFormat)
                                 .convertBodyTo(String.class)
                                 .setHeader(RouterConstants.HEADER_EXPORT_CONFIG, constant(exportConfiguration))
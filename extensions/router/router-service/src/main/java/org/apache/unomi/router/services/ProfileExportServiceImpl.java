@@ -21,6 +21,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.PropertyType;
 import org.apache.unomi.api.services.ConfigSharingService;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.router.api.ExportConfiguration;
 import org.apache.unomi.router.api.RouterConstants;
 import org.apache.unomi.router.api.RouterUtils;
@@ -37,20 +38,27 @@ public class ProfileExportServiceImpl extends AbstractCustomServiceImpl implemen
 
     private static final Logger logger = LoggerFactory.getLogger(ProfileExportServiceImpl.class.getName());
 
+    private static final int PAGE_SIZE = 1000;
+
     private ConfigSharingService configSharingService;
 
     public String extractProfilesBySegment(ExportConfiguration exportConfiguration) {
-        List<Profile> profileList = persistenceService.query("segments", (String) exportConfiguration.getProperty("segment"), null, Profile.class);
+        // only the exported properties of the profiles are loaded
+        String[] includedFields = RouterUtils.getExportedProfileFields((Map<String, String>) exportConfiguration.getProperty("mapping"));
         StringBuilder csvContent = new StringBuilder();
-        for (Profile profile : profileList) {
-            csvContent.append(convertProfileToCSVLine(profile, exportConfiguration));
-            csvContent.append(RouterUtils.getCharFromLineSeparator(exportConfiguration.getLineSeparator()));
+        int extractedCount = 0;
+        try (CloseableIterator<Profile> profiles = persistenceService.queryIterator("segments", (String) exportConfiguration.getProperty("segment"), null, Profile.class, PAGE_SIZE, includedFields, null)) {
+            while (profiles.hasNext()) {
+                csvContent.append(convertProfileToCSVLine(profiles.next(), exportConfiguration));
+                csvContent.append(RouterUtils.getCharFromLineSeparator(exportConfiguration.getLineSeparator()));
+                extractedCount++;
+            }
         }
-        logger.debug("Exporting {} extracted profiles.", profileList.size());
+        logger.debug("Exporting {} extracted profiles.", extractedCount);
 
         Map execution = new HashMap();
         execution.put(RouterConstants.KEY_EXECS_DATE, new Date().getTime());
-        execution.put(RouterConstants.KEY_EXECS_EXTRACTED, profileList.size());
+        execution.put(RouterConstants.KEY_EXECS_EXTRACTED, extractedCount);
 
         exportConfiguration = (ExportConfiguration) RouterUtils.addExecutionEntry(exportConfiguration, execution, Integer.parseInt((String) configSharingService.getProperty(RouterConstants.KEY_HISTORY_SIZE)));
         persistenceService.save(exportConfiguration);
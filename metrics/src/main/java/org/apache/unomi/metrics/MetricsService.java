@@ -45,5 +45,11 @@ public interface MetricsService {
 
     void updateTimer(String timerName, long startTime);
 
+    /**
+     * Increments the count of a metric without recording any time, for things that are counted instead of timed.
+     * @param counterName the name of the metric to increment
+     */
+    void incrementCounter(String counterName);
+
 
 }
@@ -88,6 +88,19 @@ public class MetricsServiceImpl implements MetricsService {
         }
     }
 
+    @Override
+    public void incrementCounter(String counterName) {
+        if (!activated) {
+            return;
+        }
+        Metric metric = metrics.get(counterName);
+        if (metric == null) {
+            metric = new MetricImpl(counterName);
+            metrics.put(counterName, metric);
+        }
+        metric.incTotalCount();
+    }
+
     @Override
     public Map<String, Boolean> getCallersStatus() {
         return callersStatus;
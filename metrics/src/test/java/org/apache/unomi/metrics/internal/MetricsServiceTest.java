@@ -115,6 +115,19 @@ public class MetricsServiceTest {
         System.out.println("Free memory=" + humanReadableByteCount(Runtime.getRuntime().freeMemory(), false));
     }
 
+    @Test
+    public void testCounters() {
+        MetricsServiceImpl metricsService = new MetricsServiceImpl();
+        metricsService.incrementCounter("counter");
+        assertEquals("Counters should not be updated when metrics are deactivated", 0, metricsService.getMetrics().size());
+
+        metricsService.setActivated(true);
+        metricsService.incrementCounter("counter");
+        metricsService.incrementCounter("counter");
+        assertEquals(2, metricsService.getMetrics().get("counter").getTotalCount());
+        assertEquals(0, metricsService.getMetrics().get("counter").getTotalTime());
+    }
+
     @Test
     public void testStackTraceGenerationSpeed() {
         long startWithException = System.currentTimeMillis();
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Caches the results of the aggregate queries, keyed by the search request built for the filter and the aggregate.
+ * Concurrent identical requests wait for the result of the first one instead of all running the same query, and the
+ * results are kept until they are older than the maximum age accepted by the callers, or forever for the results
+ * which are not expected to change anymore, until the items are removed. The least recently used results are evicted
+ * once the maximum number of entries is reached.
+ */
+class AggregateQueryCache {
+
+    private final Map<String, Entry> entries;
+
+    private static class Entry {
+        private final String itemType;
+        private final boolean immutable;
+        // the results are considered as old as the start of the query
+        private final long loadTime = System.currentTimeMillis();
+        private final CompletableFuture<Map<String, Long>> result = new CompletableFuture<>();
+
+        Entry(String itemType, boolean immutable) {
+            this.itemType = itemType;
+            this.immutable = immutable;
+        }
+
+        boolean isValid(long maxAge) {
+            return !result.isDone() || immutable || (maxAge >= 0 && System.currentTimeMillis() - loadTime <= maxAge);
+        }
+    }
+
+    AggregateQueryCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the cached results of an aggregate query, or loads them if they are missing or too old.
+     *
+     * @param itemType the type of the aggregated items, to invalidate the results when the items are removed
+     * @param key      the canonical form of the query
+     * @param maxAge   the maximum age in milliseconds of the cached results, or a negative value if the results cannot
+     *                 change anymore and can be kept forever
+     * @param loader   runs the query, returning {@code null} if it failed
+     * @return a copy of the results, {@code null} if the query failed
+     */
+    Map<String, Long> get(String itemType, String key, long maxAge, Supplier<Map<String, Long>> loader) {
+        Entry entry;
+        boolean loading = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null || !entry.isValid(maxAge)) {
+                entry = new Entry(itemType, maxAge < 0);
+                entries.put(key, entry);
+                loading = true;
+            }
+        }
+        if (loading) {
+            Map<String, Long> results;
+            try {
+                results = loader.get();
+            } catch (RuntimeException e) {
+                remove(key, entry);
+                entry.result.completeExceptionally(e);
+                throw e;
+            }
+            if (results == null) {
+                // failures are not cached, the next request runs the query again
+                remove(key, entry);
+            }
+            entry.result.complete(results);
+            return copy(results);
+        }
+        try {
+            return copy(entry.result.join());
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Removes the cached results of the aggregates of an item type, when the items were modified in a way which can
+     * change results considered as immutable, such as the removal of old items.
+     *
+     * @param itemType the item type
+     */
+    void invalidate(String itemType) {
+        synchronized (entries) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().itemType.equals(itemType)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the cached results considered as immutable of the aggregates of an item type, when some items were
+     * removed but the results which expire are allowed to be stale.
+     *
+     * @param itemType the item type
+     */
+    void invalidateImmutable(String itemType) {
+        synchronized (entries) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+                Entry entry = iterator.next();
+                if (entry.immutable && entry.itemType.equals(itemType)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    private static Map<String, Long> copy(Map<String, Long> results) {
+        // the callers are free to modify the results
+        return results != null ? new LinkedHashMap<>(results) : null;
+    }
+
+    /**
+     * Computes the start of the calendar interval containing the specified date, in UTC as the date histograms, so that
+     * the buckets starting before it are closed.
+     *
+     * @param interval the calendar interval of a date histogram, such as {@code 1d} or {@code month}
+     * @param time     the date in milliseconds
+     * @return the start of the interval in milliseconds, or -1 if the interval is not a calendar interval
+     */
+    static long getIntervalStart(String interval, long time) {
+        ZonedDateTime date = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+        switch (interval) {
+            case "1s":
+            case "second":
+                date = date.truncatedTo(ChronoUnit.SECONDS);
+                break;
+            case "1m":
+            case "minute":
+                date = date.truncatedTo(ChronoUnit.MINUTES);
+                break;
+            case "1h":
+            case "hour":
+                date = date.truncatedTo(ChronoUnit.HOURS);
+                break;
+            case "1d":
+            case "day":
+                date = date.truncatedTo(ChronoUnit.DAYS);
+                break;
+            case "1w":
+            case "week":
+                date = date.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                break;
+            case "1M":
+            case "month":
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                break;
+            case "1q":
+            case "quarter":
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).withMonth((date.getMonthValue() - 1) / 3 * 3 + 1);
+                break;
+            case "1y":
+            case "year":
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+                break;
+            default:
+                return -1;
+        }
+        return date.toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.apache.unomi.metrics.MetricsService;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Batches the writes of some item types in a dedicated {@link BulkProcessor}, with a bound on the number of actions
+ * waiting to be acknowledged by ElasticSearch. When the bound is reached, writers are either blocked until previous
+ * bulks complete or their writes are rejected, depending on the in-flight policy. The asynchronous writes are always
+ * rejected right away.
+ */
+class BulkWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkWriter.class.getName());
+
+    // the longest time a write waits for previous bulks to complete with the block policy, before being rejected
+    private static final long MAX_BLOCKING_TIME_SECONDS = 60;
+
+    /**
+     * What to do with a write when the maximum number of in-flight actions is reached
+     */
+    enum InFlightPolicy {
+        BLOCK, SHED
+    }
+
+    /**
+     * The settings of a bulk writer, read from the bulkProcessor.* configuration properties
+     */
+    static class Settings {
+        String concurrentRequests = "1";
+        String bulkActions = "1000";
+        String bulkSize = "5MB";
+        String flushInterval = "5s";
+        String backoffPolicy = "exponential";
+        String maxInFlightActions = "10000";
+        String inFlightPolicy = "block";
+
+        Settings copy() {
+            Settings settings = new Settings();
+            settings.concurrentRequests = concurrentRequests;
+            settings.bulkActions = bulkActions;
+            settings.bulkSize = bulkSize;
+            settings.flushInterval = flushInterval;
+            settings.backoffPolicy = backoffPolicy;
+            settings.maxInFlightActions = maxInFlightActions;
+            settings.inFlightPolicy = inFlightPolicy;
+            return settings;
+        }
+
+        void set(String name, String value) {
+            switch (name) {
+                case "concurrentRequests":
+                    concurrentRequests = value;
+                    break;
+                case "bulkActions":
+                    bulkActions = value;
+                    break;
+                case "bulkSize":
+                    bulkSize = value;
+                    break;
+                case "flushInterval":
+                    flushInterval = value;
+                    break;
+                case "backoffPolicy":
+                    backoffPolicy = value;
+                    break;
+                case "maxInFlightActions":
+                    maxInFlightActions = value;
+                    break;
+                case "inFlightPolicy":
+                    inFlightPolicy = value;
+                    break;
+                default:
+                    logger.warn("Unknown bulk processor setting {}, ignoring it", name);
+            }
+        }
+    }
+
+    private final String name;
+    private final MetricsService metricsService;
+    private final String timerName;
+    private final BulkProcessor bulkProcessor;
+    private final Semaphore inFlightActions;
+    private final InFlightPolicy inFlightPolicy;
+    private final ConcurrentMap<Long, Long> bulkStartTimes = new ConcurrentHashMap<>();
+
+    private final AtomicLong bulkCount = new AtomicLong();
+    private final AtomicLong actionCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong failedActionCount = new AtomicLong();
+    private final AtomicLong rejectedActionCount = new AtomicLong();
+
+    BulkWriter(String name, RestHighLevelClient client, Settings settings, MetricsService metricsService) {
+        this(name, (request, bulkListener) -> client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener), settings, metricsService);
+    }
+
+    BulkWriter(String name, BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulkConsumer, Settings settings, MetricsService metricsService) {
+        this.name = name;
+        this.metricsService = metricsService;
+        this.timerName = ElasticSearchPersistenceServiceImpl.class.getName() + ".bulk." + name;
+        int maxInFlightActions = Integer.parseInt(settings.maxInFlightActions);
+        this.inFlightActions = maxInFlightActions > 0 ? new Semaphore(maxInFlightActions) : null;
+        this.inFlightPolicy = InFlightPolicy.valueOf(settings.inFlightPolicy.toUpperCase());
+        this.bulkProcessor = buildBulkProcessor(bulkConsumer, settings);
+    }
+
+    private BulkProcessor buildBulkProcessor(BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulkConsumer, Settings settings) {
+        BulkProcessor.Listener bulkProcessorListener = new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId,
+                                   BulkRequest request) {
+                bulkStartTimes.put(executionId, System.currentTimeMillis());
+                logger.debug("Before Bulk {} of {} with {} actions", executionId, name, request.numberOfActions());
+            }
+
+            @Override
+            public void afterBulk(long executionId,
+                                  BulkRequest request,
+                                  BulkResponse response) {
+                bulkCompleted(executionId, request);
+                if (response.hasFailures()) {
+                    int failures = 0;
+                    for (BulkItemResponse itemResponse : response.getItems()) {
+                        if (itemResponse.isFailed()) {
+                            failures++;
+                        }
+                    }
+                    failedActionCount.addAndGet(failures);
+                    logger.warn("{} of {} actions failed in bulk {} of {}: {}", failures, request.numberOfActions(), executionId, name, response.buildFailureMessage());
+                } else {
+                    logger.debug("After Bulk {} of {}", executionId, name);
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId,
+                                  BulkRequest request,
+                                  Throwable failure) {
+                bulkCompleted(executionId, request);
+                failedActionCount.addAndGet(request.numberOfActions());
+                logger.error("After Bulk {} of {} (failure)", executionId, name, failure);
+            }
+        };
+        BulkProcessor.Builder bulkProcessorBuilder = BulkProcessor.builder(bulkConsumer, bulkProcessorListener);
+
+        if (settings.concurrentRequests != null) {
+            int concurrentRequests = Integer.parseInt(settings.concurrentRequests);
+            if (concurrentRequests > 1) {
+                bulkProcessorBuilder.setConcurrentRequests(concurrentRequests);
+            }
+        }
+        if (settings.bulkActions != null) {
+            int bulkActions = Integer.parseInt(settings.bulkActions);
+            bulkProcessorBuilder.setBulkActions(bulkActions);
+        }
+        if (settings.bulkSize != null) {
+            bulkProcessorBuilder.setBulkSize(ByteSizeValue.parseBytesSizeValue(settings.bulkSize, new ByteSizeValue(5, ByteSizeUnit.MB), ElasticSearchPersistenceServiceImpl.BULK_PROCESSOR_BULK_SIZE));
+        }
+        if (settings.flushInterval != null) {
+            bulkProcessorBuilder.setFlushInterval(TimeValue.parseTimeValue(settings.flushInterval, null, ElasticSearchPersistenceServiceImpl.BULK_PROCESSOR_FLUSH_INTERVAL));
+        } else {
+            // in ElasticSearch this defaults to null, but we would like to set a value to 5 seconds by default
+            bulkProcessorBuilder.setFlushInterval(new TimeValue(5, TimeUnit.SECONDS));
+        }
+        BackoffPolicy backoffPolicy = parseBackoffPolicy(settings.backoffPolicy);
+        if (backoffPolicy != null) {
+            bulkProcessorBuilder.setBackoffPolicy(backoffPolicy);
+        }
+        return bulkProcessorBuilder.build();
+    }
+
+    /**
+     * Parses a backoff policy setting: {@code nobackoff}, {@code constant(delay,maxNumberOfRetries)},
+     * {@code exponential} or {@code exponential(initialDelay,maxNumberOfRetries)}.
+     *
+     * @return the backoff policy, or {@code null} to use the default one of the bulk processor
+     */
+    static BackoffPolicy parseBackoffPolicy(String backoffPolicy) {
+        if (backoffPolicy == null || backoffPolicy.length() == 0) {
+            return null;
+        }
+        String backoffPolicyStr = backoffPolicy.toLowerCase();
+        if ("nobackoff".equals(backoffPolicyStr)) {
+            return BackoffPolicy.noBackoff();
+        } else if (backoffPolicyStr.startsWith("constant(")) {
+            int paramStartPos = "constant(".length();
+            int paramEndPos = backoffPolicyStr.indexOf(")", paramStartPos);
+            int paramSeparatorPos = backoffPolicyStr.indexOf(",", paramStartPos);
+            TimeValue delay = TimeValue.parseTimeValue(backoffPolicyStr.substring(paramStartPos, paramSeparatorPos).trim(), new TimeValue(5, TimeUnit.SECONDS), ElasticSearchPersistenceServiceImpl.BULK_PROCESSOR_BACKOFF_POLICY);
+            int maxNumberOfRetries = Integer.parseInt(backoffPolicyStr.substring(paramSeparatorPos + 1, paramEndPos).trim());
+            return BackoffPolicy.constantBackoff(delay, maxNumberOfRetries);
+        } else if (backoffPolicyStr.startsWith("exponential")) {
+            if (!backoffPolicyStr.contains("(")) {
+                return BackoffPolicy.exponentialBackoff();
+            }
+            // we detected parameters, must process them.
+            int paramStartPos = "exponential(".length();
+            int paramEndPos = backoffPolicyStr.indexOf(")", paramStartPos);
+            int paramSeparatorPos = backoffPolicyStr.indexOf(",", paramStartPos);
+            TimeValue delay = TimeValue.parseTimeValue(backoffPolicyStr.substring(paramStartPos, paramSeparatorPos).trim(), new TimeValue(5, TimeUnit.SECONDS), ElasticSearchPersistenceServiceImpl.BULK_PROCESSOR_BACKOFF_POLICY);
+            int maxNumberOfRetries = Integer.parseInt(backoffPolicyStr.substring(paramSeparatorPos + 1, paramEndPos).trim());
+            return BackoffPolicy.exponentialBackoff(delay, maxNumberOfRetries);
+        }
+        logger.warn("Unknown bulk processor backoff policy {}, using the default one", backoffPolicy);
+        return null;
+    }
+
+    private void bulkCompleted(long executionId, BulkRequest request) {
+        if (inFlightActions != null) {
+            inFlightActions.release(request.numberOfActions());
+        }
+        bulkCount.incrementAndGet();
+        actionCount.addAndGet(request.numberOfActions());
+        byteCount.addAndGet(request.estimatedSizeInBytes());
+        Long startTime = bulkStartTimes.remove(executionId);
+        if (startTime != null && metricsService != null && metricsService.isActivated()) {
+            metricsService.updateTimer(timerName, startTime);
+        }
+    }
+
+    /**
+     * Adds a write to the next bulk, waiting for previous bulks to complete if too many writes are in flight and the
+     * in-flight policy is to block.
+     *
+     * @param request the write to add
+     * @return {@code true} if the write was added, {@code false} if it was rejected because too many writes are waiting
+     * for previous bulks to complete
+     */
+    boolean add(DocWriteRequest<?> request) {
+        return add(request, true);
+    }
+
+    /**
+     * Adds a write to the next bulk.
+     *
+     * @param request  the write to add
+     * @param mayBlock {@code false} to reject the write right away when too many writes are in flight, whatever the
+     *                 in-flight policy, for the callers that must not be blocked
+     * @return {@code true} if the write was added, {@code false} if it was rejected because too many writes are waiting
+     * for previous bulks to complete
+     */
+    boolean add(DocWriteRequest<?> request, boolean mayBlock) {
+        if (!acquireInFlightAction(mayBlock)) {
+            rejectedActionCount.incrementAndGet();
+            logger.warn("Too many in-flight actions for {}, rejecting the write of {}", name, request.id());
+            return false;
+        }
+        try {
+            bulkProcessor.add(request);
+        } catch (RuntimeException e) {
+            // the action is not part of any bulk
+            if (inFlightActions != null) {
+                inFlightActions.release();
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    private boolean acquireInFlightAction(boolean mayBlock) {
+        if (inFlightActions == null || inFlightActions.tryAcquire()) {
+            return true;
+        }
+        if (!mayBlock || inFlightPolicy == InFlightPolicy.SHED) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            return inFlightActions.tryAcquire(MAX_BLOCKING_TIME_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (metricsService != null && metricsService.isActivated()) {
+                metricsService.updateTimer(timerName + ".blocked", startTime);
+            }
+        }
+    }
+
+    void flush() {
+        bulkProcessor.flush();
+    }
+
+    void awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        bulkProcessor.awaitClose(timeout, unit);
+    }
+
+    BulkProcessor getBulkProcessor() {
+        return bulkProcessor;
+    }
+
+    /**
+     * @return the number of bulks, actions, bytes, failed and rejected actions since the writer was created, and the
+     * number of actions currently waiting for a bulk to complete
+     */
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("bulks", bulkCount.get());
+        statistics.put("actions", actionCount.get());
+        statistics.put("bytes", byteCount.get());
+        statistics.put("failedActions", failedActionCount.get());
+        statistics.put("rejectedActions", rejectedActionCount.get());
+        if (inFlightActions != null) {
+            statistics.put("availableInFlightActions", (long) inFlightActions.availablePermits());
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.apache.unomi.persistence.spi.CloseableIterator;
+import org.apache.unomi.persistence.spi.aggregate.AggregateBucket;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.filter.Filters;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over the buckets of a composite aggregation, each page being requested after the key of the last bucket of
+ * the previous one. The next page is requested as soon as the current one is received so that it is loaded while the
+ * current one is read, and only the buckets of two pages are kept in memory.
+ */
+class CompositeAggregationIterator implements CloseableIterator<AggregateBucket> {
+
+    static final String BUCKETS_AGGREGATION = "buckets";
+    static final String FILTERS_AGGREGATION = "filters";
+
+    private final RestHighLevelClient client;
+    private final SearchRequest searchRequest;
+    private final CompositeAggregationBuilder compositeAggregation;
+    private final String sourceName;
+
+    private Iterator<? extends CompositeAggregation.Bucket> buckets;
+    private CompletableFuture<SearchResponse> nextPage;
+
+    /**
+     * @param searchRequest        the request of the first page, reused for the next ones
+     * @param compositeAggregation the composite aggregation of the request
+     * @param sourceName           the name of the terms source of the composite aggregation
+     * @param firstPage            the response of the first page
+     */
+    CompositeAggregationIterator(RestHighLevelClient client, SearchRequest searchRequest, CompositeAggregationBuilder compositeAggregation, String sourceName,
+                                 SearchResponse firstPage) {
+        this.client = client;
+        this.searchRequest = searchRequest;
+        this.compositeAggregation = compositeAggregation;
+        this.sourceName = sourceName;
+        setPage(firstPage);
+    }
+
+    private void setPage(SearchResponse response) {
+        nextPage = null;
+        if (response.getAggregations() == null) {
+            buckets = Collections.emptyIterator();
+            return;
+        }
+        CompositeAggregation aggregation = response.getAggregations().get(BUCKETS_AGGREGATION);
+        List<? extends CompositeAggregation.Bucket> page = aggregation.getBuckets();
+        buckets = page.iterator();
+        if (page.size() == compositeAggregation.size() && aggregation.afterKey() != null) {
+            // the previous request is complete, it can be modified to request the next page
+            compositeAggregation.aggregateAfter(aggregation.afterKey());
+            nextPage = new CompletableFuture<>();
+            client.searchAsync(searchRequest, RequestOptions.DEFAULT, ActionListener.wrap(nextPage::complete, nextPage::completeExceptionally));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (buckets.hasNext()) {
+            return true;
+        }
+        if (nextPage == null) {
+            return false;
+        }
+        try {
+            setPage(nextPage.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while loading the buckets of " + sourceName, e);
+        } catch (ExecutionException e) {
+            close();
+            throw new IllegalStateException("Error while loading the buckets of " + sourceName, e.getCause());
+        }
+        return buckets.hasNext();
+    }
+
+    @Override
+    public AggregateBucket next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CompositeAggregation.Bucket bucket = buckets.next();
+        Map<String, Long> filterCounts = null;
+        if (bucket.getAggregations() != null && bucket.getAggregations().get(FILTERS_AGGREGATION) != null) {
+            filterCounts = new LinkedHashMap<>();
+            Filters filters = bucket.getAggregations().get(FILTERS_AGGREGATION);
+            for (Filters.Bucket filterBucket : filters.getBuckets()) {
+                filterCounts.put(filterBucket.getKeyAsString(), filterBucket.getDocCount());
+            }
+        }
+        return new AggregateBucket(String.valueOf(bucket.getKey().get(sourceName)), bucket.getDocCount(), filterCounts);
+    }
+
+    @Override
+    public void close() {
+        // there is no search context to release, the page being loaded is simply ignored
+        buckets = Collections.emptyIterator();
+        nextPage = null;
+    }
+}
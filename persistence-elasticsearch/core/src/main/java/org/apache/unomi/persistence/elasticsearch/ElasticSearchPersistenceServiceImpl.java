@@ -17,7 +17,9 @@
 
 package org.apache.unomi.persistence.elasticsearch;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.hazelcast.core.HazelcastInstance;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
@@ -25,7 +27,9 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.util.EntityUtils;
 import org.apache.lucene.search.TotalHits;
+import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.TimestampedItem;
@@ -36,9 +40,14 @@ import org.apache.unomi.api.query.NumericRange;
 import org.apache.unomi.metrics.MetricAdapter;
 import org.apache.unomi.metrics.MetricsService;
 import org.apache.unomi.persistence.elasticsearch.conditions.*;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.*;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.admin.indices.template.delete.DeleteIndexTemplateRequest;
@@ -47,23 +56,32 @@ import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
 import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.*;
 import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.core.CountResponse;
 import org.elasticsearch.client.core.MainResponse;
 import org.elasticsearch.client.indices.*;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.DistanceUnit;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.query.IdsQueryBuilder;
@@ -72,6 +90,7 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptException;
 import org.elasticsearch.script.ScriptType;
@@ -80,7 +99,11 @@ import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.*;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
 import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.filter.FiltersAggregator;
 import org.elasticsearch.search.aggregations.bucket.global.Global;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
@@ -92,6 +115,8 @@ import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
 import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.GeoDistanceSortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
@@ -105,6 +130,7 @@ import javax.net.ssl.X509TrustManager;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -113,6 +139,10 @@ import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.index.query.QueryBuilders.termQuery;
@@ -129,10 +159,27 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     public static final String BULK_PROCESSOR_BULK_SIZE = "bulkProcessor.bulkSize";
     public static final String BULK_PROCESSOR_FLUSH_INTERVAL = "bulkProcessor.flushInterval";
     public static final String BULK_PROCESSOR_BACKOFF_POLICY = "bulkProcessor.backoffPolicy";
+    public static final String BULK_PROCESSOR_MAX_IN_FLIGHT_ACTIONS = "bulkProcessor.maxInFlightActions";
+    public static final String BULK_PROCESSOR_IN_FLIGHT_POLICY = "bulkProcessor.inFlightPolicy";
+    public static final String BULK_PROCESSOR_ITEM_TYPES = "bulkProcessor.itemTypes";
+    public static final String BULK_PROCESSOR_ITEM_TYPE_SETTINGS = "bulkProcessor.itemTypeSettings";
     public static final String INDEX_DATE_PREFIX = "date-";
     private static final Logger logger = LoggerFactory.getLogger(ElasticSearchPersistenceServiceImpl.class.getName());
+    // the minimal age of the cached mappings of an item type before they are reloaded to look up a missing property
+    private static final long MAPPING_RELOAD_MIN_INTERVAL = 1000;
+    // unique identifier of the items of an index, to sort the hits in a total order for the search_after pagination,
+    // always indexed unlike the keyword of the itemId which is ignored above 256 characters
+    private static final String TIEBREAKER_FIELD = "_id";
+    // the _id field does not support range queries, the slices are split on the keyword of the itemId
+    private static final String SLICE_FIELD = "itemId.keyword";
+    private static final int SEARCH_AFTER_PAGE_SIZE = 1000;
+    // the minimal number of hits of a page to parse them in parallel
+    private static final int PARALLEL_HITS_PARSING_THRESHOLD = 500;
     private RestHighLevelClient client;
-    private BulkProcessor bulkProcessor;
+    private final ItemSourceReader itemSourceReader = new ItemSourceReader(Runtime.getRuntime().availableProcessors(), PARALLEL_HITS_PARSING_THRESHOLD);
+    // the bulk writers of the item types having their own bulk processor, the other types using the default one
+    private Map<String, BulkWriter> bulkWritersByType = new HashMap<>();
+    private BulkWriter defaultBulkWriter;
     private String elasticSearchAddresses;
     private List<String> elasticSearchAddressList = new ArrayList<>();
     private String clusterName;
@@ -160,6 +207,10 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     private String bulkProcessorBulkSize = "5MB";
     private String bulkProcessorFlushInterval = "5s";
     private String bulkProcessorBackoffPolicy = "exponential";
+    private String bulkProcessorMaxInFlightActions = "10000";
+    private String bulkProcessorInFlightPolicy = "block";
+    private String bulkProcessorItemTypes = "event,session,profile";
+    private String bulkProcessorItemTypeSettings = "";
 
     private String minimalElasticSearchVersion = "7.0.0";
     private String maximalElasticSearchVersion = "8.0.0";
@@ -171,6 +222,10 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     private boolean sslTrustAllCertificates = false;
 
     private int aggregateQueryBucketSize = 5000;
+    private int aggregateQueryCacheSize = 1000;
+    private long aggregateQueryCacheClosedIntervalLag = 3600000L;
+    private long aggregateQueryCacheClosedIntervalMaxAge = 3600000L;
+    private AggregateQueryCache aggregateQueryCache;
 
     private MetricsService metricsService;
     private HazelcastInstance hazelcastInstance;
@@ -178,7 +233,9 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     private String itemClassesToCache;
     private boolean useBatchingForSave = false;
 
-    private Map<String, Map<String, Map<String, Object>>> knownMappings = new HashMap<>();
+    private long mappingCacheCheckInterval = 60000;
+    private ScheduledExecutorService mappingCacheChecker;
+    private Map<String, PropertiesMapping> knownMappings = new ConcurrentHashMap<>();
 
     public void setBundleContext(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
@@ -273,6 +330,22 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         this.bulkProcessorBackoffPolicy = bulkProcessorBackoffPolicy;
     }
 
+    public void setBulkProcessorMaxInFlightActions(String bulkProcessorMaxInFlightActions) {
+        this.bulkProcessorMaxInFlightActions = bulkProcessorMaxInFlightActions;
+    }
+
+    public void setBulkProcessorInFlightPolicy(String bulkProcessorInFlightPolicy) {
+        this.bulkProcessorInFlightPolicy = bulkProcessorInFlightPolicy;
+    }
+
+    public void setBulkProcessorItemTypes(String bulkProcessorItemTypes) {
+        this.bulkProcessorItemTypes = bulkProcessorItemTypes;
+    }
+
+    public void setBulkProcessorItemTypeSettings(String bulkProcessorItemTypeSettings) {
+        this.bulkProcessorItemTypeSettings = bulkProcessorItemTypeSettings;
+    }
+
     public void setMinimalElasticSearchVersion(String minimalElasticSearchVersion) {
         this.minimalElasticSearchVersion = minimalElasticSearchVersion;
     }
@@ -285,6 +358,22 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         this.aggregateQueryBucketSize = aggregateQueryBucketSize;
     }
 
+    public void setAggregateQueryCacheSize(int aggregateQueryCacheSize) {
+        this.aggregateQueryCacheSize = aggregateQueryCacheSize;
+    }
+
+    public void setAggregateQueryCacheClosedIntervalLag(long aggregateQueryCacheClosedIntervalLag) {
+        this.aggregateQueryCacheClosedIntervalLag = aggregateQueryCacheClosedIntervalLag;
+    }
+
+    public void setAggregateQueryCacheClosedIntervalMaxAge(long aggregateQueryCacheClosedIntervalMaxAge) {
+        this.aggregateQueryCacheClosedIntervalMaxAge = aggregateQueryCacheClosedIntervalMaxAge;
+    }
+
+    public void setMappingCacheCheckInterval(long mappingCacheCheckInterval) {
+        this.mappingCacheCheckInterval = mappingCacheCheckInterval;
+    }
+
     public void setMetricsService(MetricsService metricsService) {
         this.metricsService = metricsService;
     }
@@ -337,6 +426,10 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 bulkProcessorBulkSize = System.getProperty(BULK_PROCESSOR_BULK_SIZE, bulkProcessorBulkSize);
                 bulkProcessorFlushInterval = System.getProperty(BULK_PROCESSOR_FLUSH_INTERVAL, bulkProcessorFlushInterval);
                 bulkProcessorBackoffPolicy = System.getProperty(BULK_PROCESSOR_BACKOFF_POLICY, bulkProcessorBackoffPolicy);
+                bulkProcessorMaxInFlightActions = System.getProperty(BULK_PROCESSOR_MAX_IN_FLIGHT_ACTIONS, bulkProcessorMaxInFlightActions);
+                bulkProcessorInFlightPolicy = System.getProperty(BULK_PROCESSOR_IN_FLIGHT_POLICY, bulkProcessorInFlightPolicy);
+                bulkProcessorItemTypes = System.getProperty(BULK_PROCESSOR_ITEM_TYPES, bulkProcessorItemTypes);
+                bulkProcessorItemTypeSettings = System.getProperty(BULK_PROCESSOR_ITEM_TYPE_SETTINGS, bulkProcessorItemTypeSettings);
 
                 // this property is used for integration tests, to make sure we don't conflict with an already running ElasticSearch instance.
                 if (System.getProperty("org.apache.unomi.itests.elasticsearch.http.port") != null) {
@@ -374,8 +467,17 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                 createMonthlyIndexTemplate();
 
-                if (client != null && bulkProcessor == null) {
-                    bulkProcessor = getBulkProcessor();
+                if (client != null && defaultBulkWriter == null) {
+                    createBulkWriters();
+                }
+                aggregateQueryCache = new AggregateQueryCache(aggregateQueryCacheSize);
+                if (mappingCacheCheckInterval > 0) {
+                    mappingCacheChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "unomi-mapping-cache-checker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    mappingCacheChecker.scheduleWithFixedDelay(() -> checkPropertiesMappings(), mappingCacheCheckInterval, mappingCacheCheckInterval, TimeUnit.MILLISECONDS);
                 }
 
                 logger.info("Waiting for GREEN cluster status...");
@@ -444,86 +546,58 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         client = new RestHighLevelClient(clientBuilder);
     }
 
-    public BulkProcessor getBulkProcessor() {
-        if (bulkProcessor != null) {
-            return bulkProcessor;
+    private void createBulkWriters() {
+        BulkWriter.Settings defaultSettings = new BulkWriter.Settings();
+        defaultSettings.concurrentRequests = bulkProcessorConcurrentRequests;
+        defaultSettings.bulkActions = bulkProcessorBulkActions;
+        defaultSettings.bulkSize = bulkProcessorBulkSize;
+        defaultSettings.flushInterval = bulkProcessorFlushInterval;
+        defaultSettings.backoffPolicy = bulkProcessorBackoffPolicy;
+        defaultSettings.maxInFlightActions = bulkProcessorMaxInFlightActions;
+        defaultSettings.inFlightPolicy = bulkProcessorInFlightPolicy;
+
+        Map<String, BulkWriter.Settings> settingsByType = new LinkedHashMap<>();
+        for (String itemType : StringUtils.split(StringUtils.defaultString(bulkProcessorItemTypes), ", ")) {
+            settingsByType.put(itemType, defaultSettings.copy());
         }
-        BulkProcessor.Listener bulkProcessorListener = new BulkProcessor.Listener() {
-            @Override
-            public void beforeBulk(long executionId,
-                                   BulkRequest request) {
-                logger.debug("Before Bulk");
+        // the settings of the item types are overridden with a comma separated list of itemType.setting=value entries
+        for (String entry : StringUtils.split(StringUtils.defaultString(bulkProcessorItemTypeSettings), ", ")) {
+            String key = StringUtils.substringBefore(entry, "=");
+            String itemType = StringUtils.substringBefore(key, ".");
+            BulkWriter.Settings settings = settingsByType.get(itemType);
+            if (settings == null || !entry.contains("=") || !key.contains(".")) {
+                logger.warn("Invalid bulk processor setting {}, the item types having their own bulk processor are {}", entry, settingsByType.keySet());
+                continue;
             }
+            settings.set(StringUtils.substringAfter(key, "."), StringUtils.substringAfter(entry, "="));
+        }
 
-            @Override
-            public void afterBulk(long executionId,
-                                  BulkRequest request,
-                                  BulkResponse response) {
-                logger.debug("After Bulk");
-            }
+        defaultBulkWriter = new BulkWriter("default", client, defaultSettings, metricsService);
+        Map<String, BulkWriter> bulkWriters = new HashMap<>();
+        for (Map.Entry<String, BulkWriter.Settings> settings : settingsByType.entrySet()) {
+            bulkWriters.put(settings.getKey(), new BulkWriter(settings.getKey(), client, settings.getValue(), metricsService));
+        }
+        bulkWritersByType = bulkWriters;
+    }
 
-            @Override
-            public void afterBulk(long executionId,
-                                  BulkRequest request,
-                                  Throwable failure) {
-                logger.error("After Bulk (failure)", failure);
-            }
-        };
-        BulkProcessor.Builder bulkProcessorBuilder = BulkProcessor.builder(
-                (request, bulkListener) ->
-                        client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener),
-                bulkProcessorListener);
+    private BulkWriter getBulkWriter(String itemType) {
+        BulkWriter bulkWriter = bulkWritersByType.get(itemType);
+        return bulkWriter != null ? bulkWriter : defaultBulkWriter;
+    }
 
-        if (bulkProcessorConcurrentRequests != null) {
-            int concurrentRequests = Integer.parseInt(bulkProcessorConcurrentRequests);
-            if (concurrentRequests > 1) {
-                bulkProcessorBuilder.setConcurrentRequests(concurrentRequests);
-            }
-        }
-        if (bulkProcessorBulkActions != null) {
-            int bulkActions = Integer.parseInt(bulkProcessorBulkActions);
-            bulkProcessorBuilder.setBulkActions(bulkActions);
-        }
-        if (bulkProcessorBulkSize != null) {
-            bulkProcessorBuilder.setBulkSize(ByteSizeValue.parseBytesSizeValue(bulkProcessorBulkSize, new ByteSizeValue(5, ByteSizeUnit.MB), BULK_PROCESSOR_BULK_SIZE));
+    /**
+     * @return the statistics of the bulk processors, by item type, the item types without their own bulk processor
+     * being counted in the default one
+     */
+    public Map<String, Map<String, Long>> getBulkStatistics() {
+        Map<String, Map<String, Long>> statistics = new TreeMap<>();
+        if (defaultBulkWriter != null) {
+            statistics.put("default", defaultBulkWriter.getStatistics());
         }
-        if (bulkProcessorFlushInterval != null) {
-            bulkProcessorBuilder.setFlushInterval(TimeValue.parseTimeValue(bulkProcessorFlushInterval, null, BULK_PROCESSOR_FLUSH_INTERVAL));
-        } else {
-            // in ElasticSearch this defaults to null, but we would like to set a value to 5 seconds by default
-            bulkProcessorBuilder.setFlushInterval(new TimeValue(5, TimeUnit.SECONDS));
-        }
-        if (bulkProcessorBackoffPolicy != null) {
-            String backoffPolicyStr = bulkProcessorBackoffPolicy;
-            if (backoffPolicyStr != null && backoffPolicyStr.length() > 0) {
-                backoffPolicyStr = backoffPolicyStr.toLowerCase();
-                if ("nobackoff".equals(backoffPolicyStr)) {
-                    bulkProcessorBuilder.setBackoffPolicy(BackoffPolicy.noBackoff());
-                } else if (backoffPolicyStr.startsWith("constant(")) {
-                    int paramStartPos = backoffPolicyStr.indexOf("constant(" + "constant(".length());
-                    int paramEndPos = backoffPolicyStr.indexOf(")", paramStartPos);
-                    int paramSeparatorPos = backoffPolicyStr.indexOf(",", paramStartPos);
-                    TimeValue delay = TimeValue.parseTimeValue(backoffPolicyStr.substring(paramStartPos, paramSeparatorPos), new TimeValue(5, TimeUnit.SECONDS), BULK_PROCESSOR_BACKOFF_POLICY);
-                    int maxNumberOfRetries = Integer.parseInt(backoffPolicyStr.substring(paramSeparatorPos + 1, paramEndPos));
-                    bulkProcessorBuilder.setBackoffPolicy(BackoffPolicy.constantBackoff(delay, maxNumberOfRetries));
-                } else if (backoffPolicyStr.startsWith("exponential")) {
-                    if (!backoffPolicyStr.contains("(")) {
-                        bulkProcessorBuilder.setBackoffPolicy(BackoffPolicy.exponentialBackoff());
-                    } else {
-                        // we detected parameters, must process them.
-                        int paramStartPos = backoffPolicyStr.indexOf("exponential(" + "exponential(".length());
-                        int paramEndPos = backoffPolicyStr.indexOf(")", paramStartPos);
-                        int paramSeparatorPos = backoffPolicyStr.indexOf(",", paramStartPos);
-                        TimeValue delay = TimeValue.parseTimeValue(backoffPolicyStr.substring(paramStartPos, paramSeparatorPos), new TimeValue(5, TimeUnit.SECONDS), BULK_PROCESSOR_BACKOFF_POLICY);
-                        int maxNumberOfRetries = Integer.parseInt(backoffPolicyStr.substring(paramSeparatorPos + 1, paramEndPos));
-                        bulkProcessorBuilder.setBackoffPolicy(BackoffPolicy.exponentialBackoff(delay, maxNumberOfRetries));
-                    }
-                }
-            }
+        for (Map.Entry<String, BulkWriter> bulkWriter : bulkWritersByType.entrySet()) {
+            statistics.put(bulkWriter.getKey(), bulkWriter.getValue().getStatistics());
         }
-
-        bulkProcessor = bulkProcessorBuilder.build();
-        return bulkProcessor;
+        return statistics;
     }
 
     public void stop() {
@@ -531,9 +605,16 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         new InClassLoaderExecute<Object>(null, null) {
             protected Object execute(Object... args) throws IOException {
                 logger.info("Closing ElasticSearch persistence backend...");
-                if (bulkProcessor != null) {
+                if (mappingCacheChecker != null) {
+                    mappingCacheChecker.shutdownNow();
+                }
+                List<BulkWriter> bulkWriters = new ArrayList<>(bulkWritersByType.values());
+                if (defaultBulkWriter != null) {
+                    bulkWriters.add(defaultBulkWriter);
+                }
+                for (BulkWriter bulkWriter : bulkWriters) {
                     try {
-                        bulkProcessor.awaitClose(2, TimeUnit.MINUTES);
+                        bulkWriter.awaitClose(2, TimeUnit.MINUTES);
                     } catch (InterruptedException e) {
                         logger.error("Error waiting for bulk operations to flush !", e);
                     }
@@ -541,6 +622,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 if (client != null) {
                     client.close();
                 }
+                itemSourceReader.close();
                 return null;
             }
         }.catchingExecuteInClassLoader(true);
@@ -600,6 +682,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 if (!client.indices().exists(new GetIndexRequest(itemIndexName), RequestOptions.DEFAULT)) {
                     logger.info("{} index doesn't exist yet, creating it...", itemIndexName);
                     internalCreateIndex(itemIndexName, mappingSource);
+                    invalidatePropertiesMapping(name);
                 } else {
                     logger.info("Found index {}", itemIndexName);
                     if (createMapping) {
@@ -678,10 +761,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                         GetRequest getRequest = new GetRequest(getIndex(itemType, dateHint), itemId);
                         GetResponse response = client.get(getRequest, RequestOptions.DEFAULT);
                         if (response.isExists()) {
-                            String sourceAsString = response.getSourceAsString();
-                            final T value = ESCustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
-                            value.setItemId(response.getId());
-                            value.setVersion(response.getVersion());
+                            final T value = itemSourceReader.read(response, clazz);
                             putInCache(itemId, value);
                             return value;
                         } else {
@@ -712,7 +792,6 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     String source = ESCustomObjectMapper.getObjectMapper().writeValueAsString(item);
                     String itemType = item.getItemType();
                     String itemId = item.getItemId();
-                    putInCache(itemId, item);
                     String index = getIndex(itemType, itemsMonthlyIndexed.contains(itemType) ? ((TimestampedItem) item).getTimeStamp() : null);
                     IndexRequest indexRequest = new IndexRequest(index);
                     indexRequest.id(itemId);
@@ -722,16 +801,18 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     }
 
                     try {
-                        if (bulkProcessor == null || !useBatching) {
+                        if (defaultBulkWriter == null || !useBatching) {
                             client.index(indexRequest, RequestOptions.DEFAULT);
-                        } else {
-                            bulkProcessor.add(indexRequest);
+                        } else if (!getBulkWriter(itemType).add(indexRequest)) {
+                            return false;
                         }
                     } catch (IndexNotFoundException e) {
                         logger.error("Could not find index {}, could not register item type {} with id {} ",
                                 index, itemType, itemId, e);
                         return false;
                     }
+                    // only cached once written or accepted by the bulk writer, a rejected item must not be read back
+                    putInCache(itemId, item);
                     return true;
                 } catch (IOException e) {
                     throw new Exception("Error saving item " + item, e);
@@ -758,12 +839,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     String itemType = Item.getItemType(clazz);
                     UpdateRequest updateRequest = new UpdateRequest(getIndex(itemType, dateHint), itemId);
                     updateRequest.doc(source);
-                    if (bulkProcessor == null) {
+                    if (defaultBulkWriter == null) {
                         client.update(updateRequest, RequestOptions.DEFAULT);
-                    } else {
-                        bulkProcessor.add(updateRequest);
+                        return true;
                     }
-                    return true;
+                    return getBulkWriter(itemType).add(updateRequest);
                 } catch (IndexNotFoundException e) {
                     throw new Exception("No index found for itemType=" + clazz.getName() + "itemId=" + itemId, e);
                 }
@@ -776,6 +856,91 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public List<String> update(final Map<Item, Map> items, final Date dateHint, final Class<?> clazz) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new InClassLoaderExecute<List<String>>(metricsService, this.getClass().getName() + ".updateItems") {
+            protected List<String> execute(Object... args) throws Exception {
+                String index = getIndex(Item.getItemType(clazz), dateHint);
+                BulkRequest bulkRequest = new BulkRequest();
+                for (Map.Entry<Item, Map> item : items.entrySet()) {
+                    UpdateRequest updateRequest = new UpdateRequest(index, item.getKey().getItemId());
+                    updateRequest.doc(item.getValue());
+                    bulkRequest.add(updateRequest);
+                }
+                return getFailedItemIds(client.bulk(bulkRequest, RequestOptions.DEFAULT), "update");
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public List<String> updateAll(final Map<? extends Item, ? extends Map<String, ?>> items, final Class<?> clazz) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new InClassLoaderExecute<List<String>>(metricsService, this.getClass().getName() + ".updateAll") {
+            protected List<String> execute(Object... args) throws Exception {
+                String itemType = Item.getItemType(clazz);
+                boolean monthlyIndexed = itemsMonthlyIndexed.contains(itemType);
+                BulkRequest bulkRequest = new BulkRequest();
+                for (Map.Entry<? extends Item, ? extends Map<String, ?>> item : items.entrySet()) {
+                    Date dateHint = monthlyIndexed && item.getKey() instanceof TimestampedItem ? ((TimestampedItem) item.getKey()).getTimeStamp() : null;
+                    UpdateRequest updateRequest = new UpdateRequest(getIndex(itemType, dateHint), item.getKey().getItemId());
+                    updateRequest.doc(item.getValue());
+                    if (routingByType.containsKey(itemType)) {
+                        updateRequest.routing(routingByType.get(itemType));
+                    }
+                    bulkRequest.add(updateRequest);
+                }
+                return getFailedItemIds(client.bulk(bulkRequest, RequestOptions.DEFAULT), "update");
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public List<String> saveAll(final List<? extends Item> items) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new InClassLoaderExecute<List<String>>(metricsService, this.getClass().getName() + ".saveAll") {
+            protected List<String> execute(Object... args) throws Exception {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (Item item : items) {
+                    String itemType = item.getItemType();
+                    IndexRequest indexRequest = new IndexRequest(getIndex(itemType, itemsMonthlyIndexed.contains(itemType) ? ((TimestampedItem) item).getTimeStamp() : null));
+                    indexRequest.id(item.getItemId());
+                    indexRequest.source(ESCustomObjectMapper.getObjectMapper().writeValueAsString(item), XContentType.JSON);
+                    if (routingByType.containsKey(itemType)) {
+                        indexRequest.routing(routingByType.get(itemType));
+                    }
+                    bulkRequest.add(indexRequest);
+                }
+                List<String> failedItemIds = getFailedItemIds(client.bulk(bulkRequest, RequestOptions.DEFAULT), "save");
+                for (Item item : items) {
+                    if (!failedItemIds.contains(item.getItemId())) {
+                        putInCache(item.getItemId(), item);
+                    }
+                }
+                return failedItemIds;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    private List<String> getFailedItemIds(BulkResponse bulkResponse, String operation) {
+        List<String> failedItemIds = new ArrayList<>();
+        if (bulkResponse.hasFailures()) {
+            for (BulkItemResponse itemResponse : bulkResponse.getItems()) {
+                if (itemResponse.isFailed()) {
+                    logger.warn("Couldn't {} item {}: {}", operation, itemResponse.getId(), itemResponse.getFailureMessage());
+                    failedItemIds.add(itemResponse.getId());
+                }
+            }
+        }
+        return failedItemIds;
+    }
+
     @Override
     public boolean updateWithQueryAndScript(final Date dateHint, final Class<?> clazz, final String[] scripts, final Map<String, Object>[] scriptParams, final Condition[] conditions) {
         Boolean result = new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".updateWithQueryAndScript") {
@@ -833,6 +998,99 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public String startUpdateWithQueryAndScript(final Class<?> clazz, final String script, final Map<String, Object> scriptParams, final Condition condition, final int slices, final float requestsPerSecond) {
+        return new InClassLoaderExecute<String>(metricsService, this.getClass().getName() + ".startUpdateWithQueryAndScript") {
+            protected String execute(Object... args) throws Exception {
+                String index = getIndex(Item.getItemType(clazz), null);
+
+                client.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+
+                return startByQueryTask(index, "_update_by_query", conditionESQueryBuilderDispatcher.buildFilter(condition),
+                        new Script(ScriptType.INLINE, "painless", script, scriptParams), slices, requestsPerSecond);
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public String startRemoveByQuery(final Condition condition, final Class<?> clazz, final int slices, final float requestsPerSecond) {
+        return new InClassLoaderExecute<String>(metricsService, this.getClass().getName() + ".startRemoveByQuery") {
+            protected String execute(Object... args) throws Exception {
+                String itemType = Item.getItemType(clazz);
+                String taskId = startByQueryTask(getIndexNameForQuery(itemType), "_delete_by_query", conditionESQueryBuilderDispatcher.buildFilter(condition),
+                        null, slices, requestsPerSecond);
+                invalidateAggregateQueryCache(itemType);
+                return taskId;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * Starts a by query task without waiting for its completion, the high level client of this version can only wait
+     * for the completion of these tasks.
+     *
+     * @return the identifier of the task
+     */
+    private String startByQueryTask(String indices, String endpoint, QueryBuilder query, Script script, int slices, float requestsPerSecond) throws IOException {
+        Request request = new Request("POST", "/" + indices + "/" + endpoint);
+        request.addParameter("wait_for_completion", "false");
+        request.addParameter("conflicts", "proceed");
+        request.addParameter("slices", slices > 0 ? Integer.toString(slices) : "auto");
+        request.addParameter("requests_per_second", requestsPerSecond > 0 ? Float.toString(requestsPerSecond) : "-1");
+
+        XContentBuilder body = XContentFactory.jsonBuilder().startObject();
+        body.field("query");
+        query.toXContent(body, ToXContent.EMPTY_PARAMS);
+        if (script != null) {
+            body.field("script");
+            script.toXContent(body, ToXContent.EMPTY_PARAMS);
+        }
+        body.endObject();
+        request.setJsonEntity(Strings.toString(body));
+
+        Response response = client.getLowLevelClient().performRequest(request);
+        JsonNode task = ESCustomObjectMapper.getObjectMapper().readTree(EntityUtils.toString(response.getEntity())).get("task");
+        return task != null ? task.asText() : null;
+    }
+
+    @Override
+    public Map<String, Object> getUpdateTaskStatus(final String taskId) {
+        return new InClassLoaderExecute<Map<String, Object>>(metricsService, this.getClass().getName() + ".getUpdateTaskStatus") {
+            protected Map<String, Object> execute(Object... args) throws Exception {
+                Response response = client.getLowLevelClient().performRequest(new Request("GET", "/_tasks/" + taskId));
+                JsonNode taskResult = ESCustomObjectMapper.getObjectMapper().readTree(EntityUtils.toString(response.getEntity()));
+
+                boolean completed = taskResult.path("completed").asBoolean(false);
+                // the final counts are in the response once the task is completed, in the task status before
+                JsonNode counts = completed && taskResult.has("response") ? taskResult.get("response") : taskResult.path("task").path("status");
+                Map<String, Object> status = new HashMap<>();
+                status.put("completed", completed);
+                status.put("total", counts.path("total").asLong());
+                status.put("updated", counts.path("updated").asLong());
+                status.put("deleted", counts.path("deleted").asLong());
+                status.put("noops", counts.path("noops").asLong());
+                status.put("versionConflicts", counts.path("version_conflicts").asLong());
+                if (taskResult.has("error")) {
+                    status.put("error", taskResult.get("error").path("reason").asText());
+                } else if (counts.path("failures").size() > 0) {
+                    status.put("error", counts.get("failures").get(0).toString());
+                }
+                return status;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public boolean cancelUpdateTask(final String taskId) {
+        Boolean result = new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".cancelUpdateTask") {
+            protected Boolean execute(Object... args) throws Exception {
+                client.getLowLevelClient().performRequest(new Request("POST", "/_tasks/" + taskId + "/_cancel"));
+                return true;
+            }
+        }.catchingExecuteInClassLoader(true);
+        return result != null && result;
+    }
+
     @Override
     public boolean updateWithScript(final String itemId, final Date dateHint, final Class<?> clazz, final String script, final Map<String, Object> scriptParams) {
         Boolean result = new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".updateWithScript") {
@@ -846,13 +1104,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                     UpdateRequest updateRequest = new UpdateRequest(index, itemId);
                     updateRequest.script(actualScript);
-                    if (bulkProcessor == null) {
+                    if (defaultBulkWriter == null) {
                         client.update(updateRequest, RequestOptions.DEFAULT);
-                    } else {
-                        bulkProcessor.add(updateRequest);
+                        return true;
                     }
-
-                    return true;
+                    return getBulkWriter(itemType).add(updateRequest);
                 } catch (IndexNotFoundException e) {
                     throw new Exception("No index found for itemType=" + clazz.getName() + "itemId=" + itemId, e);
                 }
@@ -865,6 +1121,26 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public boolean conditionalUpdateWithScript(final String itemId, final Date dateHint, final Class<?> clazz, final String script, final Map<String, Object> scriptParams) {
+        Boolean result = new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".conditionalUpdateWithScript") {
+            protected Boolean execute(Object... args) throws Exception {
+                try {
+                    String itemType = Item.getItemType(clazz);
+
+                    UpdateRequest updateRequest = new UpdateRequest(getIndex(itemType, dateHint), itemId);
+                    updateRequest.script(new Script(ScriptType.INLINE, "painless", script, scriptParams));
+                    UpdateResponse response = client.update(updateRequest, RequestOptions.DEFAULT);
+                    deleteFromCache(itemId, clazz);
+                    return response.getResult() == DocWriteResponse.Result.UPDATED;
+                } catch (IndexNotFoundException e) {
+                    throw new Exception("No index found for itemType=" + clazz.getName() + "itemId=" + itemId, e);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+        return result != null && result;
+    }
+
     @Override
     public <T extends Item> boolean remove(final String itemId, final Class<T> clazz) {
         Boolean result = new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".removeItem") {
@@ -874,6 +1150,9 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                     DeleteRequest deleteRequest = new DeleteRequest(getIndexNameForQuery(itemType), itemId);
                     client.delete(deleteRequest, RequestOptions.DEFAULT);
+                    if (aggregateQueryCache != null) {
+                        aggregateQueryCache.invalidateImmutable(itemType);
+                    }
                     return true;
                 } catch (Exception e) {
                     throw new Exception("Cannot remove", e);
@@ -895,41 +1174,24 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                     BulkRequest deleteByScopeBulkRequest = new BulkRequest();
 
-                    final TimeValue keepAlive = TimeValue.timeValueHours(1);
-                    SearchRequest searchRequest = new SearchRequest(getAllIndexForQuery())
-                            .indices(getIndexNameForQuery(itemType))
-                            .scroll(keepAlive);
+                    SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType));
                     SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
                             .query(conditionESQueryBuilderDispatcher.getQueryBuilder(query))
-                            .size(100);
+                            .fetchSource(false)
+                            .size(SEARCH_AFTER_PAGE_SIZE);
+                    addTiebreakerSort(searchSourceBuilder);
                     searchRequest.source(searchSourceBuilder);
 
-                    SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
-
-                    // Scroll until no more hits are returned
-                    while (true) {
-
-                        for (SearchHit hit : response.getHits().getHits()) {
+                    searchAfterAll(searchRequest, hits -> {
+                        for (SearchHit hit : hits) {
                             // add hit to bulk delete
                             deleteFromCache(hit.getId(), clazz);
                             deleteByScopeBulkRequest.add(Requests.deleteRequest(hit.getIndex()).type(hit.getType()).id(hit.getId()));
                         }
+                    });
+                    invalidateAggregateQueryCache(itemType);
 
-                        SearchScrollRequest searchScrollRequest = new SearchScrollRequest(response.getScrollId());
-                        searchScrollRequest.scroll(keepAlive);
-                        response = client.scroll(searchScrollRequest, RequestOptions.DEFAULT);
-
-                        // If we have no more hits, exit
-                        if (response.getHits().getHits().length == 0) {
-                            break;
-                        }
-                    }
-
-                    ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-                    clearScrollRequest.addScrollId(response.getScrollId());
-                    client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
-
-                    // we're done with the scrolling, delete now
+                    // we're done with the search, delete now
                     if (deleteByScopeBulkRequest.numberOfActions() > 0) {
                         final BulkResponse deleteResponse = client.bulk(deleteByScopeBulkRequest, RequestOptions.DEFAULT);
                         if (deleteResponse.hasFailures()) {
@@ -1029,6 +1291,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 boolean indexExists = client.indices().exists(getIndexRequest, RequestOptions.DEFAULT);
                 if (!indexExists) {
                     internalCreateIndex(index, mappings.get(itemType));
+                    invalidatePropertiesMapping(itemType);
                 }
                 return !indexExists;
             }
@@ -1051,6 +1314,8 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 if (indexExists) {
                     DeleteIndexRequest deleteIndexRequest = new DeleteIndexRequest(index);
                     client.indices().delete(deleteIndexRequest, RequestOptions.DEFAULT);
+                    invalidateAggregateQueryCache(itemType);
+                    invalidatePropertiesMapping(itemType);
                 }
                 return indexExists;
             }
@@ -1102,6 +1367,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
             } else {
                 putMapping(source, getIndex(type));
             }
+            invalidatePropertiesMapping(type);
         } catch (IOException ioe) {
             logger.error("Error while creating mapping for type " + type + " and source " + source, ioe);
         }
@@ -1115,9 +1381,14 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
     @Override
     public Map<String, Map<String, Object>> getPropertiesMapping(final String itemType) {
-        return new InClassLoaderExecute<Map<String, Map<String, Object>>>(metricsService, this.getClass().getName() + ".getPropertiesMapping") {
+        PropertiesMapping propertiesMapping = loadPropertiesMapping(itemType);
+        return propertiesMapping != null ? propertiesMapping.properties : null;
+    }
+
+    private PropertiesMapping loadPropertiesMapping(final String itemType) {
+        return new InClassLoaderExecute<PropertiesMapping>(metricsService, this.getClass().getName() + ".getPropertiesMapping") {
             @SuppressWarnings("unchecked")
-            protected Map<String, Map<String, Object>> execute(Object... args) throws Exception {
+            protected PropertiesMapping execute(Object... args) throws Exception {
                 // Get all mapping for current itemType
                 GetMappingsRequest getMappingsRequest = new GetMappingsRequest();
                 getMappingsRequest.indices(getIndexNameForQuery(itemType));
@@ -1154,11 +1425,49 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 } catch (Throwable t) {
                     throw new Exception("Cannot get mapping for itemType="+ itemType, t);
                 }
-                return result;
+                return new PropertiesMapping(result, orderedKeys);
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * @return the names of the indices currently holding the items of the given type, or {@code null} if they could
+     * not be retrieved
+     */
+    private Set<String> getIndexNames(final String itemType) {
+        return new InClassLoaderExecute<Set<String>>(metricsService, this.getClass().getName() + ".getIndexNames") {
+            protected Set<String> execute(Object... args) throws Exception {
+                GetAliasesRequest getAliasesRequest = new GetAliasesRequest().indices(getIndexNameForQuery(itemType))
+                        .indicesOptions(IndicesOptions.lenientExpandOpen());
+                GetAliasesResponse getAliasesResponse = client.indices().getAlias(getAliasesRequest, RequestOptions.DEFAULT);
+                return new TreeSet<>(getAliasesResponse.getAliases().keySet());
             }
         }.catchingExecuteInClassLoader(true);
     }
 
+    /**
+     * Drops the cached mappings of the item types whose indices changed since they were loaded. The mapping of an
+     * existing field cannot change within an index and new fields are looked up when they are first missed, so
+     * comparing the index names is enough to detect the new monthly indices that may map a property differently.
+     */
+    private void checkPropertiesMappings() {
+        for (Map.Entry<String, PropertiesMapping> entry : knownMappings.entrySet()) {
+            Set<String> indexNames = getIndexNames(entry.getKey());
+            if (indexNames != null && !indexNames.equals(entry.getValue().indexNames)) {
+                logger.debug("Indices of item type {} changed, dropping its cached mappings", entry.getKey());
+                knownMappings.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void invalidatePropertiesMapping(String itemType) {
+        if (itemType != null) {
+            knownMappings.remove(itemType);
+        } else {
+            knownMappings.clear();
+        }
+    }
+
     private void mergePropertiesMapping(Map<String, Object> result, Map<String, Object> entry) {
         for (Map.Entry<String, Object> subentry : entry.entrySet()) {
             if (result.containsKey(subentry.getKey())
@@ -1172,12 +1481,15 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     }
 
     public Map<String, Object> getPropertyMapping(String property, String itemType) {
-        Map<String, Map<String, Object>> mappings = knownMappings.get(itemType);
-        Map<String, Object> result = getPropertyMapping(property, mappings);
-        if (result == null) {
-            mappings = getPropertiesMapping(itemType);
-            knownMappings.put(itemType, mappings);
-            result = getPropertyMapping(property, mappings);
+        PropertiesMapping propertiesMapping = knownMappings.get(itemType);
+        Map<String, Object> result = propertiesMapping != null ? getPropertyMapping(property, propertiesMapping.properties) : null;
+        if (result == null && (propertiesMapping == null || System.currentTimeMillis() - propertiesMapping.loadTime >= MAPPING_RELOAD_MIN_INTERVAL)) {
+            // the property may have been dynamically mapped since the mappings were loaded
+            propertiesMapping = loadPropertiesMapping(itemType);
+            if (propertiesMapping != null) {
+                knownMappings.put(itemType, propertiesMapping);
+                result = getPropertyMapping(property, propertiesMapping.properties);
+            }
         }
         return result;
     }
@@ -1268,19 +1580,18 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public boolean isLocallyEvaluable(Condition condition) {
+        return conditionEvaluatorDispatcher.isLocallyEvaluable(condition);
+    }
+
     @Override
     public boolean testMatch(Condition query, Item item) {
-        long startTime = System.currentTimeMillis();
-        try {
-            return conditionEvaluatorDispatcher.eval(query, item);
-        } catch (UnsupportedOperationException e) {
-            logger.error("Eval not supported, continue with query", e);
-        } finally {
-            if (metricsService != null && metricsService.isActivated()) {
-                metricsService.updateTimer(this.getClass().getName() + ".testMatchLocally", startTime);
-            }
+        Boolean localResult = testMatchLocally(query, item);
+        if (localResult != null) {
+            return localResult;
         }
-        startTime = System.currentTimeMillis();
+        long startTime = System.currentTimeMillis();
         try {
             final Class<? extends Item> clazz = item.getClass();
             String itemType = Item.getItemType(clazz);
@@ -1296,6 +1607,91 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
     }
 
+    @Override
+    public List<Boolean> testMatch(final List<Condition> queries, final Item item) {
+        final List<Boolean> results = new ArrayList<>(queries.size());
+        final List<Integer> remoteQueryIndexes = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            if (queries.get(i) == null) {
+                results.add(false);
+                continue;
+            }
+            Boolean localResult = testMatchLocally(queries.get(i), item);
+            if (localResult == null) {
+                remoteQueryIndexes.add(i);
+            }
+            results.add(localResult);
+        }
+        if (remoteQueryIndexes.isEmpty()) {
+            return results;
+        }
+
+        new InClassLoaderExecute<Object>(metricsService, this.getClass().getName() + ".testMatchInElasticSearch") {
+            @Override
+            protected Object execute(Object... args) throws Exception {
+                String itemType = Item.getItemType(item.getClass());
+                MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+                for (Integer index : remoteQueryIndexes) {
+                    QueryBuilder builder = QueryBuilders.boolQuery()
+                            .must(QueryBuilders.idsQuery().addIds(item.getItemId()))
+                            .must(conditionESQueryBuilderDispatcher.buildFilter(queries.get(index)));
+                    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                            .query(builder)
+                            .size(0)
+                            .terminateAfter(1);
+                    multiSearchRequest.add(new SearchRequest(getIndexNameForQuery(itemType)).source(searchSourceBuilder));
+                }
+                MultiSearchResponse multiSearchResponse = client.msearch(multiSearchRequest, RequestOptions.DEFAULT);
+                MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+                for (int i = 0; i < responses.length; i++) {
+                    int index = remoteQueryIndexes.get(i);
+                    if (responses[i].isFailure()) {
+                        logger.error("Error while testing condition {} on item {}", queries.get(index), item.getItemId(), responses[i].getFailure());
+                        results.set(index, false);
+                    } else {
+                        results.set(index, responses[i].getResponse().getHits().getTotalHits().value > 0);
+                    }
+                }
+                return null;
+            }
+        }.catchingExecuteInClassLoader(true);
+
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates the condition in memory, as long as the condition types it needs to evaluate have a registered
+     * evaluator.
+     *
+     * @return the result of the evaluation or {@code null} if the condition must be checked against ElasticSearch
+     */
+    Boolean testMatchLocally(Condition query, Item item) {
+        long startTime = System.currentTimeMillis();
+        try {
+            return conditionEvaluatorDispatcher.eval(query, item);
+        } catch (UnsupportedOperationException e) {
+            logger.debug("Eval not supported for condition type {}, continue with query: {}", query.getConditionTypeId(), e.getMessage());
+            updateTestMatchFallbackMetric(query);
+            return null;
+        } finally {
+            if (metricsService != null && metricsService.isActivated()) {
+                metricsService.updateTimer(this.getClass().getName() + ".testMatchLocally", startTime);
+            }
+        }
+    }
+
+    private void updateTestMatchFallbackMetric(Condition query) {
+        // the ratio between this counter and the count of the testMatchLocally timer gives the fallback rate
+        if (metricsService != null && metricsService.isActivated()) {
+            metricsService.incrementCounter(this.getClass().getName() + ".testMatchFallback." + query.getConditionTypeId());
+        }
+    }
+
     @Override
     public <T extends Item> List<T> query(final Condition query, String sortBy, final Class<T> clazz) {
         return query(query, sortBy, clazz, 0, -1).getList();
@@ -1306,6 +1702,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return query(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, offset, size, null, null);
     }
 
+    @Override
+    public <T extends Item> PartialList<T> query(final Condition query, String sortBy, final Class<T> clazz, final int offset, final int size, final String[] includedProperties, final String[] excludedProperties) {
+        return query(getQueryBuilder(query), sortBy, clazz, offset, size, null, null, null, getFetchSourceContext(includedProperties, excludedProperties));
+    }
+
     @Override
     public <T extends Item> PartialList<T> query(final Condition query, String sortBy, final Class<T> clazz, final int offset, final int size, final String scrollTimeValidity) {
         return query(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, offset, size, null, scrollTimeValidity);
@@ -1316,6 +1717,12 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return query(QueryBuilders.boolQuery().must(QueryBuilders.queryStringQuery(fulltext)).must(conditionESQueryBuilderDispatcher.getQueryBuilder(query)), sortBy, clazz, offset, size, null, null);
     }
 
+    @Override
+    public <T extends Item> PartialList<T> queryFullText(final String fulltext, final Condition query, String sortBy, final Class<T> clazz, final int offset, final int size, final String[] includedProperties, final String[] excludedProperties) {
+        QueryBuilder queryBuilder = query != null ? QueryBuilders.boolQuery().must(QueryBuilders.queryStringQuery(fulltext)).must(conditionESQueryBuilderDispatcher.getQueryBuilder(query)) : QueryBuilders.queryStringQuery(fulltext);
+        return query(queryBuilder, sortBy, clazz, offset, size, null, null, null, getFetchSourceContext(includedProperties, excludedProperties));
+    }
+
     @Override
     public <T extends Item> List<T> query(final String fieldName, final String fieldValue, String sortBy, final Class<T> clazz) {
         return query(fieldName, fieldValue, sortBy, clazz, 0, -1).getList();
@@ -1326,6 +1733,74 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return query(QueryBuilders.termsQuery(fieldName, ConditionContextHelper.foldToASCII(fieldValues)), sortBy, clazz, 0, -1, getRouting(fieldName, fieldValues, clazz), null).getList();
     }
 
+    @Override
+    public <T extends Item> CloseableIterator<T> queryIterator(final Condition query, final String sortBy, final Class<T> clazz, final int pageSize) {
+        return queryIterator(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, pageSize, null, FetchSourceContext.FETCH_SOURCE);
+    }
+
+    @Override
+    public <T extends Item> CloseableIterator<T> queryIterator(final Condition query, final String sortBy, final Class<T> clazz, final int pageSize, final String[] includedProperties, final String[] excludedProperties) {
+        return queryIterator(getQueryBuilder(query), sortBy, clazz, pageSize, null, getFetchSourceContext(includedProperties, excludedProperties));
+    }
+
+    @Override
+    public <T extends Item> CloseableIterator<T> queryIterator(final String fieldName, final String fieldValue, final String sortBy, final Class<T> clazz, final int pageSize) {
+        return queryIterator(termQuery(fieldName, ConditionContextHelper.foldToASCII(fieldValue)), sortBy, clazz, pageSize, getRouting(fieldName, new String[]{fieldValue}, clazz), FetchSourceContext.FETCH_SOURCE);
+    }
+
+    @Override
+    public <T extends Item> CloseableIterator<T> queryIterator(final String fieldName, final String fieldValue, final String sortBy, final Class<T> clazz, final int pageSize, final String[] includedProperties, final String[] excludedProperties) {
+        return queryIterator(termQuery(fieldName, ConditionContextHelper.foldToASCII(fieldValue)), sortBy, clazz, pageSize, getRouting(fieldName, new String[]{fieldValue}, clazz),
+                getFetchSourceContext(includedProperties, excludedProperties));
+    }
+
+    private <T extends Item> CloseableIterator<T> queryIterator(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int pageSize, final String[] routing, final FetchSourceContext fetchSource) {
+        CloseableIterator<T> iterator = new InClassLoaderExecute<CloseableIterator<T>>(metricsService, this.getClass().getName() + ".queryIterator") {
+
+            @Override
+            protected CloseableIterator<T> execute(Object... args) throws Exception {
+                String itemType = Item.getItemType(clazz);
+                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                        .fetchSource(fetchSource)
+                        .query(query)
+                        .size(pageSize)
+                        .version(true);
+                addSort(searchSourceBuilder, sortBy, itemType);
+                addTiebreakerSort(searchSourceBuilder);
+                SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType))
+                        .source(searchSourceBuilder);
+                if (routing != null) {
+                    searchRequest.routing(routing);
+                }
+                SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
+                return new SearchAfterIterator<>(client, itemSourceReader, searchRequest, response, clazz, pageSize);
+            }
+        }.catchingExecuteInClassLoader(true);
+        if (iterator == null) {
+            // the error is logged, there is nothing to iterate over
+            return emptyIterator();
+        }
+        return iterator;
+    }
+
+    private static <T> CloseableIterator<T> emptyIterator() {
+        return new CloseableIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public T next() {
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
     @Override
     public <T extends Item> PartialList<T> query(String fieldName, String fieldValue, String sortBy, Class<T> clazz, int offset, int size) {
         return query(termQuery(fieldName, ConditionContextHelper.foldToASCII(fieldValue)), sortBy, clazz, offset, size, getRouting(fieldName, new String[]{fieldValue}, clazz), null);
@@ -1382,27 +1857,183 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
-    private <T extends Item> PartialList<T> query(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int offset, final int size, final String[] routing, final String scrollTimeValidity) {
-        return new InClassLoaderExecute<PartialList<T>>(metricsService, this.getClass().getName() + ".query") {
+    @Override
+    public <T extends Item> PartialList<T> query(final Condition query, String sortBy, final Class<T> clazz, final int size, final String scrollTimeValidity, final int sliceId, final int sliceCount) {
+        SliceBuilder slice = sliceCount > 1 ? new SliceBuilder(sliceId, sliceCount) : null;
+        return query(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, 0, size, null, scrollTimeValidity, slice, FetchSourceContext.FETCH_SOURCE);
+    }
 
-            @Override
-            protected PartialList<T> execute(Object... args) throws Exception {
-                List<T> results = new ArrayList<T>();
-                String scrollIdentifier = null;
-                long totalHits = 0;
+    @Override
+    public <T extends Item> PartialList<T> query(final Condition query, String sortBy, final Class<T> clazz, final int size, final String scrollTimeValidity, final int sliceId, final int sliceCount,
+                                                 final String[] includedProperties, final String[] excludedProperties) {
+        SliceBuilder slice = sliceCount > 1 ? new SliceBuilder(sliceId, sliceCount) : null;
+        return query(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, 0, size, null, scrollTimeValidity, slice,
+                getFetchSourceContext(includedProperties, excludedProperties));
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> queryWithContinuation(final Condition query, String sortBy, final Class<T> clazz, final int size, final String continuationToken) {
+        return queryWithContinuation(getQueryBuilder(query), sortBy, clazz, size, continuationToken, FetchSourceContext.FETCH_SOURCE);
+    }
+
+    @Override
+    public <T extends Item> PartialList<T> queryWithContinuation(final Condition query, String sortBy, final Class<T> clazz, final int size, final String continuationToken,
+                                                                 final int sliceId, final int sliceCount, final String[] includedProperties) {
+        QueryBuilder queryBuilder = getQueryBuilder(query);
+        if (sliceCount > 1) {
+            queryBuilder = QueryBuilders.boolQuery().must(queryBuilder).filter(getSliceQuery(sliceId, sliceCount));
+        }
+        return queryWithContinuation(queryBuilder, sortBy, clazz, size, continuationToken, getFetchSourceContext(includedProperties, null));
+    }
+
+    private <T extends Item> PartialList<T> queryWithContinuation(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int size, final String continuationToken,
+                                                                  final FetchSourceContext fetchSource) {
+        return new InClassLoaderExecute<PartialList<T>>(metricsService, this.getClass().getName() + ".queryWithContinuation") {
+
+            @Override
+            protected PartialList<T> execute(Object... args) throws Exception {
+                try {
+                    String itemType = Item.getItemType(clazz);
+                    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                            .fetchSource(fetchSource)
+                            .query(query)
+                            .size(size)
+                            .version(true);
+                    addSort(searchSourceBuilder, sortBy, itemType);
+                    addTiebreakerSort(searchSourceBuilder);
+                    if (continuationToken != null) {
+                        searchSourceBuilder.searchAfter(decodeContinuationToken(continuationToken));
+                    }
+                    SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType)).source(searchSourceBuilder);
+                    SearchHits searchHits = client.search(searchRequest, RequestOptions.DEFAULT).getHits();
+                    SearchHit[] hits = searchHits.getHits();
+
+                    PartialList<T> result = new PartialList<T>(itemSourceReader.readAll(hits, clazz), 0, size, searchHits.getTotalHits().value,
+                            getTotalHitsRelation(searchHits.getTotalHits()));
+                    if (size > 0 && hits.length == size) {
+                        result.setContinuationToken(encodeContinuationToken(hits[hits.length - 1].getSortValues()));
+                    }
+                    return result;
+                } catch (Exception t) {
+                    throw new Exception("Error loading itemType=" + clazz.getName() + " query=" + query + " sortBy=" + sortBy + " continuationToken=" + continuationToken, t);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * Splits the items in ranges of identifiers, evenly distributed for generated UUIDs. The identifiers outside of the
+     * hexadecimal ranges go to the first or the last slice, the last one also including the items without indexed
+     * identifier, such as the identifiers longer than the keyword limit.
+     */
+    private static QueryBuilder getSliceQuery(int sliceId, int sliceCount) {
+        RangeQueryBuilder range = QueryBuilders.rangeQuery(SLICE_FIELD);
+        if (sliceId > 0) {
+            range.gte(getSliceBoundary(sliceId, sliceCount));
+        }
+        if (sliceId < sliceCount - 1) {
+            return range.lt(getSliceBoundary(sliceId + 1, sliceCount));
+        }
+        return QueryBuilders.boolQuery()
+                .should(range)
+                .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(SLICE_FIELD)));
+    }
+
+    private static String getSliceBoundary(int sliceId, int sliceCount) {
+        return String.format("%04x", sliceId * 0x10000L / sliceCount);
+    }
+
+    private static void addTiebreakerSort(SearchSourceBuilder searchSourceBuilder) {
+        searchSourceBuilder.sort(SortBuilders.fieldSort(TIEBREAKER_FIELD).order(SortOrder.ASC));
+    }
+
+    /**
+     * Runs a search sorted with a tiebreaker page by page, each page being requested after the last hit of the previous
+     * one, so that no search context is kept open in the cluster.
+     */
+    private void searchAfterAll(SearchRequest searchRequest, HitsConsumer consumer) throws IOException {
+        int pageSize = searchRequest.source().size();
+        while (true) {
+            SearchHit[] hits = client.search(searchRequest, RequestOptions.DEFAULT).getHits().getHits();
+            consumer.accept(hits);
+            if (hits.length < pageSize) {
+                break;
+            }
+            searchRequest.source().searchAfter(hits[hits.length - 1].getSortValues());
+        }
+    }
+
+    private interface HitsConsumer {
+        void accept(SearchHit[] hits) throws IOException;
+    }
+
+    /**
+     * The properties mapping of an item type merged over all its indices, with the names of these indices
+     */
+    private static class PropertiesMapping {
+        private final Map<String, Map<String, Object>> properties;
+        private final Set<String> indexNames;
+        private final long loadTime = System.currentTimeMillis();
+
+        PropertiesMapping(Map<String, Map<String, Object>> properties, Set<String> indexNames) {
+            this.properties = properties;
+            this.indexNames = indexNames;
+        }
+    }
+
+    /**
+     * @return the sort values of the last hit of a page, encoded to be sent back to retrieve the next page
+     */
+    private static String encodeContinuationToken(Object[] sortValues) throws IOException {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(ESCustomObjectMapper.getObjectMapper().writeValueAsBytes(sortValues));
+    }
+
+    private static Object[] decodeContinuationToken(String continuationToken) throws IOException {
+        try {
+            return ESCustomObjectMapper.getObjectMapper().readValue(Base64.getUrlDecoder().decode(continuationToken), Object[].class);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid continuation token " + continuationToken, e);
+        }
+    }
+
+    private QueryBuilder getQueryBuilder(Condition query) {
+        return query != null ? conditionESQueryBuilderDispatcher.getQueryBuilder(query) : QueryBuilders.matchAllQuery();
+    }
+
+    /**
+     * @return the source filtering of the hits, the whole source being retrieved if no properties are included or excluded
+     */
+    private static FetchSourceContext getFetchSourceContext(String[] includedProperties, String[] excludedProperties) {
+        if (ArrayUtils.isEmpty(includedProperties) && ArrayUtils.isEmpty(excludedProperties)) {
+            return FetchSourceContext.FETCH_SOURCE;
+        }
+        return new FetchSourceContext(true, includedProperties, excludedProperties);
+    }
+
+    private <T extends Item> PartialList<T> query(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int offset, final int size, final String[] routing, final String scrollTimeValidity) {
+        return query(query, sortBy, clazz, offset, size, routing, scrollTimeValidity, null, FetchSourceContext.FETCH_SOURCE);
+    }
+
+    private <T extends Item> PartialList<T> query(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int offset, final int size, final String[] routing, final String scrollTimeValidity,
+                                                  final SliceBuilder slice, final FetchSourceContext fetchSource) {
+        return new InClassLoaderExecute<PartialList<T>>(metricsService, this.getClass().getName() + ".query") {
+
+            @Override
+            protected PartialList<T> execute(Object... args) throws Exception {
+                List<T> results = new ArrayList<T>();
+                String scrollIdentifier = null;
+                long totalHits = 0;
                 PartialList.Relation totalHitsRelation = PartialList.Relation.EQUAL;
                 try {
                     String itemType = Item.getItemType(clazz);
-                    TimeValue keepAlive = TimeValue.timeValueHours(1);
                     SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType));
                     SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
-                            .fetchSource(true)
+                            .fetchSource(fetchSource)
                             .query(query)
                             .size(size < 0 ? defaultQueryLimit : size)
                             .from(offset);
-                    if (scrollTimeValidity != null) {
-                        keepAlive = TimeValue.parseTimeValue(scrollTimeValidity, TimeValue.timeValueHours(1), "scrollTimeValidity");
-                        searchRequest.scroll(keepAlive);
+                    if (scrollTimeValidity != null && size != -1) {
+                        searchRequest.scroll(TimeValue.parseTimeValue(scrollTimeValidity, TimeValue.timeValueHours(1), "scrollTimeValidity"));
                     }
 
                     if (size == Integer.MIN_VALUE) {
@@ -1410,78 +2041,31 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     } else if (size != -1) {
                         searchSourceBuilder.size(size);
                     } else {
-                        // size == -1, use scroll query to retrieve all the results
-                        searchRequest.scroll(keepAlive);
+                        // size == -1, retrieve all the results page by page
+                        searchSourceBuilder.size(SEARCH_AFTER_PAGE_SIZE).from(0);
                     }
                     if (routing != null) {
                         searchRequest.routing(routing);
                     }
-                    if (sortBy != null) {
-                        String[] sortByArray = sortBy.split(",");
-                        for (String sortByElement : sortByArray) {
-                            if (sortByElement.startsWith("geo:")) {
-                                String[] elements = sortByElement.split(":");
-                                GeoDistanceSortBuilder distanceSortBuilder = SortBuilders.geoDistanceSort(elements[1], Double.parseDouble(elements[2]), Double.parseDouble(elements[3])).unit(DistanceUnit.KILOMETERS);
-                                if (elements.length > 4 && elements[4].equals("desc")) {
-                                    searchSourceBuilder.sort(distanceSortBuilder.order(SortOrder.DESC));
-                                } else {
-                                    searchSourceBuilder.sort(distanceSortBuilder.order(SortOrder.ASC));
-                                }
-                            } else {
-                                String name = getPropertyNameWithData(StringUtils.substringBeforeLast(sortByElement, ":"), itemType);
-                                if (name != null) {
-                                    if (sortByElement.endsWith(":desc")) {
-                                        searchSourceBuilder.sort(name, SortOrder.DESC);
-                                    } else {
-                                        searchSourceBuilder.sort(name, SortOrder.ASC);
-                                    }
-                                } else {
-                                    // in the case of no data existing for the property, we will not add the sorting to the request.
-                                }
-
-                            }
-                        }
+                    if (slice != null) {
+                        searchSourceBuilder.slice(slice);
                     }
+                    addSort(searchSourceBuilder, sortBy, itemType);
                     searchSourceBuilder.version(true);
                     searchRequest.source(searchSourceBuilder);
-                    SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
                     if (size == -1) {
-                        // Scroll until no more hits are returned
-                        while (true) {
-
-                            for (SearchHit searchHit : response.getHits().getHits()) {
-                                // add hit to results
-                                String sourceAsString = searchHit.getSourceAsString();
-                                final T value = ESCustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
-                                value.setItemId(searchHit.getId());
-                                value.setVersion(searchHit.getVersion());
-                                results.add(value);
-                            }
-
-                            SearchScrollRequest searchScrollRequest = new SearchScrollRequest(response.getScrollId());
-                            searchScrollRequest.scroll(keepAlive);
-                            response = client.scroll(searchScrollRequest, RequestOptions.DEFAULT);
-
-                            // If we have no more hits, exit
-                            if (response.getHits().getHits().length == 0) {
-                                break;
-                            }
+                        addTiebreakerSort(searchSourceBuilder);
+                        searchAfterAll(searchRequest, hits -> results.addAll(itemSourceReader.readAll(hits, clazz)));
+                        if (offset > 0) {
+                            results.subList(0, Math.min(offset, results.size())).clear();
                         }
-                        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-                        clearScrollRequest.addScrollId(response.getScrollId());
-                        client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
                     } else {
+                        SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
                         SearchHits searchHits = response.getHits();
                         scrollIdentifier = response.getScrollId();
                         totalHits = searchHits.getTotalHits().value;
                         totalHitsRelation = getTotalHitsRelation(searchHits.getTotalHits());
-                        for (SearchHit searchHit : searchHits) {
-                            String sourceAsString = searchHit.getSourceAsString();
-                            final T value = ESCustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
-                            value.setItemId(searchHit.getId());
-                            value.setVersion(searchHit.getVersion());
-                            results.add(value);
-                        }
+                        results.addAll(itemSourceReader.readAll(searchHits.getHits(), clazz));
                     }
                 } catch (Exception t) {
                     throw new Exception("Error loading itemType=" + clazz.getName() + " query=" + query + " sortBy=" + sortBy, t);
@@ -1497,6 +2081,35 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    private void addSort(SearchSourceBuilder searchSourceBuilder, String sortBy, String itemType) {
+        if (sortBy != null) {
+            String[] sortByArray = sortBy.split(",");
+            for (String sortByElement : sortByArray) {
+                if (sortByElement.startsWith("geo:")) {
+                    String[] elements = sortByElement.split(":");
+                    GeoDistanceSortBuilder distanceSortBuilder = SortBuilders.geoDistanceSort(elements[1], Double.parseDouble(elements[2]), Double.parseDouble(elements[3])).unit(DistanceUnit.KILOMETERS);
+                    if (elements.length > 4 && elements[4].equals("desc")) {
+                        searchSourceBuilder.sort(distanceSortBuilder.order(SortOrder.DESC));
+                    } else {
+                        searchSourceBuilder.sort(distanceSortBuilder.order(SortOrder.ASC));
+                    }
+                } else {
+                    String name = getPropertyNameWithData(StringUtils.substringBeforeLast(sortByElement, ":"), itemType);
+                    if (name != null) {
+                        if (sortByElement.endsWith(":desc")) {
+                            searchSourceBuilder.sort(name, SortOrder.DESC);
+                        } else {
+                            searchSourceBuilder.sort(name, SortOrder.ASC);
+                        }
+                    } else {
+                        // in the case of no data existing for the property, we will not add the sorting to the request.
+                    }
+
+                }
+            }
+        }
+    }
+
     private PartialList.Relation getTotalHitsRelation(TotalHits totalHits) {
         return TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO.equals(totalHits.relation) ? PartialList.Relation.GREATER_THAN_OR_EQUAL_TO : PartialList.Relation.EQUAL;
     }
@@ -1521,14 +2134,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                         clearScrollRequest.addScrollId(response.getScrollId());
                         client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
                     } else {
-                        for (SearchHit searchHit : response.getHits().getHits()) {
-                            // add hit to results
-                            String sourceAsString = searchHit.getSourceAsString();
-                            final T value = ESCustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
-                            value.setItemId(searchHit.getId());
-                            value.setVersion(searchHit.getVersion());
-                            results.add(value);
-                        }
+                        results.addAll(itemSourceReader.readAll(response.getHits().getHits(), clazz));
                     }
                     PartialList<T> result = new PartialList<T>(results, 0, response.getHits().getHits().length, response.getHits().getTotalHits().value, getTotalHitsRelation(response.getHits().getTotalHits()));
                     if (scrollIdentifier != null) {
@@ -1557,156 +2163,486 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return aggregateQuery(filter, aggregate, itemType, true);
     }
 
+    @Override
+    public Map<String, Long> aggregateWithOptimizedQuery(final Condition filter, final BaseAggregate aggregate, final String itemType, final long maxAge) {
+        if (maxAge == 0 || aggregateQueryCache == null) {
+            return aggregateQuery(filter, aggregate, itemType, true);
+        }
+        return new InClassLoaderExecute<Map<String, Long>>(metricsService, this.getClass().getName() + ".aggregateQueryWithCache") {
+
+            @Override
+            protected Map<String, Long> execute(Object... args) {
+                SearchRequest searchRequest = buildAggregateRequest(filter, aggregate, itemType, true);
+                if (aggregate instanceof DateAggregate) {
+                    // events can still arrive a while after their date, their buckets are only considered as closed after
+                    // a lag, while the other items can be modified at any time and their closed buckets only expire later
+                    boolean events = Event.ITEM_TYPE.equals(itemType);
+                    long intervalStart = AggregateQueryCache.getIntervalStart(((DateAggregate) aggregate).getInterval(),
+                            System.currentTimeMillis() - (events ? aggregateQueryCacheClosedIntervalLag : 0));
+                    // the buckets of a filter relative to the current date change even when they are closed
+                    if (intervalStart >= 0 && !searchRequest.source().query().toString().contains("now")) {
+                        return aggregateByClosedIntervals(filter, aggregate, intervalStart, itemType, maxAge,
+                                events ? -1 : Math.max(maxAge, aggregateQueryCacheClosedIntervalMaxAge));
+                    }
+                }
+                return aggregateQueryCache.get(itemType, getAggregateCacheKey(searchRequest), maxAge, () -> searchAggregate(searchRequest));
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * Runs a date histogram separately on the closed intervals, whose buckets are cached longer, and on the current
+     * intervals, which also count the items without date.
+     *
+     * @param closedMaxAge the maximum age of the buckets of the closed intervals, or -1 to keep them until the items are
+     *                     removed
+     */
+    private Map<String, Long> aggregateByClosedIntervals(Condition filter, BaseAggregate aggregate, long intervalStart, String itemType, long maxAge,
+                                                         long closedMaxAge) {
+        String field = aggregate.getField();
+        SearchRequest closedRequest = restrictToClosedIntervals(buildAggregateRequest(filter, aggregate, itemType, true), field, intervalStart);
+        SearchRequest currentRequest = restrictToCurrentIntervals(buildAggregateRequest(filter, aggregate, itemType, true), field, intervalStart);
+
+        Map<String, Long> closedResults = aggregateQueryCache.get(itemType, getAggregateCacheKey(closedRequest), closedMaxAge, () -> searchAggregate(closedRequest));
+        Map<String, Long> currentResults = aggregateQueryCache.get(itemType, getAggregateCacheKey(currentRequest), maxAge, () -> searchAggregate(currentRequest));
+        if (closedResults == null || currentResults == null) {
+            return null;
+        }
+        Map<String, Long> results = new LinkedHashMap<>();
+        results.put("_filtered", closedResults.getOrDefault("_filtered", 0L) + currentResults.getOrDefault("_filtered", 0L));
+        for (Map<String, Long> intervalResults : Arrays.asList(closedResults, currentResults)) {
+            for (Map.Entry<String, Long> bucket : intervalResults.entrySet()) {
+                if (!bucket.getKey().startsWith("_")) {
+                    // with a coarse date format, the current bucket can have the same key as a closed one
+                    results.merge(bucket.getKey(), bucket.getValue(), Long::sum);
+                }
+            }
+        }
+        if (currentResults.containsKey("_missing")) {
+            results.put("_missing", currentResults.get("_missing"));
+        }
+        return results;
+    }
+
+    static SearchRequest restrictToClosedIntervals(SearchRequest searchRequest, String field, long intervalStart) {
+        searchRequest.source().query(QueryBuilders.boolQuery()
+                .must(searchRequest.source().query())
+                .filter(QueryBuilders.rangeQuery(field).lt(intervalStart).format("epoch_millis")));
+        return searchRequest;
+    }
+
+    static SearchRequest restrictToCurrentIntervals(SearchRequest searchRequest, String field, long intervalStart) {
+        searchRequest.source().query(QueryBuilders.boolQuery()
+                .must(searchRequest.source().query())
+                .filter(QueryBuilders.boolQuery()
+                        .should(QueryBuilders.rangeQuery(field).gte(intervalStart).format("epoch_millis"))
+                        .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(field)))));
+        return searchRequest;
+    }
+
+    private Map<String, Long> searchAggregate(SearchRequest searchRequest) {
+        try {
+            return getAggregateResults(client.search(searchRequest, RequestOptions.DEFAULT), true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String getAggregateCacheKey(SearchRequest searchRequest) {
+        return Arrays.toString(searchRequest.indices()) + searchRequest.source();
+    }
+
+    private void invalidateAggregateQueryCache(String itemType) {
+        if (aggregateQueryCache != null) {
+            if (itemType != null) {
+                aggregateQueryCache.invalidate(itemType);
+            } else {
+                aggregateQueryCache.clear();
+            }
+        }
+    }
+
+    @Override
+    public CloseableIterator<AggregateBucket> aggregateIterator(Condition filter, String property, String itemType, int pageSize) {
+        return aggregateIterator(filter, property, null, itemType, pageSize);
+    }
+
+    @Override
+    public CloseableIterator<AggregateBucket> aggregateIterator(final Condition filter, final String property, final Map<String, Condition> filters, final String itemType,
+                                                                final int pageSize) {
+        return new InClassLoaderExecute<CloseableIterator<AggregateBucket>>(metricsService, this.getClass().getName() + ".aggregateIterator") {
+
+            @Override
+            protected CloseableIterator<AggregateBucket> execute(Object... args) throws IOException {
+                SearchRequest searchRequest = buildCompositeAggregateRequest(filter, property, filters, itemType, pageSize);
+                if (searchRequest == null) {
+                    // no existing data
+                    return emptyIterator();
+                }
+                SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
+                return new CompositeAggregationIterator(client, searchRequest, getCompositeAggregation(searchRequest), property, response);
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * @return the request of the first page of a composite aggregation on the values of a property, or {@code null} if
+     * no item has a value for the property yet
+     */
+    private SearchRequest buildCompositeAggregateRequest(Condition filter, String property, Map<String, Condition> filters, String itemType, int size) {
+        String fieldName = getPropertyNameWithData(property, itemType);
+        if (fieldName == null) {
+            return null;
+        }
+        CompositeAggregationBuilder bucketsAggregation = AggregationBuilders.composite(CompositeAggregationIterator.BUCKETS_AGGREGATION,
+                Collections.<CompositeValuesSourceBuilder<?>>singletonList(new TermsValuesSourceBuilder(property).field(fieldName))).size(size);
+        if (filters != null && !filters.isEmpty()) {
+            List<FiltersAggregator.KeyedFilter> keyedFilters = new ArrayList<>();
+            for (Map.Entry<String, Condition> keyedFilter : filters.entrySet()) {
+                keyedFilters.add(new FiltersAggregator.KeyedFilter(keyedFilter.getKey(), conditionESQueryBuilderDispatcher.buildFilter(keyedFilter.getValue())));
+            }
+            bucketsAggregation.subAggregation(AggregationBuilders.filters(CompositeAggregationIterator.FILTERS_AGGREGATION,
+                    keyedFilters.toArray(new FiltersAggregator.KeyedFilter[0])));
+        }
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .size(0)
+                .query(filter != null ? conditionESQueryBuilderDispatcher.buildFilter(filter) : QueryBuilders.matchAllQuery())
+                .aggregation(bucketsAggregation);
+        return new SearchRequest(getIndexNameForQuery(itemType)).source(searchSourceBuilder);
+    }
+
+    private static CompositeAggregationBuilder getCompositeAggregation(SearchRequest searchRequest) {
+        return (CompositeAggregationBuilder) searchRequest.source().aggregations().getAggregatorFactories().iterator().next();
+    }
+
     private Map<String, Long> aggregateQuery(final Condition filter, final BaseAggregate aggregate, final String itemType,
             final boolean optimizedQuery) {
         return new InClassLoaderExecute<Map<String, Long>>(metricsService, this.getClass().getName() + ".aggregateQuery") {
 
             @Override
             protected Map<String, Long> execute(Object... args) throws IOException {
-                Map<String, Long> results = new LinkedHashMap<String, Long>();
+                SearchResponse response = client.search(buildAggregateRequest(filter, aggregate, itemType, optimizedQuery), RequestOptions.DEFAULT);
+                return getAggregateResults(response, optimizedQuery);
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
 
-                SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType));
-                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-                searchSourceBuilder.size(0);
-                searchSourceBuilder.query(QueryBuilders.matchAllQuery());
-                List<AggregationBuilder> lastAggregation = new ArrayList<AggregationBuilder>();
-
-                if (aggregate != null) {
-                    AggregationBuilder bucketsAggregation = null;
-                    String fieldName = aggregate.getField();
-                    if (aggregate instanceof DateAggregate) {
-                        DateAggregate dateAggregate = (DateAggregate) aggregate;
-                        DateHistogramAggregationBuilder dateHistogramBuilder = AggregationBuilders.dateHistogram("buckets").field(fieldName).calendarInterval(new DateHistogramInterval((dateAggregate.getInterval())));
-                        if (dateAggregate.getFormat() != null) {
-                            dateHistogramBuilder.format(dateAggregate.getFormat());
-                        }
-                        bucketsAggregation = dateHistogramBuilder;
-                    } else if (aggregate instanceof NumericRangeAggregate) {
-                        RangeAggregationBuilder rangebuilder = AggregationBuilders.range("buckets").field(fieldName);
-                        for (NumericRange range : ((NumericRangeAggregate) aggregate).getRanges()) {
-                            if (range != null) {
-                                if (range.getFrom() != null && range.getTo() != null) {
-                                    rangebuilder.addRange(range.getKey(), range.getFrom(), range.getTo());
-                                } else if (range.getFrom() != null) {
-                                    rangebuilder.addUnboundedFrom(range.getKey(), range.getFrom());
-                                } else if (range.getTo() != null) {
-                                    rangebuilder.addUnboundedTo(range.getKey(), range.getTo());
-                                }
-                            }
-                        }
-                        bucketsAggregation = rangebuilder;
-                    } else if (aggregate instanceof DateRangeAggregate) {
-                        DateRangeAggregate dateRangeAggregate = (DateRangeAggregate) aggregate;
-                        DateRangeAggregationBuilder rangebuilder = AggregationBuilders.dateRange("buckets").field(fieldName);
-                        if (dateRangeAggregate.getFormat() != null) {
-                            rangebuilder.format(dateRangeAggregate.getFormat());
-                        }
-                        for (DateRange range : dateRangeAggregate.getDateRanges()) {
-                            if (range != null) {
-                                rangebuilder.addRange(range.getKey(), range.getFrom() != null ? range.getFrom().toString() : null, range.getTo() != null ? range.getTo().toString() : null);
-                            }
-                        }
-                        bucketsAggregation = rangebuilder;
-                    } else if (aggregate instanceof IpRangeAggregate) {
-                        IpRangeAggregate ipRangeAggregate = (IpRangeAggregate) aggregate;
-                        IpRangeAggregationBuilder rangebuilder = AggregationBuilders.ipRange("buckets").field(fieldName);
-                        for (IpRange range : ipRangeAggregate.getRanges()) {
-                            if (range != null) {
-                                rangebuilder.addRange(range.getKey(), range.getFrom(), range.getTo());
-                            }
-                        }
-                        bucketsAggregation = rangebuilder;
-                    } else {
-                        fieldName = getPropertyNameWithData(fieldName, itemType);
-                        //default
-                        if (fieldName != null) {
-                            bucketsAggregation = AggregationBuilders.terms("buckets").field(fieldName).size(aggregateQueryBucketSize);
-                            if (aggregate instanceof TermsAggregate) {
-                                TermsAggregate termsAggregate = (TermsAggregate) aggregate;
-                                if (termsAggregate.getPartition() > -1 && termsAggregate.getNumPartitions() > -1) {
-                                    ((TermsAggregationBuilder) bucketsAggregation).includeExclude(new IncludeExclude(termsAggregate.getPartition(), termsAggregate.getNumPartitions()));
-                                }
-                            }
-                        } else {
-                            // field name could be null if no existing data exists
-                        }
-                    }
-                    if (bucketsAggregation != null) {
-                        final MissingAggregationBuilder missingBucketsAggregation = AggregationBuilders.missing("missing").field(fieldName);
-                        for (AggregationBuilder aggregationBuilder : lastAggregation) {
-                            bucketsAggregation.subAggregation(aggregationBuilder);
-                            missingBucketsAggregation.subAggregation(aggregationBuilder);
+    private SearchRequest buildAggregateRequest(final Condition filter, final BaseAggregate aggregate, final String itemType,
+            final boolean optimizedQuery) {
+        SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType));
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.size(0);
+        searchSourceBuilder.query(QueryBuilders.matchAllQuery());
+        List<AggregationBuilder> lastAggregation = new ArrayList<AggregationBuilder>();
+
+        if (aggregate != null) {
+            AggregationBuilder bucketsAggregation = null;
+            String fieldName = aggregate.getField();
+            if (aggregate instanceof DateAggregate) {
+                DateAggregate dateAggregate = (DateAggregate) aggregate;
+                DateHistogramAggregationBuilder dateHistogramBuilder = AggregationBuilders.dateHistogram("buckets").field(fieldName).calendarInterval(new DateHistogramInterval((dateAggregate.getInterval())));
+                if (dateAggregate.getFormat() != null) {
+                    dateHistogramBuilder.format(dateAggregate.getFormat());
+                }
+                bucketsAggregation = dateHistogramBuilder;
+            } else if (aggregate instanceof NumericRangeAggregate) {
+                RangeAggregationBuilder rangebuilder = AggregationBuilders.range("buckets").field(fieldName);
+                for (NumericRange range : ((NumericRangeAggregate) aggregate).getRanges()) {
+                    if (range != null) {
+                        if (range.getFrom() != null && range.getTo() != null) {
+                            rangebuilder.addRange(range.getKey(), range.getFrom(), range.getTo());
+                        } else if (range.getFrom() != null) {
+                            rangebuilder.addUnboundedFrom(range.getKey(), range.getFrom());
+                        } else if (range.getTo() != null) {
+                            rangebuilder.addUnboundedTo(range.getKey(), range.getTo());
                         }
-                        lastAggregation = Arrays.asList(bucketsAggregation, missingBucketsAggregation);
                     }
                 }
-
-                // If the request is optimized then we don't need a global aggregation which is very slow and we can put the query with a
-                // filter on range items in the query block so we don't retrieve all the document before filtering the whole
-                if (optimizedQuery) {
-                    for (AggregationBuilder aggregationBuilder : lastAggregation) {
-                        searchSourceBuilder.aggregation(aggregationBuilder);
+                bucketsAggregation = rangebuilder;
+            } else if (aggregate instanceof DateRangeAggregate) {
+                DateRangeAggregate dateRangeAggregate = (DateRangeAggregate) aggregate;
+                DateRangeAggregationBuilder rangebuilder = AggregationBuilders.dateRange("buckets").field(fieldName);
+                if (dateRangeAggregate.getFormat() != null) {
+                    rangebuilder.format(dateRangeAggregate.getFormat());
+                }
+                for (DateRange range : dateRangeAggregate.getDateRanges()) {
+                    if (range != null) {
+                        rangebuilder.addRange(range.getKey(), range.getFrom() != null ? range.getFrom().toString() : null, range.getTo() != null ? range.getTo().toString() : null);
                     }
-
-                    if (filter != null) {
-                        searchSourceBuilder.query(conditionESQueryBuilderDispatcher.buildFilter(filter));
+                }
+                bucketsAggregation = rangebuilder;
+            } else if (aggregate instanceof IpRangeAggregate) {
+                IpRangeAggregate ipRangeAggregate = (IpRangeAggregate) aggregate;
+                IpRangeAggregationBuilder rangebuilder = AggregationBuilders.ipRange("buckets").field(fieldName);
+                for (IpRange range : ipRangeAggregate.getRanges()) {
+                    if (range != null) {
+                        rangebuilder.addRange(range.getKey(), range.getFrom(), range.getTo());
                     }
-                } else {
-                    if (filter != null) {
-                        AggregationBuilder filterAggregation = AggregationBuilders.filter("filter", conditionESQueryBuilderDispatcher.buildFilter(filter));
-                        for (AggregationBuilder aggregationBuilder : lastAggregation) {
-                            filterAggregation.subAggregation(aggregationBuilder);
+                }
+                bucketsAggregation = rangebuilder;
+            } else {
+                fieldName = getPropertyNameWithData(fieldName, itemType);
+                //default
+                if (fieldName != null) {
+                    bucketsAggregation = AggregationBuilders.terms("buckets").field(fieldName).size(aggregateQueryBucketSize);
+                    if (aggregate instanceof TermsAggregate) {
+                        TermsAggregate termsAggregate = (TermsAggregate) aggregate;
+                        if (termsAggregate.getPartition() > -1 && termsAggregate.getNumPartitions() > -1) {
+                            ((TermsAggregationBuilder) bucketsAggregation).includeExclude(new IncludeExclude(termsAggregate.getPartition(), termsAggregate.getNumPartitions()));
                         }
-                        lastAggregation = Collections.singletonList(filterAggregation);
                     }
+                } else {
+                    // field name could be null if no existing data exists
+                }
+            }
+            if (bucketsAggregation != null) {
+                final MissingAggregationBuilder missingBucketsAggregation = AggregationBuilders.missing("missing").field(fieldName);
+                for (AggregationBuilder aggregationBuilder : lastAggregation) {
+                    bucketsAggregation.subAggregation(aggregationBuilder);
+                    missingBucketsAggregation.subAggregation(aggregationBuilder);
+                }
+                lastAggregation = Arrays.asList(bucketsAggregation, missingBucketsAggregation);
+            }
+        }
 
-                    AggregationBuilder globalAggregation = AggregationBuilders.global("global");
-                    for (AggregationBuilder aggregationBuilder : lastAggregation) {
-                        globalAggregation.subAggregation(aggregationBuilder);
-                    }
+        // If the request is optimized then we don't need a global aggregation which is very slow and we can put the query with a
+        // filter on range items in the query block so we don't retrieve all the document before filtering the whole
+        if (optimizedQuery) {
+            for (AggregationBuilder aggregationBuilder : lastAggregation) {
+                searchSourceBuilder.aggregation(aggregationBuilder);
+            }
 
-                    searchSourceBuilder.aggregation(globalAggregation);
+            if (filter != null) {
+                searchSourceBuilder.query(conditionESQueryBuilderDispatcher.buildFilter(filter));
+            }
+        } else {
+            if (filter != null) {
+                AggregationBuilder filterAggregation = AggregationBuilders.filter("filter", conditionESQueryBuilderDispatcher.buildFilter(filter));
+                for (AggregationBuilder aggregationBuilder : lastAggregation) {
+                    filterAggregation.subAggregation(aggregationBuilder);
                 }
+                lastAggregation = Collections.singletonList(filterAggregation);
+            }
 
-                searchRequest.source(searchSourceBuilder);
-                SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
-                Aggregations aggregations = response.getAggregations();
-                if (aggregations != null) {
-                    if (optimizedQuery) {
-                        if (response.getHits() != null) {
-                            results.put("_filtered", response.getHits().getTotalHits().value);
-                        }
+            AggregationBuilder globalAggregation = AggregationBuilders.global("global");
+            for (AggregationBuilder aggregationBuilder : lastAggregation) {
+                globalAggregation.subAggregation(aggregationBuilder);
+            }
+
+            searchSourceBuilder.aggregation(globalAggregation);
+        }
+
+        searchRequest.source(searchSourceBuilder);
+        return searchRequest;
+    }
+
+    private Map<String, Long> getAggregateResults(SearchResponse response, boolean optimizedQuery) {
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        Aggregations aggregations = response.getAggregations();
+        if (aggregations != null) {
+            if (optimizedQuery) {
+                if (response.getHits() != null) {
+                    results.put("_filtered", response.getHits().getTotalHits().value);
+                }
+            } else {
+                Global globalAgg = aggregations.get("global");
+                results.put("_all", globalAgg.getDocCount());
+                aggregations = globalAgg.getAggregations();
+
+                if (aggregations.get("filter") != null) {
+                    Filter filterAgg = aggregations.get("filter");
+                    results.put("_filtered", filterAgg.getDocCount());
+                    aggregations = filterAgg.getAggregations();
+                }
+            }
+            if (aggregations.get("buckets") != null) {
+                long totalDocCount = 0;
+                MultiBucketsAggregation terms = aggregations.get("buckets");
+                for (MultiBucketsAggregation.Bucket bucket : terms.getBuckets()) {
+                    results.put(bucket.getKeyAsString(), bucket.getDocCount());
+                    totalDocCount += bucket.getDocCount();
+                }
+                SingleBucketAggregation missing = aggregations.get("missing");
+                if (missing.getDocCount() > 0) {
+                    results.put("_missing", missing.getDocCount());
+                    totalDocCount += missing.getDocCount();
+                }
+                if (response.getHits() != null && TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO.equals(response.getHits().getTotalHits().relation)) {
+                    results.put("_filtered", totalDocCount);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public <T extends Item> CompletableFuture<T> loadAsync(final String itemId, final Class<T> clazz) {
+        return loadAsync(itemId, null, clazz);
+    }
+
+    @Override
+    public <T extends Item> CompletableFuture<T> loadAsync(final String itemId, final Date dateHint, final Class<T> clazz) {
+        final String itemType = Item.getItemType(clazz);
+        T itemFromCache = getFromCache(itemId, clazz);
+        if (itemFromCache != null) {
+            return CompletableFuture.completedFuture(itemFromCache);
+        }
+        if (itemsMonthlyIndexed.contains(itemType) && dateHint == null) {
+            return queryAsync(QueryBuilders.idsQuery().addIds(itemId), null, clazz, 0, 1, ".loadItemWithQueryAsync").thenApply(r -> r != null && r.size() > 0 ? r.get(0) : null);
+        }
+        return executeAsync(".loadItemAsync", null, future -> {
+            GetRequest getRequest = new GetRequest(getIndex(itemType, dateHint), itemId);
+            client.getAsync(getRequest, RequestOptions.DEFAULT, new CompletingListener<GetResponse, T>(future) {
+                @Override
+                protected T handle(GetResponse response) throws Exception {
+                    if (!response.isExists()) {
+                        return null;
+                    }
+                    final T value = itemSourceReader.read(response, clazz);
+                    putInCache(itemId, value);
+                    return value;
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    if (e instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) e).status() == RestStatus.NOT_FOUND) {
+                        // the index does not exist, as for the synchronous load this is not always an error
+                        future.complete(null);
                     } else {
-                        Global globalAgg = aggregations.get("global");
-                        results.put("_all", globalAgg.getDocCount());
-                        aggregations = globalAgg.getAggregations();
-
-                        if (aggregations.get("filter") != null) {
-                            Filter filterAgg = aggregations.get("filter");
-                            results.put("_filtered", filterAgg.getDocCount());
-                            aggregations = filterAgg.getAggregations();
-                        }
+                        super.onFailure(e);
                     }
-                    if (aggregations.get("buckets") != null) {
-                        long totalDocCount = 0;
-                        MultiBucketsAggregation terms = aggregations.get("buckets");
-                        for (MultiBucketsAggregation.Bucket bucket : terms.getBuckets()) {
-                            results.put(bucket.getKeyAsString(), bucket.getDocCount());
-                            totalDocCount += bucket.getDocCount();
-                        }
-                        SingleBucketAggregation missing = aggregations.get("missing");
-                        if (missing.getDocCount() > 0) {
-                            results.put("_missing", missing.getDocCount());
-                            totalDocCount += missing.getDocCount();
-                        }
-                        if (response.getHits() != null && TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO.equals(response.getHits().getTotalHits().relation)) {
-                            results.put("_filtered", totalDocCount);
-                        }
+                }
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveAsync(final Item item) {
+        return executeAsync(".saveItemAsync", false, future -> {
+            String source = ESCustomObjectMapper.getObjectMapper().writeValueAsString(item);
+            String itemType = item.getItemType();
+            IndexRequest indexRequest = new IndexRequest(getIndex(itemType, itemsMonthlyIndexed.contains(itemType) ? ((TimestampedItem) item).getTimeStamp() : null));
+            indexRequest.id(item.getItemId());
+            indexRequest.source(source, XContentType.JSON);
+            if (routingByType.containsKey(itemType)) {
+                indexRequest.routing(routingByType.get(itemType));
+            }
+            if (defaultBulkWriter != null && useBatchingForSave) {
+                // the caller must not be blocked, the write is rejected right away if too many writes are in flight,
+                // otherwise it is only accepted and, as for the synchronous save, the failures of the bulk are logged
+                boolean added = getBulkWriter(itemType).add(indexRequest, false);
+                if (added) {
+                    putInCache(item.getItemId(), item);
+                }
+                future.complete(added);
+            } else {
+                client.indexAsync(indexRequest, RequestOptions.DEFAULT, new CompletingListener<IndexResponse, Boolean>(future) {
+                    @Override
+                    protected Boolean handle(IndexResponse response) {
+                        putInCache(item.getItemId(), item);
+                        return true;
                     }
+                });
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> updateAsync(final String itemId, final Date dateHint, final Class clazz, final Map source) {
+        return executeAsync(".updateItemAsync", false, future -> {
+            String itemType = Item.getItemType(clazz);
+            UpdateRequest updateRequest = new UpdateRequest(getIndex(itemType, dateHint), itemId);
+            updateRequest.doc(source);
+            if (defaultBulkWriter != null) {
+                // the write is only accepted, as for the synchronous update the failures of the bulk are logged
+                future.complete(getBulkWriter(itemType).add(updateRequest, false));
+            } else {
+                client.updateAsync(updateRequest, RequestOptions.DEFAULT, new CompletingListener<UpdateResponse, Boolean>(future) {
+                    @Override
+                    protected Boolean handle(UpdateResponse response) {
+                        return true;
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public <T extends Item> CompletableFuture<PartialList<T>> queryAsync(final Condition query, final String sortBy, final Class<T> clazz, final int offset, final int size) {
+        return queryAsync(conditionESQueryBuilderDispatcher.getQueryBuilder(query), sortBy, clazz, offset, size, ".queryAsync");
+    }
+
+    private <T extends Item> CompletableFuture<PartialList<T>> queryAsync(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int offset,
+            final int size, String timerName) {
+        return executeAsync(timerName, null, future -> {
+            String itemType = Item.getItemType(clazz);
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                    .fetchSource(true)
+                    .query(query)
+                    .size(size < 0 ? defaultQueryLimit : size)
+                    .from(offset)
+                    .version(true);
+            addSort(searchSourceBuilder, sortBy, itemType);
+            SearchRequest searchRequest = new SearchRequest(getIndexNameForQuery(itemType)).source(searchSourceBuilder);
+            CompletableFuture<SearchResponse> responseFuture = new CompletableFuture<>();
+            client.searchAsync(searchRequest, RequestOptions.DEFAULT, new CompletingListener<SearchResponse, SearchResponse>(responseFuture) {
+                @Override
+                protected SearchResponse handle(SearchResponse response) {
+                    return response;
                 }
-                return results;
+            });
+            // the hits are parsed and the future completed by the parsing threads, not by the thread of the client
+            responseFuture.thenCompose(response -> {
+                final SearchHits searchHits = response.getHits();
+                return itemSourceReader.readAllAsync(searchHits.getHits(), clazz).thenApply(results ->
+                        new PartialList<T>(results, offset, size, searchHits.getTotalHits().value, getTotalHitsRelation(searchHits.getTotalHits())));
+            }).whenComplete((result, t) -> {
+                if (t != null) {
+                    future.completeExceptionally(t);
+                } else {
+                    future.complete(result);
+                }
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> queryCountAsync(final Condition query, final String itemType) {
+        final QueryBuilder filter;
+        try {
+            return CompletableFuture.completedFuture(conditionESQueryBuilderDispatcher.count(query));
+        } catch (UnsupportedOperationException e) {
+            try {
+                filter = conditionESQueryBuilderDispatcher.buildFilter(query);
+            } catch (UnsupportedOperationException e1) {
+                return CompletableFuture.completedFuture(-1L);
             }
-        }.catchingExecuteInClassLoader(true);
+        }
+        if (filter instanceof IdsQueryBuilder) {
+            return CompletableFuture.completedFuture((long) ((IdsQueryBuilder) filter).ids().size());
+        }
+        return executeAsync(".queryCountAsync", null, future -> {
+            CountRequest countRequest = new CountRequest(getIndexNameForQuery(itemType));
+            countRequest.source(new SearchSourceBuilder().query(filter));
+            client.countAsync(countRequest, RequestOptions.DEFAULT, new CompletingListener<CountResponse, Long>(future) {
+                @Override
+                protected Long handle(CountResponse response) {
+                    return response.getCount();
+                }
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> aggregateWithOptimizedQueryAsync(final Condition filter, final BaseAggregate aggregate, final String itemType) {
+        return executeAsync(".aggregateQueryAsync", null, future ->
+            client.searchAsync(buildAggregateRequest(filter, aggregate, itemType, true), RequestOptions.DEFAULT, new CompletingListener<SearchResponse, Map<String, Long>>(future) {
+                @Override
+                protected Map<String, Long> handle(SearchResponse response) {
+                    return getAggregateResults(response, true);
+                }
+            })
+        );
     }
 
     private <T extends Item> String[] getRouting(String fieldName, String[] fieldValues, Class<T> clazz) {
@@ -1723,8 +2659,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     public void refresh() {
         new InClassLoaderExecute<Boolean>(metricsService, this.getClass().getName() + ".refresh") {
             protected Boolean execute(Object... args) {
-                if (bulkProcessor != null) {
-                    bulkProcessor.flush();
+                if (defaultBulkWriter != null) {
+                    defaultBulkWriter.flush();
+                }
+                for (BulkWriter bulkWriter : bulkWritersByType.values()) {
+                    bulkWriter.flush();
                 }
                 try {
                     client.indices().refresh(Requests.refreshRequest(), RequestOptions.DEFAULT);
@@ -1748,26 +2687,17 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 GetIndexResponse getIndexResponse = client.indices().get(getIndexRequest, RequestOptions.DEFAULT);
                 String[] indices = getIndexResponse.getIndices();
 
-                SimpleDateFormat d = new SimpleDateFormat("yyyy-MM");
-
                 List<String> toDelete = new ArrayList<String>();
                 for (String currentIndexName : indices) {
-                    int indexDatePrefixPos = currentIndexName.indexOf(INDEX_DATE_PREFIX);
-                    if (indexDatePrefixPos > -1) {
-                        try {
-                            Date indexDate = d.parse(currentIndexName.substring(indexDatePrefixPos + INDEX_DATE_PREFIX.length()));
-
-                            if (indexDate.before(date)) {
-                                toDelete.add(currentIndexName);
-                            }
-                        } catch (ParseException e) {
-                            throw new Exception("Cannot parse index name " + currentIndexName, e);
-                        }
+                    Date indexDate = getMonthlyIndexDate(currentIndexName);
+                    if (indexDate != null && indexDate.before(date)) {
+                        toDelete.add(currentIndexName);
                     }
                 }
                 if (!toDelete.isEmpty()) {
                     DeleteIndexRequest deleteIndexRequest = new DeleteIndexRequest(toDelete.toArray(new String[toDelete.size()]));
                     client.indices().delete(deleteIndexRequest, RequestOptions.DEFAULT);
+                    invalidateAggregateQueryCache(null);
                 }
                 return null;
             }
@@ -1783,37 +2713,26 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                 BulkRequest deleteByScopeBulkRequest = new BulkRequest();
 
-                final TimeValue keepAlive = TimeValue.timeValueHours(1);
-                SearchRequest searchRequest = new SearchRequest(getAllIndexForQuery()).scroll(keepAlive);
+                SearchRequest searchRequest = new SearchRequest(getAllIndexForQuery());
                 SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
                         .query(query)
-                        .size(100);
+                        .fetchSource(false)
+                        .size(SEARCH_AFTER_PAGE_SIZE);
+                addTiebreakerSort(searchSourceBuilder);
+                // items of different types can have the same identifier
+                searchSourceBuilder.sort("_index", SortOrder.ASC);
                 searchRequest.source(searchSourceBuilder);
-                SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
-
-                // Scroll until no more hits are returned
-                while (true) {
 
-                    for (SearchHit hit : response.getHits().getHits()) {
+                searchAfterAll(searchRequest, hits -> {
+                    for (SearchHit hit : hits) {
                         // add hit to bulk delete
                         DeleteRequest deleteRequest = new DeleteRequest(hit.getIndex(), hit.getId());
                         deleteByScopeBulkRequest.add(deleteRequest);
                     }
+                });
+                invalidateAggregateQueryCache(null);
 
-                    SearchScrollRequest searchScrollRequest = new SearchScrollRequest(response.getScrollId());
-                    searchScrollRequest.scroll(keepAlive);
-                    response = client.scroll(searchScrollRequest, RequestOptions.DEFAULT);
-
-                    // If we have no more hits, exit
-                    if (response.getHits().getHits().length == 0) {
-                        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-                        clearScrollRequest.addScrollId(response.getScrollId());
-                        client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
-                        break;
-                    }
-                }
-
-                // we're done with the scrolling, delete now
+                // we're done with the search, delete now
                 if (deleteByScopeBulkRequest.numberOfActions() > 0) {
                     final BulkResponse deleteResponse = client.bulk(deleteByScopeBulkRequest, RequestOptions.DEFAULT);
                     if (deleteResponse.hasFailures()) {
@@ -1826,6 +2745,62 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    @Override
+    public List<String> removeIndicesBefore(final Date date) {
+        return new InClassLoaderExecute<List<String>>(metricsService, this.getClass().getName() + ".removeIndicesBefore") {
+            @Override
+            protected List<String> execute(Object... args) throws Exception {
+                GetIndexRequest getIndexRequest = new GetIndexRequest(getAllIndexForQuery());
+                GetIndexResponse getIndexResponse = client.indices().get(getIndexRequest, RequestOptions.DEFAULT);
+
+                List<String> toDelete = new ArrayList<String>();
+                for (String currentIndexName : getIndexResponse.getIndices()) {
+                    if (isMonthlyIndexBefore(currentIndexName, date)) {
+                        toDelete.add(currentIndexName);
+                    }
+                }
+                if (!toDelete.isEmpty()) {
+                    DeleteIndexRequest deleteIndexRequest = new DeleteIndexRequest(toDelete.toArray(new String[toDelete.size()]));
+                    client.indices().delete(deleteIndexRequest, RequestOptions.DEFAULT);
+                    invalidateAggregateQueryCache(null);
+                    invalidatePropertiesMapping(null);
+                    logger.info("Removed indices {}", toDelete);
+                }
+                return toDelete;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public String startPurge(final Date date, final int slices, final float requestsPerSecond) {
+        return new InClassLoaderExecute<String>(metricsService, this.getClass().getName() + ".startPurgeWithDate") {
+            @Override
+            protected String execute(Object... args) throws Exception {
+                List<String> indices = new ArrayList<>();
+                for (String itemType : itemsMonthlyIndexed) {
+                    indices.add(getMonthlyIndexForQuery(itemType));
+                }
+                // only the index of the month of the date holds items on both sides of it after the older indices are removed
+                String taskId = startByQueryTask(StringUtils.join(indices, ","), "_delete_by_query", QueryBuilders.rangeQuery("timeStamp").lt(date),
+                        null, slices, requestsPerSecond);
+                invalidateAggregateQueryCache(null);
+                return taskId;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    @Override
+    public String startPurge(final String scope, final int slices, final float requestsPerSecond) {
+        return new InClassLoaderExecute<String>(metricsService, this.getClass().getName() + ".startPurgeWithScope") {
+            @Override
+            protected String execute(Object... args) throws Exception {
+                String taskId = startByQueryTask(getAllIndexForQuery(), "_delete_by_query", termQuery("scope", scope), null, slices, requestsPerSecond);
+                invalidateAggregateQueryCache(null);
+                return taskId;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
     @Override
     public Map<String, Double> getSingleValuesMetrics(final Condition condition, final String[] metrics, final String field, final String itemType) {
         return new InClassLoaderExecute<Map<String, Double>>(metricsService, this.getClass().getName() + ".getSingleValuesMetrics") {
@@ -1894,6 +2869,73 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return defaultValue;
     }
 
+    /**
+     * Starts an asynchronous request, the request being built in the class loader of this bundle.
+     */
+    private interface AsyncRequest<T> {
+        void start(CompletableFuture<T> future) throws Exception;
+    }
+
+    /**
+     * Starts an asynchronous request and returns a future completed with its result. As for the synchronous methods,
+     * failures are logged and the future is then completed with the specified error value.
+     */
+    private <T> CompletableFuture<T> executeAsync(final String timerName, final T errorValue, AsyncRequest<T> request) {
+        final long startTime = System.currentTimeMillis();
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+            request.start(future);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            Thread.currentThread().setContextClassLoader(tccl);
+        }
+        return future.handle((result, t) -> {
+            if (metricsService != null && metricsService.isActivated()) {
+                metricsService.updateTimer(this.getClass().getName() + timerName, startTime);
+            }
+            if (t != null) {
+                logger.error("Error while executing " + timerName.substring(1), t);
+                return errorValue;
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Completes a future with the response of an asynchronous request of the client. The response is handled in the
+     * class loader of this bundle, on a thread of the client that must not be blocked.
+     */
+    private abstract static class CompletingListener<R, T> implements ActionListener<R> {
+        protected final CompletableFuture<T> future;
+
+        CompletingListener(CompletableFuture<T> future) {
+            this.future = future;
+        }
+
+        protected abstract T handle(R response) throws Exception;
+
+        @Override
+        public void onResponse(R response) {
+            ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+            try {
+                Thread.currentThread().setContextClassLoader(ElasticSearchPersistenceServiceImpl.class.getClassLoader());
+                future.complete(handle(response));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                Thread.currentThread().setContextClassLoader(tccl);
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
     public abstract static class InClassLoaderExecute<T> {
 
         private String timerName;
@@ -1996,4 +3038,35 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         return INDEX_DATE_PREFIX + d;
     }
 
+    /**
+     * @return {@code true} if the index is a monthly index whose month ends before or at the specified date, so that all
+     * its items are older than the date
+     */
+    static boolean isMonthlyIndexBefore(String indexName, Date date) throws Exception {
+        Date indexDate = getMonthlyIndexDate(indexName);
+        if (indexDate == null) {
+            return false;
+        }
+        Calendar indexEnd = Calendar.getInstance();
+        indexEnd.setTime(indexDate);
+        indexEnd.add(Calendar.MONTH, 1);
+        return !indexEnd.getTime().after(date);
+    }
+
+    /**
+     * @return the first day of the month of the items stored in an index, or {@code null} if the items of the index are
+     * not stored by month
+     */
+    private static Date getMonthlyIndexDate(String indexName) throws Exception {
+        int indexDatePrefixPos = indexName.indexOf(INDEX_DATE_PREFIX);
+        if (indexDatePrefixPos == -1) {
+            return null;
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM").parse(indexName.substring(indexDatePrefixPos + INDEX_DATE_PREFIX.length()));
+        } catch (ParseException e) {
+            throw new Exception("Cannot parse index name " + indexName, e);
+        }
+    }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.unomi.api.Item;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads items from the source of search hits and get responses. The sources are parsed straight from their bytes with
+ * an {@link ObjectReader} cached per class, and the hits of large pages are parsed in parallel.
+ */
+public class ItemSourceReader {
+
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final int parallelThreshold;
+    private final ForkJoinPool parsingPool;
+
+    /**
+     * @param parallelism       the number of threads parsing the hits of large pages
+     * @param parallelThreshold the minimal number of hits of a page to parse it in parallel
+     */
+    public ItemSourceReader(int parallelism, int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        final ClassLoader classLoader = getClass().getClassLoader();
+        this.parsingPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            };
+            thread.setName("unomi-hits-parser-" + thread.getPoolIndex());
+            // the items are deserialized in the class loader of this bundle
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }, null, false);
+    }
+
+    public <T extends Item> T read(SearchHit searchHit, Class<T> clazz) throws IOException {
+        return read(searchHit.getSourceRef(), searchHit.getId(), searchHit.getVersion(), clazz);
+    }
+
+    public <T extends Item> T read(GetResponse response, Class<T> clazz) throws IOException {
+        return read(response.getSourceAsBytesRef(), response.getId(), response.getVersion(), clazz);
+    }
+
+    public <T extends Item> T read(BytesReference source, String itemId, long version, Class<T> clazz) throws IOException {
+        // no copy for the sources backed by a single array, which is the case of the parsed responses
+        BytesRef bytes = source.toBytesRef();
+        T value = getReader(clazz).readValue(bytes.bytes, bytes.offset, bytes.length);
+        value.setItemId(itemId);
+        value.setVersion(version);
+        return value;
+    }
+
+    /**
+     * Reads the items of all the specified hits, in parallel if there are enough of them. The calling thread waits for
+     * the parsing threads, this method must not be called from the threads of the client.
+     */
+    public <T extends Item> List<T> readAll(final SearchHit[] hits, final Class<T> clazz) throws IOException {
+        try {
+            if (hits.length < parallelThreshold) {
+                return parse(hits, clazz);
+            }
+            return parsingPool.submit(() -> parse(hits, clazz)).get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading items of type " + clazz.getName(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw new IOException("Error while reading items of type " + clazz.getName(), cause);
+        }
+    }
+
+    /**
+     * Reads the items of all the specified hits on the parsing threads, in parallel if there are enough of them, so
+     * that the threads of the client handling the responses are not blocked.
+     *
+     * @return a future completed by the parsing threads with the items, or exceptionally with an
+     * {@link UncheckedIOException} if a source could not be read
+     */
+    public <T extends Item> CompletableFuture<List<T>> readAllAsync(final SearchHit[] hits, final Class<T> clazz) {
+        return CompletableFuture.supplyAsync(() -> parse(hits, clazz), parsingPool);
+    }
+
+    private <T extends Item> List<T> parse(SearchHit[] hits, Class<T> clazz) {
+        Stream<SearchHit> stream = Arrays.stream(hits);
+        if (hits.length >= parallelThreshold) {
+            // run in the pool of the calling thread, the parsing pool
+            stream = stream.parallel();
+        }
+        return stream.map(hit -> {
+            try {
+                return read(hit, clazz);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).collect(Collectors.toList());
+    }
+
+    private ObjectReader getReader(Class<?> clazz) {
+        return readers.computeIfAbsent(clazz, c -> ESCustomObjectMapper.getObjectMapper().readerFor(c));
+    }
+
+    public void close() {
+        parsingPool.shutdown();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.persistence.spi.CloseableIterator;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over the hits of a search sorted with a tiebreaker, each page being requested with the sort values of the
+ * last hit of the previous one. The next page is requested as soon as the current one is received so that it is
+ * loaded while the current one is read. Only the hits of two pages are kept in memory, and nothing is kept open in
+ * the cluster between the pages.
+ */
+class SearchAfterIterator<T extends Item> implements CloseableIterator<T> {
+
+    private final RestHighLevelClient client;
+    private final ItemSourceReader itemSourceReader;
+    private final SearchRequest searchRequest;
+    private final Class<T> clazz;
+    private final int pageSize;
+
+    private SearchHit[] hits;
+    private int position;
+    private CompletableFuture<SearchResponse> nextPage;
+
+    /**
+     * @param searchRequest the request of the first page, reused for the next ones
+     * @param firstPage     the response of the first page
+     */
+    SearchAfterIterator(RestHighLevelClient client, ItemSourceReader itemSourceReader, SearchRequest searchRequest, SearchResponse firstPage, Class<T> clazz, int pageSize) {
+        this.client = client;
+        this.itemSourceReader = itemSourceReader;
+        this.searchRequest = searchRequest;
+        this.clazz = clazz;
+        this.pageSize = pageSize;
+        setPage(firstPage);
+    }
+
+    private void setPage(SearchResponse response) {
+        hits = response.getHits().getHits();
+        position = 0;
+        nextPage = null;
+        if (hits.length == pageSize) {
+            // the previous request is complete, it can be modified to request the next page
+            searchRequest.source().searchAfter(hits[hits.length - 1].getSortValues());
+            nextPage = new CompletableFuture<>();
+            client.searchAsync(searchRequest, RequestOptions.DEFAULT, ActionListener.wrap(nextPage::complete, nextPage::completeExceptionally));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (position < hits.length) {
+            return true;
+        }
+        if (nextPage == null) {
+            return false;
+        }
+        try {
+            setPage(nextPage.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while loading items of type " + clazz.getName(), e);
+        } catch (ExecutionException e) {
+            close();
+            throw new IllegalStateException("Error while loading items of type " + clazz.getName(), e.getCause());
+        }
+        return position < hits.length;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SearchHit searchHit = hits[position];
+        // the hits of the page are released as soon as they are read
+        hits[position++] = null;
+        ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+            return itemSourceReader.read(searchHit, clazz);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while reading item " + searchHit.getId() + " of type " + clazz.getName(), e);
+        } finally {
+            Thread.currentThread().setContextClassLoader(tccl);
+        }
+    }
+
+    @Override
+    public void close() {
+        // there is no search context to release, the page being loaded is simply ignored
+        hits = new SearchHit[0];
+        position = 0;
+        nextPage = null;
+    }
+}
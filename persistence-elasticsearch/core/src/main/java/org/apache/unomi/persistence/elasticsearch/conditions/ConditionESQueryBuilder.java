@@ -26,6 +26,15 @@ public interface ConditionESQueryBuilder {
 
     QueryBuilder buildQuery(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher);
 
+    /**
+     * Indicates if the query built for the given condition only depends on the condition itself, and can therefore be
+     * cached and reused for the same condition. Query builders whose result depends on stored data or on the current
+     * time must return false.
+     */
+    default boolean isCacheable(Condition condition) {
+        return false;
+    }
+
     default long count(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher) {
         throw new UnsupportedOperationException();
     }
@@ -17,13 +17,20 @@
 
 package org.apache.unomi.persistence.elasticsearch.conditions;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -32,28 +39,101 @@ public class ConditionESQueryBuilderDispatcher {
 
     private Map<String, ConditionESQueryBuilder> queryBuilders = new ConcurrentHashMap<>();
 
+    private final ObjectMapper cacheKeyMapper = new CustomObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private final ThreadLocal<boolean[]> cacheableFilter = new ThreadLocal<>();
+    private Map<String, String> filterCache = Collections.emptyMap();
+    private int filterCacheSize = 0;
+
     public ConditionESQueryBuilderDispatcher() {
     }
 
+    /**
+     * Sets the maximum number of translated filters kept in memory, 0 disables the cache.
+     */
+    public void setFilterCacheSize(final int filterCacheSize) {
+        this.filterCacheSize = filterCacheSize;
+        this.filterCache = filterCacheSize > 0 ? Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > filterCacheSize;
+            }
+        }) : Collections.<String, String>emptyMap();
+    }
+
     public void addQueryBuilder(String name, ConditionESQueryBuilder evaluator) {
         queryBuilders.put(name, evaluator);
+        clearFilterCache();
     }
 
     public void removeQueryBuilder(String name) {
         queryBuilders.remove(name);
+        clearFilterCache();
     }
 
+    public void clearFilterCache() {
+        filterCache.clear();
+    }
 
     public String getQuery(Condition condition) {
-        return "{\"query\": " + getQueryBuilder(condition).toString() + "}";
+        // stored queries must not depend on the filter cache
+        QueryBuilder queryBuilder = QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(buildFilter(condition, new HashMap<String, Object>()));
+        return "{\"query\": " + queryBuilder.toString() + "}";
     }
 
     public QueryBuilder getQueryBuilder(Condition condition) {
         return QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(buildFilter(condition));
     }
 
+    /**
+     * Builds the filter for the given condition. When the filter cache is enabled and all the query builders involved
+     * declare the generated query as cacheable, the translated query is kept and later returned as a wrapper query,
+     * avoiding to rebuild the same query tree for conditions that are run repeatedly.
+     */
     public QueryBuilder buildFilter(Condition condition) {
-        return buildFilter(condition, new HashMap<String, Object>());
+        String cacheKey = getFilterCacheKey(condition);
+        if (cacheKey != null) {
+            String cachedFilter = filterCache.get(cacheKey);
+            if (cachedFilter != null) {
+                return QueryBuilders.wrapperQuery(cachedFilter);
+            }
+        }
+        boolean[] previous = cacheableFilter.get();
+        boolean[] cacheable = new boolean[]{cacheKey != null};
+        cacheableFilter.set(cacheable);
+        try {
+            QueryBuilder filter = buildFilter(condition, new HashMap<String, Object>());
+            if (cacheable[0] && filter != null) {
+                filterCache.put(cacheKey, Strings.toString(filter));
+            }
+            return filter;
+        } finally {
+            if (previous != null) {
+                cacheableFilter.set(previous);
+            } else {
+                cacheableFilter.remove();
+            }
+        }
+    }
+
+    private String getFilterCacheKey(Condition condition) {
+        if (filterCacheSize <= 0 || condition == null) {
+            return null;
+        }
+        try {
+            String key = cacheKeyMapper.writeValueAsString(condition);
+            // scripted parameters are resolved when the query is built and may not give the same result twice
+            return key.contains("\"script::") ? null : key;
+        } catch (JsonProcessingException e) {
+            logger.debug("Cannot compute cache key for condition {}", condition, e);
+            return null;
+        }
+    }
+
+    private void markNotCacheable() {
+        boolean[] cacheable = cacheableFilter.get();
+        if (cacheable != null) {
+            cacheable[0] = false;
+        }
     }
 
     public QueryBuilder buildFilter(Condition condition, Map<String, Object> context) {
@@ -75,8 +155,14 @@ public class ConditionESQueryBuilderDispatcher {
             ConditionESQueryBuilder queryBuilder = queryBuilders.get(queryBuilderKey);
             Condition contextualCondition = ConditionContextHelper.getContextualCondition(condition, context);
             if (contextualCondition != null) {
+                if (!queryBuilder.isCacheable(contextualCondition)) {
+                    markNotCacheable();
+                }
                 return queryBuilder.buildQuery(contextualCondition, context, this);
             }
+        } else {
+            // the query builder may be registered later
+            markNotCacheable();
         }
 
         // if no matching
@@ -24,6 +24,7 @@ import org.apache.unomi.metrics.MetricsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -34,6 +35,13 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ConditionEvaluatorDispatcher {
     private static final Logger logger = LoggerFactory.getLogger(ConditionEvaluatorDispatcher.class.getName());
 
+    /**
+     * Prefix of the counters of evaluated conditions, followed by the condition type id and the property name of the
+     * condition if it has one. The counters of the matching conditions have an additional {@link #MATCHED_COUNTER_SUFFIX}.
+     */
+    public static final String SELECTIVITY_COUNTER_PREFIX = ConditionEvaluatorDispatcher.class.getName() + ".selectivity.";
+    public static final String MATCHED_COUNTER_SUFFIX = ".matched";
+
     private Map<String, ConditionEvaluator> evaluators = new ConcurrentHashMap<>();
 
     private MetricsService metricsService;
@@ -50,42 +58,120 @@ public class ConditionEvaluatorDispatcher {
         evaluators.remove(name);
     }
 
+    /**
+     * Determines whether the specified condition can be fully evaluated in memory, meaning that its condition type, or the
+     * parent condition it resolves to, has a registered evaluator and that the same holds for all its sub-conditions.
+     * Conditions that are not locally evaluable have to be checked by querying the persistence back-end.
+     *
+     * @param condition the condition to check
+     * @return {@code true} if the condition can be evaluated without querying the persistence back-end
+     */
+    public boolean isLocallyEvaluable(Condition condition) {
+        if (condition == null || condition.getConditionType() == null) {
+            return false;
+        }
+        if (condition.getConditionType().getParentCondition() != null) {
+            if (!isLocallyEvaluable(condition.getConditionType().getParentCondition())) {
+                return false;
+            }
+        } else {
+            String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
+            if (conditionEvaluatorKey == null || !evaluators.containsKey(conditionEvaluatorKey)) {
+                return false;
+            }
+        }
+        for (Object parameterValue : condition.getParameterValues().values()) {
+            if (parameterValue instanceof Condition) {
+                if (!isLocallyEvaluable((Condition) parameterValue)) {
+                    return false;
+                }
+            } else if (parameterValue instanceof Collection) {
+                for (Object value : (Collection<?>) parameterValue) {
+                    if (value instanceof Condition && !isLocallyEvaluable((Condition) value)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     public boolean eval(Condition condition, Item item) {
         return eval(condition, item, new HashMap<String, Object>());
     }
 
+    /**
+     * Evaluates the condition against the item. The evaluators of the sub-conditions are only resolved when they are
+     * evaluated, so that a condition can be evaluated in memory without checking its whole tree first.
+     *
+     * @param condition the condition to evaluate, with resolved condition types
+     * @param item      the item to test
+     * @param context   the parameter values of the parent conditions
+     * @return the result of the evaluation, or {@code false} if an evaluator failed
+     * @throws UnsupportedOperationException if the condition, or one of the sub-conditions that had to be evaluated,
+     *                                       has no registered evaluator
+     */
     public boolean eval(Condition condition, Item item, Map<String, Object> context) {
+        boolean result = evalCondition(condition, item, context);
+        if (metricsService != null && metricsService.isActivated()) {
+            // count the evaluations and the matches of each condition type and property, so that the selectivity
+            // of the conditions can be estimated
+            String counterName = getSelectivityCounterName(condition);
+            metricsService.incrementCounter(counterName);
+            if (result) {
+                metricsService.incrementCounter(counterName + MATCHED_COUNTER_SUFFIX);
+            }
+        }
+        return result;
+    }
+
+    private String getSelectivityCounterName(Condition condition) {
+        Object propertyName = condition.getParameter("propertyName");
+        if (propertyName instanceof String && !((String) propertyName).startsWith("parameter::")) {
+            return SELECTIVITY_COUNTER_PREFIX + condition.getConditionTypeId() + "." + propertyName;
+        }
+        return SELECTIVITY_COUNTER_PREFIX + condition.getConditionTypeId();
+    }
+
+    private boolean evalCondition(Condition condition, Item item, Map<String, Object> context) {
+        if (condition.getConditionType() == null) {
+            throw new UnsupportedOperationException("No condition type resolved for : " + condition.getConditionTypeId());
+        }
         String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
         if (condition.getConditionType().getParentCondition() != null) {
             context.putAll(condition.getParameterValues());
-            return eval(condition.getConditionType().getParentCondition(), item, context);
+            return evalCondition(condition.getConditionType().getParentCondition(), item, context);
         }
 
         if (conditionEvaluatorKey == null) {
             throw new UnsupportedOperationException("No evaluator defined for : " + condition.getConditionTypeId());
         }
 
-        if (evaluators.containsKey(conditionEvaluatorKey)) {
-            ConditionEvaluator evaluator = evaluators.get(conditionEvaluatorKey);
-            final ConditionEvaluatorDispatcher dispatcher = this;
-            try {
-                return new MetricAdapter<Boolean>(metricsService, this.getClass().getName() + ".conditions." + conditionEvaluatorKey) {
-                    @Override
-                    public Boolean execute(Object... args) throws Exception {
-                        Condition contextualCondition = ConditionContextHelper.getContextualCondition(condition, context);
-                        if (contextualCondition != null) {
-                            return evaluator.eval(contextualCondition, item, context, dispatcher);
-                        } else {
-                            return true;
-                        }
+        ConditionEvaluator evaluator = evaluators.get(conditionEvaluatorKey);
+        if (evaluator == null) {
+            throw new UnsupportedOperationException("No evaluator registered for : " + conditionEvaluatorKey);
+        }
+        final ConditionEvaluatorDispatcher dispatcher = this;
+        try {
+            return new MetricAdapter<Boolean>(metricsService, this.getClass().getName() + ".conditions." + conditionEvaluatorKey) {
+                @Override
+                public Boolean execute(Object... args) throws Exception {
+                    Condition contextualCondition = ConditionContextHelper.getContextualCondition(condition, context);
+                    if (contextualCondition != null) {
+                        return evaluator.eval(contextualCondition, item, context, dispatcher);
+                    } else {
+                        return true;
                     }
-                }.runWithTimer();
-            } catch (Exception e) {
-                logger.error("Error executing condition evaluator with key=" + conditionEvaluatorKey, e);
-            }
+                }
+            }.runWithTimer();
+        } catch (UnsupportedOperationException e) {
+            // a sub-condition cannot be evaluated in memory, let the caller fall back to a query
+            throw e;
+        } catch (Exception e) {
+            logger.error("Error executing condition evaluator with key=" + conditionEvaluatorKey, e);
         }
 
-        // if no matching
+        // the evaluator failed
         return false;
     }
 }
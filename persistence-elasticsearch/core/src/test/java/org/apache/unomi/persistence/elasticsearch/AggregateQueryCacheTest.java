@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AggregateQueryCacheTest {
+
+    @Test
+    public void testMaxAge() throws Exception {
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(Long.valueOf(1), cache.get("event", "key", 60000, () -> counts(loads.incrementAndGet())).get("view"));
+        assertEquals(Long.valueOf(1), cache.get("event", "key", 60000, () -> counts(loads.incrementAndGet())).get("view"));
+        Thread.sleep(20);
+        assertEquals(Long.valueOf(2), cache.get("event", "key", 10, () -> counts(loads.incrementAndGet())).get("view"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testImmutableResultsAndInvalidation() {
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("event", "closed", -1, () -> counts(loads.incrementAndGet()));
+        cache.get("session", "other", -1, () -> counts(loads.incrementAndGet()));
+        assertEquals(Long.valueOf(1), cache.get("event", "closed", 0, () -> counts(loads.incrementAndGet())).get("view"));
+
+        cache.invalidate("event");
+        assertEquals(1, cache.size());
+        assertEquals(Long.valueOf(3), cache.get("event", "closed", -1, () -> counts(loads.incrementAndGet())).get("view"));
+    }
+
+    @Test
+    public void testImmutableInvalidation() {
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("event", "closed", -1, () -> counts(loads.incrementAndGet()));
+        cache.get("event", "current", 60000, () -> counts(loads.incrementAndGet()));
+
+        cache.invalidateImmutable("event");
+        assertEquals(1, cache.size());
+        assertEquals(Long.valueOf(2), cache.get("event", "current", 60000, () -> counts(loads.incrementAndGet())).get("view"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        assertNull(cache.get("event", "key", 60000, () -> null));
+        assertEquals(0, cache.size());
+        try {
+            cache.get("event", "key", 60000, () -> {
+                throw new IllegalStateException("failure");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        AggregateQueryCache cache = new AggregateQueryCache(2);
+        for (int i = 0; i < 5; i++) {
+            cache.get("event", "key" + i, -1, () -> counts(1));
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testConcurrentRequestsRunTheQueryOnce() throws Exception {
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<Map<String, Long>> first = executor.submit(() -> cache.get("event", "key", 60000, () -> {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return counts(loads.incrementAndGet());
+            }));
+            loading.await();
+            Future<Map<String, Long>> second = executor.submit(() -> cache.get("event", "key", 60000, () -> counts(loads.incrementAndGet())));
+            release.countDown();
+            assertEquals(Long.valueOf(1), first.get(10, TimeUnit.SECONDS).get("view"));
+            assertEquals(Long.valueOf(1), second.get(10, TimeUnit.SECONDS).get("view"));
+            // only requested once the others completed, as the reload it may start would be joined by them
+            assertNotNull(cache.get("event", "key", 0, () -> counts(loads.incrementAndGet())));
+            // the results are copied for each caller
+            assertNotSame(first.get(), second.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIntervalStart() {
+        long time = Instant.parse("2020-05-14T13:45:12.345Z").toEpochMilli();
+        assertEquals(Instant.parse("2020-05-14T13:45:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("1m", time));
+        assertEquals(Instant.parse("2020-05-14T00:00:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("1d", time));
+        assertEquals(Instant.parse("2020-05-11T00:00:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("week", time));
+        assertEquals(Instant.parse("2020-05-01T00:00:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("1M", time));
+        assertEquals(Instant.parse("2020-04-01T00:00:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("1q", time));
+        assertEquals(Instant.parse("2020-01-01T00:00:00Z").toEpochMilli(), AggregateQueryCache.getIntervalStart("1y", time));
+        assertEquals(-1, AggregateQueryCache.getIntervalStart("7d", time));
+    }
+
+    private static Map<String, Long> counts(long count) {
+        return Collections.singletonMap("view", count);
+    }
+}
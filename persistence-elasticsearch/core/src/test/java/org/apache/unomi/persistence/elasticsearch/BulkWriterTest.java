@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BulkWriterTest {
+
+    private final List<BulkRequest> bulks = Collections.synchronizedList(new ArrayList<BulkRequest>());
+    private final List<BulkRequest> pendingBulks = Collections.synchronizedList(new ArrayList<BulkRequest>());
+    private final List<ActionListener<BulkResponse>> listeners = Collections.synchronizedList(new ArrayList<ActionListener<BulkResponse>>());
+    private BulkWriter bulkWriter;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (bulkWriter != null) {
+            completeBulks();
+            bulkWriter.awaitClose(1, TimeUnit.SECONDS);
+            completeBulks();
+        }
+    }
+
+    @Test
+    public void testInFlightLimit() {
+        bulkWriter = createBulkWriter("shed");
+        assertTrue(bulkWriter.add(request("1")));
+        assertTrue(bulkWriter.add(request("2")));
+        assertFalse(bulkWriter.add(request("3")));
+        assertEquals(Long.valueOf(0), bulkWriter.getStatistics().get("availableInFlightActions"));
+        assertEquals(Long.valueOf(1), bulkWriter.getStatistics().get("rejectedActions"));
+
+        // the actions are in flight until their bulk completes
+        bulkWriter.flush();
+        assertEquals(1, bulks.size());
+        assertEquals(2, bulks.get(0).numberOfActions());
+        assertFalse(bulkWriter.add(request("3")));
+        completeBulks();
+        assertEquals(Long.valueOf(2), bulkWriter.getStatistics().get("availableInFlightActions"));
+        assertTrue(bulkWriter.add(request("3")));
+        assertEquals(Long.valueOf(2), bulkWriter.getStatistics().get("actions"));
+    }
+
+    @Test
+    public void testNonBlockingWritesAreShedWithTheBlockPolicy() {
+        bulkWriter = createBulkWriter("block");
+        assertTrue(bulkWriter.add(request("1"), false));
+        assertTrue(bulkWriter.add(request("2"), false));
+        long startTime = System.currentTimeMillis();
+        assertFalse(bulkWriter.add(request("3"), false));
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+        assertEquals(Long.valueOf(1), bulkWriter.getStatistics().get("rejectedActions"));
+    }
+
+    @Test
+    public void testBackoffPolicyParsing() {
+        assertNull(BulkWriter.parseBackoffPolicy(null));
+        assertNull(BulkWriter.parseBackoffPolicy(""));
+        assertNull(BulkWriter.parseBackoffPolicy("unknown"));
+        assertEquals(Collections.emptyList(), delays(BulkWriter.parseBackoffPolicy("noBackoff")));
+        assertEquals(Arrays.asList(TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(10)),
+                delays(BulkWriter.parseBackoffPolicy("constant(10ms,3)")));
+        assertEquals(Arrays.asList(TimeValue.timeValueSeconds(2), TimeValue.timeValueSeconds(2)),
+                delays(BulkWriter.parseBackoffPolicy("Constant(2s, 2)")));
+        assertNotNull(BulkWriter.parseBackoffPolicy("exponential"));
+        List<TimeValue> exponentialDelays = delays(BulkWriter.parseBackoffPolicy("exponential(50ms,4)"));
+        assertEquals(4, exponentialDelays.size());
+        assertEquals(TimeValue.timeValueMillis(50), exponentialDelays.get(0));
+        assertTrue(exponentialDelays.get(3).millis() > exponentialDelays.get(2).millis());
+    }
+
+    private BulkWriter createBulkWriter(String inFlightPolicy) {
+        BulkWriter.Settings settings = new BulkWriter.Settings();
+        settings.maxInFlightActions = "2";
+        settings.inFlightPolicy = inFlightPolicy;
+        settings.flushInterval = "1h";
+        return new BulkWriter("test", (request, listener) -> {
+            synchronized (listeners) {
+                bulks.add(request);
+                pendingBulks.add(request);
+                listeners.add(listener);
+            }
+        }, settings, null);
+    }
+
+    private void completeBulks() {
+        List<BulkRequest> requests;
+        List<ActionListener<BulkResponse>> pendingListeners;
+        synchronized (listeners) {
+            requests = new ArrayList<>(pendingBulks);
+            pendingListeners = new ArrayList<>(listeners);
+            pendingBulks.clear();
+            listeners.clear();
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            List<DocWriteRequest<?>> actions = requests.get(i).requests();
+            BulkItemResponse[] items = new BulkItemResponse[actions.size()];
+            for (int j = 0; j < items.length; j++) {
+                DocWriteRequest<?> action = actions.get(j);
+                items[j] = new BulkItemResponse(j, action.opType(), new IndexResponse(new ShardId(action.index(), "_na_", 0), "_doc", action.id(), 1, 1, 1, true));
+            }
+            pendingListeners.get(i).onResponse(new BulkResponse(items, 1));
+        }
+    }
+
+    private static IndexRequest request(String id) {
+        return new IndexRequest("test").id(id).source("{}", XContentType.JSON);
+    }
+
+    private static List<TimeValue> delays(BackoffPolicy backoffPolicy) {
+        List<TimeValue> delays = new ArrayList<>();
+        for (TimeValue delay : backoffPolicy) {
+            delays.add(delay);
+        }
+        return delays;
+    }
+}
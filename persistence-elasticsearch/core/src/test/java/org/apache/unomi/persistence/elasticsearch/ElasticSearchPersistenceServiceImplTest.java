@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.metrics.internal.MetricsServiceImpl;
+import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchPersistenceServiceImplTest {
+
+    @Test
+    public void testMonthlyIndexBefore() throws Exception {
+        Date monthStart = new GregorianCalendar(2020, Calendar.MAY, 1).getTime();
+        assertTrue(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-event-date-2020-04", monthStart));
+        assertTrue(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-session-date-2019-12", monthStart));
+        assertFalse(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-event-date-2020-05", monthStart));
+        assertFalse(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-event-date-2020-04", new Date(monthStart.getTime() - 1)));
+        assertTrue(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-event-date-2020-04", new Date(monthStart.getTime() + 1)));
+        assertFalse(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-event-date-2020-05", new Date(monthStart.getTime() + 1)));
+        assertFalse(ElasticSearchPersistenceServiceImpl.isMonthlyIndexBefore("context-profile", monthStart));
+    }
+
+    @Test
+    public void testMatchLocallyFallback() {
+        ConditionType matchAll = new ConditionType(new Metadata("matchAllCondition"));
+        matchAll.setConditionEvaluator("matchAllConditionEvaluator");
+        ConditionType geo = new ConditionType(new Metadata("geoCondition"));
+        geo.setConditionEvaluator("geoConditionEvaluator");
+
+        ConditionEvaluatorDispatcher conditionEvaluatorDispatcher = new ConditionEvaluatorDispatcher();
+        conditionEvaluatorDispatcher.addEvaluator("matchAllConditionEvaluator", (condition, item, context, dispatcher) -> true);
+        MetricsServiceImpl metricsService = new MetricsServiceImpl();
+        metricsService.setActivated(true);
+        ElasticSearchPersistenceServiceImpl persistenceService = new ElasticSearchPersistenceServiceImpl();
+        persistenceService.setConditionEvaluatorDispatcher(conditionEvaluatorDispatcher);
+        persistenceService.setMetricsService(metricsService);
+
+        String fallbackCounter = ElasticSearchPersistenceServiceImpl.class.getName() + ".testMatchFallback.geoCondition";
+        assertTrue(persistenceService.testMatchLocally(new Condition(matchAll), new Profile("profileId")));
+        assertNull(metricsService.getMetrics().get(fallbackCounter));
+        assertNull(persistenceService.testMatchLocally(new Condition(geo), new Profile("profileId")));
+        assertNull(persistenceService.testMatchLocally(new Condition(geo), new Profile("profileId")));
+        assertEquals(2, metricsService.getMetrics().get(fallbackCounter).getTotalCount());
+    }
+}
@@ -19,6 +19,8 @@ package org.apache.unomi.persistence.elasticsearch;
 import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
 import org.apache.http.HttpHost;
 import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.RequestOptions;
@@ -33,9 +35,11 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.core.internal.io.IOUtils;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.node.MockNode;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.transport.Netty4Plugin;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -43,8 +47,12 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -170,4 +178,58 @@ public class ElasticsearchPersistenceTest {
         Assert.assertEquals(indexResponse.status(), RestStatus.CREATED);
     }
 
+    @Test
+    public void testLateWritesInClosedIntervals() throws Exception {
+        String index = "unomi-aggregate-cache";
+        CreateIndexRequest request = new CreateIndexRequest(index);
+        request.mapping("{\"properties\":{\"timeStamp\":{\"type\":\"date\"}}}", XContentType.JSON);
+        restHighLevelClient.indices().create(request, RequestOptions.DEFAULT);
+
+        long now = System.currentTimeMillis();
+        long lag = 600000;
+        long closedIntervalsEnd = AggregateQueryCache.getIntervalStart("1m", now - lag);
+        AggregateQueryCache cache = new AggregateQueryCache(10);
+        indexItem(index, closedIntervalsEnd - 120000);
+        indexItem(index, now - 180000);
+        Assert.assertEquals(2, countItems(cache, "event", index, closedIntervalsEnd, -1));
+
+        // a late event in an interval closed since less than the lag is counted
+        indexItem(index, now - 180000);
+        Assert.assertEquals(3, countItems(cache, "event", index, closedIntervalsEnd, -1));
+
+        // the closed intervals of the other items expire, a late write before the end of the closed intervals is counted
+        long closedIntervalsMaxAge = 100;
+        Assert.assertEquals(3, countItems(cache, "profile", index, closedIntervalsEnd, closedIntervalsMaxAge));
+        indexItem(index, closedIntervalsEnd - 120000);
+        Thread.sleep(closedIntervalsMaxAge * 2);
+        Assert.assertEquals(4, countItems(cache, "profile", index, closedIntervalsEnd, closedIntervalsMaxAge));
+    }
+
+    private static void indexItem(String index, long timeStamp) throws IOException {
+        IndexRequest indexRequest = new IndexRequest(index);
+        indexRequest.id(UUID.randomUUID().toString());
+        indexRequest.source(XContentType.JSON, "timeStamp", timeStamp);
+        indexRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        restHighLevelClient.index(indexRequest, RequestOptions.DEFAULT);
+    }
+
+    private static long countItems(AggregateQueryCache cache, String itemType, String index, long closedIntervalsEnd, long closedIntervalsMaxAge) {
+        SearchRequest closedRequest = ElasticSearchPersistenceServiceImpl.restrictToClosedIntervals(countRequest(index), "timeStamp", closedIntervalsEnd);
+        SearchRequest currentRequest = ElasticSearchPersistenceServiceImpl.restrictToCurrentIntervals(countRequest(index), "timeStamp", closedIntervalsEnd);
+        return cache.get(itemType, closedRequest.source().toString(), closedIntervalsMaxAge, () -> count(closedRequest)).get("_filtered")
+                + cache.get(itemType, currentRequest.source().toString(), 0, () -> count(currentRequest)).get("_filtered");
+    }
+
+    private static SearchRequest countRequest(String index) {
+        return new SearchRequest(index).source(new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()).size(0).trackTotalHits(true));
+    }
+
+    private static Map<String, Long> count(SearchRequest searchRequest) {
+        try {
+            return Collections.singletonMap("_filtered", restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT).getHits().getTotalHits().value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
 }
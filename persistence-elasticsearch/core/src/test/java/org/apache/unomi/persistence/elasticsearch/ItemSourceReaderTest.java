@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.apache.unomi.api.Profile;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ItemSourceReaderTest {
+
+    private final ItemSourceReader sequentialReader = new ItemSourceReader(1, Integer.MAX_VALUE);
+    private final ItemSourceReader parallelReader = new ItemSourceReader(4, 0);
+
+    @After
+    public void tearDown() {
+        sequentialReader.close();
+        parallelReader.close();
+    }
+
+    @Test
+    public void testParallelParsingParity() throws Exception {
+        SearchHit[] hits = hits(500);
+        List<Profile> expected = sequentialReader.readAll(hits, Profile.class);
+
+        assertEquals(500, expected.size());
+        assertEquals(toJson(expected), toJson(parallelReader.readAll(hits, Profile.class)));
+        assertEquals(toJson(expected), toJson(parallelReader.readAllAsync(hits, Profile.class).get(10, TimeUnit.SECONDS)));
+        assertEquals(toJson(expected), toJson(sequentialReader.readAllAsync(hits, Profile.class).get(10, TimeUnit.SECONDS)));
+        for (int i = 0; i < hits.length; i++) {
+            assertEquals(hits[i].getId(), expected.get(i).getItemId());
+            assertEquals(3, expected.get(i).getVersion().longValue());
+        }
+    }
+
+    @Test
+    public void testInvalidSource() throws IOException {
+        SearchHit[] hits = hits(100);
+        hits[42].sourceRef(new BytesArray("{\"properties\":"));
+        try {
+            parallelReader.readAll(hits, Profile.class);
+            fail("The invalid source should not be read");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            parallelReader.readAllAsync(hits, Profile.class).join();
+            fail("The invalid source should not be read");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    private static SearchHit[] hits(int count) throws IOException {
+        SearchHit[] hits = new SearchHit[count];
+        for (int i = 0; i < count; i++) {
+            Profile profile = new Profile("profile" + i);
+            profile.setProperty("firstName", "first" + i);
+            profile.setProperty("age", i % 90);
+            profile.setProperty("interests", Arrays.asList("sports", "music" + (i % 7)));
+            profile.getSystemProperties().put("lastUpdated", new Date(1500000000000L + i));
+            profile.setSegments(new HashSet<>(Collections.singletonList("segment" + (i % 5))));
+            hits[i] = new SearchHit(i, profile.getItemId(), null, Collections.emptyMap());
+            hits[i].sourceRef(new BytesArray(ESCustomObjectMapper.getObjectMapper().writeValueAsBytes(profile)));
+            hits[i].version(3);
+        }
+        return hits;
+    }
+
+    private static String toJson(List<Profile> profiles) throws IOException {
+        return ESCustomObjectMapper.getObjectMapper().writeValueAsString(profiles);
+    }
+}
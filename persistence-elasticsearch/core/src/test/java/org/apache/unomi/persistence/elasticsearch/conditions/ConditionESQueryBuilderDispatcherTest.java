@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch.conditions;
+
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.WrapperQueryBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConditionESQueryBuilderDispatcherTest {
+
+    private static final ConditionType PROPERTY = conditionType("propertyCondition", "propertyConditionESQueryBuilder");
+    private static final ConditionType VOLATILE = conditionType("volatileCondition", "volatileConditionESQueryBuilder");
+    private static final ConditionType BOOLEAN = conditionType("booleanCondition", "booleanConditionESQueryBuilder");
+
+    private ConditionESQueryBuilderDispatcher dispatcher;
+    private TestQueryBuilder propertyQueryBuilder;
+    private TestQueryBuilder volatileQueryBuilder;
+    private TestQueryBuilder booleanQueryBuilder;
+
+    @Before
+    public void setUp() {
+        dispatcher = new ConditionESQueryBuilderDispatcher();
+        dispatcher.setFilterCacheSize(10);
+        propertyQueryBuilder = new TestQueryBuilder(true);
+        volatileQueryBuilder = new TestQueryBuilder(false);
+        booleanQueryBuilder = new TestQueryBuilder(true);
+        dispatcher.addQueryBuilder("propertyConditionESQueryBuilder", propertyQueryBuilder);
+        dispatcher.addQueryBuilder("volatileConditionESQueryBuilder", volatileQueryBuilder);
+        dispatcher.addQueryBuilder("booleanConditionESQueryBuilder", booleanQueryBuilder);
+    }
+
+    @Test
+    public void testCacheHits() {
+        QueryBuilder filter = dispatcher.buildFilter(property("value"));
+        assertTrue(filter instanceof TermQueryBuilder);
+
+        // an equal condition is served from the cache without calling the query builder again
+        QueryBuilder cachedFilter = dispatcher.buildFilter(property("value"));
+        assertTrue(cachedFilter instanceof WrapperQueryBuilder);
+        assertEquals(Strings.toString(filter), new String(((WrapperQueryBuilder) cachedFilter).source(), StandardCharsets.UTF_8));
+        assertEquals(1, propertyQueryBuilder.builds);
+
+        assertTrue(dispatcher.buildFilter(property("other")) instanceof TermQueryBuilder);
+        assertEquals(2, propertyQueryBuilder.builds);
+
+        dispatcher.clearFilterCache();
+        assertTrue(dispatcher.buildFilter(property("value")) instanceof TermQueryBuilder);
+        assertEquals(3, propertyQueryBuilder.builds);
+
+        dispatcher.setFilterCacheSize(0);
+        dispatcher.buildFilter(property("value"));
+        assertTrue(dispatcher.buildFilter(property("value")) instanceof TermQueryBuilder);
+        assertEquals(5, propertyQueryBuilder.builds);
+    }
+
+    @Test
+    public void testScriptParametersAreNotCached() {
+        Condition condition = property("script::'val' + 'ue'");
+        QueryBuilder filter = dispatcher.buildFilter(condition);
+        assertEquals(QueryBuilders.termQuery("propertyName", "value"), filter);
+
+        assertTrue(dispatcher.buildFilter(condition) instanceof TermQueryBuilder);
+        assertEquals(2, propertyQueryBuilder.builds);
+    }
+
+    @Test
+    public void testNonCacheableSubConditionDisablesCaching() {
+        Condition condition = and(property("value"), new Condition(VOLATILE));
+        assertTrue(dispatcher.buildFilter(condition) instanceof BoolQueryBuilder);
+        assertTrue(dispatcher.buildFilter(condition) instanceof BoolQueryBuilder);
+        assertEquals(2, booleanQueryBuilder.builds);
+        assertEquals(2, volatileQueryBuilder.builds);
+
+        // the same tree with only cacheable query builders is cached as a whole
+        Condition cacheableCondition = and(property("value"), property("other"));
+        dispatcher.buildFilter(cacheableCondition);
+        assertTrue(dispatcher.buildFilter(cacheableCondition) instanceof WrapperQueryBuilder);
+        assertEquals(3, booleanQueryBuilder.builds);
+    }
+
+    private static ConditionType conditionType(String id, String queryBuilder) {
+        ConditionType conditionType = new ConditionType(new Metadata(id));
+        conditionType.setQueryBuilder(queryBuilder);
+        return conditionType;
+    }
+
+    private static Condition property(String value) {
+        Condition condition = new Condition(PROPERTY);
+        condition.setParameter("propertyName", "propertyName");
+        condition.setParameter("propertyValue", value);
+        return condition;
+    }
+
+    private static Condition and(Condition... subConditions) {
+        Condition condition = new Condition(BOOLEAN);
+        condition.setParameter("subConditions", Arrays.asList(subConditions));
+        return condition;
+    }
+
+    private static class TestQueryBuilder implements ConditionESQueryBuilder {
+        private final boolean cacheable;
+        private int builds;
+
+        TestQueryBuilder(boolean cacheable) {
+            this.cacheable = cacheable;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public QueryBuilder buildQuery(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher) {
+            builds++;
+            if (condition.getParameter("subConditions") != null) {
+                BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+                for (Condition subCondition : (List<Condition>) condition.getParameter("subConditions")) {
+                    boolQuery.filter(dispatcher.buildFilter(subCondition, context));
+                }
+                return boolQuery;
+            }
+            if (condition.getParameter("propertyName") != null) {
+                return QueryBuilders.termQuery((String) condition.getParameter("propertyName"), condition.getParameter("propertyValue"));
+            }
+            return QueryBuilders.rangeQuery("timeStamp").gt("now-1d");
+        }
+
+        @Override
+        public boolean isCacheable(Condition condition) {
+            return cacheable;
+        }
+    }
+}
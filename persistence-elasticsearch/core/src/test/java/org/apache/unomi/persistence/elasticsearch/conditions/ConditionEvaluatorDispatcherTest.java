@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch.conditions;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConditionEvaluatorDispatcherTest {
+
+    private static final ConditionType BOOLEAN = conditionType("booleanCondition", "booleanConditionEvaluator", null);
+    private static final ConditionType PROPERTY = conditionType("propertyCondition", "propertyConditionEvaluator", null);
+    private static final ConditionType UNKNOWN = conditionType("unknownCondition", "unknownConditionEvaluator", null);
+    private static final ConditionType FIRST_NAME;
+
+    static {
+        Condition parentCondition = new Condition(PROPERTY);
+        parentCondition.setParameter("propertyName", "firstName");
+        parentCondition.setParameter("propertyValue", "parameter::firstName");
+        FIRST_NAME = conditionType("firstNameCondition", null, parentCondition);
+    }
+
+    private ConditionEvaluatorDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new ConditionEvaluatorDispatcher();
+        dispatcher.addEvaluator("booleanConditionEvaluator", new ConditionEvaluator() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+                boolean isAnd = "and".equals(condition.getParameter("operator"));
+                for (Condition subCondition : (List<Condition>) condition.getParameter("subConditions")) {
+                    if (dispatcher.eval(subCondition, item, context) != isAnd) {
+                        return !isAnd;
+                    }
+                }
+                return isAnd;
+            }
+        });
+        dispatcher.addEvaluator("propertyConditionEvaluator", new ConditionEvaluator() {
+            @Override
+            public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+                return condition.getParameter("propertyValue").equals(((Profile) item).getProperty((String) condition.getParameter("propertyName")));
+            }
+        });
+    }
+
+    @Test
+    public void testLocallyEvaluableCondition() {
+        Profile profile = new Profile("profileId");
+        profile.setProperty("firstName", "John");
+        profile.setProperty("city", "Paris");
+
+        Condition condition = booleanCondition("and", property("city", "Paris"), firstName("John"));
+        assertTrue(dispatcher.isLocallyEvaluable(condition));
+        assertTrue(dispatcher.eval(condition, profile));
+        assertFalse(dispatcher.eval(booleanCondition("and", property("city", "Paris"), firstName("Jane")), profile));
+    }
+
+    @Test
+    public void testUnknownEvaluator() {
+        Profile profile = new Profile("profileId");
+        profile.setProperty("city", "Paris");
+
+        Condition condition = booleanCondition("and", property("city", "Paris"), new Condition(UNKNOWN));
+        assertFalse(dispatcher.isLocallyEvaluable(condition));
+        try {
+            dispatcher.eval(condition, profile);
+            fail("The condition cannot be evaluated in memory");
+        } catch (UnsupportedOperationException e) {
+            // expected, the condition must be checked with a query
+        }
+
+        // the unknown condition is not needed to get the result
+        assertTrue(dispatcher.eval(booleanCondition("or", property("city", "Paris"), new Condition(UNKNOWN)), profile));
+        assertFalse(dispatcher.eval(booleanCondition("and", property("city", "London"), new Condition(UNKNOWN)), profile));
+
+        dispatcher.addEvaluator("unknownConditionEvaluator", new ConditionEvaluator() {
+            @Override
+            public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
+                return true;
+            }
+        });
+        assertTrue(dispatcher.isLocallyEvaluable(condition));
+        assertTrue(dispatcher.eval(condition, profile));
+    }
+
+    private static ConditionType conditionType(String id, String evaluator, Condition parentCondition) {
+        ConditionType conditionType = new ConditionType(new Metadata(id));
+        conditionType.setConditionEvaluator(evaluator);
+        conditionType.setParentCondition(parentCondition);
+        return conditionType;
+    }
+
+    private static Condition property(String propertyName, String propertyValue) {
+        Condition condition = new Condition(PROPERTY);
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("propertyValue", propertyValue);
+        return condition;
+    }
+
+    private static Condition firstName(String firstName) {
+        Condition condition = new Condition(FIRST_NAME);
+        condition.setParameter("firstName", firstName);
+        return condition;
+    }
+
+    private static Condition booleanCondition(String operator, Condition... subConditions) {
+        Condition condition = new Condition(BOOLEAN);
+        condition.setParameter("operator", operator);
+        condition.setParameter("subConditions", Arrays.asList(subConditions));
+        return condition;
+    }
+}
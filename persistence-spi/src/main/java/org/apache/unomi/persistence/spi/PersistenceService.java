@@ -20,11 +20,13 @@ package org.apache.unomi.persistence.spi;
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.aggregate.AggregateBucket;
 import org.apache.unomi.persistence.spi.aggregate.BaseAggregate;
 
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A service to provide persistence and retrieval of context server entities.
@@ -78,6 +80,15 @@ public interface PersistenceService {
      */
     boolean save(Item item, boolean useBatching);
 
+    /**
+     * Persists several items with a single bulk request, waiting for its completion. The request is not atomic: some items may be persisted while
+     * others are not, the items which could not be persisted being returned.
+     *
+     * @param items the items to persist, which can be of different types
+     * @return the identifiers of the items which could not be persisted, or {@code null} if the request failed
+     */
+    List<String> saveAll(List<? extends Item> items);
+
     /**
      * Updates the item of the specified class and identified by the specified identifier with new property values provided as name - value pairs in the specified Map.
      *
@@ -89,6 +100,27 @@ public interface PersistenceService {
      */
     boolean update(String itemId, Date dateHint, Class<?> clazz, Map<?, ?> source);
 
+    /**
+     * Updates several items of the specified class with a single bulk request, waiting for its completion.
+     *
+     * @param items    the items to update, with the properties to update for each of them
+     * @param dateHint a Date helping in identifying where the items are located
+     * @param clazz    the Item subclass of the items to update
+     * @return the identifiers of the items which could not be updated, or {@code null} if the request failed
+     */
+    List<String> update(Map<Item, Map> items, Date dateHint, Class<?> clazz);
+
+    /**
+     * Updates several items of the specified class with a single bulk request, waiting for its completion. Unlike
+     * {@link #update(Map, Date, Class)}, the location of each item is determined from the item itself, so that time-based items of different
+     * periods can be updated together. The request is not atomic: some items may be updated while others are not.
+     *
+     * @param items the items to update, with the properties to update for each of them
+     * @param clazz the Item subclass of the items to update
+     * @return the identifiers of the items which could not be updated, or {@code null} if the request failed
+     */
+    List<String> updateAll(Map<? extends Item, ? extends Map<String, ?>> items, Class<?> clazz);
+
     /**
      * Updates the item of the specified class and identified by the specified identifier with a new property value for the specified property name. Same as
      * {@code update(itemId, dateHint, clazz, Collections.singletonMap(propertyName, propertyValue))}
@@ -115,6 +147,22 @@ public interface PersistenceService {
      */
     boolean updateWithScript(String itemId, Date dateHint, Class<?> clazz, String script, Map<String, Object> scriptParams);
 
+    /**
+     * Updates the item of the specified class and identified by the specified identifier with a script, waiting for
+     * the result of the update. The script can leave the item untouched by setting {@code ctx.op} to {@code noop}, so
+     * that the item is only modified if it is still in the state the caller expects, which allows nodes to claim an
+     * item without overwriting each other's modifications.
+     *
+     * @param itemId        the identifier of the item we want to update
+     * @param dateHint      a Date helping in identifying where the item is located
+     * @param clazz         the Item subclass of the item to update
+     * @param script        inline script
+     * @param scriptParams  script params
+     * @return {@code true} if the item was modified by the script, {@code false} if it was left untouched or if the
+     * update failed
+     */
+    boolean conditionalUpdateWithScript(String itemId, Date dateHint, Class<?> clazz, String script, Map<String, Object> scriptParams);
+
     /**
      * Updates the items of the specified class by a query with a new property value for the specified property name
      * based on provided scripts and script parameters
@@ -128,6 +176,54 @@ public interface PersistenceService {
      */
     boolean updateWithQueryAndScript(Date dateHint, Class<?> clazz, String[] scripts, Map<String, Object>[] scriptParams, Condition[] conditions);
 
+    /**
+     * Starts updating, in the background, the items of the specified class matching a condition with the provided
+     * script. The update is split in slices processed in parallel and throttled, its progress can be followed with
+     * {@link #getUpdateTaskStatus(String)}.
+     *
+     * @param clazz             the Item subclass of the items to update
+     * @param script            inline script, which can set {@code ctx.op} to {@code noop} to skip an item
+     * @param scriptParams      script params
+     * @param condition         the condition the items to update must match
+     * @param slices            the number of slices, 0 to let the persistence choose it
+     * @param requestsPerSecond the maximum number of items updated per second, or a negative value to disable throttling
+     * @return the identifier of the background task, or {@code null} if it could not be started
+     */
+    String startUpdateWithQueryAndScript(Class<?> clazz, String script, Map<String, Object> scriptParams, Condition condition, int slices, float requestsPerSecond);
+
+    /**
+     * Starts removing, in the background, the items of the specified class matching a condition. The removal is split
+     * in slices processed in parallel and throttled, its progress can be followed with {@link #getUpdateTaskStatus(String)}.
+     * The removed items are not evicted from the items cache, this method is meant for the item classes that are not cached.
+     *
+     * @param condition         the condition the items to remove must match
+     * @param clazz             the Item subclass of the items to remove
+     * @param slices            the number of slices, 0 to let the persistence choose it
+     * @param requestsPerSecond the maximum number of items removed per second, or a negative value to disable throttling
+     * @return the identifier of the background task, or {@code null} if it could not be started
+     */
+    String startRemoveByQuery(Condition condition, Class<?> clazz, int slices, float requestsPerSecond);
+
+    /**
+     * Retrieves the progress of a task started with {@link #startUpdateWithQueryAndScript(Class, String, Map, Condition, int, float)},
+     * {@link #startRemoveByQuery(Condition, Class, int, float)} or one of the {@code startPurge} methods.
+     *
+     * @param taskId the identifier of the task
+     * @return the status of the task, with the {@code completed} (Boolean), {@code total}, {@code updated}, {@code deleted},
+     * {@code noops}, {@code versionConflicts} (Long) and {@code error} (String) entries, or {@code null} if it could not be retrieved
+     */
+    Map<String, Object> getUpdateTaskStatus(String taskId);
+
+    /**
+     * Cancels a task started with {@link #startUpdateWithQueryAndScript(Class, String, Map, Condition, int, float)},
+     * {@link #startRemoveByQuery(Condition, Class, int, float)} or one of the {@code startPurge} methods.
+     * The items already updated or removed by the task keep their modifications.
+     *
+     * @param taskId the identifier of the task
+     * @return {@code true} if the cancellation was requested, {@code false} otherwise
+     */
+    boolean cancelUpdateTask(String taskId);
+
     /**
      * Retrieves the item identified with the specified identifier and with the specified Item subclass if it exists.
      *
@@ -225,6 +321,25 @@ public interface PersistenceService {
      */
     boolean testMatch(Condition query, Item item);
 
+    /**
+     * Checks whether the specified item satisfies each of the provided conditions. Conditions that can be evaluated in memory are evaluated
+     * locally, all the other ones are grouped and checked using a single request to the persistence back-end.
+     *
+     * @param queries the conditions we're testing the specified item against
+     * @param item    the item we're checking against the specified conditions
+     * @return a list containing, for each condition and in the same order, {@code true} if the item satisfies the condition, {@code false} otherwise
+     */
+    List<Boolean> testMatch(List<Condition> queries, Item item);
+
+    /**
+     * Determines whether the specified condition can be evaluated in memory by {@link #testMatch(Condition, Item)}, or if it will require a
+     * request to the persistence back-end for each evaluation.
+     *
+     * @param condition the condition to check
+     * @return {@code true} if the condition, and all its sub-conditions, can be evaluated locally, {@code false} otherwise
+     */
+    boolean isLocallyEvaluable(Condition condition);
+
     /**
      * Same as {@code query(fieldName, fieldValue, sortBy, clazz, 0, -1).getList()}
      *
@@ -241,6 +356,64 @@ public interface PersistenceService {
      */
     <T extends Item> List<T> query(String fieldName, String fieldValue, String sortBy, Class<T> clazz);
 
+    /**
+     * Iterates over all the items matching the specified condition without loading them all in memory: the items are
+     * retrieved page by page, the next page being fetched in the background while the current one is read.
+     *
+     * @param <T>      the type of the Item subclass we want to retrieve
+     * @param query    the {@link Condition} the items must satisfy to be retrieved
+     * @param sortBy   an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz    the {@link Item} subclass of the items we want to retrieve
+     * @param pageSize the number of items retrieved per page
+     * @return an iterator over the matching items, to close if the iteration is stopped before the end
+     */
+    <T extends Item> CloseableIterator<T> queryIterator(Condition query, String sortBy, Class<T> clazz, int pageSize);
+
+    /**
+     * Iterates over all the items having the specified value for the specified field, as
+     * {@link #queryIterator(Condition, String, Class, int)} does.
+     *
+     * @param <T>        the type of the Item subclass we want to retrieve
+     * @param fieldName  the name of the field which we want items to have the specified values
+     * @param fieldValue the value the items to retrieve should have for the specified field
+     * @param sortBy     an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz      the {@link Item} subclass of the items we want to retrieve
+     * @param pageSize   the number of items retrieved per page
+     * @return an iterator over the matching items, to close if the iteration is stopped before the end
+     */
+    <T extends Item> CloseableIterator<T> queryIterator(String fieldName, String fieldValue, String sortBy, Class<T> clazz, int pageSize);
+
+    /**
+     * Iterates over all the items matching the specified condition, as {@link #queryIterator(Condition, String, Class, int)} does, only retrieving the
+     * specified properties of the items. The items are partially populated: the properties which are not retrieved are left to their default value.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param query              the {@link Condition} the items must satisfy to be retrieved, {@code null} to retrieve all the items
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param pageSize           the number of items retrieved per page
+     * @param includedProperties the properties to retrieve, supporting wildcards such as {@code properties.*}, or {@code null} to retrieve all of them
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     * @return an iterator over the matching items, to close if the iteration is stopped before the end
+     */
+    <T extends Item> CloseableIterator<T> queryIterator(Condition query, String sortBy, Class<T> clazz, int pageSize, String[] includedProperties, String[] excludedProperties);
+
+    /**
+     * Iterates over all the items having the specified value for the specified field, only retrieving the specified properties of the items, as
+     * {@link #queryIterator(Condition, String, Class, int, String[], String[])} does.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param fieldName          the name of the field which we want items to have the specified values
+     * @param fieldValue         the value the items to retrieve should have for the specified field
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param pageSize           the number of items retrieved per page
+     * @param includedProperties the properties to retrieve, supporting wildcards, or {@code null} to retrieve all of them
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     * @return an iterator over the matching items, to close if the iteration is stopped before the end
+     */
+    <T extends Item> CloseableIterator<T> queryIterator(String fieldName, String fieldValue, String sortBy, Class<T> clazz, int pageSize, String[] includedProperties, String[] excludedProperties);
+
     /**
      * Retrieves a list of items with the specified field having the specified values.
      *
@@ -341,6 +514,23 @@ public interface PersistenceService {
      */
     <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size);
 
+    /**
+     * Retrieves a list of items satisfying the specified {@link Condition}, as {@link #query(Condition, String, Class, int, int)} does, only retrieving the specified
+     * properties of the items. The items are partially populated: the properties which are not retrieved are left to their default value, so they must not be saved
+     * back as a whole.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param query              the {@link Condition} the items must satisfy to be retrieved, {@code null} to retrieve all the items
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param offset             zero or a positive integer specifying the position of the first item in the total ordered collection of matching items
+     * @param size               a positive integer specifying how many matching items should be retrieved or {@code -1} if all of them should be retrieved
+     * @param includedProperties the properties to retrieve, supporting wildcards such as {@code properties.*}, or {@code null} to retrieve all of them
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     * @return a {@link PartialList} of partially populated items matching the specified criteria
+     */
+    <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size, String[] includedProperties, String[] excludedProperties);
+
     /**
      * Retrieves a list of items satisfying the specified {@link Condition}, ordered according to the specified {@code sortBy} String and and paged: only {@code size} of them
      * are retrieved, starting with the {@code offset}-th one. If a scroll identifier and time validity are specified, they will be used to perform a scrolling query, meaning
@@ -362,6 +552,42 @@ public interface PersistenceService {
      */
     <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size, String scrollTimeValidity);
 
+    /**
+     * Starts a scroll query on one slice of the items satisfying the specified {@link Condition}. The items are split in {@code sliceCount} disjoint slices, which
+     * can be scrolled in parallel with {@link #continueScrollQuery(Class, String, String)}.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param query              the {@link Condition} the items must satisfy to be retrieved
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param size               the scrolling window size
+     * @param scrollTimeValidity the time the scrolling query should stay valid, using ElasticSearch time units
+     * @param sliceId            the index of the slice to scroll, between 0 and {@code sliceCount - 1}
+     * @param sliceCount         the number of slices, 1 to scroll all the items
+     * @return a {@link PartialList} of items of the slice, with a scroll identifier and the scroll validity
+     */
+    <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int size, String scrollTimeValidity, int sliceId, int sliceCount);
+
+    /**
+     * Starts a scroll query on one slice of the items satisfying the specified {@link Condition}, as
+     * {@link #query(Condition, String, Class, int, String, int, int)} does, only retrieving the specified properties of the items. The pages retrieved with
+     * {@link #continueScrollQuery(Class, String, String)} are filtered the same way.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param query              the {@link Condition} the items must satisfy to be retrieved
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param size               the scrolling window size
+     * @param scrollTimeValidity the time the scrolling query should stay valid, using ElasticSearch time units
+     * @param sliceId            the index of the slice to scroll, between 0 and {@code sliceCount - 1}
+     * @param sliceCount         the number of slices, 1 to scroll all the items
+     * @param includedProperties the properties to retrieve, supporting wildcards, or {@code null} to retrieve all of them
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     * @return a {@link PartialList} of partially populated items of the slice, with a scroll identifier and the scroll validity
+     */
+    <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int size, String scrollTimeValidity, int sliceId, int sliceCount,
+                                          String[] includedProperties, String[] excludedProperties);
+
     /**
      * Continues the execution of a scroll query, to retrieve the next results. If there are no more results the scroll query is also cleared.
      * @param clazz  the {@link Item} subclass of the items we want to retrieve
@@ -374,6 +600,41 @@ public interface PersistenceService {
      */
     <T extends Item> PartialList<T> continueScrollQuery(Class<T> clazz, String scrollIdentifier, String scrollTimeValidity);
 
+    /**
+     * Retrieves a page of the items satisfying the specified {@link Condition}, continuing after the last item of the previous page. Contrary to a scroll query,
+     * no context is kept open in the persistence back-end between the pages: the position is carried by the opaque continuation token returned in the
+     * {@link PartialList}, so a pagination can be abandoned at any time. The items are ordered by the specified properties, then by identifier, and modifications
+     * made between two pages are visible in the next ones.
+     *
+     * @param <T>               the type of the Item subclass we want to retrieve
+     * @param query             the {@link Condition} the items must satisfy to be retrieved, {@code null} to retrieve all the items
+     * @param sortBy            an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz             the {@link Item} subclass of the items we want to retrieve
+     * @param size              the number of items to retrieve
+     * @param continuationToken the continuation token returned with the previous page, {@code null} to retrieve the first page
+     * @return a {@link PartialList} of items matching the specified criteria, with a continuation token if there may be more items to retrieve
+     */
+    <T extends Item> PartialList<T> queryWithContinuation(Condition query, String sortBy, Class<T> clazz, int size, String continuationToken);
+
+    /**
+     * Retrieves a page of one slice of the items satisfying the specified {@link Condition}, as {@link #queryWithContinuation(Condition, String, Class, int, String)}
+     * does, only retrieving the specified properties of the items. The items are split in {@code sliceCount} disjoint slices by identifier, which can be
+     * paginated in parallel.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param query              the {@link Condition} the items must satisfy to be retrieved, {@code null} to retrieve all the items
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param size               the number of items to retrieve
+     * @param continuationToken  the continuation token returned with the previous page of the slice, {@code null} to retrieve the first page
+     * @param sliceId            the index of the slice to retrieve, between 0 and {@code sliceCount - 1}
+     * @param sliceCount         the number of slices, 1 to retrieve all the items
+     * @param includedProperties the properties to retrieve, supporting wildcards, or {@code null} to retrieve all of them
+     * @return a {@link PartialList} of partially populated items of the slice, with a continuation token if there may be more items to retrieve
+     */
+    <T extends Item> PartialList<T> queryWithContinuation(Condition query, String sortBy, Class<T> clazz, int size, String continuationToken, int sliceId, int sliceCount,
+                                                          String[] includedProperties);
+
     /**
      * Retrieves the same items as {@code query(query, sortBy, clazz, 0, -1)} with the added constraints that the matching elements must also have at least a field matching the
      * specified full text query.
@@ -392,6 +653,24 @@ public interface PersistenceService {
      */
     <T extends Item> PartialList<T> queryFullText(String fulltext, Condition query, String sortBy, Class<T> clazz, int offset, int size);
 
+    /**
+     * Retrieves a list of items having at least a field with the specified full text value in it and satisfying the specified {@link Condition}, as
+     * {@link #queryFullText(String, Condition, String, Class, int, int)} does, only retrieving the specified properties of the items.
+     *
+     * @param <T>                the type of the Item subclass we want to retrieve
+     * @param fulltext           the text that the item must have in one of its fields to be considered a match
+     * @param query              the {@link Condition} the items must satisfy to be retrieved, {@code null} to only match the full text
+     * @param sortBy             an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz              the {@link Item} subclass of the items we want to retrieve
+     * @param offset             zero or a positive integer specifying the position of the first item in the total ordered collection of matching items
+     * @param size               a positive integer specifying how many matching items should be retrieved or {@code -1} if all of them should be retrieved
+     * @param includedProperties the properties to retrieve, supporting wildcards, or {@code null} to retrieve all of them
+     * @param excludedProperties the properties not to retrieve, supporting wildcards, or {@code null} to exclude none of them
+     * @return a {@link PartialList} of partially populated items matching the specified criteria
+     */
+    <T extends Item> PartialList<T> queryFullText(String fulltext, Condition query, String sortBy, Class<T> clazz, int offset, int size,
+                                                  String[] includedProperties, String[] excludedProperties);
+
     /**
      * Retrieves the number of items of the specified type as defined by the Item subclass public field {@code ITEM_TYPE} and matching the specified {@link Condition}.
      *
@@ -437,6 +716,130 @@ public interface PersistenceService {
      */
     Map<String, Long> aggregateWithOptimizedQuery(Condition filter, BaseAggregate aggregate, String itemType);
 
+    /**
+     * Retrieves the number of items with the specified type as {@link #aggregateWithOptimizedQuery(Condition, BaseAggregate, String)} does, accepting results
+     * computed recently. Identical requests received while the results are computed wait for them instead of running the query again. The date aggregates on
+     * calendar intervals are computed separately for the closed intervals, whose results are kept longer, and for the current interval. The closed intervals
+     * of the events are the intervals closed for a configured lag, and their results are kept until events are removed, while the results of the closed
+     * intervals of the other items, which can be modified at any time, expire after a configured maximum age.
+     *
+     * @param filter    the condition the items must match or {@code null} if no filtering is needed
+     * @param aggregate an aggregate specifying how matching items must be bundled
+     * @param itemType  the String representation of the item type we want to retrieve the count of, as defined by its class' {@code ITEM_TYPE} field
+     * @param maxAge    the maximum age in milliseconds of the results, 0 to compute them again
+     * @return a Map associating aggregation dimension name as key and cardinality for that dimension as value
+     */
+    Map<String, Long> aggregateWithOptimizedQuery(Condition filter, BaseAggregate aggregate, String itemType, long maxAge);
+
+    /**
+     * Asynchronous variant of {@link #load(String, Class)}. The returned futures of the asynchronous methods are
+     * completed by the threads of the persistence client, which must not be blocked: dependent stages doing blocking
+     * work should use an executor. As for the synchronous methods, errors are logged and the futures are then
+     * completed with the value the synchronous method returns on error.
+     *
+     * @param <T>    the type of the Item subclass we want to retrieve
+     * @param itemId the identifier of the item we want to retrieve
+     * @param clazz  the {@link Item} subclass of the item we want to retrieve
+     * @return a future completed with the item identified with the specified identifier, or {@code null} if no such
+     * item exists
+     */
+    <T extends Item> CompletableFuture<T> loadAsync(String itemId, Class<T> clazz);
+
+    /**
+     * Asynchronous variant of {@link #load(String, Date, Class)}.
+     *
+     * @param <T>      the type of the Item subclass we want to retrieve
+     * @param itemId   the identifier of the item we want to retrieve
+     * @param dateHint a Date helping in identifying where the item is located
+     * @param clazz    the {@link Item} subclass of the item we want to retrieve
+     * @return a future completed with the item identified with the specified identifier, or {@code null} if no such
+     * item exists
+     */
+    <T extends Item> CompletableFuture<T> loadAsync(String itemId, Date dateHint, Class<T> clazz);
+
+    /**
+     * Asynchronous variant of {@link #save(Item)}. The caller is never blocked: a batched save is rejected right away
+     * when too many writes are waiting for previous bulks to complete.
+     *
+     * @param item the item to persist
+     * @return a future completed with {@code true} if the item was persisted or, for a batched save, as soon as the
+     * write is accepted in the next bulk, the failures of the bulk only being logged; {@code false} otherwise
+     */
+    CompletableFuture<Boolean> saveAsync(Item item);
+
+    /**
+     * Asynchronous variant of {@link #update(String, Date, Class, Map)}. The caller is never blocked: a batched update
+     * is rejected right away when too many writes are waiting for previous bulks to complete.
+     *
+     * @param itemId   the item identifier
+     * @param dateHint a Date helping in identifying where the item is located
+     * @param clazz    the Item subclass of the item to update
+     * @param source   a Map with entries specifying as key the property name to update and as value its new value
+     * @return a future completed with {@code true} if the update was successful or, for a batched update, as soon as
+     * the write is accepted in the next bulk, the failures of the bulk only being logged; {@code false} otherwise
+     */
+    CompletableFuture<Boolean> updateAsync(String itemId, Date dateHint, Class clazz, Map source);
+
+    /**
+     * Asynchronous variant of {@link #query(Condition, String, Class, int, int)}, without scrolling.
+     *
+     * @param <T>    the type of the Item subclass we want to retrieve
+     * @param query  the {@link Condition} the items must satisfy to be retrieved
+     * @param sortBy an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @param clazz  the {@link Item} subclass of the items we want to retrieve
+     * @param offset zero or a positive integer specifying the position of the first item in the total ordered collection of matching items
+     * @param size   a positive integer specifying how many matching items should be retrieved or {@code -1} if the default query limit should be used
+     * @return a future completed with a {@link PartialList} of items matching the specified criteria, or {@code null}
+     * if the query failed
+     */
+    <T extends Item> CompletableFuture<PartialList<T>> queryAsync(Condition query, String sortBy, Class<T> clazz, int offset, int size);
+
+    /**
+     * Asynchronous variant of {@link #queryCount(Condition, String)}.
+     *
+     * @param query    the condition the items must satisfy
+     * @param itemType the String representation of the item type we want to retrieve the count of, as defined by its class' {@code ITEM_TYPE} field
+     * @return a future completed with the number of items of the specified type matching the specified condition
+     */
+    CompletableFuture<Long> queryCountAsync(Condition query, String itemType);
+
+    /**
+     * Asynchronous variant of {@link #aggregateWithOptimizedQuery(Condition, BaseAggregate, String)}.
+     *
+     * @param filter    the condition the items must match
+     * @param aggregate an aggregate specifying how matching items must be bundled
+     * @param itemType  the String representation of the item type we want to retrieve the count of, as defined by its class' {@code ITEM_TYPE} field
+     * @return a future completed with a Map associating aggregation dimension name as key and cardinality for that
+     * dimension as value
+     */
+    CompletableFuture<Map<String, Long>> aggregateWithOptimizedQueryAsync(Condition filter, BaseAggregate aggregate, String itemType);
+
+    /**
+     * Iterates over all the values of a property of the items matching a condition with the number of items having each value, whatever the number of
+     * values. The values are read page by page, ordered by value, the next page being fetched in the background while the current one is read, so that
+     * only two pages are kept in memory.
+     *
+     * @param filter   the condition the items must match or {@code null} to aggregate all the items
+     * @param property the property used to group the items
+     * @param itemType the String representation of the item type, as defined by its class' {@code ITEM_TYPE} field
+     * @param pageSize the number of values retrieved per page
+     * @return an iterator over the buckets of the values, to close if the iteration is stopped before the end, or {@code null} if the aggregation failed
+     */
+    CloseableIterator<AggregateBucket> aggregateIterator(Condition filter, String property, String itemType, int pageSize);
+
+    /**
+     * Iterates over all the values of a property of the items matching a condition as {@link #aggregateIterator(Condition, String, String, int)} does,
+     * also counting the items of each value matching each of the specified filters.
+     *
+     * @param filter   the condition the items must match or {@code null} to aggregate all the items
+     * @param property the property used to group the items
+     * @param filters  the conditions to count the items for, by key
+     * @param itemType the String representation of the item type, as defined by its class' {@code ITEM_TYPE} field
+     * @param pageSize the number of values retrieved per page
+     * @return an iterator over the buckets of the values, to close if the iteration is stopped before the end, or {@code null} if the aggregation failed
+     */
+    CloseableIterator<AggregateBucket> aggregateIterator(Condition filter, String property, Map<String, Condition> filters, String itemType, int pageSize);
+
     /**
      * Updates the persistence's engine indices if needed.
      */
@@ -507,4 +910,36 @@ public interface PersistenceService {
      */
     void purge(final String scope);
 
+    /**
+     * Removes the indices holding only items older than the specified date, for the items stored in one index per month.
+     *
+     * @param date the date before which all the items of an index must have been created for the index to be removed
+     * @return the names of the removed indices, or {@code null} if they could not be removed
+     */
+    List<String> removeIndicesBefore(Date date);
+
+    /**
+     * Starts removing, in the background, the items stored in one index per month that are older than the specified
+     * date. The indices holding only older items are better removed before with {@link #removeIndicesBefore(Date)}. The
+     * removal is split in slices processed in parallel and throttled, its progress can be followed with
+     * {@link #getUpdateTaskStatus(String)}.
+     *
+     * @param date              the date (not included) before which the items are removed
+     * @param slices            the number of slices, 0 to let the persistence choose it
+     * @param requestsPerSecond the maximum number of items removed per second, or a negative value to disable throttling
+     * @return the identifier of the background task, or {@code null} if it could not be started
+     */
+    String startPurge(Date date, int slices, float requestsPerSecond);
+
+    /**
+     * Starts removing, in the background, all the items associated with the provided scope. The removal is split in
+     * slices processed in parallel and throttled, its progress can be followed with {@link #getUpdateTaskStatus(String)}.
+     *
+     * @param scope             the scope for which we want to remove data
+     * @param slices            the number of slices, 0 to let the persistence choose it
+     * @param requestsPerSecond the maximum number of items removed per second, or a negative value to disable throttling
+     * @return the identifier of the background task, or {@code null} if it could not be started
+     */
+    String startPurge(String scope, int slices, float requestsPerSecond);
+
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi.aggregate;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A bucket of a terms aggregation: the items having the same value for the aggregated property.
+ */
+public class AggregateBucket {
+
+    private final String key;
+    private final long docCount;
+    private final Map<String, Long> filterCounts;
+
+    public AggregateBucket(String key, long docCount, Map<String, Long> filterCounts) {
+        this.key = key;
+        this.docCount = docCount;
+        this.filterCounts = filterCounts != null ? filterCounts : Collections.<String, Long>emptyMap();
+    }
+
+    /**
+     * @return the value of the aggregated property
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of items of the bucket
+     */
+    public long getDocCount() {
+        return docCount;
+    }
+
+    /**
+     * @return the number of items of the bucket matching each filter requested with the aggregation, by filter name
+     */
+    public Map<String, Long> getFilterCounts() {
+        return filterCounts;
+    }
+}
@@ -45,9 +45,10 @@ public class EvaluateProfileSegmentsAction implements ActionExecutor {
             return EventService.NO_CHANGE;
         }
         boolean updated = false;
-        SegmentsAndScores segmentsAndScoringForProfile = segmentService.getSegmentsAndScoresForProfile(event.getProfile());
+        SegmentsAndScores segmentsAndScoringForProfile = segmentService.getSegmentsAndScoresForProfile(event);
         Set<String> segments = segmentsAndScoringForProfile.getSegments();
         if (!segments.equals(event.getProfile().getSegments())) {
+            segmentService.updateSegmentMemberships(event.getProfile().getItemId(), event.getProfile().getSegments(), segments);
             event.getProfile().setSegments(segments);
             updated = true;
         }
@@ -27,6 +27,7 @@ import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.actions.ActionPostExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.*;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,7 @@ import java.util.*;
 
 public class MergeProfilesOnPropertyAction implements ActionExecutor {
     private static final Logger logger = LoggerFactory.getLogger(MergeProfilesOnPropertyAction.class.getName());
+    private static final int PAGE_SIZE = 1000;
 
     private ProfileService profileService;
     private PersistenceService persistenceService;
@@ -166,17 +168,19 @@ public class MergeProfilesOnPropertyAction implements ActionExecutor {
                             for (Profile profile : profiles) {
                                 String profileId = profile.getItemId();
                                 if (!StringUtils.equals(profileId, masterProfileId)) {
-                                    List<Session> sessions = persistenceService.query("profileId", profileId, null, Session.class);
-                                    if (masterProfileId.equals(profileId) && !sessions.contains(currentSession)) {
-                                        sessions.add(currentSession);
-                                    }
-                                    for (Session session : sessions) {
-                                        persistenceService.update(session.getItemId(), session.getTimeStamp(), Session.class, "profileId", anonymousBrowsing ? null : masterProfileId);
+                                    // the sessions and events of a profile are not all kept in memory
+                                    try (CloseableIterator<Session> sessions = persistenceService.queryIterator("profileId", profileId, null, Session.class, PAGE_SIZE)) {
+                                        while (sessions.hasNext()) {
+                                            Session session = sessions.next();
+                                            persistenceService.update(session.getItemId(), session.getTimeStamp(), Session.class, "profileId", anonymousBrowsing ? null : masterProfileId);
+                                        }
                                     }
 
-                                    List<Event> events = persistenceService.query("profileId", profileId, null, Event.class);
-                                    for (Event event : events) {
-                                        persistenceService.update(event.getItemId(), event.getTimeStamp(), Event.class, "profileId", anonymousBrowsing ? null : masterProfileId);
+                                    try (CloseableIterator<Event> events = persistenceService.queryIterator("profileId", profileId, null, Event.class, PAGE_SIZE)) {
+                                        while (events.hasNext()) {
+                                            Event event = events.next();
+                                            persistenceService.update(event.getItemId(), event.getTimeStamp(), Event.class, "profileId", anonymousBrowsing ? null : masterProfileId);
+                                        }
                                     }
                                     // we must mark all the profiles that we merged into the master as merged with the master, and they will
                                     // be deleted upon next load
@@ -18,18 +18,31 @@
 package org.apache.unomi.plugins.baseplugin.actions;
 
 import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.actions.Action;
 import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.aggregate.DateAggregate;
+import org.apache.unomi.plugins.baseplugin.conditions.PastEventCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
 public class SetEventOccurenceCountAction implements ActionExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(SetEventOccurenceCountAction.class.getName());
+
+    private static final String DAY_FORMAT = "yyyy-MM-dd";
+
     private DefinitionsService definitionsService;
 
     private PersistenceService persistenceService;
@@ -45,7 +58,23 @@ public class SetEventOccurenceCountAction implements ActionExecutor {
     @Override
     public int execute(Action action, Event event) {
         final Condition pastEventCondition = (Condition) action.getParameterValues().get("pastEventCondition");
+        final String key = (String) pastEventCondition.getParameter("generatedPropertyKey");
+        final Integer numberOfDays = (Integer) pastEventCondition.getParameter("numberOfDays");
+        final Profile profile = event.getProfile();
+
+        List<Map<String, Object>> buckets = PastEventCounters.getBuckets(profile, key);
+        if (buckets == null) {
+            // First occurrence seen for this counter, initialize it from the events already stored
+            buckets = PastEventCounters.initBuckets(profile, key);
+            loadPastEventCounts(pastEventCondition, numberOfDays, event.getProfileId(), buckets);
+        }
+        PastEventCounters.add(buckets, numberOfDays, event.getTimeStamp() != null ? event.getTimeStamp() : new Date(), 1);
+        PastEventCounters.setPastEventCount(profile, key, PastEventCounters.count(buckets, numberOfDays));
+
+        return EventService.PROFILE_UPDATED;
+    }
 
+    private void loadPastEventCounts(Condition pastEventCondition, Integer numberOfDays, String profileId, List<Map<String, Object>> buckets) {
         Condition andCondition = new Condition(definitionsService.getConditionType("booleanCondition"));
         andCondition.setParameter("operator", "and");
         ArrayList<Condition> conditions = new ArrayList<Condition>();
@@ -57,31 +86,41 @@ public class SetEventOccurenceCountAction implements ActionExecutor {
         Condition c = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
         c.setParameter("propertyName", "profileId");
         c.setParameter("comparisonOperator", "equals");
-        c.setParameter("propertyValue", event.getProfileId());
+        c.setParameter("propertyValue", profileId);
         conditions.add(c);
 
-        if (pastEventCondition.getParameter("numberOfDays") != null) {
-            int i = (Integer) pastEventCondition.getParameter("numberOfDays");
-
+        if (numberOfDays != null) {
             Condition timeCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
             timeCondition.setParameter("propertyName", "timeStamp");
             timeCondition.setParameter("comparisonOperator", "greaterThan");
-            timeCondition.setParameter("propertyValueDateExpr", "now-" + i + "d");
+            timeCondition.setParameter("propertyValueDateExpr", "now-" + numberOfDays + "d");
 
             conditions.add(timeCondition);
         }
 
         andCondition.setParameter("subConditions", conditions);
 
-        long count = persistenceService.queryCount(andCondition, Event.ITEM_TYPE);
-
-        Map<String, Object> pastEvents = (Map<String, Object>) event.getProfile().getSystemProperties().get("pastEvents");
-        if (pastEvents == null) {
-            pastEvents = new LinkedHashMap<>();
-            event.getProfile().getSystemProperties().put("pastEvents", pastEvents);
+        if (numberOfDays == null) {
+            long count = persistenceService.queryCount(andCondition, Event.ITEM_TYPE);
+            if (count > 0) {
+                PastEventCounters.add(buckets, null, new Date(), count);
+            }
+        } else {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(DAY_FORMAT);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            // the bucket of the first day only counts the events within the range
+            Map<String, Long> counts = persistenceService.aggregateWithOptimizedQuery(andCondition,
+                    new DateAggregate("timeStamp", "1d", DAY_FORMAT), Event.ITEM_TYPE);
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                if (count.getKey().startsWith("_") || count.getValue() == 0) {
+                    continue;
+                }
+                try {
+                    PastEventCounters.add(buckets, numberOfDays, dateFormat.parse(count.getKey()), count.getValue());
+                } catch (ParseException e) {
+                    logger.warn("Unexpected date bucket {} while loading past event counts", count.getKey());
+                }
+            }
         }
-        pastEvents.put((String) pastEventCondition.getParameter("generatedPropertyKey"), count + 1);
-
-        return EventService.PROFILE_UPDATED;
     }
 }
@@ -78,4 +78,9 @@ public class BooleanConditionESQueryBuilder implements ConditionESQueryBuilder {
 
         return boolQueryBuilder;
     }
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
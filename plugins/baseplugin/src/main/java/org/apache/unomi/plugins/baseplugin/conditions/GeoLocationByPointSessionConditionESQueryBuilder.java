@@ -55,4 +55,8 @@ public class GeoLocationByPointSessionConditionESQueryBuilder implements Conditi
         return null;
     }
 
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
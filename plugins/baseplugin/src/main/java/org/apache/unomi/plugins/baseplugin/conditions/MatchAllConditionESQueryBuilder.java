@@ -31,4 +31,9 @@ public class MatchAllConditionESQueryBuilder implements ConditionESQueryBuilder
     public QueryBuilder buildQuery(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher) {
         return QueryBuilders.matchAllQuery();
     }
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
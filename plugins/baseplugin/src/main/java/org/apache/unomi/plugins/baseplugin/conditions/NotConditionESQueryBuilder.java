@@ -34,4 +34,9 @@ public class NotConditionESQueryBuilder implements ConditionESQueryBuilder {
         Condition subCondition = (Condition) condition.getParameter("subCondition");
         return QueryBuilders.boolQuery().mustNot(dispatcher.buildFilter(subCondition, context));
     }
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
@@ -25,8 +25,9 @@ import org.apache.unomi.api.services.SegmentService;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilder;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilderDispatcher;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.PersistenceService;
-import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
+import org.apache.unomi.persistence.spi.aggregate.AggregateBucket;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
@@ -62,11 +63,21 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
         this.segmentService = segmentService;
     }
 
+    @Override
+    public boolean isCacheable(Condition condition) {
+        // without generated property, the query is built from the profile ids currently matching the condition
+        return hasGeneratedPropertyKey(condition);
+    }
+
+    private boolean hasGeneratedPropertyKey(Condition condition) {
+        return condition.getParameter("generatedPropertyKey") != null && condition.getParameter("generatedPropertyKey").equals(segmentService.getGeneratedPropertyKey((Condition) condition.getParameter("eventCondition"), condition));
+    }
+
     public QueryBuilder buildQuery(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher) {
         Integer minimumEventCount = condition.getParameter("minimumEventCount") == null ? 1 : (Integer) condition.getParameter("minimumEventCount");
         Integer maximumEventCount = condition.getParameter("maximumEventCount") == null ? Integer.MAX_VALUE : (Integer) condition.getParameter("maximumEventCount");
 
-        if (condition.getParameter("generatedPropertyKey") != null && condition.getParameter("generatedPropertyKey").equals(segmentService.getGeneratedPropertyKey((Condition) condition.getParameter("eventCondition"), condition))) {
+        if (hasGeneratedPropertyKey(condition)) {
             // A property is already set on profiles matching the past event condition, use it
             if (minimumEventCount != 1 || maximumEventCount != Integer.MAX_VALUE) {
                 // Check the number of occurences
@@ -89,21 +100,14 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
 
             Set<String> ids = new HashSet<>();
 
-            // Get full cardinality to partition the terms aggreggation
-            Map<String, Double> m = persistenceService.getSingleValuesMetrics(eventCondition, new String[]{"card"}, "profileId.keyword", Event.ITEM_TYPE);
-            long card = m.get("_card").longValue();
-
-            int numParts = (int) (card / aggregateQueryBucketSize) + 2;
-            for (int i = 0; i < numParts; i++) {
-                Map<String, Long> eventCountByProfile = persistenceService.aggregateWithOptimizedQuery(eventCondition, new TermsAggregate("profileId", i, numParts), Event.ITEM_TYPE);
-                if (eventCountByProfile != null) {
-                    eventCountByProfile.remove("_filtered");
-                    for (Map.Entry<String, Long> entry : eventCountByProfile.entrySet()) {
-                        if (entry.getValue() < minimumEventCount) {
-                            // No more interesting buckets in this partition
-                            break;
-                        } else if (entry.getValue() <= maximumEventCount) {
-                            ids.add(entry.getKey());
+            // Stream the event count of all the profiles, whatever their number
+            CloseableIterator<AggregateBucket> eventCountByProfile = persistenceService.aggregateIterator(eventCondition, "profileId", Event.ITEM_TYPE, aggregateQueryBucketSize);
+            if (eventCountByProfile != null) {
+                try {
+                    while (eventCountByProfile.hasNext()) {
+                        AggregateBucket bucket = eventCountByProfile.next();
+                        if (bucket.getDocCount() >= minimumEventCount && bucket.getDocCount() <= maximumEventCount) {
+                            ids.add(bucket.getKey());
 
                             if (ids.size() > maximumIdsQueryCount) {
                                 // Avoid building too big ids query - throw exception instead
@@ -111,6 +115,8 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
                             }
                         }
                     }
+                } finally {
+                    eventCountByProfile.close();
                 }
             }
 
@@ -124,38 +130,27 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
         Integer minimumEventCount = condition.getParameter("minimumEventCount") == null ? 1 : (Integer) condition.getParameter("minimumEventCount");
         Integer maximumEventCount = condition.getParameter("maximumEventCount") == null ? Integer.MAX_VALUE : (Integer) condition.getParameter("maximumEventCount");
 
-        // Get full cardinality to partition the terms aggreggation
-        Map<String, Double> m = persistenceService.getSingleValuesMetrics(eventCondition, new String[]{"card"}, "profileId.keyword", Event.ITEM_TYPE);
-        long card = m.get("_card").longValue();
-
         if (minimumEventCount != 1 || maximumEventCount != Integer.MAX_VALUE) {
             // Event count specified, must check occurences count for each profile
             int result = 0;
-            int numParts = (int) (card / aggregateQueryBucketSize) + 2;
-            for (int i = 0; i < numParts; i++) {
-                Map<String, Long> eventCountByProfile = persistenceService.aggregateWithOptimizedQuery(eventCondition, new TermsAggregate("profileId", i, numParts), Event.ITEM_TYPE);
-                int j = 0;
-                if (eventCountByProfile != null) {
-                    eventCountByProfile.remove("_filtered");
-                    for (Map.Entry<String, Long> entry : eventCountByProfile.entrySet()) {
-                        if (entry.getValue() < minimumEventCount) {
-                            // No more interesting buckets in this partition
-                            break;
-                        } else if (entry.getValue() <= maximumEventCount && minimumEventCount == 1) {
-                            // Take all remaining elements
-                            result += eventCountByProfile.size() - j;
-                            break;
-                        } else if (entry.getValue() <= maximumEventCount) {
+            CloseableIterator<AggregateBucket> eventCountByProfile = persistenceService.aggregateIterator(eventCondition, "profileId", Event.ITEM_TYPE, aggregateQueryBucketSize);
+            if (eventCountByProfile != null) {
+                try {
+                    while (eventCountByProfile.hasNext()) {
+                        long eventCount = eventCountByProfile.next().getDocCount();
+                        if (eventCount >= minimumEventCount && eventCount <= maximumEventCount) {
                             result++;
                         }
-                        j++;
                     }
+                } finally {
+                    eventCountByProfile.close();
                 }
             }
             return result;
         } else {
             // Simply get the full number of distinct profiles
-            return card;
+            Map<String, Double> m = persistenceService.getSingleValuesMetrics(eventCondition, new String[]{"card"}, "profileId.keyword", Event.ITEM_TYPE);
+            return m.get("_card").longValue();
         }
     }
 
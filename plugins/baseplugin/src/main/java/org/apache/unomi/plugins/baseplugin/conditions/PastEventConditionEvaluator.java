@@ -57,8 +57,12 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
         if (parameters.containsKey("generatedPropertyKey")) {
             String key = (String) parameters.get("generatedPropertyKey");
             Profile profile = (Profile) item;
+            List<Map<String, Object>> buckets = PastEventCounters.getBuckets(profile, key);
             Map<String,Object> pastEvents = (Map<String, Object>) profile.getSystemProperties().get("pastEvents");
-            if (pastEvents != null) {
+            if (buckets != null) {
+                // Counters are maintained as events are received, use them to get an up-to-date sliding window
+                count = PastEventCounters.count(buckets, (Integer) condition.getParameter("numberOfDays"));
+            } else if (pastEvents != null) {
                 Number l = (Number) pastEvents.get(key);
                 count = l != null ? l.longValue() : 0L;
             } else {
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import org.apache.unomi.api.Profile;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-profile event counters used by past event conditions. Counters are stored in the
+ * <code>pastEventCounters</code> system property of the profile, indexed by the generated property key of the
+ * condition, as a list of daily buckets, each one being an object with the number of UTC days since epoch and the
+ * count of the day, so that a sliding window close to the <code>now-Nd</code> range used when querying the events
+ * can be computed without querying them while keeping at most N + 1 buckets per condition. The window is rounded to
+ * whole days: the bucket of the day of <code>now-Nd</code> is counted until the day is over, the buckets loaded from
+ * the events only counting the events of this day within the range. The property is not indexed, so that the buckets
+ * don't add fields to the profile mapping. Conditions without a number of days only keep a single all-time bucket,
+ * without day.
+ */
+public final class PastEventCounters {
+
+    public static final String COUNTERS_PROPERTY = "pastEventCounters";
+    public static final String PAST_EVENTS_PROPERTY = "pastEvents";
+
+    static final String DAY = "day";
+    // the key of the buckets of the previous format, reloaded from the events
+    static final String HOUR = "hour";
+    static final String COUNT = "count";
+
+    private PastEventCounters() {
+    }
+
+    /**
+     * Returns the counter buckets stored on the profile for the given key, or null if this counter has not been
+     * initialized yet or was stored in a previous format.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> getBuckets(Profile profile, String key) {
+        Map<String, Object> counters = (Map<String, Object>) profile.getSystemProperties().get(COUNTERS_PROPERTY);
+        if (counters == null) {
+            return null;
+        }
+        Object buckets = counters.get(key);
+        if (!(buckets instanceof List)) {
+            return null;
+        }
+        for (Object bucket : (List<Object>) buckets) {
+            if (!(bucket instanceof Map) || ((Map<String, Object>) bucket).containsKey(HOUR)) {
+                return null;
+            }
+        }
+        return (List<Map<String, Object>>) buckets;
+    }
+
+    /**
+     * Initializes the counter for the given key, replacing any existing buckets.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> initBuckets(Profile profile, String key) {
+        Map<String, Object> counters = (Map<String, Object>) profile.getSystemProperties().get(COUNTERS_PROPERTY);
+        if (counters == null) {
+            counters = new LinkedHashMap<>();
+            profile.getSystemProperties().put(COUNTERS_PROPERTY, counters);
+        }
+        List<Map<String, Object>> buckets = new ArrayList<>();
+        counters.put(key, buckets);
+        return buckets;
+    }
+
+    /**
+     * Adds <code>count</code> occurrences at the given date, and drops the buckets that fell out of the window.
+     */
+    public static void add(List<Map<String, Object>> buckets, Integer numberOfDays, Date date, long count) {
+        Long day = numberOfDays == null ? null : toEpochDay(date);
+        if (numberOfDays != null) {
+            long firstDay = getFirstDay(numberOfDays);
+            for (Iterator<Map<String, Object>> iterator = buckets.iterator(); iterator.hasNext(); ) {
+                Number bucketDay = (Number) iterator.next().get(DAY);
+                if (bucketDay == null || bucketDay.longValue() < firstDay) {
+                    iterator.remove();
+                }
+            }
+            if (day < firstDay) {
+                return;
+            }
+        }
+        for (Map<String, Object> bucket : buckets) {
+            Number bucketDay = (Number) bucket.get(DAY);
+            if (day == null || (bucketDay != null && bucketDay.longValue() == day)) {
+                bucket.put(COUNT, ((Number) bucket.get(COUNT)).longValue() + count);
+                return;
+            }
+        }
+        Map<String, Object> bucket = new LinkedHashMap<>();
+        if (day != null) {
+            bucket.put(DAY, day);
+        }
+        bucket.put(COUNT, count);
+        buckets.add(bucket);
+    }
+
+    /**
+     * Sums the buckets that are within the last <code>numberOfDays</code> days, the bucket of the day of the start
+     * of the window included, or all buckets if no number of days is specified.
+     */
+    public static long count(List<Map<String, Object>> buckets, Integer numberOfDays) {
+        long firstDay = numberOfDays != null ? getFirstDay(numberOfDays) : Long.MIN_VALUE;
+        long count = 0;
+        for (Map<String, Object> bucket : buckets) {
+            Number bucketDay = (Number) bucket.get(DAY);
+            if (numberOfDays == null || (bucketDay != null && bucketDay.longValue() >= firstDay)) {
+                count += ((Number) bucket.get(COUNT)).longValue();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Updates the total stored in the <code>pastEvents</code> system property, used to query profiles on past
+     * event conditions.
+     */
+    @SuppressWarnings("unchecked")
+    public static void setPastEventCount(Profile profile, String key, long count) {
+        Map<String, Object> pastEvents = (Map<String, Object>) profile.getSystemProperties().get(PAST_EVENTS_PROPERTY);
+        if (pastEvents == null) {
+            pastEvents = new LinkedHashMap<>();
+            profile.getSystemProperties().put(PAST_EVENTS_PROPERTY, pastEvents);
+        }
+        pastEvents.put(key, count);
+    }
+
+    private static long getFirstDay(int numberOfDays) {
+        return toEpochDay(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(numberOfDays)));
+    }
+
+    static long toEpochDay(Date date) {
+        return Math.floorDiv(date.getTime(), TimeUnit.DAYS.toMillis(1));
+    }
+}
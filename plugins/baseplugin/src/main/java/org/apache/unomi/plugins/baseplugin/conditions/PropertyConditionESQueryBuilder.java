@@ -192,4 +192,9 @@ public class PropertyConditionESQueryBuilder implements ConditionESQueryBuilder
         }
         return results;
     }
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
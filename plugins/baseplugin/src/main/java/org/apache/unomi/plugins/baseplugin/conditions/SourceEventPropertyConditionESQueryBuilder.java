@@ -60,4 +60,9 @@ public class SourceEventPropertyConditionESQueryBuilder implements ConditionESQu
             return null;
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
+}
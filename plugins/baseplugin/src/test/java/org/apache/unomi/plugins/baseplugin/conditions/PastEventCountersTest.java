@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.unomi.plugins.baseplugin.conditions;
+
+import org.apache.unomi.api.Profile;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class PastEventCountersTest {
+
+    private static final String KEY = "eventTriggeredabcdef";
+
+    @Test
+    public void testSlidingWindow() {
+        Profile profile = new Profile("profileId");
+        assertNull("Counter should not be initialized", PastEventCounters.getBuckets(profile, KEY));
+
+        List<Map<String, Object>> buckets = PastEventCounters.initBuckets(profile, KEY);
+        PastEventCounters.add(buckets, 7, daysAgo(10), 5);
+        PastEventCounters.add(buckets, 7, daysAgo(3), 2);
+        PastEventCounters.add(buckets, 7, new Date(), 1);
+        PastEventCounters.add(buckets, 7, new Date(), 1);
+
+        assertEquals("Buckets out of the window should be dropped", 2, buckets.size());
+        assertEquals(4, PastEventCounters.count(buckets, 7));
+        assertEquals(2, PastEventCounters.count(buckets, 1));
+        assertEquals(buckets, PastEventCounters.getBuckets(profile, KEY));
+    }
+
+    @Test
+    public void testWindowIsRoundedToDays() {
+        Profile profile = new Profile("profileId");
+        List<Map<String, Object>> buckets = PastEventCounters.initBuckets(profile, KEY);
+        long firstDayStart = TimeUnit.DAYS.toMillis(PastEventCounters.toEpochDay(daysAgo(1)));
+        PastEventCounters.add(buckets, 1, daysAgo(3), 3);
+        // Older than now-1d, but on the first day of the window
+        PastEventCounters.add(buckets, 1, new Date(firstDayStart), 2);
+        PastEventCounters.add(buckets, 1, new Date(), 1);
+
+        assertEquals(2, buckets.size());
+        assertEquals(3, PastEventCounters.count(buckets, 1));
+    }
+
+    @Test
+    public void testBucketsAreBoundedByTheNumberOfDays() {
+        Profile profile = new Profile("profileId");
+        List<Map<String, Object>> buckets = PastEventCounters.initBuckets(profile, KEY);
+        long now = System.currentTimeMillis();
+        for (int hour = 30 * 24; hour >= 0; hour--) {
+            PastEventCounters.add(buckets, 7, new Date(now - TimeUnit.HOURS.toMillis(hour)), 1);
+        }
+
+        assertTrue(buckets.size() <= 8);
+    }
+
+    @Test
+    public void testLegacyBucketsAreIgnored() {
+        Profile profile = new Profile("profileId");
+        Map<String, Object> legacyBuckets = new LinkedHashMap<>();
+        legacyBuckets.put("19000", 2L);
+        Map<String, Object> counters = new LinkedHashMap<>();
+        counters.put(KEY, legacyBuckets);
+        profile.getSystemProperties().put(PastEventCounters.COUNTERS_PROPERTY, counters);
+
+        assertNull("Counters in the previous format should be reloaded", PastEventCounters.getBuckets(profile, KEY));
+        assertEquals(new ArrayList<>(), PastEventCounters.initBuckets(profile, KEY));
+
+        Map<String, Object> hourlyBucket = new LinkedHashMap<>();
+        hourlyBucket.put("hour", 450000L);
+        hourlyBucket.put("count", 2L);
+        counters.put(KEY, new ArrayList<>(Collections.singletonList(hourlyBucket)));
+        assertNull("Hourly counters should be reloaded", PastEventCounters.getBuckets(profile, KEY));
+    }
+
+    @Test
+    public void testAllTimeCounter() {
+        Profile profile = new Profile("profileId");
+        List<Map<String, Object>> buckets = PastEventCounters.initBuckets(profile, KEY);
+        PastEventCounters.add(buckets, null, daysAgo(1000), 3);
+        PastEventCounters.add(buckets, null, new Date(), 1);
+
+        assertEquals(1, buckets.size());
+        assertEquals(4, PastEventCounters.count(buckets, null));
+
+        PastEventCounters.setPastEventCount(profile, KEY, PastEventCounters.count(buckets, null));
+        assertEquals(4L, ((Map) profile.getSystemProperties().get(PastEventCounters.PAST_EVENTS_PROPERTY)).get(KEY));
+    }
+
+    private static Date daysAgo(int days) {
+        return new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+    }
+}
@@ -55,4 +55,9 @@ public class HoverEventConditionESQueryBuilder implements ConditionESQueryBuilde
         }
         return boolQueryBuilder;
     }
+
+    @Override
+    public boolean isCacheable(Condition condition) {
+        return true;
+    }
 }
@@ -20,6 +20,7 @@ package org.apache.unomi.rest;
 import org.apache.cxf.jaxrs.ext.MessageContext;
 import org.apache.cxf.rs.security.cors.CrossOriginResourceSharing;
 import org.apache.unomi.api.ClusterNode;
+import org.apache.unomi.api.PurgeJob;
 import org.apache.unomi.api.services.ClusterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,7 +77,8 @@ public class ClusterServiceEndPoint {
     }
 
     /**
-     * Removes all data before the specified date from the context server.
+     * Removes all data before the specified date from the context server. The data is removed in the background, the
+     * progress of the purge is available on the {@code purgeJobs} end point.
      *
      * @param date the Date before which all data needs to be removed
      */
@@ -91,7 +93,8 @@ public class ClusterServiceEndPoint {
     }
 
     /**
-     * Removes all data associated with the provided scope.
+     * Removes all data associated with the provided scope. The data is removed in the background, the progress of the
+     * purge is available on the {@code purgeJobs} end point.
      *
      * @param scope the scope for which we want to remove data
      */
@@ -100,4 +103,51 @@ public class ClusterServiceEndPoint {
     public void deleteScopedData(@PathParam("scope") String scope) {
         clusterService.purge(scope);
     }
+
+    /**
+     * Retrieves the most recent purge jobs.
+     *
+     * @return the list of the recent jobs with their progress
+     */
+    @GET
+    @Path("/purgeJobs")
+    public List<PurgeJob> getPurgeJobs() {
+        return clusterService.getPurgeJobs();
+    }
+
+    /**
+     * Retrieves the progress of the purge job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    @GET
+    @Path("/purgeJobs/{jobId}")
+    public PurgeJob getPurgeJob(@PathParam("jobId") String jobId) {
+        return clusterService.getPurgeJob(jobId);
+    }
+
+    /**
+     * Pauses the purge job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was running and is now paused, {@code false} otherwise
+     */
+    @POST
+    @Path("/purgeJobs/{jobId}/pause")
+    public boolean pausePurgeJob(@PathParam("jobId") String jobId) {
+        return clusterService.pausePurgeJob(jobId);
+    }
+
+    /**
+     * Resumes the paused purge job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was paused and is now running, {@code false} otherwise
+     */
+    @POST
+    @Path("/purgeJobs/{jobId}/resume")
+    public boolean resumePurgeJob(@PathParam("jobId") String jobId) {
+        return clusterService.resumePurgeJob(jobId);
+    }
 }
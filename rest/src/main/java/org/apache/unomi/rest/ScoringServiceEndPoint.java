@@ -24,6 +24,7 @@ import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.segments.DependentMetadata;
 import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringRecomputeJob;
 import org.apache.unomi.api.services.SegmentService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -156,6 +157,41 @@ public class ScoringServiceEndPoint {
         return segmentService.getScoringDependentMetadata(scoringId);
     }
 
+    /**
+     * Retrieves the most recent jobs updating the scores of the profiles after a scoring was saved or removed.
+     *
+     * @return the list of the recent jobs with their progress
+     */
+    @GET
+    @Path("/recomputeJobs")
+    public List<ScoringRecomputeJob> getScoringRecomputeJobs() {
+        return segmentService.getScoringRecomputeJobs();
+    }
+
+    /**
+     * Retrieves the progress of the job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    @GET
+    @Path("/recomputeJobs/{jobId}")
+    public ScoringRecomputeJob getScoringRecomputeJob(@PathParam("jobId") String jobId) {
+        return segmentService.getScoringRecomputeJob(jobId);
+    }
+
+    /**
+     * Cancels the job identified by the specified identifier, the profiles already updated keep their new scores.
+     *
+     * @param jobId the identifier of the job
+     * @return {@code true} if the job was running and is now cancelled, {@code false} otherwise
+     */
+    @DELETE
+    @Path("/recomputeJobs/{jobId}")
+    public boolean cancelScoringRecomputeJob(@PathParam("jobId") String jobId) {
+        return segmentService.cancelScoringRecomputeJob(jobId);
+    }
+
     /**
      * TODO: remove
      *
@@ -24,6 +24,8 @@ import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.segments.DependentMetadata;
 import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.api.segments.SegmentRecomputeJob;
+import org.apache.unomi.api.segments.SegmentSize;
 import org.apache.unomi.api.services.SegmentService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +35,7 @@ import javax.jws.WebService;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A JAX-RS endpoint to manage {@link Segment}s.
@@ -185,6 +188,53 @@ public class SegmentServiceEndPoint {
         return segmentService.removeSegmentDefinition(segmentId, validate);
     }
 
+    /**
+     * Retrieves the number of profiles of each segment, maintained by the context server and periodically reconciled
+     * with the stored profiles, without issuing a count query per segment.
+     *
+     * @return the sizes of the segments by segment identifier
+     */
+    @GET
+    @Path("/sizes")
+    public Map<String, SegmentSize> getSegmentSizes() {
+        return segmentService.getSegmentSizes();
+    }
+
+    /**
+     * Retrieves the number of profiles of the specified segment, as maintained by the context server.
+     *
+     * @param segmentId the identifier of the segment
+     * @return the size of the segment, with the date of its last reconciliation
+     */
+    @GET
+    @Path("/{segmentID}/size")
+    public SegmentSize getSegmentSize(@PathParam("segmentID") String segmentId) {
+        return segmentService.getSegmentSize(segmentId);
+    }
+
+    /**
+     * Retrieves the most recent jobs updating the profiles in bulk after a segment was saved or removed.
+     *
+     * @return the list of the recent jobs with their progress
+     */
+    @GET
+    @Path("/recomputeJobs")
+    public List<SegmentRecomputeJob> getSegmentRecomputeJobs() {
+        return segmentService.getSegmentRecomputeJobs();
+    }
+
+    /**
+     * Retrieves the progress of the job identified by the specified identifier.
+     *
+     * @param jobId the identifier of the job
+     * @return the job identified by the specified identifier or {@code null} if no such job is known
+     */
+    @GET
+    @Path("/recomputeJobs/{jobId}")
+    public SegmentRecomputeJob getSegmentRecomputeJob(@PathParam("jobId") String jobId) {
+        return segmentService.getSegmentRecomputeJob(jobId);
+    }
+
     /**
      * TODO: remove
      *
@@ -32,6 +32,11 @@ import java.util.List;
  */
 public abstract class AbstractServiceImpl {
 
+    /**
+     * The properties loaded by the queries of metadata items that only need their metadata.
+     */
+    public static final String[] METADATA_PROPERTIES = {"metadata"};
+
     protected PersistenceService persistenceService;
 
     protected DefinitionsService definitionsService;
@@ -45,7 +50,7 @@ public abstract class AbstractServiceImpl {
     }
 
     protected <T extends MetadataItem> PartialList<Metadata> getMetadatas(int offset, int size, String sortBy, Class<T> clazz) {
-        PartialList<T> items = persistenceService.getAllItems(clazz, offset, size, sortBy);
+        PartialList<T> items = persistenceService.query(null, sortBy, clazz, offset, size, METADATA_PROPERTIES, null);
         List<Metadata> details = new LinkedList<>();
         for (T definition : items.getList()) {
             details.add(definition.getMetadata());
@@ -58,7 +63,7 @@ public abstract class AbstractServiceImpl {
             persistenceService.refresh();
         }
         definitionsService.resolveConditionType(query.getCondition());
-        PartialList<T> items = persistenceService.query(query.getCondition(), query.getSortby(), clazz, query.getOffset(), query.getLimit());
+        PartialList<T> items = persistenceService.query(query.getCondition(), query.getSortby(), clazz, query.getOffset(), query.getLimit(), METADATA_PROPERTIES, null);
         List<Metadata> details = new LinkedList<>();
         for (T definition : items.getList()) {
             details.add(definition.getMetadata());
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl;
+
+import org.apache.unomi.api.BackgroundJob;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the steps of a background job one after the other, each one being a task of the persistence service whose
+ * status is polled without blocking the scheduler threads between two polls. Pausing or cancelling the job invalidates
+ * the polls already scheduled, so that a resumed job has a single chain of polls.
+ * <p>
+ * The items modified by another writer while a step runs are skipped by its task and reported as version conflicts.
+ * The steps that leave the items unchanged when they are applied twice are run again for them, the conflicts of the
+ * other steps or remaining after the retries make the job fail once all its steps are done.
+ *
+ * @param <J> the type of the job
+ */
+public abstract class BackgroundJobTask<J extends BackgroundJob> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackgroundJobTask.class.getName());
+
+    private static final int MAX_CONFLICT_RETRIES = 3;
+
+    protected final J job;
+    protected final PersistenceService persistenceService;
+    private final ScheduledExecutorService executorService;
+    private final long pollInterval;
+    private String taskId;
+    private int generation = 0;
+    private int retries = 0;
+    private long taskStartTime;
+    private long taskTotal = 0;
+    private long taskProcessed = 0;
+    private long taskModified = 0;
+    private long previousTotal = 0;
+    private long previousProcessed = 0;
+    private long previousModified = 0;
+    private long stepModified = 0;
+
+    protected BackgroundJobTask(J job, PersistenceService persistenceService, ScheduledExecutorService executorService, long pollInterval) {
+        this.job = job;
+        this.persistenceService = persistenceService;
+        this.executorService = executorService;
+        this.pollInterval = pollInterval;
+    }
+
+    public J getJob() {
+        return job;
+    }
+
+    public void start() {
+        schedule(0);
+    }
+
+    /**
+     * Starts a step of the job.
+     *
+     * @param step the index of the step
+     * @return the identifier of the task of the persistence service running the step, or {@code null} if the step is
+     * already completed
+     * @throws IllegalStateException if the step could not be started
+     */
+    protected abstract String startStep(int step);
+
+    /**
+     * @param step the index of the step
+     * @return {@code true} if the step can be run again for the items it skipped because of version conflicts, which
+     * requires that the items it already modified are left unchanged by a second run
+     */
+    protected abstract boolean isRetryable(int step);
+
+    /**
+     * Updates the counts specific to the job.
+     *
+     * @param step         the index of the current step
+     * @param stepModified the number of items modified by the current step so far
+     * @param modified     the number of items modified by the job so far
+     */
+    protected abstract void updateCounts(int step, long stepModified, long modified);
+
+    /**
+     * @return what the job does, for the logs
+     */
+    protected abstract String getDescription();
+
+    /**
+     * Called when a step is completed.
+     *
+     * @param step         the index of the step
+     * @param stepModified the number of items modified by the step
+     */
+    protected void stepCompleted(int step, long stepModified) {
+    }
+
+    /**
+     * Called when the job completed, failed or was cancelled.
+     */
+    protected void ended() {
+    }
+
+    private void schedule(long delay) {
+        final int scheduledGeneration = generation;
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                BackgroundJobTask.this.run(scheduledGeneration);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void run(int scheduledGeneration) {
+        if (scheduledGeneration != generation || job.getStatus() != BackgroundJob.Status.RUNNING) {
+            return;
+        }
+        try {
+            if (taskId == null) {
+                if (job.getStep() >= job.getStepCount()) {
+                    complete();
+                    return;
+                }
+                taskId = startStep(job.getStep());
+                if (taskId == null) {
+                    nextStep();
+                    return;
+                }
+                taskStartTime = System.currentTimeMillis();
+                taskTotal = 0;
+                taskProcessed = 0;
+                taskModified = 0;
+            } else {
+                Map<String, Object> status = persistenceService.getUpdateTaskStatus(taskId);
+                if (status != null && updateProgress(status)) {
+                    return;
+                }
+                if (job.getStatus() != BackgroundJob.Status.RUNNING) {
+                    return;
+                }
+            }
+            schedule(pollInterval);
+        } catch (Throwable t) {
+            logger.error("Error while " + getDescription() + ", job " + job.getJobId(), t);
+            fail(t.getMessage());
+        }
+    }
+
+    /**
+     * @return {@code true} if the task of the step ended, the next run being already scheduled
+     */
+    private boolean updateProgress(Map<String, Object> status) {
+        taskTotal = (Long) status.get("total");
+        taskModified = (Long) status.get("updated") + (Long) status.get("deleted");
+        taskProcessed = taskModified + (Long) status.get("noops");
+        long versionConflicts = (Long) status.get("versionConflicts");
+        job.setTotal(previousTotal + taskTotal);
+        job.setProcessed(previousProcessed + taskProcessed);
+        updateCounts(job.getStep(), stepModified + taskModified, previousModified + stepModified + taskModified);
+        long done = taskProcessed + versionConflicts;
+        if (done > 0) {
+            job.setEstimatedRemainingTime((System.currentTimeMillis() - taskStartTime) * (taskTotal - done) / done);
+        }
+        if (status.get("error") != null) {
+            fail((String) status.get("error"));
+            return false;
+        }
+        if (!(Boolean) status.get("completed")) {
+            return false;
+        }
+        taskId = null;
+        if (versionConflicts > 0 && isRetryable(job.getStep()) && retries < MAX_CONFLICT_RETRIES) {
+            retries++;
+            // the conflicting items are counted again by the next run of the step
+            restartStep();
+            logger.warn("Job {} skipped {} items modified at the same time at step {}/{}, running it again", job.getJobId(), versionConflicts,
+                    job.getStep() + 1, job.getStepCount());
+            schedule(0);
+            return true;
+        }
+        if (versionConflicts > 0) {
+            job.setVersionConflicts(job.getVersionConflicts() + versionConflicts);
+            logger.warn("Job {} skipped {} items modified at the same time at step {}/{}", job.getJobId(), versionConflicts,
+                    job.getStep() + 1, job.getStepCount());
+        }
+        previousTotal += taskTotal;
+        previousProcessed += taskProcessed;
+        stepModified += taskModified;
+        nextStep();
+        return true;
+    }
+
+    private void nextStep() {
+        stepCompleted(job.getStep(), stepModified);
+        previousModified += stepModified;
+        stepModified = 0;
+        retries = 0;
+        job.setStep(job.getStep() + 1);
+        schedule(0);
+    }
+
+    /**
+     * Keeps the progress of the task of the current step, whose next run only processes the remaining items.
+     */
+    private void restartStep() {
+        previousTotal += taskProcessed;
+        previousProcessed += taskProcessed;
+        stepModified += taskModified;
+        taskTotal = 0;
+        taskProcessed = 0;
+        taskModified = 0;
+        taskId = null;
+    }
+
+    private void complete() {
+        job.setEstimatedRemainingTime(0);
+        job.setEndDate(new Date());
+        if (job.getVersionConflicts() > 0) {
+            job.setError(job.getVersionConflicts() + " items were not processed because they were modified at the same time");
+            job.setStatus(BackgroundJob.Status.FAILED);
+            logger.error("Job {} {} is incomplete: {}", job.getJobId(), getDescription(), job.getError());
+        } else {
+            job.setStatus(BackgroundJob.Status.COMPLETED);
+            logger.info("Job {} {} completed in {}ms", job.getJobId(), getDescription(), job.getEndDate().getTime() - job.getStartDate().getTime());
+        }
+        ended();
+    }
+
+    /**
+     * Pauses the job, cancelling the task of its current step, which is started again on resume for the remaining items.
+     * Only the steps that can be run again can be paused.
+     *
+     * @return {@code true} if the job was paused, {@code false} if it was not running or its current step cannot be
+     * run again
+     */
+    public synchronized boolean pause() {
+        if (job.getStatus() != BackgroundJob.Status.RUNNING || (job.getStep() < job.getStepCount() && !isRetryable(job.getStep()))) {
+            return false;
+        }
+        generation++;
+        job.setStatus(BackgroundJob.Status.PAUSED);
+        job.setEstimatedRemainingTime(-1);
+        if (taskId != null) {
+            persistenceService.cancelUpdateTask(taskId);
+            restartStep();
+        }
+        logger.info("Paused job {} {} at step {}/{}", job.getJobId(), getDescription(), job.getStep() + 1, job.getStepCount());
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the job was resumed, {@code false} if it was not paused
+     */
+    public synchronized boolean resume() {
+        if (job.getStatus() != BackgroundJob.Status.PAUSED) {
+            return false;
+        }
+        job.setStatus(BackgroundJob.Status.RUNNING);
+        logger.info("Resumed job {} {} at step {}/{}", job.getJobId(), getDescription(), job.getStep() + 1, job.getStepCount());
+        schedule(0);
+        return true;
+    }
+
+    /**
+     * Stops the job and cancels the task of its current step. The items already modified keep their modifications.
+     *
+     * @return {@code true} if the job was cancelled, {@code false} if it had already ended
+     */
+    public synchronized boolean cancel() {
+        if (job.getStatus() != BackgroundJob.Status.RUNNING && job.getStatus() != BackgroundJob.Status.PAUSED) {
+            return false;
+        }
+        generation++;
+        job.setEndDate(new Date());
+        job.setStatus(BackgroundJob.Status.CANCELLED);
+        if (taskId != null) {
+            persistenceService.cancelUpdateTask(taskId);
+            taskId = null;
+        }
+        logger.info("Cancelled job {} {} at step {}/{}", job.getJobId(), getDescription(), job.getStep() + 1, job.getStepCount());
+        ended();
+        return true;
+    }
+
+    protected synchronized void fail(String error) {
+        if (job.getStatus() != BackgroundJob.Status.RUNNING && job.getStatus() != BackgroundJob.Status.PAUSED) {
+            return;
+        }
+        generation++;
+        job.setError(error);
+        job.setEndDate(new Date());
+        job.setStatus(BackgroundJob.Status.FAILED);
+        logger.error("Job {} {} failed at step {}/{}: {}", job.getJobId(), getDescription(), job.getStep() + 1, job.getStepCount(), error);
+        ended();
+    }
+}
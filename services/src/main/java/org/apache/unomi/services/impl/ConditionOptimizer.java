@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl;
+
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.metrics.Metric;
+import org.apache.unomi.metrics.MetricsService;
+
+import java.util.*;
+
+/**
+ * Rewrites condition trees into equivalent but cheaper ones before they are evaluated: nested boolean conditions
+ * using the same operator are flattened, duplicate and constant sub-conditions are removed, and sub-conditions are
+ * ordered so that the cheapest and most discriminating ones are evaluated first.
+ * <p>
+ * The cost of a condition is a static estimate based on its evaluator. Its selectivity is taken from the evaluation
+ * and match counters recorded by the condition evaluator dispatcher for each condition type and property name when
+ * the metrics are activated, and combined for boolean conditions.
+ */
+public class ConditionOptimizer {
+
+    private static final String BOOLEAN_CONDITION = "booleanCondition";
+    private static final String MATCH_ALL_CONDITION = "matchAllCondition";
+
+    // counters of the condition evaluator dispatcher
+    private static final String SELECTIVITY_COUNTER_PREFIX = "org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher.selectivity.";
+    private static final String MATCHED_COUNTER_SUFFIX = ".matched";
+    private static final double UNKNOWN_MATCH_RATE = 0.5;
+
+    private static final int DEFAULT_COST = 10;
+    private static final Map<String, Integer> EVALUATOR_COSTS = new HashMap<>();
+
+    static {
+        EVALUATOR_COSTS.put("matchAllConditionEvaluator", 0);
+        EVALUATOR_COSTS.put("propertyConditionEvaluator", 1);
+        EVALUATOR_COSTS.put("sourceEventPropertyConditionEvaluator", 2);
+        EVALUATOR_COSTS.put("geoLocationByPointSessionConditionEvaluator", 5);
+        EVALUATOR_COSTS.put("pastEventConditionEvaluator", 20);
+    }
+
+    private static final Set<String> EXPENSIVE_OPERATORS = new HashSet<>(Arrays.asList("matchesRegex", "contains", "endsWith", "distance"));
+
+    private DefinitionsService definitionsService;
+    private MetricsService metricsService;
+    private long minimumSamples = 100;
+
+    public void setDefinitionsService(DefinitionsService definitionsService) {
+        this.definitionsService = definitionsService;
+    }
+
+    public void setMetricsService(MetricsService metricsService) {
+        this.metricsService = metricsService;
+    }
+
+    public void setMinimumSamples(long minimumSamples) {
+        this.minimumSamples = minimumSamples;
+    }
+
+    /**
+     * Optimizes the given condition tree. The given condition is not modified, the optimization is done on a copy
+     * of the tree, so that the conditions of the items it comes from are left as they were defined.
+     *
+     * @param condition the condition to optimize, with resolved condition types
+     * @return the optimized copy of the condition
+     */
+    public Condition optimize(Condition condition) {
+        if (condition == null) {
+            return null;
+        }
+        Map<String, Metric> metrics = metricsService != null && metricsService.isActivated() ? metricsService.getMetrics() : Collections.<String, Metric>emptyMap();
+        return optimize(copy(condition), metrics);
+    }
+
+    /**
+     * Copies the condition and its sub-conditions, the other parameter values are shared with the original
+     * condition.
+     */
+    private Condition copy(Condition condition) {
+        Condition copy = new Condition();
+        copy.setConditionTypeId(condition.getConditionTypeId());
+        if (condition.getConditionType() != null) {
+            copy.setConditionType(condition.getConditionType());
+        }
+        Map<String, Object> parameterValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> parameter : condition.getParameterValues().entrySet()) {
+            Object value = parameter.getValue();
+            if (value instanceof Condition) {
+                value = copy((Condition) value);
+            } else if (value instanceof List) {
+                List<Object> values = new ArrayList<>();
+                for (Object item : (List<?>) value) {
+                    values.add(item instanceof Condition ? copy((Condition) item) : item);
+                }
+                value = values;
+            }
+            parameterValues.put(parameter.getKey(), value);
+        }
+        copy.setParameterValues(parameterValues);
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Condition optimize(Condition condition, Map<String, Metric> metrics) {
+        for (Map.Entry<String, Object> parameter : condition.getParameterValues().entrySet()) {
+            Object value = parameter.getValue();
+            if (value instanceof Condition) {
+                parameter.setValue(optimize((Condition) value, metrics));
+            } else if (value instanceof List) {
+                ListIterator<Object> iterator = ((List<Object>) value).listIterator();
+                while (iterator.hasNext()) {
+                    Object item = iterator.next();
+                    if (item instanceof Condition) {
+                        iterator.set(optimize((Condition) item, metrics));
+                    }
+                }
+            }
+        }
+
+        String operator = getBooleanOperator(condition);
+        if (operator == null) {
+            return condition;
+        }
+        boolean isAnd = "and".equals(operator);
+
+        Set<Condition> subConditions = new LinkedHashSet<>();
+        Condition matchAll = null;
+        for (Condition subCondition : (List<Condition>) condition.getParameter("subConditions")) {
+            if (operator.equals(getBooleanOperator(subCondition))) {
+                subConditions.addAll((List<Condition>) subCondition.getParameter("subConditions"));
+            } else if (MATCH_ALL_CONDITION.equals(subCondition.getConditionTypeId())) {
+                if (!isAnd) {
+                    // one branch always matches, so does the whole condition
+                    return subCondition;
+                }
+                matchAll = subCondition;
+            } else {
+                subConditions.add(subCondition);
+            }
+        }
+        if (subConditions.isEmpty() && matchAll != null) {
+            return matchAll;
+        }
+        if (subConditions.size() == 1) {
+            return subConditions.iterator().next();
+        }
+
+        List<Condition> ordered = new ArrayList<>(subConditions);
+        final Map<Condition, Double> ranks = new IdentityHashMap<>();
+        for (Condition subCondition : ordered) {
+            double matchRate = getMatchRate(subCondition, metrics);
+            // evaluate first the conditions that are cheap and most likely to end the evaluation
+            double shortCircuitRate = Math.max(0.05, isAnd ? 1 - matchRate : matchRate);
+            ranks.put(subCondition, getCost(subCondition) / shortCircuitRate);
+        }
+        Collections.sort(ordered, new Comparator<Condition>() {
+            @Override
+            public int compare(Condition c1, Condition c2) {
+                return Double.compare(ranks.get(c1), ranks.get(c2));
+            }
+        });
+        condition.setParameter("subConditions", ordered);
+        return condition;
+    }
+
+    private String getBooleanOperator(Condition condition) {
+        if (!BOOLEAN_CONDITION.equals(condition.getConditionTypeId()) || !(condition.getParameter("subConditions") instanceof List)) {
+            return null;
+        }
+        Object operator = condition.getParameter("operator");
+        if ("and".equals(operator) || "or".equals(operator)) {
+            return (String) operator;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int getCost(Condition condition) {
+        if (BOOLEAN_CONDITION.equals(condition.getConditionTypeId()) && condition.getParameter("subConditions") instanceof List) {
+            int cost = 0;
+            for (Object subCondition : (List<Object>) condition.getParameter("subConditions")) {
+                cost += subCondition instanceof Condition ? getCost((Condition) subCondition) : DEFAULT_COST;
+            }
+            return cost;
+        }
+        String evaluator = getEvaluator(condition);
+        Integer cost = evaluator != null ? EVALUATOR_COSTS.get(evaluator) : null;
+        if (cost == null) {
+            return DEFAULT_COST;
+        }
+        if (EXPENSIVE_OPERATORS.contains(condition.getParameter("comparisonOperator"))) {
+            cost += 4;
+        }
+        if ("pastEventConditionEvaluator".equals(evaluator) && condition.getParameter("generatedPropertyKey") == null) {
+            // counting events requires a query
+            cost *= 5;
+        }
+        for (Object value : condition.getParameterValues().values()) {
+            if (value instanceof Condition) {
+                cost += getCost((Condition) value);
+            }
+        }
+        return cost;
+    }
+
+    @SuppressWarnings("unchecked")
+    private double getMatchRate(Condition condition, Map<String, Metric> metrics) {
+        if (metrics.isEmpty()) {
+            return UNKNOWN_MATCH_RATE;
+        }
+        String operator = getBooleanOperator(condition);
+        if (operator != null) {
+            // assume the sub-conditions are independent
+            boolean isAnd = "and".equals(operator);
+            double rate = 1;
+            for (Object subCondition : (List<Object>) condition.getParameter("subConditions")) {
+                double subConditionRate = subCondition instanceof Condition ? getMatchRate((Condition) subCondition, metrics) : UNKNOWN_MATCH_RATE;
+                rate *= isAnd ? subConditionRate : 1 - subConditionRate;
+            }
+            return isAnd ? rate : 1 - rate;
+        }
+        if ("notConditionEvaluator".equals(getEvaluator(condition)) && condition.getParameter("subCondition") instanceof Condition) {
+            return 1 - getMatchRate((Condition) condition.getParameter("subCondition"), metrics);
+        }
+
+        String counterName = SELECTIVITY_COUNTER_PREFIX + condition.getConditionTypeId();
+        Object propertyName = condition.getParameter("propertyName");
+        if (propertyName instanceof String && !((String) propertyName).startsWith("parameter::")) {
+            counterName += "." + propertyName;
+        }
+        Metric evaluations = metrics.get(counterName);
+        if (evaluations != null && evaluations.getTotalCount() >= minimumSamples) {
+            Metric matches = metrics.get(counterName + MATCHED_COUNTER_SUFFIX);
+            return matches != null ? (double) matches.getTotalCount() / evaluations.getTotalCount() : 0;
+        }
+        return UNKNOWN_MATCH_RATE;
+    }
+
+    private String getEvaluator(Condition condition) {
+        ConditionType conditionType = condition.getConditionType();
+        // follow parent conditions, with a bound in case of a misconfigured type
+        for (int depth = 0; conditionType != null && depth < 10; depth++) {
+            Condition parentCondition = conditionType.getParentCondition();
+            if (parentCondition == null) {
+                return conditionType.getConditionEvaluator();
+            }
+            conditionType = parentCondition.getConditionType() != null || definitionsService == null ?
+                    parentCondition.getConditionType() : definitionsService.getConditionType(parentCondition.getConditionTypeId());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Profile;
+
+import java.util.*;
+
+/**
+ * Keeps track of the profile fields modified while an event is processed. A copy of the tracked fields is taken when
+ * the processing of the event starts and stored in the event attributes, so that it is shared with the
+ * {@code profileUpdated} events sent as a consequence of the event.
+ * <p>
+ * Fields are identified by their path in the profile, limited to two levels for the map properties: for example
+ * {@code properties.age}, {@code systemProperties.pastEvents}, {@code scores} or {@code segments}.
+ */
+public class ProfileChangeTracker {
+
+    public static final String SNAPSHOT_ATTRIBUTE = "profileSnapshot";
+
+    private static final Set<String> MAP_FIELDS = new HashSet<>(Arrays.asList("properties", "systemProperties", "scores", "consents"));
+    private static final Set<String> VALUE_FIELDS = new HashSet<>(Arrays.asList("itemId", "segments", "mergedWith"));
+
+    private volatile Set<String> trackedFields = Collections.emptySet();
+
+    public Set<String> getTrackedFields() {
+        return trackedFields;
+    }
+
+    public void setTrackedFields(Set<String> trackedFields) {
+        this.trackedFields = Collections.unmodifiableSet(new HashSet<>(trackedFields));
+    }
+
+    /**
+     * Returns the name of the tracked field for a property path of the profile.
+     *
+     * @param propertyPath the path of the property, e.g. {@code properties.address.city}
+     * @return the name of the field containing the property, or null if the path cannot be tracked
+     */
+    public static String getField(String propertyPath) {
+        String[] parts = propertyPath.split("\\.", 3);
+        if (MAP_FIELDS.contains(parts[0])) {
+            return parts.length > 1 && !parts[1].isEmpty() ? parts[0] + "." + parts[1] : parts[0];
+        } else if (VALUE_FIELDS.contains(parts[0])) {
+            return parts[0];
+        }
+        return null;
+    }
+
+    /**
+     * Starts tracking the changes made to the profile of the event, unless they are already tracked by a parent event.
+     * {@code profileUpdated} events that are not sent while processing another event are ignored, as they notify of
+     * changes that were already made.
+     *
+     * @param event the event about to be processed
+     */
+    public void startTracking(Event event) {
+        if (event.getProfile() != null && !"profileUpdated".equals(event.getEventType()) && !event.getAttributes().containsKey(SNAPSHOT_ATTRIBUTE)) {
+            event.getAttributes().put(SNAPSHOT_ATTRIBUTE, new Snapshot(event.getProfile(), trackedFields));
+        }
+    }
+
+    /**
+     * Returns the fields modified since the tracking started or was last reset for this event.
+     *
+     * @param event  the event being processed
+     * @param fields the fields to compare
+     * @return the modified fields, or null if the changes are not known: when the tracking did not start, when the
+     * profile of the event was replaced, or when other fields were tracked
+     */
+    public Set<String> getChangedFields(Event event, Set<String> fields) {
+        Object attribute = event.getAttributes().get(SNAPSHOT_ATTRIBUTE);
+        if (!(attribute instanceof Snapshot)) {
+            return null;
+        }
+        Snapshot snapshot = (Snapshot) attribute;
+        if (snapshot.profile != event.getProfile() || !snapshot.fields.equals(fields)) {
+            return null;
+        }
+        Set<String> changedFields = new HashSet<>();
+        for (Map.Entry<String, Object> entry : snapshot.values.entrySet()) {
+            if (!Objects.equals(entry.getValue(), getValue(snapshot.profile, entry.getKey()))) {
+                changedFields.add(entry.getKey());
+            }
+        }
+        return changedFields;
+    }
+
+    /**
+     * Uses the current state of the profile of the event as the reference for the next changes. The snapshot is
+     * updated in place, so that it stays shared with the other events it was copied to.
+     *
+     * @param event  the event being processed
+     * @param fields the fields to track
+     */
+    public void reset(Event event, Set<String> fields) {
+        if (event.getProfile() == null) {
+            return;
+        }
+        Object attribute = event.getAttributes().get(SNAPSHOT_ATTRIBUTE);
+        if (attribute instanceof Snapshot) {
+            ((Snapshot) attribute).take(event.getProfile(), fields);
+        } else {
+            event.getAttributes().put(SNAPSHOT_ATTRIBUTE, new Snapshot(event.getProfile(), fields));
+        }
+    }
+
+    private static Object getValue(Profile profile, String field) {
+        String[] parts = field.split("\\.", 2);
+        switch (parts[0]) {
+            case "properties":
+                return getValue(profile.getProperties(), parts);
+            case "systemProperties":
+                return getValue(profile.getSystemProperties(), parts);
+            case "scores":
+                return getValue(profile.getScores(), parts);
+            case "consents":
+                return getValue(profile.getConsents(), parts);
+            case "segments":
+                return profile.getSegments();
+            case "mergedWith":
+                return profile.getMergedWith();
+            case "itemId":
+                return profile.getItemId();
+            default:
+                return null;
+        }
+    }
+
+    private static Object getValue(Map<String, ?> map, String[] parts) {
+        if (map == null || parts.length == 1) {
+            return map;
+        }
+        return map.get(parts[1]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof Collection) {
+            Collection<Object> copy = value instanceof Set ? new LinkedHashSet<>() : new ArrayList<>();
+            for (Object item : (Collection<Object>) value) {
+                copy.add(copy(item));
+            }
+            return copy;
+        } else if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        // other values are either immutable or compared by identity
+        return value;
+    }
+
+    private static class Snapshot {
+        private Profile profile;
+        private Set<String> fields;
+        private Map<String, Object> values;
+
+        Snapshot(Profile profile, Set<String> fields) {
+            take(profile, fields);
+        }
+
+        void take(Profile profile, Set<String> fields) {
+            Map<String, Object> values = new HashMap<>();
+            for (String field : fields) {
+                values.put(field, copy(getValue(profile, field)));
+            }
+            this.profile = profile;
+            this.fields = fields;
+            this.values = values;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.karaf.cellar.core.event.Event;
 import org.apache.karaf.cellar.core.event.EventProducer;
 import org.apache.karaf.cellar.core.event.EventType;
 import org.apache.unomi.api.ClusterNode;
+import org.apache.unomi.api.PurgeJob;
 import org.apache.unomi.api.services.ClusterService;
 import org.apache.unomi.api.services.SchedulerService;
 import org.apache.unomi.persistence.spi.PersistenceService;
@@ -62,6 +63,7 @@ public class ClusterServiceImpl implements ClusterService {
     private Map<String, Map<String,Serializable>> nodeSystemStatistics = new ConcurrentHashMap<>();
     private Group group = null;
     private SchedulerService schedulerService;
+    private PurgeEngine purgeEngine;
 
     private long nodeStatisticsUpdateFrequency = 10000;
 
@@ -105,6 +107,10 @@ public class ClusterServiceImpl implements ClusterService {
         this.schedulerService = schedulerService;
     }
 
+    public void setPurgeEngine(PurgeEngine purgeEngine) {
+        this.purgeEngine = purgeEngine;
+    }
+
     public Map<String, Map<String, Serializable>> getNodeSystemStatistics() {
         return nodeSystemStatistics;
     }
@@ -225,12 +231,32 @@ public class ClusterServiceImpl implements ClusterService {
 
     @Override
     public void purge(Date date) {
-        persistenceService.purge(date);
+        purgeEngine.start("Sessions and events older than " + date, PurgeEngine.purgeSteps(date));
     }
 
     @Override
     public void purge(String scope) {
-        persistenceService.purge(scope);
+        purgeEngine.start("Data of scope " + scope, Collections.singletonList(PurgeEngine.purgeStep(scope)));
+    }
+
+    @Override
+    public List<PurgeJob> getPurgeJobs() {
+        return purgeEngine.getPurgeJobs();
+    }
+
+    @Override
+    public PurgeJob getPurgeJob(String jobId) {
+        return purgeEngine.getPurgeJob(jobId);
+    }
+
+    @Override
+    public boolean pausePurgeJob(String jobId) {
+        return purgeEngine.pause(jobId);
+    }
+
+    @Override
+    public boolean resumePurgeJob(String jobId) {
+        return purgeEngine.resume(jobId);
     }
 
     @Override
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.cluster;
+
+import org.apache.karaf.cellar.core.ClusterManager;
+import org.apache.karaf.cellar.core.Node;
+import org.apache.unomi.api.PurgeJob;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.services.SchedulerService;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.services.impl.BackgroundJobTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Runs the purges of old or scoped data in the background, without blocking the scheduler threads. A purge job is made
+ * of steps run one after the other: whole indices are removed at once when all their items must be purged, the items of
+ * the other indices are removed by sliced and throttled tasks of the persistence service whose progress is polled. A job
+ * can be paused, which cancels the task of its current step, and resumed, which starts the step again for the remaining
+ * items. The removals skipping items modified at the same time are run again for them.
+ */
+public class PurgeEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PurgeEngine.class.getName());
+
+    private static final int MAX_PURGE_JOBS = 100;
+
+    /**
+     * A step of a purge job.
+     */
+    public interface Step {
+
+        /**
+         * Starts the step.
+         *
+         * @param persistenceService the persistence service removing the data
+         * @param job                the job of the step, whose progress can be updated
+         * @param slices             the number of slices of the removal tasks, 0 to let the persistence choose it
+         * @param requestsPerSecond  the maximum number of items removed per second, or a negative value to disable throttling
+         * @return the identifier of the task of the persistence service running the step, or {@code null} if the step is
+         * already completed
+         * @throws IllegalStateException if the step could not be started
+         */
+        String start(PersistenceService persistenceService, PurgeJob job, int slices, float requestsPerSecond);
+    }
+
+    private PersistenceService persistenceService;
+    private SchedulerService schedulerService;
+    private ClusterManager karafCellarClusterManager;
+    private int slices = 0;
+    private float requestsPerSecond = 1000;
+    private long pollInterval = 1000;
+
+    private final Map<String, PurgeTask> purgeTasks = Collections.synchronizedMap(new LinkedHashMap<String, PurgeTask>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PurgeTask> eldest) {
+            return size() > MAX_PURGE_JOBS;
+        }
+    });
+
+    public void setPersistenceService(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    public void setSchedulerService(SchedulerService schedulerService) {
+        this.schedulerService = schedulerService;
+    }
+
+    public void setKarafCellarClusterManager(ClusterManager karafCellarClusterManager) {
+        this.karafCellarClusterManager = karafCellarClusterManager;
+    }
+
+    public void setSlices(int slices) {
+        this.slices = slices;
+    }
+
+    public void setRequestsPerSecond(float requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param date the date (not included) before which the sessions and events are purged
+     * @return the steps purging the sessions and events older than the date, removing first the indices holding only
+     * older items
+     */
+    public static List<Step> purgeSteps(final Date date) {
+        List<Step> steps = new ArrayList<>();
+        steps.add(new Step() {
+            @Override
+            public String start(PersistenceService persistenceService, PurgeJob job, int slices, float requestsPerSecond) {
+                List<String> removedIndices = persistenceService.removeIndicesBefore(date);
+                if (removedIndices == null) {
+                    throw new IllegalStateException("Could not remove the indices older than " + date);
+                }
+                job.setRemovedIndices(job.getRemovedIndices() + removedIndices.size());
+                return null;
+            }
+        });
+        steps.add(new Step() {
+            @Override
+            public String start(PersistenceService persistenceService, PurgeJob job, int slices, float requestsPerSecond) {
+                return checkStarted(persistenceService.startPurge(date, slices, requestsPerSecond));
+            }
+        });
+        return steps;
+    }
+
+    /**
+     * @param scope the scope for which data is purged
+     * @return the step purging all the items of the scope
+     */
+    public static Step purgeStep(final String scope) {
+        return new Step() {
+            @Override
+            public String start(PersistenceService persistenceService, PurgeJob job, int slices, float requestsPerSecond) {
+                return checkStarted(persistenceService.startPurge(scope, slices, requestsPerSecond));
+            }
+        };
+    }
+
+    /**
+     * @param condition the condition the items to purge must match
+     * @param clazz     the Item subclass of the items to purge
+     * @return the step purging the matching items
+     */
+    public static Step removeByQueryStep(final Condition condition, final Class<?> clazz) {
+        return new Step() {
+            @Override
+            public String start(PersistenceService persistenceService, PurgeJob job, int slices, float requestsPerSecond) {
+                return checkStarted(persistenceService.startRemoveByQuery(condition, clazz, slices, requestsPerSecond));
+            }
+        };
+    }
+
+    private static String checkStarted(String taskId) {
+        if (taskId == null) {
+            throw new IllegalStateException("Could not start the removal of the items");
+        }
+        return taskId;
+    }
+
+    /**
+     * Starts a purge job in the background.
+     *
+     * @param description a description of the data removed by the job
+     * @param steps       the steps of the job, run one after the other
+     * @return the started job
+     */
+    public PurgeJob start(String description, List<Step> steps) {
+        PurgeJob job = new PurgeJob(UUID.randomUUID().toString(), description, steps.size());
+        PurgeTask task = new PurgeTask(job, steps);
+        purgeTasks.put(job.getJobId(), task);
+        logger.info("Started purge job {}: {}", job.getJobId(), description);
+        task.start();
+        return job;
+    }
+
+    /**
+     * The jobs are kept in memory by the node running them, the scheduled purges must only run on one node of the
+     * cluster, the node with the smallest identifier.
+     *
+     * @return {@code true} if the scheduled purges run on this node
+     */
+    public boolean isScheduledPurgeNode() {
+        if (karafCellarClusterManager == null) {
+            return true;
+        }
+        Node localNode = karafCellarClusterManager.getNode();
+        for (Node node : karafCellarClusterManager.listNodes()) {
+            if (node.getId().compareTo(localNode.getId()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<PurgeJob> getPurgeJobs() {
+        List<PurgeJob> jobs = new ArrayList<>();
+        synchronized (purgeTasks) {
+            for (PurgeTask task : purgeTasks.values()) {
+                jobs.add(task.getJob());
+            }
+        }
+        return jobs;
+    }
+
+    public PurgeJob getPurgeJob(String jobId) {
+        PurgeTask task = purgeTasks.get(jobId);
+        return task != null ? task.getJob() : null;
+    }
+
+    public boolean pause(String jobId) {
+        PurgeTask task = purgeTasks.get(jobId);
+        return task != null && task.pause();
+    }
+
+    public boolean resume(String jobId) {
+        PurgeTask task = purgeTasks.get(jobId);
+        return task != null && task.resume();
+    }
+
+    /**
+     * Runs the steps of a purge job. The removals leave the already removed items unchanged when they are run again,
+     * so that all the steps can be paused and retried.
+     */
+    private class PurgeTask extends BackgroundJobTask<PurgeJob> {
+        private final List<Step> steps;
+
+        PurgeTask(PurgeJob job, List<Step> steps) {
+            super(job, PurgeEngine.this.persistenceService, schedulerService.getScheduleExecutorService(), pollInterval);
+            this.steps = steps;
+        }
+
+        @Override
+        protected String startStep(int step) {
+            return steps.get(step).start(persistenceService, job, slices, requestsPerSecond);
+        }
+
+        @Override
+        protected boolean isRetryable(int step) {
+            return true;
+        }
+
+        @Override
+        protected void updateCounts(int step, long stepModified, long modified) {
+            job.setDeleted(modified);
+        }
+
+        @Override
+        protected String getDescription() {
+            return "purging " + job.getDescription();
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.apache.unomi.services.impl.ParserHelper;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.slf4j.Logger;
@@ -52,6 +53,10 @@ public class EventServiceImpl implements EventService {
 
     private BundleContext bundleContext;
 
+    private ProfileChangeTracker profileChangeTracker;
+
+    private long aggregateCacheMaxAge = 60000;
+
     private Set<String> predefinedEventTypeIds = new LinkedHashSet<String>();
 
     private Set<String> restrictedEventTypeIds = new LinkedHashSet<String>();
@@ -113,6 +118,14 @@ public class EventServiceImpl implements EventService {
         this.bundleContext = bundleContext;
     }
 
+    public void setAggregateCacheMaxAge(long aggregateCacheMaxAge) {
+        this.aggregateCacheMaxAge = aggregateCacheMaxAge;
+    }
+
+    public void setProfileChangeTracker(ProfileChangeTracker profileChangeTracker) {
+        this.profileChangeTracker = profileChangeTracker;
+    }
+
     public boolean isEventAllowed(Event event, String thirdPartyId) {
         if (restrictedEventTypeIds.contains(event.getEventType())) {
             return thirdPartyServers.containsKey(thirdPartyId) && thirdPartyServers.get(thirdPartyId).getAllowedEvents().contains(event.getEventType());
@@ -161,6 +174,9 @@ public class EventServiceImpl implements EventService {
         }
 
         if (event.getProfile() != null) {
+            if (profileChangeTracker != null) {
+                profileChangeTracker.startTracking(event);
+            }
             for (EventListenerService eventListenerService : eventListeners) {
                 if (eventListenerService.canHandle(event)) {
                     changes |= eventListenerService.onEvent(event);
@@ -205,7 +221,7 @@ public class EventServiceImpl implements EventService {
     }
 
     public Set<String> getEventTypeIds() {
-        Map<String, Long> dynamicEventTypeIds = persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate("eventType"), Event.ITEM_TYPE);
+        Map<String, Long> dynamicEventTypeIds = persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate("eventType"), Event.ITEM_TYPE, aggregateCacheMaxAge);
         Set<String> eventTypeIds = new LinkedHashSet<String>(predefinedEventTypeIds);
         eventTypeIds.addAll(dynamicEventTypeIds.keySet());
         return eventTypeIds;
@@ -253,18 +269,14 @@ public class EventServiceImpl implements EventService {
 
     @Override
     public PartialList<Event> search(Query query) {
-        if (query.getCondition() != null && definitionsService.resolveConditionType(query.getCondition())) {
-            if (StringUtils.isNotBlank(query.getText())) {
-                return persistenceService.queryFullText(query.getText(), query.getCondition(), query.getSortby(), Event.class, query.getOffset(), query.getLimit());
-            } else {
-                return persistenceService.query(query.getCondition(), query.getSortby(), Event.class, query.getOffset(), query.getLimit());
-            }
+        // a condition that can't be resolved is ignored
+        Condition condition = query.getCondition() != null && definitionsService.resolveConditionType(query.getCondition()) ? query.getCondition() : null;
+        String[] includedProperties = query.getIncludedProperties() != null ? query.getIncludedProperties().toArray(new String[0]) : null;
+        String[] excludedProperties = query.getExcludedProperties() != null ? query.getExcludedProperties().toArray(new String[0]) : null;
+        if (StringUtils.isNotBlank(query.getText())) {
+            return persistenceService.queryFullText(query.getText(), condition, query.getSortby(), Event.class, query.getOffset(), query.getLimit(), includedProperties, excludedProperties);
         } else {
-            if (StringUtils.isNotBlank(query.getText())) {
-                return persistenceService.queryFullText(query.getText(), query.getSortby(), Event.class, query.getOffset(), query.getLimit());
-            } else {
-                return persistenceService.getAllItems(Event.class, query.getOffset(), query.getLimit(), query.getSortby());
-            }
+            return persistenceService.query(condition, query.getSortby(), Event.class, query.getOffset(), query.getLimit(), includedProperties, excludedProperties);
         }
     }
 
@@ -37,6 +37,7 @@ import org.apache.unomi.api.services.RulesService;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.*;
+import org.apache.unomi.services.impl.AbstractServiceImpl;
 import org.apache.unomi.services.impl.ParserHelper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -61,6 +62,8 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
     private RulesService rulesService;
 
+    private long aggregateCacheMaxAge = 60000;
+
     public void setBundleContext(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
     }
@@ -73,6 +76,10 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         this.definitionsService = definitionsService;
     }
 
+    public void setAggregateCacheMaxAge(long aggregateCacheMaxAge) {
+        this.aggregateCacheMaxAge = aggregateCacheMaxAge;
+    }
+
     public void setRulesService(RulesService rulesService) {
         this.rulesService = rulesService;
     }
@@ -197,7 +204,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
     public Set<Metadata> getGoalMetadatas() {
         Set<Metadata> descriptions = new HashSet<Metadata>();
-        for (Goal definition : persistenceService.getAllItems(Goal.class, 0, 50, null).getList()) {
+        for (Goal definition : persistenceService.query(null, null, Goal.class, 0, 50, AbstractServiceImpl.METADATA_PROPERTIES, null).getList()) {
             descriptions.add(definition.getMetadata());
         }
         return descriptions;
@@ -207,7 +214,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         definitionsService.resolveConditionType(query.getCondition());
         Set<Metadata> descriptions = new LinkedHashSet<>();
 
-        List<Goal> goals = persistenceService.query(query.getCondition(), query.getSortby(), Goal.class, query.getOffset(), query.getLimit()).getList();
+        List<Goal> goals = persistenceService.query(query.getCondition(), query.getSortby(), Goal.class, query.getOffset(), query.getLimit(), AbstractServiceImpl.METADATA_PROPERTIES, null).getList();
         for (Goal definition : goals) {
             descriptions.add(definition.getMetadata());
         }
@@ -335,7 +342,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
     public Set<Metadata> getCampaignMetadatas() {
         Set<Metadata> descriptions = new HashSet<Metadata>();
-        for (Campaign definition : persistenceService.getAllItems(Campaign.class, 0, 50, null).getList()) {
+        for (Campaign definition : persistenceService.query(null, null, Campaign.class, 0, 50, AbstractServiceImpl.METADATA_PROPERTIES, null).getList()) {
             descriptions.add(definition.getMetadata());
         }
         return descriptions;
@@ -344,7 +351,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
     public Set<Metadata> getCampaignMetadatas(Query query) {
         definitionsService.resolveConditionType(query.getCondition());
         Set<Metadata> descriptions = new HashSet<Metadata>();
-        for (Campaign definition : persistenceService.query(query.getCondition(), query.getSortby(), Campaign.class, query.getOffset(), query.getLimit()).getList()) {
+        for (Campaign definition : persistenceService.query(query.getCondition(), query.getSortby(), Campaign.class, query.getOffset(), query.getLimit(), AbstractServiceImpl.METADATA_PROPERTIES, null).getList()) {
             descriptions.add(definition.getMetadata());
         }
         return descriptions;
@@ -500,11 +507,11 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
         if (aggregate != null) {
             list.add(goalStartCondition);
-            all = persistenceService.aggregateWithOptimizedQuery(condition, aggregate, Session.ITEM_TYPE);
+            all = persistenceService.aggregateWithOptimizedQuery(condition, aggregate, Session.ITEM_TYPE, aggregateCacheMaxAge);
 
             list.remove(goalStartCondition);
             list.add(goalTargetCondition);
-            match = persistenceService.aggregateWithOptimizedQuery(condition, aggregate, Session.ITEM_TYPE);
+            match = persistenceService.aggregateWithOptimizedQuery(condition, aggregate, Session.ITEM_TYPE, aggregateCacheMaxAge);
         } else {
             list.add(goalStartCondition);
             all = new HashMap<String, Long>();
@@ -29,10 +29,12 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.api.services.SchedulerService;
 import org.apache.unomi.api.services.SegmentService;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.PropertyHelper;
 import org.apache.unomi.services.impl.ParserHelper;
+import org.apache.unomi.services.impl.cluster.PurgeEngine;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +42,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -153,6 +156,7 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     }
 
     private static final Logger logger = LoggerFactory.getLogger(ProfileServiceImpl.class.getName());
+    private static final int BATCH_UPDATE_PAGE_SIZE = 1000;
 
     private BundleContext bundleContext;
 
@@ -169,6 +173,8 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     private Integer purgeProfileInactiveTime = 0;
     private Integer purgeSessionsAndEventsTime = 0;
     private Integer purgeProfileInterval = 0;
+    private PurgeEngine purgeEngine;
+    private PurgeJob purgeJob;
     private long propertiesRefreshInterval = 10000;
 
     private PropertyTypes propertyTypes;
@@ -255,6 +261,10 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         this.purgeProfileInterval = purgeProfileInterval;
     }
 
+    public void setPurgeEngine(PurgeEngine purgeEngine) {
+        this.purgeEngine = purgeEngine;
+    }
+
     private void schedulePropertyTypeLoad() {
         TimerTask task = new TimerTask() {
             @Override
@@ -302,6 +312,10 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                     try {
                         long purgeStartTime = System.currentTimeMillis();
                         logger.debug("Profile purge: Purge triggered");
+                        if (!purgeEngine.isScheduledPurgeNode()) {
+                            logger.debug("Profile purge: the purge runs on another node of the cluster");
+                            return;
+                        }
 
                         if (purgeProfileQuery == null) {
                             ConditionType profilePropertyConditionType = definitionsService.getConditionType("profilePropertyCondition");
@@ -334,13 +348,21 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                             purgeProfileQuery.setParameter("subConditions", subConditions);
                         }
 
-                        persistenceService.removeByQuery(purgeProfileQuery, Profile.class);
+                        if (purgeJob != null && (purgeJob.getStatus() == PurgeJob.Status.RUNNING || purgeJob.getStatus() == PurgeJob.Status.PAUSED)) {
+                            logger.warn("Profile purge: previous purge job {} is not completed, skipping this purge", purgeJob.getJobId());
+                            return;
+                        }
 
+                        List<PurgeEngine.Step> steps = new ArrayList<>();
+                        if (purgeProfileInactiveTime > 0 || purgeProfileExistTime > 0) {
+                            steps.add(PurgeEngine.removeByQueryStep(purgeProfileQuery, Profile.class));
+                        }
                         if (purgeSessionsAndEventsTime > 0) {
-                            persistenceService.purge(getMonth(-purgeSessionsAndEventsTime).getTime());
+                            steps.addAll(PurgeEngine.purgeSteps(getMonth(-purgeSessionsAndEventsTime).getTime()));
                         }
+                        purgeJob = purgeEngine.start("Inactive profiles and old sessions and events", steps);
 
-                        logger.info("Profile purge: purge executed in {} ms", System.currentTimeMillis() - purgeStartTime);
+                        logger.info("Profile purge: purge job {} started in {} ms", purgeJob.getJobId(), System.currentTimeMillis() - purgeStartTime);
                     } catch (Throwable t) {
                         logger.error("Error while purging profiles", t);
                     }
@@ -374,18 +396,14 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     }
 
     private <T extends Item> PartialList<T> doSearch(Query query, Class<T> clazz) {
-        if (query.getCondition() != null && definitionsService.resolveConditionType(query.getCondition())) {
-            if (StringUtils.isNotBlank(query.getText())) {
-                return persistenceService.queryFullText(query.getText(), query.getCondition(), query.getSortby(), clazz, query.getOffset(), query.getLimit());
-            } else {
-                return persistenceService.query(query.getCondition(), query.getSortby(), clazz, query.getOffset(), query.getLimit());
-            }
+        // a condition that can't be resolved is ignored
+        Condition condition = query.getCondition() != null && definitionsService.resolveConditionType(query.getCondition()) ? query.getCondition() : null;
+        String[] includedProperties = query.getIncludedProperties() != null ? query.getIncludedProperties().toArray(new String[0]) : null;
+        String[] excludedProperties = query.getExcludedProperties() != null ? query.getExcludedProperties().toArray(new String[0]) : null;
+        if (StringUtils.isNotBlank(query.getText())) {
+            return persistenceService.queryFullText(query.getText(), condition, query.getSortby(), clazz, query.getOffset(), query.getLimit(), includedProperties, excludedProperties);
         } else {
-            if (StringUtils.isNotBlank(query.getText())) {
-                return persistenceService.queryFullText(query.getText(), query.getSortby(), clazz, query.getOffset(), query.getLimit());
-            } else {
-                return persistenceService.getAllItems(clazz, query.getOffset(), query.getLimit(), query.getSortby());
-            }
+            return persistenceService.query(condition, query.getSortby(), clazz, query.getOffset(), query.getLimit(), includedProperties, excludedProperties);
         }
     }
 
@@ -513,6 +531,10 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         return persistenceService.load(profileId, Profile.class);
     }
 
+    public CompletableFuture<Profile> loadAsync(String profileId) {
+        return persistenceService.loadAsync(profileId, Profile.class);
+    }
+
     public Profile save(Profile profile) {
         return save(profile, forceRefreshOnSave);
     }
@@ -721,6 +743,20 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         return s;
     }
 
+    public CompletableFuture<Session> loadSessionAsync(final String sessionId, final Date dateHint) {
+        return persistenceService.loadAsync(sessionId, dateHint, Session.class).thenCompose(s -> {
+            if (s == null && dateHint != null) {
+                GregorianCalendar gc = new GregorianCalendar();
+                gc.setTime(dateHint);
+                if (gc.get(Calendar.DAY_OF_MONTH) == 1) {
+                    gc.add(Calendar.DAY_OF_MONTH, -1);
+                    return persistenceService.loadAsync(sessionId, gc.getTime(), Session.class);
+                }
+            }
+            return CompletableFuture.completedFuture(s);
+        });
+    }
+
     public Session saveSession(Session session) {
         if (session.getItemId() == null) {
             return null;
@@ -787,11 +823,12 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     public void batchProfilesUpdate(BatchUpdate update) {
         ParserHelper.resolveConditionType(definitionsService, update.getCondition());
-        List<Profile> profiles = persistenceService.query(update.getCondition(), null, Profile.class);
-
-        for (Profile profile : profiles) {
-            if (PropertyHelper.setProperty(profile, update.getPropertyName(), update.getPropertyValue(), update.getStrategy())) {
-                save(profile);
+        try (CloseableIterator<Profile> profiles = persistenceService.queryIterator(update.getCondition(), null, Profile.class, BATCH_UPDATE_PAGE_SIZE)) {
+            while (profiles.hasNext()) {
+                Profile profile = profiles.next();
+                if (PropertyHelper.setProperty(profile, update.getPropertyName(), update.getPropertyValue(), update.getStrategy())) {
+                    save(profile);
+                }
             }
         }
     }
@@ -36,10 +36,16 @@ public class QueryServiceImpl implements QueryService {
 
     private DefinitionsService definitionsService;
 
+    private long aggregateCacheMaxAge = 60000;
+
     public void setPersistenceService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
     }
 
+    public void setAggregateCacheMaxAge(long aggregateCacheMaxAge) {
+        this.aggregateCacheMaxAge = aggregateCacheMaxAge;
+    }
+
     public void setDefinitionsService(DefinitionsService definitionsService) {
         this.definitionsService = definitionsService;
     }
@@ -54,7 +60,7 @@ public class QueryServiceImpl implements QueryService {
 
     @Override
     public Map<String, Long> getAggregate(String itemType, String property) {
-        return persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate(property), itemType);
+        return persistenceService.aggregateWithOptimizedQuery(null, new TermsAggregate(property), itemType, aggregateCacheMaxAge);
     }
 
     /**
@@ -121,7 +127,7 @@ public class QueryServiceImpl implements QueryService {
 
             // fall back on terms aggregate
             if (optimizedQuery) {
-                return persistenceService.aggregateWithOptimizedQuery(query.getCondition(), baseAggregate, itemType);
+                return persistenceService.aggregateWithOptimizedQuery(query.getCondition(), baseAggregate, itemType, aggregateCacheMaxAge);
             } else {
                 return persistenceService.aggregateQuery(query.getCondition(), baseAggregate, itemType);
             }
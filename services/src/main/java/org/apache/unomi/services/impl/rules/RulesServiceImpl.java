@@ -30,6 +30,8 @@ import org.apache.unomi.api.services.*;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.services.actions.ActionExecutorDispatcher;
+import org.apache.unomi.services.impl.AbstractServiceImpl;
+import org.apache.unomi.services.impl.ConditionOptimizer;
 import org.apache.unomi.services.impl.ParserHelper;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
@@ -52,9 +54,12 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
     private DefinitionsService definitionsService;
     private EventService eventService;
     private SchedulerService schedulerService;
+    private ConditionOptimizer conditionOptimizer;
 
     private ActionExecutorDispatcher actionExecutorDispatcher;
     private List<Rule> allRules;
+    // optimized copies of the conditions of the rules, used to match events
+    private Map<Rule, Condition> optimizedConditions = Collections.emptyMap();
 
     private Map<String,RuleStatistics> allRuleStatistics = new ConcurrentHashMap<>();
 
@@ -83,6 +88,10 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         this.schedulerService = schedulerService;
     }
 
+    public void setConditionOptimizer(ConditionOptimizer conditionOptimizer) {
+        this.conditionOptimizer = conditionOptimizer;
+    }
+
     public void setActionExecutorDispatcher(ActionExecutorDispatcher actionExecutorDispatcher) {
         this.actionExecutorDispatcher = actionExecutorDispatcher;
     }
@@ -170,7 +179,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
             long ruleConditionStartTime = System.currentTimeMillis();
             String scope = rule.getMetadata().getScope();
             if (scope.equals(Metadata.SYSTEM_SCOPE) || scope.equals(event.getScope())) {
-                Condition eventCondition = definitionsService.extractConditionBySystemTag(rule.getCondition(), "eventCondition");
+                Condition eventCondition = definitionsService.extractConditionBySystemTag(getEvaluatedCondition(rule), "eventCondition");
 
                 if (eventCondition == null) {
                     updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
@@ -184,7 +193,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
                     continue;
                 }
 
-                Condition sourceCondition = definitionsService.extractConditionBySystemTag(rule.getCondition(), "sourceEventCondition");
+                Condition sourceCondition = definitionsService.extractConditionBySystemTag(getEvaluatedCondition(rule), "sourceEventCondition");
                 if (sourceCondition != null && !persistenceService.testMatch(sourceCondition, event.getSource())) {
                     updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
                     continue;
@@ -206,12 +215,12 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
                     }
                 }
 
-                Condition profileCondition = definitionsService.extractConditionBySystemTag(rule.getCondition(), "profileCondition");
+                Condition profileCondition = definitionsService.extractConditionBySystemTag(getEvaluatedCondition(rule), "profileCondition");
                 if (profileCondition != null && !persistenceService.testMatch(profileCondition, event.getProfile())) {
                     updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
                     continue;
                 }
-                Condition sessionCondition = definitionsService.extractConditionBySystemTag(rule.getCondition(), "sessionCondition");
+                Condition sessionCondition = definitionsService.extractConditionBySystemTag(getEvaluatedCondition(rule), "sessionCondition");
                 if (sessionCondition != null && !persistenceService.testMatch(sessionCondition, event.getSession())) {
                     updateRuleStatistics(ruleStatistics, ruleConditionStartTime);
                     continue;
@@ -237,6 +246,21 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         allRuleStatistics.put(ruleStatistics.getItemId(), ruleStatistics);
     }
 
+    /**
+     * Reloads the rules used to match events from the persistence service
+     */
+    public void refreshRules() {
+        List<Rule> rules = getAllRules();
+        Map<Rule, Condition> conditions = new IdentityHashMap<>();
+        if (conditionOptimizer != null) {
+            for (Rule rule : rules) {
+                conditions.put(rule, conditionOptimizer.optimize(rule.getCondition()));
+            }
+        }
+        optimizedConditions = conditions;
+        allRules = rules;
+    }
+
     private List<Rule> getAllRules() {
         List<Rule> allItems = persistenceService.getAllItems(Rule.class, 0, -1, "priority").getList();
         for (Rule rule : allItems) {
@@ -246,6 +270,11 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         return allItems;
     }
 
+    private Condition getEvaluatedCondition(Rule rule) {
+        Condition condition = optimizedConditions.get(rule);
+        return condition != null ? condition : rule.getCondition();
+    }
+
 
     public boolean canHandle(Event event) {
         return true;
@@ -298,7 +327,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
 
     public Set<Metadata> getRuleMetadatas() {
         Set<Metadata> metadatas = new HashSet<Metadata>();
-        for (Rule rule : persistenceService.getAllItems(Rule.class, 0, 50, null).getList()) {
+        for (Rule rule : persistenceService.query(null, null, Rule.class, 0, 50, AbstractServiceImpl.METADATA_PROPERTIES, null).getList()) {
             metadatas.add(rule.getMetadata());
         }
         return metadatas;
@@ -310,7 +339,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         }
         definitionsService.resolveConditionType(query.getCondition());
         List<Metadata> descriptions = new LinkedList<>();
-        PartialList<Rule> rules = persistenceService.query(query.getCondition(), query.getSortby(), Rule.class, query.getOffset(), query.getLimit());
+        PartialList<Rule> rules = persistenceService.query(query.getCondition(), query.getSortby(), Rule.class, query.getOffset(), query.getLimit(), AbstractServiceImpl.METADATA_PROPERTIES, null);
         for (Rule definition : rules.getList()) {
             descriptions.add(definition.getMetadata());
         }
@@ -350,6 +379,9 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
             if (rule.getMetadata().isEnabled() && !rule.getMetadata().isMissingPlugins()) {
                 ParserHelper.resolveConditionType(definitionsService, condition);
                 definitionsService.extractConditionBySystemTag(condition, "eventCondition");
+                if (!persistenceService.isLocallyEvaluable(condition)) {
+                    logger.warn("Rule {} uses conditions that can't be evaluated locally, each event evaluation will require a query to the persistence back-end", rule.getItemId());
+                }
             }
         }
         persistenceService.save(rule);
@@ -387,7 +419,7 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
             @Override
             public void run() {
                 try {
-                    allRules = getAllRules();
+                    refreshRules();
                 } catch (Throwable t) {
                     logger.error("Error loading rules from persistence back-end", t);
                 }
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.persistence.spi.CloseableIterator;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.aggregate.AggregateBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Recomputes the past event counts stored in the {@code pastEvents} system property of the profiles, so that the
+ * counts limited to a number of days follow their window even for the profiles without new events. The daily
+ * counters of the {@code pastEventCounters} system property are removed for the recounted conditions, so that both
+ * sources of the counts agree: they are reloaded from the events by the next occurrence.
+ * <p>
+ * All the counts are computed in a single pass over the events: the number of events matching each past event
+ * condition is streamed per profile with a composite aggregation, one page of profiles after the other, and the
+ * counts of a page are saved with a single bulk request. The profiles which still have a count but no event in the window
+ * anymore are then reset by an update by query.
+ */
+public class PastEventCountsUpdater {
+
+    private static final Logger logger = LoggerFactory.getLogger(PastEventCountsUpdater.class.getName());
+
+    private static final String PAST_EVENTS_PROPERTY = "pastEvents";
+    private static final String COUNTERS_PROPERTY = "pastEventCounters";
+    private static final String RESET_COUNTS_SCRIPT = "boolean updated = false; Map pastEvents = ctx._source.systemProperties.pastEvents; Map counters = ctx._source.systemProperties.pastEventCounters; for (String key : params.keys) { if (pastEvents.get(key) != null && pastEvents.get(key) > 0) { pastEvents.put(key, 0); if (counters != null) { counters.remove(key) } updated = true } } if (updated) {" + SegmentServiceImpl.LAST_UPDATED_SCRIPT_PART + " } else { ctx.op = \"noop\" }";
+
+    private final PersistenceService persistenceService;
+    private final DefinitionsService definitionsService;
+    private final int pageSize;
+    private final int slices;
+    private final float requestsPerSecond;
+    private final long pollInterval;
+
+    public PastEventCountsUpdater(PersistenceService persistenceService, DefinitionsService definitionsService, int pageSize, int slices, float requestsPerSecond, long pollInterval) {
+        this.persistenceService = persistenceService;
+        this.definitionsService = definitionsService;
+        this.pageSize = pageSize;
+        this.slices = slices;
+        this.requestsPerSecond = requestsPerSecond;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Updates the counts of all the profiles for the specified past event conditions.
+     *
+     * @param pastEventConditions the past event conditions, with their {@code generatedPropertyKey},
+     *                            {@code eventCondition} and optional {@code numberOfDays} parameters
+     * @return the number of profiles whose counts were computed
+     * @throws IllegalStateException if the events could not be counted or the profiles could not be updated
+     */
+    public long update(List<Condition> pastEventConditions) {
+        long startTime = System.currentTimeMillis();
+        Date startDate = new Date(startTime);
+        Map<String, Condition> countConditions = new LinkedHashMap<>();
+        List<String> windowKeys = new ArrayList<>();
+        for (Condition pastEventCondition : pastEventConditions) {
+            String key = (String) pastEventCondition.getParameter("generatedPropertyKey");
+            Integer numberOfDays = (Integer) pastEventCondition.getParameter("numberOfDays");
+            countConditions.put(key, getCountCondition((Condition) pastEventCondition.getParameter("eventCondition"), numberOfDays));
+            if (numberOfDays != null) {
+                windowKeys.add(key);
+            }
+        }
+        if (countConditions.isEmpty()) {
+            return 0;
+        }
+
+        long profileCount = 0;
+        Condition query = countConditions.size() == 1 ? countConditions.values().iterator().next() : getBooleanCondition("or", new ArrayList<>(countConditions.values()));
+        CloseableIterator<AggregateBucket> countsByProfile = persistenceService.aggregateIterator(query, "profileId", countConditions, Event.ITEM_TYPE, pageSize);
+        if (countsByProfile == null) {
+            throw new IllegalStateException("Couldn't count the past events of the profiles");
+        }
+        try {
+            // the partial update sets the counters of the recounted keys to null
+            Map<String, Object> clearedCounters = new HashMap<>();
+            for (String key : countConditions.keySet()) {
+                clearedCounters.put(key, null);
+            }
+            Map<Profile, Map<String, Object>> updates = new LinkedHashMap<>();
+            while (countsByProfile.hasNext()) {
+                AggregateBucket counts = countsByProfile.next();
+                Map<String, Object> systemProperties = new HashMap<>();
+                systemProperties.put(PAST_EVENTS_PROPERTY, counts.getFilterCounts());
+                systemProperties.put(COUNTERS_PROPERTY, clearedCounters);
+                systemProperties.put("lastUpdated", new Date());
+                updates.put(new Profile(counts.getKey()), Collections.<String, Object>singletonMap("systemProperties", systemProperties));
+                if (updates.size() == pageSize) {
+                    profileCount += updateCounts(updates);
+                    updates = new LinkedHashMap<>();
+                }
+            }
+            if (!updates.isEmpty()) {
+                profileCount += updateCounts(updates);
+            }
+        } finally {
+            countsByProfile.close();
+        }
+
+        if (!windowKeys.isEmpty()) {
+            resetCounts(windowKeys, startDate);
+        }
+        logger.info("Past event counts of {} conditions updated for {} profiles in {}ms", countConditions.size(), profileCount, System.currentTimeMillis() - startTime);
+        return profileCount;
+    }
+
+    private long updateCounts(Map<Profile, Map<String, Object>> updates) {
+        List<String> failedProfileIds = persistenceService.updateAll(updates, Profile.class);
+        if (failedProfileIds == null) {
+            throw new IllegalStateException("Couldn't update the past event counts of the profiles");
+        }
+        return updates.size() - failedProfileIds.size();
+    }
+
+    /**
+     * Resets the counts of the profiles which were not updated since the specified date: they have no matching event
+     * in the window anymore, or they would have been updated by the aggregation or by a new event.
+     */
+    private void resetCounts(List<String> keys, Date startDate) {
+        List<Condition> countConditions = new ArrayList<>();
+        for (String key : keys) {
+            Condition countCondition = getProfilePropertyCondition("systemProperties." + PAST_EVENTS_PROPERTY + "." + key, "greaterThan");
+            countCondition.setParameter("propertyValueInteger", 0);
+            countConditions.add(countCondition);
+        }
+        Condition notUpdatedCondition = getProfilePropertyCondition("systemProperties.lastUpdated", "lessThan");
+        notUpdatedCondition.setParameter("propertyValueDate", startDate);
+        Condition condition = getBooleanCondition("and", Arrays.asList(
+                getBooleanCondition("or", countConditions),
+                getBooleanCondition("or", Arrays.asList(notUpdatedCondition, getProfilePropertyCondition("systemProperties.lastUpdated", "missing")))));
+
+        String taskId = persistenceService.startUpdateWithQueryAndScript(Profile.class, RESET_COUNTS_SCRIPT, Collections.<String, Object>singletonMap("keys", keys),
+                condition, slices, requestsPerSecond);
+        if (taskId == null) {
+            throw new IllegalStateException("Couldn't start the reset of the past event counts");
+        }
+        while (true) {
+            Map<String, Object> status = persistenceService.getUpdateTaskStatus(taskId);
+            if (status == null) {
+                throw new IllegalStateException("Couldn't get the status of the reset of the past event counts, task " + taskId);
+            }
+            if (status.get("error") != null) {
+                throw new IllegalStateException("Couldn't reset the past event counts: " + status.get("error"));
+            }
+            if (Boolean.TRUE.equals(status.get("completed"))) {
+                logger.info("Past event counts reset for {} profiles", status.get("updated"));
+                return;
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while resetting the past event counts", e);
+            }
+        }
+    }
+
+    private Condition getCountCondition(Condition eventCondition, Integer numberOfDays) {
+        definitionsService.resolveConditionType(eventCondition);
+        if (numberOfDays == null) {
+            return eventCondition;
+        }
+        Condition timeCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
+        timeCondition.setParameter("propertyName", "timeStamp");
+        timeCondition.setParameter("comparisonOperator", "greaterThan");
+        timeCondition.setParameter("propertyValueDateExpr", "now-" + numberOfDays + "d");
+        return getBooleanCondition("and", Arrays.asList(eventCondition, timeCondition));
+    }
+
+    private Condition getProfilePropertyCondition(String propertyName, String comparisonOperator) {
+        Condition condition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", comparisonOperator);
+        return condition;
+    }
+
+    private Condition getBooleanCondition(String operator, List<Condition> subConditions) {
+        Condition condition = new Condition(definitionsService.getConditionType("booleanCondition"));
+        condition.setParameter("operator", operator);
+        condition.setParameter("subConditions", subConditions);
+        return condition;
+    }
+}
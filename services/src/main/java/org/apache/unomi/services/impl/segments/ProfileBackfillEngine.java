@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.PartialList;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes in the context server all the profiles matching a condition, when they cannot be updated by a script run
+ * by the persistence back-end. The profiles are split in slices read page by page with a continuation token, so that
+ * no scroll context is kept open in the persistence back-end. The slices are read in parallel by a limited number of
+ * threads, and the updates of each batch are sent in a single bulk request.
+ */
+public class ProfileBackfillEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProfileBackfillEngine.class.getName());
+
+    /**
+     * Computes the updates of the profiles read by a backfill.
+     */
+    public interface ProfileProcessor {
+
+        /**
+         * @param profile the profile to process, which can be modified
+         * @return the properties of the profile to update, or {@code null} if the profile doesn't need to be updated
+         */
+        Map<String, Object> process(Profile profile);
+
+        /**
+         * Called once the profiles of a batch have been updated, from the thread processing the batch.
+         *
+         * @param profiles the updated profiles
+         */
+        void updated(List<Profile> profiles);
+    }
+
+    /**
+     * Receives the progress of a backfill after each batch, from the thread processing the batch.
+     */
+    public interface ProgressListener {
+        void batchProcessed(int processedCount, int updatedCount);
+    }
+
+    private PersistenceService persistenceService;
+    private int slices = 4;
+    private int concurrency = 2;
+    private int batchSize = 1000;
+
+    private ExecutorService sliceExecutor;
+    private ExecutorService jobExecutor;
+
+    public void setPersistenceService(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    public void setSlices(int slices) {
+        this.slices = slices;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void postConstruct() {
+        sliceExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency), new BackfillThreadFactory("unomi-backfill-slice-"));
+        jobExecutor = Executors.newSingleThreadExecutor(new BackfillThreadFactory("unomi-backfill-job-"));
+    }
+
+    public void preDestroy() {
+        jobExecutor.shutdownNow();
+        sliceExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs a job in the background, jobs being run one after the other.
+     *
+     * @param job the job to run
+     */
+    public void submit(Runnable job) {
+        jobExecutor.execute(job);
+    }
+
+    /**
+     * Processes all the profiles matching a condition and waits for the completion of all the slices.
+     *
+     * @param condition          the condition the profiles must match
+     * @param includedProperties the properties of the profiles read by the processor, {@code null} to read the whole profiles
+     * @param processor          the processor computing the updates of the profiles
+     * @param listener           the listener notified of the progress
+     * @return the number of updated profiles
+     * @throws IllegalStateException if a slice failed, in which case the other slices are completed before
+     */
+    public long backfill(final Condition condition, final String[] includedProperties, final ProfileProcessor processor, final ProgressListener listener) {
+        long startTime = System.currentTimeMillis();
+        int sliceCount = Math.max(1, slices);
+        long updatedCount = 0;
+        if (sliceCount == 1) {
+            updatedCount = backfillSlice(condition, includedProperties, 0, 1, processor, listener);
+        } else {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < sliceCount; i++) {
+                final int sliceId = i;
+                futures.add(sliceExecutor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return backfillSlice(condition, includedProperties, sliceId, sliceCount, processor, listener);
+                    }
+                }));
+            }
+            Throwable failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    updatedCount += future.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                    break;
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Error while processing the profiles", failure);
+            }
+        }
+        logger.info("{} profiles updated with {} slices in {}ms", updatedCount, sliceCount, System.currentTimeMillis() - startTime);
+        return updatedCount;
+    }
+
+    private long backfillSlice(Condition condition, String[] includedProperties, int sliceId, int sliceCount, ProfileProcessor processor, ProgressListener listener) {
+        long updatedCount = 0;
+        PartialList<Profile> profiles = persistenceService.queryWithContinuation(condition, null, Profile.class, batchSize, null, sliceId, sliceCount, includedProperties);
+        while (profiles != null && profiles.getList().size() > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("Interrupted while processing slice " + sliceId);
+            }
+            Map<Profile, Map<String, Object>> updates = new LinkedHashMap<>();
+            for (Profile profile : profiles.getList()) {
+                Map<String, Object> source = processor.process(profile);
+                if (source != null) {
+                    updates.put(profile, source);
+                }
+            }
+            List<Profile> updatedProfiles = new ArrayList<>();
+            if (!updates.isEmpty()) {
+                List<String> failedItemIds = persistenceService.updateAll(updates, Profile.class);
+                if (failedItemIds == null) {
+                    throw new IllegalStateException("Couldn't update the profiles of slice " + sliceId);
+                }
+                for (Profile profile : updates.keySet()) {
+                    if (!failedItemIds.contains(profile.getItemId())) {
+                        updatedProfiles.add(profile);
+                    }
+                }
+                processor.updated(updatedProfiles);
+            }
+            updatedCount += updatedProfiles.size();
+            if (listener != null) {
+                listener.batchProcessed(profiles.getList().size(), updatedProfiles.size());
+            }
+            if (profiles.getContinuationToken() == null) {
+                break;
+            }
+            profiles = persistenceService.queryWithContinuation(condition, null, Profile.class, batchSize, profiles.getContinuationToken(), sliceId, sliceCount,
+                    includedProperties);
+        }
+        return updatedCount;
+    }
+
+    private static class BackfillThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        BackfillThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringElement;
+import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the enabled segments and scoring plans by the profile fields their conditions read, used to only
+ * re-evaluate the ones impacted by a profile modification.
+ * <p>
+ * Conditions whose result can change without a modification of the profile, such as date expressions relative to
+ * the current time, queries on events or conditions implemented by unknown evaluators, are considered volatile and
+ * always need to be evaluated.
+ */
+public class ProfileDependencyIndex {
+
+    private static final Pattern SCRIPT_PREFIX = Pattern.compile("^script::'([^']*)'");
+    private static final Set<String> VOLATILE_OPERATORS = new HashSet<>(Arrays.asList("isDay", "isNotDay"));
+    private static final String SCORE_MODIFIERS_FIELD = "systemProperties.scoreModifiers";
+    private static final int MAX_DEPTH = 20;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Scoring> scorings = new ArrayList<>();
+    private final Map<String, BitSet> segmentsByField = new HashMap<>();
+    private final Map<String, BitSet> scoringsByField = new HashMap<>();
+    private final BitSet volatileSegments = new BitSet();
+    private final BitSet volatileScorings = new BitSet();
+    private final Set<String> fields = new HashSet<>();
+    private final SegmentDependencyGraph dependencyGraph;
+    private final Map<String, Integer> segmentPositions = new HashMap<>();
+    private final Map<String, Integer> scoringPositions = new HashMap<>();
+    private final String[] segmentIds;
+    private final String[] scoringIds;
+    private final Map<String, Set<TimeBoundary>> timeBoundaries = new LinkedHashMap<>();
+
+    public ProfileDependencyIndex(List<Segment> allSegments, List<Scoring> allScoring, DefinitionsService definitionsService) {
+        for (Segment segment : allSegments) {
+            if (segment.getMetadata().isEnabled()) {
+                int index = segments.size();
+                segments.add(segment);
+                Set<TimeBoundary> segmentTimeBoundaries = getTimeBoundaries(segment.getCondition(), definitionsService);
+                if (!segmentTimeBoundaries.isEmpty()) {
+                    timeBoundaries.put(segment.getItemId(), segmentTimeBoundaries);
+                }
+                Set<String> dependencies = getDependencies(segment.getCondition(), definitionsService);
+                if (dependencies == null) {
+                    volatileSegments.set(index);
+                } else {
+                    addDependencies(segmentsByField, dependencies, index);
+                }
+            }
+        }
+        for (Scoring scoring : allScoring) {
+            if (scoring.getMetadata().isEnabled()) {
+                int index = scorings.size();
+                scorings.add(scoring);
+                Set<String> dependencies = new HashSet<>();
+                dependencies.add(SCORE_MODIFIERS_FIELD);
+                for (ScoringElement scoringElement : scoring.getElements()) {
+                    Set<String> elementDependencies = getDependencies(scoringElement.getCondition(), definitionsService);
+                    if (elementDependencies == null) {
+                        dependencies = null;
+                        break;
+                    }
+                    dependencies.addAll(elementDependencies);
+                }
+                if (dependencies == null) {
+                    volatileScorings.set(index);
+                } else {
+                    addDependencies(scoringsByField, dependencies, index);
+                }
+            }
+        }
+        dependencyGraph = new SegmentDependencyGraph(segments, scorings);
+        segmentIds = new String[segments.size()];
+        for (int i = 0; i < segmentIds.length; i++) {
+            segmentIds[i] = segments.get(i).getMetadata().getId();
+            segmentPositions.put(segmentIds[i], i);
+        }
+        scoringIds = new String[scorings.size()];
+        for (int i = 0; i < scoringIds.length; i++) {
+            scoringIds[i] = scorings.get(i).getMetadata().getId();
+            scoringPositions.put(scoringIds[i], i);
+        }
+    }
+
+    private void addDependencies(Map<String, BitSet> index, Set<String> dependencies, int position) {
+        for (String field : dependencies) {
+            BitSet items = index.get(field);
+            if (items == null) {
+                items = new BitSet();
+                index.put(field, items);
+            }
+            items.set(position);
+            fields.add(field);
+        }
+    }
+
+    /**
+     * @return the enabled segments, in the order used by the bit sets returned by this index
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return the enabled scoring plans, in the order used by the bit sets returned by this index
+     */
+    public List<Scoring> getScorings() {
+        return scorings;
+    }
+
+    /**
+     * @param segmentId the id of a segment
+     * @return the position of the segment in the indexed segments, or -1 if it is unknown or disabled
+     */
+    public int getSegmentPosition(String segmentId) {
+        Integer position = segmentPositions.get(segmentId);
+        return position != null ? position : -1;
+    }
+
+    public String getSegmentId(int position) {
+        return segmentIds[position];
+    }
+
+    /**
+     * @param scoringId the id of a scoring plan
+     * @return the position of the scoring plan in the indexed scoring plans, or -1 if it is unknown or disabled
+     */
+    public int getScoringPosition(String scoringId) {
+        Integer position = scoringPositions.get(scoringId);
+        return position != null ? position : -1;
+    }
+
+    public String getScoringId(int position) {
+        return scoringIds[position];
+    }
+
+    /**
+     * @return the dependencies between the indexed segments and scoring plans
+     */
+    public SegmentDependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * @return the time boundaries of the segments which have some, by segment id
+     */
+    public Map<String, Set<TimeBoundary>> getTimeBoundaries() {
+        return timeBoundaries;
+    }
+
+    /**
+     * @return the profile fields read by the indexed conditions
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public BitSet getAffectedSegments(Set<String> changedFields) {
+        return getAffected(segmentsByField, volatileSegments, changedFields);
+    }
+
+    public BitSet getAffectedScorings(Set<String> changedFields) {
+        return getAffected(scoringsByField, volatileScorings, changedFields);
+    }
+
+    private BitSet getAffected(Map<String, BitSet> index, BitSet volatileItems, Set<String> changedFields) {
+        BitSet affected = (BitSet) volatileItems.clone();
+        for (String field : changedFields) {
+            BitSet items = index.get(field);
+            if (items != null) {
+                affected.or(items);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Returns the profile fields read when evaluating a condition, as returned by {@link ProfileChangeTracker#getField(String)}.
+     *
+     * @param condition          the condition to analyse
+     * @param definitionsService the definitions service used to resolve parent condition types
+     * @return the fields read by the condition, or null if its result can change while these fields don't
+     */
+    public static Set<String> getDependencies(Condition condition, DefinitionsService definitionsService) {
+        if (condition == null) {
+            return Collections.emptySet();
+        }
+        Set<String> dependencies = new HashSet<>();
+        return collectDependencies(condition, null, dependencies, definitionsService, 0) ? dependencies : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean collectDependencies(Condition condition, Map<String, Object> context, Set<String> dependencies, DefinitionsService definitionsService, int depth) {
+        ConditionType conditionType = condition.getConditionType();
+        if (conditionType == null && definitionsService != null) {
+            conditionType = definitionsService.getConditionType(condition.getConditionTypeId());
+        }
+        if (conditionType == null || depth > MAX_DEPTH) {
+            return false;
+        }
+        Map<String, Object> parameters = new HashMap<>();
+        for (Map.Entry<String, Object> parameter : condition.getParameterValues().entrySet()) {
+            parameters.put(parameter.getKey(), resolveParameter(parameter.getValue(), context));
+        }
+        if (conditionType.getParentCondition() != null) {
+            return collectDependencies(conditionType.getParentCondition(), parameters, dependencies, definitionsService, depth + 1);
+        }
+
+        String evaluator = conditionType.getConditionEvaluator();
+        if ("booleanConditionEvaluator".equals(evaluator)) {
+            Object subConditions = parameters.get("subConditions");
+            if (!(subConditions instanceof List)) {
+                return false;
+            }
+            for (Object subCondition : (List<Object>) subConditions) {
+                if (!(subCondition instanceof Condition) || !collectDependencies((Condition) subCondition, context, dependencies, definitionsService, depth + 1)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if ("notConditionEvaluator".equals(evaluator)) {
+            Object subCondition = parameters.get("subCondition");
+            return subCondition instanceof Condition && collectDependencies((Condition) subCondition, context, dependencies, definitionsService, depth + 1);
+        } else if ("matchAllConditionEvaluator".equals(evaluator)) {
+            return true;
+        } else if ("propertyConditionEvaluator".equals(evaluator)) {
+            if (VOLATILE_OPERATORS.contains(parameters.get("comparisonOperator"))) {
+                return false;
+            }
+            for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+                if (parameter.getKey().endsWith("DateExpr") && parameter.getValue() != null) {
+                    return false;
+                }
+            }
+            String field = getField(parameters.get("propertyName"));
+            if (field == null) {
+                return false;
+            }
+            dependencies.add(field);
+            return true;
+        } else if ("pastEventConditionEvaluator".equals(evaluator)) {
+            // counts are read from the profile, unless they are computed for a sliding window or with a query
+            if (parameters.get("generatedPropertyKey") == null || parameters.get("numberOfDays") != null) {
+                return false;
+            }
+            dependencies.add("systemProperties.pastEvents");
+            dependencies.add("systemProperties.pastEventCounters");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the profile properties a condition compares to dates relative to the current time.
+     *
+     * @param condition          the condition to analyse
+     * @param definitionsService the definitions service used to resolve parent condition types
+     * @return the time boundaries of the condition
+     */
+    public static Set<TimeBoundary> getTimeBoundaries(Condition condition, DefinitionsService definitionsService) {
+        Set<TimeBoundary> boundaries = new LinkedHashSet<>();
+        if (condition != null) {
+            collectTimeBoundaries(condition, null, boundaries, definitionsService, 0);
+        }
+        return boundaries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectTimeBoundaries(Condition condition, Map<String, Object> context, Set<TimeBoundary> boundaries, DefinitionsService definitionsService, int depth) {
+        ConditionType conditionType = condition.getConditionType();
+        if (conditionType == null && definitionsService != null) {
+            conditionType = definitionsService.getConditionType(condition.getConditionTypeId());
+        }
+        if (conditionType == null || depth > MAX_DEPTH) {
+            return;
+        }
+        Map<String, Object> parameters = new HashMap<>();
+        for (Map.Entry<String, Object> parameter : condition.getParameterValues().entrySet()) {
+            parameters.put(parameter.getKey(), resolveParameter(parameter.getValue(), context));
+        }
+        if (conditionType.getParentCondition() != null) {
+            collectTimeBoundaries(conditionType.getParentCondition(), parameters, boundaries, definitionsService, depth + 1);
+            return;
+        }
+
+        String evaluator = conditionType.getConditionEvaluator();
+        if ("booleanConditionEvaluator".equals(evaluator) && parameters.get("subConditions") instanceof List) {
+            for (Object subCondition : (List<Object>) parameters.get("subConditions")) {
+                if (subCondition instanceof Condition) {
+                    collectTimeBoundaries((Condition) subCondition, context, boundaries, definitionsService, depth + 1);
+                }
+            }
+        } else if ("notConditionEvaluator".equals(evaluator) && parameters.get("subCondition") instanceof Condition) {
+            collectTimeBoundaries((Condition) parameters.get("subCondition"), context, boundaries, definitionsService, depth + 1);
+        } else if ("propertyConditionEvaluator".equals(evaluator)) {
+            Object propertyName = parameters.get("propertyName");
+            if (!(propertyName instanceof String) || ((String) propertyName).startsWith("script::") || ((String) propertyName).startsWith("parameter::")) {
+                return;
+            }
+            Object comparisonOperator = parameters.get("comparisonOperator");
+            addTimeBoundary(boundaries, TimeBoundary.get((String) propertyName, parameters.get("propertyValueDateExpr"), comparisonOperator));
+            if (parameters.get("propertyValuesDateExpr") instanceof List) {
+                for (Object dateExpression : (List<Object>) parameters.get("propertyValuesDateExpr")) {
+                    addTimeBoundary(boundaries, TimeBoundary.get((String) propertyName, dateExpression, comparisonOperator));
+                }
+            }
+        }
+    }
+
+    private static void addTimeBoundary(Set<TimeBoundary> boundaries, TimeBoundary boundary) {
+        if (boundary != null) {
+            boundaries.add(boundary);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object resolveParameter(Object value, Map<String, Object> context) {
+        if (context != null && value instanceof String && ((String) value).startsWith("parameter::")) {
+            return context.get(((String) value).substring("parameter::".length()));
+        } else if (value instanceof List) {
+            List<Object> values = new ArrayList<>();
+            for (Object item : (List<Object>) value) {
+                values.add(resolveParameter(item, context));
+            }
+            return values;
+        }
+        return value;
+    }
+
+    private static String getField(Object propertyName) {
+        if (!(propertyName instanceof String)) {
+            return null;
+        }
+        String path = (String) propertyName;
+        if (path.startsWith("script::")) {
+            // only keep the constant part of the path, up to the last complete property name
+            Matcher matcher = SCRIPT_PREFIX.matcher(path);
+            if (!matcher.find() || matcher.group(1).indexOf('.') < 0) {
+                return null;
+            }
+            path = matcher.group(1).substring(0, matcher.group(1).lastIndexOf('.') + 1);
+        } else if (path.startsWith("parameter::")) {
+            return null;
+        }
+        return ProfileChangeTracker.getField(path);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringElement;
+import org.apache.unomi.api.segments.Segment;
+
+import java.util.*;
+
+/**
+ * The dependencies between segments and scoring plans, through the {@code profileSegmentCondition} and
+ * {@code scoringCondition} conditions they use, ordered in levels: the segments and scoring plans of a level only
+ * depend on the ones of the previous levels, so that they can be evaluated with the results of these levels.
+ * <p>
+ * The nodes are the segments followed by the scoring plans, in the order of the lists used to build the graph. The
+ * nodes that are part of a dependency cycle, or depend on one, are all put in the last level.
+ */
+public class SegmentDependencyGraph {
+
+    private final int segmentCount;
+    private final int[][] dependencies;
+    private final List<int[]> levels = new ArrayList<>();
+    private final BitSet cyclicNodes = new BitSet();
+
+    public SegmentDependencyGraph(List<Segment> segments, List<Scoring> scorings) {
+        segmentCount = segments.size();
+        int nodeCount = segmentCount + scorings.size();
+        Map<String, Integer> segmentNodes = new HashMap<>();
+        Map<String, Integer> scoringNodes = new HashMap<>();
+        for (int i = 0; i < segments.size(); i++) {
+            segmentNodes.put(segments.get(i).getItemId(), i);
+        }
+        for (int i = 0; i < scorings.size(); i++) {
+            scoringNodes.put(scorings.get(i).getItemId(), segmentCount + i);
+        }
+
+        dependencies = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            Set<String> segmentIds = new HashSet<>();
+            Set<String> scoringIds = new HashSet<>();
+            if (i < segmentCount) {
+                collectDependencies(segments.get(i).getCondition(), segmentIds, scoringIds);
+            } else {
+                for (ScoringElement scoringElement : scorings.get(i - segmentCount).getElements()) {
+                    collectDependencies(scoringElement.getCondition(), segmentIds, scoringIds);
+                }
+            }
+            Set<Integer> nodes = new TreeSet<>();
+            addNodes(segmentIds, segmentNodes, nodes);
+            addNodes(scoringIds, scoringNodes, nodes);
+            dependencies[i] = new int[nodes.size()];
+            int j = 0;
+            for (Integer node : nodes) {
+                dependencies[i][j++] = node;
+            }
+        }
+
+        // Kahn's algorithm, level by level
+        int[] remainingDependencies = new int[nodeCount];
+        List<List<Integer>> dependents = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            dependents.add(new ArrayList<Integer>());
+        }
+        List<Integer> level = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            remainingDependencies[i] = dependencies[i].length;
+            for (int dependency : dependencies[i]) {
+                dependents.get(dependency).add(i);
+            }
+            if (dependencies[i].length == 0) {
+                level.add(i);
+            }
+        }
+        int orderedCount = 0;
+        while (!level.isEmpty()) {
+            levels.add(toArray(level));
+            orderedCount += level.size();
+            List<Integer> nextLevel = new ArrayList<>();
+            for (int node : level) {
+                for (int dependent : dependents.get(node)) {
+                    if (--remainingDependencies[dependent] == 0) {
+                        nextLevel.add(dependent);
+                    }
+                }
+            }
+            Collections.sort(nextLevel);
+            level = nextLevel;
+        }
+        if (orderedCount < nodeCount) {
+            List<Integer> lastLevel = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                if (remainingDependencies[i] > 0) {
+                    lastLevel.add(i);
+                    cyclicNodes.set(i);
+                }
+            }
+            levels.add(toArray(lastLevel));
+        }
+    }
+
+    /**
+     * @return the indexes of the nodes of each level, a segment index being its position in the list of segments
+     * and a scoring plan index its position in the list of scoring plans plus the number of segments
+     */
+    public List<int[]> getLevels() {
+        return levels;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @param node the index of a node
+     * @return the indexes of the nodes it depends on
+     */
+    public int[] getDependencies(int node) {
+        return dependencies[node];
+    }
+
+    /**
+     * @return the nodes which are part of a dependency cycle, or depend on one
+     */
+    public BitSet getCyclicNodes() {
+        return cyclicNodes;
+    }
+
+    /**
+     * Finds a dependency cycle going through a segment or scoring plan.
+     *
+     * @param item     the segment or scoring plan
+     * @param segments all the segments
+     * @param scorings all the scoring plans
+     * @return the items of the cycle, as {@code segment:id} or {@code scoring:id}, starting and ending with the
+     * specified item, or {@code null} if the item is not part of a cycle
+     */
+    public static List<String> findCycle(Item item, List<Segment> segments, List<Scoring> scorings) {
+        Map<String, Set<String>> dependenciesByKey = new HashMap<>();
+        for (Segment segment : segments) {
+            Set<String> segmentIds = new HashSet<>();
+            Set<String> scoringIds = new HashSet<>();
+            collectDependencies(segment.getCondition(), segmentIds, scoringIds);
+            dependenciesByKey.put(getKey(segment), getKeys(segmentIds, scoringIds));
+        }
+        for (Scoring scoring : scorings) {
+            Set<String> segmentIds = new HashSet<>();
+            Set<String> scoringIds = new HashSet<>();
+            for (ScoringElement scoringElement : scoring.getElements()) {
+                collectDependencies(scoringElement.getCondition(), segmentIds, scoringIds);
+            }
+            dependenciesByKey.put(getKey(scoring), getKeys(segmentIds, scoringIds));
+        }
+        String key = getKey(item);
+        Deque<String> path = new ArrayDeque<>();
+        path.add(key);
+        return findPath(key, key, dependenciesByKey, path, new HashSet<String>()) ? new ArrayList<>(path) : null;
+    }
+
+    private static String getKey(Item item) {
+        return item.getItemType() + ":" + item.getItemId();
+    }
+
+    private static Set<String> getKeys(Set<String> segmentIds, Set<String> scoringIds) {
+        Set<String> keys = new HashSet<>();
+        for (String segmentId : segmentIds) {
+            keys.add(Segment.ITEM_TYPE + ":" + segmentId);
+        }
+        for (String scoringId : scoringIds) {
+            keys.add(Scoring.ITEM_TYPE + ":" + scoringId);
+        }
+        return keys;
+    }
+
+    private static boolean findPath(String from, String to, Map<String, Set<String>> dependenciesById, Deque<String> path, Set<String> visited) {
+        Set<String> ids = dependenciesById.get(from);
+        if (ids == null) {
+            return false;
+        }
+        for (String id : ids) {
+            path.addLast(id);
+            if (id.equals(to)) {
+                return true;
+            }
+            if (visited.add(id) && findPath(id, to, dependenciesById, path, visited)) {
+                return true;
+            }
+            path.removeLast();
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectDependencies(Object value, Set<String> segmentIds, Set<String> scoringIds) {
+        if (value instanceof Condition) {
+            Condition condition = (Condition) value;
+            if ("profileSegmentCondition".equals(condition.getConditionTypeId())) {
+                Object ids = condition.getParameter("segments");
+                if (ids instanceof Collection) {
+                    for (Object id : (Collection<Object>) ids) {
+                        if (id instanceof String) {
+                            segmentIds.add((String) id);
+                        }
+                    }
+                }
+            } else if ("scoringCondition".equals(condition.getConditionTypeId())) {
+                Object id = condition.getParameter("scoringPlanId");
+                if (id instanceof String) {
+                    scoringIds.add((String) id);
+                }
+            }
+            for (Object parameterValue : condition.getParameterValues().values()) {
+                collectDependencies(parameterValue, segmentIds, scoringIds);
+            }
+        } else if (value instanceof Collection) {
+            for (Object item : (Collection<Object>) value) {
+                collectDependencies(item, segmentIds, scoringIds);
+            }
+        }
+    }
+
+    private static void addNodes(Set<String> ids, Map<String, Integer> nodesById, Set<Integer> nodes) {
+        for (String id : ids) {
+            Integer node = nodesById.get(id);
+            if (node != null) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> nodes) {
+        int[] array = new int[nodes.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = nodes.get(i);
+        }
+        return array;
+    }
+}
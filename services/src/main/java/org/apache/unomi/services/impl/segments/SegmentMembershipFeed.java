@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.segments.SegmentMembershipChange;
+import org.apache.unomi.api.services.SegmentMembershipListenerService;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the segment membership changes to the {@link SegmentMembershipListenerService} services. The changes are
+ * kept in a bounded buffer and delivered in batches by a dedicated thread, so that slow listeners never delay the
+ * processing of the events: when the buffer is full, the new changes are dropped.
+ */
+public class SegmentMembershipFeed {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMembershipFeed.class.getName());
+
+    private BundleContext bundleContext;
+    private int bufferSize = 10000;
+    private int batchSize = 500;
+    private long pollInterval = 1000;
+
+    private final List<SegmentMembershipListenerService> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private BlockingQueue<SegmentMembershipChange> buffer;
+    private Thread dispatcherThread;
+    private volatile boolean running;
+
+    public void setBundleContext(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public void postConstruct() {
+        buffer = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        running = true;
+        dispatcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "unomi-segment-membership-feed");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    public void preDestroy() {
+        running = false;
+        if (dispatcherThread != null) {
+            dispatcherThread.interrupt();
+        }
+    }
+
+    public void bind(ServiceReference<SegmentMembershipListenerService> serviceReference) {
+        listeners.add(bundleContext.getService(serviceReference));
+    }
+
+    public void unbind(ServiceReference<SegmentMembershipListenerService> serviceReference) {
+        if (serviceReference != null) {
+            listeners.remove(bundleContext.getService(serviceReference));
+        }
+    }
+
+    /**
+     * @return the number of changes dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Publishes the changes between the previous and current segments of a profile.
+     */
+    public void membershipsChanged(String profileId, Set<String> previousSegments, Set<String> segments) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Date timestamp = new Date();
+        if (segments != null) {
+            for (String segmentId : segments) {
+                if (previousSegments == null || !previousSegments.contains(segmentId)) {
+                    publish(new SegmentMembershipChange(segmentId, profileId, SegmentMembershipChange.Type.ENTERED, timestamp));
+                }
+            }
+        }
+        if (previousSegments != null) {
+            for (String segmentId : previousSegments) {
+                if (segments == null || !segments.contains(segmentId)) {
+                    publish(new SegmentMembershipChange(segmentId, profileId, SegmentMembershipChange.Type.LEFT, timestamp));
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes a membership change, which is dropped if there is no listener or if the buffer is full.
+     */
+    public void publish(SegmentMembershipChange change) {
+        if (listeners.isEmpty() || buffer == null) {
+            return;
+        }
+        if (!buffer.offer(change)) {
+            long dropped = droppedCount.incrementAndGet();
+            if (dropped % bufferSize == 1) {
+                logger.warn("The segment membership listeners are too slow, {} membership changes dropped so far", dropped);
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            List<SegmentMembershipChange> batch = new ArrayList<>();
+            try {
+                SegmentMembershipChange change = buffer.poll(pollInterval, TimeUnit.MILLISECONDS);
+                if (change == null) {
+                    continue;
+                }
+                batch.add(change);
+                buffer.drainTo(batch, batchSize - 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            List<SegmentMembershipChange> changes = Collections.unmodifiableList(batch);
+            for (SegmentMembershipListenerService listener : listeners) {
+                try {
+                    listener.onMembershipChanges(changes);
+                } catch (Throwable t) {
+                    logger.error("Error while notifying segment membership changes to " + listener, t);
+                }
+            }
+        }
+    }
+}
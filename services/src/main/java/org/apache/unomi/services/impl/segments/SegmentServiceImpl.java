@@ -18,8 +18,10 @@
 package org.apache.unomi.services.impl.segments;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.apache.unomi.api.BackgroundJob;
 import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.MetadataItem;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.actions.Action;
@@ -32,10 +34,15 @@ import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.RulesService;
 import org.apache.unomi.api.services.SchedulerService;
 import org.apache.unomi.api.services.SegmentService;
+import org.apache.unomi.persistence.spi.CloseableIterator;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
-import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
+import org.apache.unomi.persistence.spi.aggregate.AggregateBucket;
 import org.apache.unomi.services.impl.AbstractServiceImpl;
+import org.apache.unomi.services.impl.BackgroundJobTask;
+import org.apache.unomi.services.impl.ConditionOptimizer;
 import org.apache.unomi.services.impl.ParserHelper;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+import org.apache.unomi.services.impl.cluster.PurgeEngine;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
@@ -47,24 +54,67 @@ import java.io.IOException;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentService, SynchronousBundleListener {
 
     private static final Logger logger = LoggerFactory.getLogger(SegmentServiceImpl.class.getName());
 
+    private static final int MAX_RECOMPUTE_JOBS = 100;
+    static final String LAST_UPDATED_SCRIPT_PART = " if (!ctx._source.containsKey(\"systemProperties\")) { ctx._source.put(\"systemProperties\", [:]) } ctx._source.systemProperties.put(\"lastUpdated\", ZonedDateTime.ofInstant(Instant.ofEpochMilli(System.currentTimeMillis()), ZoneId.of(\"Z\")))";
+    private static final String CLAIM_BACKFILL_SCRIPT = "if (ctx._source.lastUpdateDate == null || ZonedDateTime.parse(ctx._source.lastUpdateDate).toInstant().toEpochMilli() <= params.staleDate) { ctx._source.lastUpdateDate = ZonedDateTime.ofInstant(Instant.ofEpochMilli(params.now), ZoneId.of(\"Z\")) } else { ctx.op = \"noop\" }";
+    private static final String ADD_SEGMENT_SCRIPT = "if (!ctx._source.containsKey(\"segments\") || ctx._source.segments == null) { ctx._source.put(\"segments\", []) } if (ctx._source.segments.contains(params.segmentId)) { ctx.op = \"noop\" } else { ctx._source.segments.add(params.segmentId);" + LAST_UPDATED_SCRIPT_PART + " }";
+    private static final String RESET_SCORE_SCRIPT = "if (ctx._source.containsKey(\"systemProperties\") && ctx._source.systemProperties.containsKey(\"scoreModifiers\") && ctx._source.systemProperties.scoreModifiers.containsKey(params.scoringId) ) { ctx._source.scores.put(params.scoringId, ctx._source.systemProperties.scoreModifiers.get(params.scoringId)) } else { ctx._source.scores.remove(params.scoringId) } " + LAST_UPDATED_SCRIPT_PART;
+    private static final String ADD_SCORE_SCRIPT = "if (!ctx._source.containsKey(\"scores\")) { ctx._source.put(\"scores\", [:])} if (ctx._source.scores.containsKey(params.scoringId) ) { ctx._source.scores.put(params.scoringId, ctx._source.scores.get(params.scoringId)+params.scoringValue) } else { ctx._source.scores.put(params.scoringId, params.scoringValue) } " + LAST_UPDATED_SCRIPT_PART;
+    private static final String REMOVE_SCORE_SCRIPT = "ctx._source.scores.remove(params.scoringId); " + LAST_UPDATED_SCRIPT_PART;
+    private static final String REMOVE_SEGMENT_SCRIPT = "if (ctx._source.containsKey(\"segments\") && ctx._source.segments != null && ctx._source.segments.removeIf(s -> s == params.segmentId)) {" + LAST_UPDATED_SCRIPT_PART + " } else { ctx.op = \"noop\" }";
+    private static final String[] SEGMENT_MEMBERSHIP_PROPERTIES = {"segments"};
+
     private BundleContext bundleContext;
 
     private EventService eventService;
     private RulesService rulesService;
     private SchedulerService schedulerService;
+    private ConditionOptimizer conditionOptimizer;
+    private ProfileChangeTracker profileChangeTracker;
+    private PurgeEngine purgeEngine;
 
     private long taskExecutionPeriod = 1;
     private List<Segment> allSegments;
     private List<Scoring> allScoring;
+    // optimized copies of the conditions of the segments and scoring elements, used to evaluate profiles
+    private Map<Object, Condition> optimizedConditions = Collections.emptyMap();
+    private ProfileDependencyIndex dependencyIndex;
     private int segmentUpdateBatchSize = 1000;
     private long segmentRefreshInterval = 1000;
     private int aggregateQueryBucketSize = 5000;
+    private boolean segmentUpdateBulk = false;
+    private int segmentUpdateSlices = 0;
+    private float segmentUpdateRequestsPerSecond = 5000;
+    private long segmentUpdatePollInterval = 1000;
+    private long segmentBackfillResumeDelay = 300000;
+    private ProfileBackfillEngine profileBackfillEngine;
+    private PastEventCountsUpdater pastEventCountsUpdater;
+    private SegmentMembershipFeed segmentMembershipFeed;
+    private boolean segmentUpdateProfileUpdatedEvents = true;
+    private final Set<String> runningBackfills = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final SegmentSizeCounters segmentSizeCounters = new SegmentSizeCounters();
+    private long segmentSizeReconciliationInterval = 300000;
+    private long segmentTimeBoundariesInterval = 3600000;
+    private final Map<String, SegmentRecomputeJob> recomputeJobs = Collections.synchronizedMap(new LinkedHashMap<String, SegmentRecomputeJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SegmentRecomputeJob> eldest) {
+            return size() > MAX_RECOMPUTE_JOBS;
+        }
+    });
+    private final Map<String, ScoringRecomputeJob> scoringRecomputeJobs = Collections.synchronizedMap(new LinkedHashMap<String, ScoringRecomputeJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScoringRecomputeJob> eldest) {
+            return size() > MAX_RECOMPUTE_JOBS;
+        }
+    });
+    private final Map<String, ScoringRecomputeTask> runningScoringTasks = new ConcurrentHashMap<>();
 
     public SegmentServiceImpl() {
         logger.info("Initializing segment service...");
@@ -86,6 +136,18 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         this.schedulerService = schedulerService;
     }
 
+    public void setConditionOptimizer(ConditionOptimizer conditionOptimizer) {
+        this.conditionOptimizer = conditionOptimizer;
+    }
+
+    public void setProfileChangeTracker(ProfileChangeTracker profileChangeTracker) {
+        this.profileChangeTracker = profileChangeTracker;
+    }
+
+    public void setPurgeEngine(PurgeEngine purgeEngine) {
+        this.purgeEngine = purgeEngine;
+    }
+
     public void setSegmentUpdateBatchSize(int segmentUpdateBatchSize) {
         this.segmentUpdateBatchSize = segmentUpdateBatchSize;
     }
@@ -98,8 +160,54 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         this.segmentRefreshInterval = segmentRefreshInterval;
     }
 
+    public void setSegmentUpdateBulk(boolean segmentUpdateBulk) {
+        this.segmentUpdateBulk = segmentUpdateBulk;
+    }
+
+    public void setSegmentUpdateSlices(int segmentUpdateSlices) {
+        this.segmentUpdateSlices = segmentUpdateSlices;
+    }
+
+    public void setSegmentUpdateRequestsPerSecond(float segmentUpdateRequestsPerSecond) {
+        this.segmentUpdateRequestsPerSecond = segmentUpdateRequestsPerSecond;
+    }
+
+    public void setSegmentUpdatePollInterval(long segmentUpdatePollInterval) {
+        this.segmentUpdatePollInterval = segmentUpdatePollInterval;
+    }
+
+    public void setSegmentBackfillResumeDelay(long segmentBackfillResumeDelay) {
+        this.segmentBackfillResumeDelay = segmentBackfillResumeDelay;
+    }
+
+    public void setSegmentSizeReconciliationInterval(long segmentSizeReconciliationInterval) {
+        this.segmentSizeReconciliationInterval = segmentSizeReconciliationInterval;
+    }
+
+    public void setSegmentSizeVisibilityDelay(long segmentSizeVisibilityDelay) {
+        segmentSizeCounters.setVisibilityDelay(segmentSizeVisibilityDelay);
+    }
+
+    public void setSegmentMembershipFeed(SegmentMembershipFeed segmentMembershipFeed) {
+        this.segmentMembershipFeed = segmentMembershipFeed;
+    }
+
+    public void setSegmentUpdateProfileUpdatedEvents(boolean segmentUpdateProfileUpdatedEvents) {
+        this.segmentUpdateProfileUpdatedEvents = segmentUpdateProfileUpdatedEvents;
+    }
+
+    public void setSegmentTimeBoundariesInterval(long segmentTimeBoundariesInterval) {
+        this.segmentTimeBoundariesInterval = segmentTimeBoundariesInterval;
+    }
+
+    public void setProfileBackfillEngine(ProfileBackfillEngine profileBackfillEngine) {
+        this.profileBackfillEngine = profileBackfillEngine;
+    }
+
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
+        pastEventCountsUpdater = new PastEventCountsUpdater(persistenceService, definitionsService, aggregateQueryBucketSize, segmentUpdateSlices,
+                segmentUpdateRequestsPerSecond, segmentUpdatePollInterval);
         loadPredefinedSegments(bundleContext);
         loadPredefinedScorings(bundleContext);
         for (Bundle bundle : bundleContext.getBundles()) {
@@ -154,7 +262,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
                 } else {
                     logger.info("The predefined segment with id {} is already registered, this segment will be skipped", segment.getMetadata().getId());
                 }
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 logger.error("Error while loading segment definition " + predefinedSegmentURL, e);
             }
         }
@@ -182,7 +290,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
                 } else {
                     logger.info("The predefined scoring with id {} is already registered, this scoring will be skipped", scoring.getMetadata().getId());
                 }
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 logger.error("Error while loading segment definition " + predefinedScoringURL, e);
             }
         }
@@ -205,6 +313,36 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         return getMetadatas(query, Segment.class);
     }
 
+    /**
+     * Reloads the segments and scoring plans used to evaluate profiles from the persistence service
+     */
+    public void refreshSegmentsAndScoring() {
+        List<Segment> segments = getAllSegmentDefinitions();
+        List<Scoring> scorings = getAllScoringDefinitions();
+        Map<Object, Condition> conditions = new IdentityHashMap<>();
+        if (conditionOptimizer != null) {
+            for (Segment segment : segments) {
+                conditions.put(segment, conditionOptimizer.optimize(segment.getCondition()));
+            }
+            for (Scoring scoring : scorings) {
+                for (ScoringElement element : scoring.getElements()) {
+                    conditions.put(element, conditionOptimizer.optimize(element.getCondition()));
+                }
+            }
+        }
+        optimizedConditions = conditions;
+        allSegments = segments;
+        allScoring = scorings;
+        dependencyIndex = new ProfileDependencyIndex(allSegments, allScoring, definitionsService);
+        BitSet cyclicNodes = dependencyIndex.getDependencyGraph().getCyclicNodes();
+        if (!cyclicNodes.isEmpty()) {
+            logger.warn("{} segments or scoring plans are part of a dependency cycle, they are evaluated with the previous results of the ones they depend on", cyclicNodes.cardinality());
+        }
+        if (profileChangeTracker != null) {
+            profileChangeTracker.setTrackedFields(dependencyIndex.getFields());
+        }
+    }
+
     private List<Segment> getAllSegmentDefinitions() {
         List<Segment> allItems = persistenceService.getAllItems(Segment.class);
         for (Segment segment : allItems) {
@@ -224,7 +362,11 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     public void setSegmentDefinition(Segment segment) {
         ParserHelper.resolveConditionType(definitionsService, segment.getCondition());
         if (segment.getMetadata().isEnabled() && !segment.getMetadata().isMissingPlugins()) {
+            checkDependencyCycle(segment, replaceDefinition(allSegments, segment), replaceDefinition(allScoring, null));
             updateAutoGeneratedRules(segment.getMetadata(), segment.getCondition());
+            if (segment.getCondition() != null && !persistenceService.isLocallyEvaluable(segment.getCondition())) {
+                logger.warn("Segment {} uses conditions that can't be evaluated locally, each profile evaluation will require a query to the persistence back-end", segment.getItemId());
+            }
         }
         // make sure we update the name and description metadata that might not match, so first we remove the entry from the map
         persistenceService.save(segment);
@@ -232,6 +374,35 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         updateExistingProfilesForSegment(segment);
     }
 
+    /**
+     * Rejects a segment or scoring plan which would depend on itself through {@code profileSegmentCondition} or
+     * {@code scoringCondition} conditions, as it could never be evaluated with up to date results.
+     */
+    private void checkDependencyCycle(MetadataItem item, List<Segment> segments, List<Scoring> scorings) {
+        List<String> cycle = SegmentDependencyGraph.findCycle(item, segments, scorings);
+        if (cycle != null) {
+            throw new IllegalArgumentException(item.getItemType() + " " + item.getItemId() + " creates a dependency cycle: " + cycle);
+        }
+    }
+
+    /**
+     * @return the enabled definitions, with the specified one replacing the definition having the same id
+     */
+    private <T extends MetadataItem> List<T> replaceDefinition(List<T> definitions, T definition) {
+        List<T> enabledDefinitions = new ArrayList<>();
+        if (definitions != null) {
+            for (T existingDefinition : definitions) {
+                if (existingDefinition.getMetadata().isEnabled() && (definition == null || !existingDefinition.getItemId().equals(definition.getItemId()))) {
+                    enabledDefinitions.add(existingDefinition);
+                }
+            }
+        }
+        if (definition != null) {
+            enabledDefinitions.add(definition);
+        }
+        return enabledDefinitions;
+    }
+
     private boolean checkSegmentDeletionImpact(Condition condition, String segmentToDeleteId) {
         if (condition != null) {
             @SuppressWarnings("unchecked")
@@ -339,25 +510,11 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         Set<Scoring> impactedScorings = getSegmentDependentScorings(segmentId);
         if (!validate || (impactedSegments.isEmpty() && impactedScorings.isEmpty())) {
             // update profiles
-            Condition segmentCondition = new Condition();
-            segmentCondition.setConditionType(definitionsService.getConditionType("profilePropertyCondition"));
-            segmentCondition.setParameter("propertyName", "segments");
-            segmentCondition.setParameter("comparisonOperator", "equals");
-            segmentCondition.setParameter("propertyValue", segmentId);
-
-            List<Profile> previousProfiles = persistenceService.query(segmentCondition, null, Profile.class);
-            long updatedProfileCount = 0;
-            long profileRemovalStartTime = System.currentTimeMillis();
-            for (Profile profileToRemove : previousProfiles) {
-                profileToRemove.getSegments().remove(segmentId);
-                Map<String,Object> sourceMap = new HashMap<>();
-                sourceMap.put("segments", profileToRemove.getSegments());
-                profileToRemove.setSystemProperty("lastUpdated", new Date());
-                sourceMap.put("systemProperties", profileToRemove.getSystemProperties());
-                persistenceService.update(profileToRemove.getItemId(), null, Profile.class, sourceMap);
-                updatedProfileCount++;
+            if (segmentUpdateBulk) {
+                startSegmentRecomputeJob(segmentId, null, getSegmentMembershipCondition(segmentId));
+            } else {
+                removeSegmentFromProfiles(segmentId, null);
             }
-            logger.info("Removed segment from {} profiles in {} ms", updatedProfileCount, System.currentTimeMillis() - profileRemovalStartTime);
 
             // update impacted segments
             for (Segment segment : impactedSegments) {
@@ -389,6 +546,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             }
 
             persistenceService.remove(segmentId, Segment.class);
+            segmentSizeCounters.remove(segmentId);
             List<Rule> previousRules = persistenceService.query("linkedItems", segmentId, null, Rule.class);
             clearAutoGeneratedRules(previousRules, segmentId);
         }
@@ -431,6 +589,53 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         return persistenceService.queryCount(segmentCondition, Profile.ITEM_TYPE);
     }
 
+    public SegmentSize getSegmentSize(String segmentId) {
+        return segmentSizeCounters.getSize(segmentId);
+    }
+
+    public Map<String, SegmentSize> getSegmentSizes() {
+        return segmentSizeCounters.getSizes();
+    }
+
+    public void updateSegmentMemberships(String profileId, Set<String> previousSegments, Set<String> newSegments) {
+        segmentSizeCounters.update(previousSegments, newSegments);
+        if (segmentMembershipFeed != null) {
+            segmentMembershipFeed.membershipsChanged(profileId, previousSegments, newSegments);
+        }
+    }
+
+    private void reconcileSegmentSizes() {
+        if (allSegments == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        segmentSizeCounters.startReconciliation();
+        List<String> segmentIds = new ArrayList<>();
+        for (Segment segment : allSegments) {
+            segmentIds.add(segment.getItemId());
+        }
+        Map<String, Long> counts = new HashMap<>();
+        long searchStartTime = System.currentTimeMillis();
+        CloseableIterator<AggregateBucket> segmentCounts = persistenceService.aggregateIterator(null, "segments", Profile.ITEM_TYPE, aggregateQueryBucketSize);
+        if (segmentCounts == null) {
+            logger.warn("Couldn't count the profiles of the segments, sizes will be reconciled later");
+            return;
+        }
+        try {
+            while (segmentCounts.hasNext()) {
+                AggregateBucket count = segmentCounts.next();
+                counts.put(count.getKey(), count.getDocCount());
+            }
+        } catch (IllegalStateException e) {
+            logger.warn("Couldn't count the profiles of the segments, sizes will be reconciled later", e);
+            return;
+        } finally {
+            segmentCounts.close();
+        }
+        segmentSizeCounters.reconcile(segmentIds, counts, searchStartTime);
+        logger.debug("Reconciled the sizes of {} segments in {}ms", segmentIds.size(), System.currentTimeMillis() - startTime);
+    }
+
     public Boolean isProfileInSegment(Profile profile, String segmentId) {
         Set<String> matchingSegments = getSegmentsAndScoresForProfile(profile).getSegments();
 
@@ -438,35 +643,212 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     }
 
     public SegmentsAndScores getSegmentsAndScoresForProfile(Profile profile) {
-        Set<String> segments = new HashSet<String>();
-        Map<String, Integer> scores = new HashMap<String, Integer>();
+        ProfileDependencyIndex dependencyIndex = this.dependencyIndex;
+        if (dependencyIndex == null) {
+            return new SegmentsAndScores(new HashSet<String>(), new HashMap<String, Integer>());
+        }
+        return getSegmentsAndScoresForProfile(profile, dependencyIndex, null, null);
+    }
 
-        List<Segment> allSegments = this.allSegments;
-        for (Segment segment : allSegments) {
-            if (segment.getMetadata().isEnabled() && persistenceService.testMatch(segment.getCondition(), profile)) {
-                segments.add(segment.getMetadata().getId());
-            }
+    public SegmentsAndScores getSegmentsAndScoresForProfile(Event event) {
+        Profile profile = event.getProfile();
+        ProfileDependencyIndex dependencyIndex = this.dependencyIndex;
+        if (profileChangeTracker == null || dependencyIndex == null) {
+            return getSegmentsAndScoresForProfile(profile);
         }
+        Set<String> changedFields = profileChangeTracker.getChangedFields(event, dependencyIndex.getFields());
+        SegmentsAndScores segmentsAndScores;
+        if (changedFields == null) {
+            segmentsAndScores = getSegmentsAndScoresForProfile(profile);
+        } else {
+            segmentsAndScores = getSegmentsAndScoresForProfile(profile, dependencyIndex,
+                    dependencyIndex.getAffectedSegments(changedFields), dependencyIndex.getAffectedScorings(changedFields));
+        }
+        // the memberships that will be set on the profile are now up to date with its current state
+        profileChangeTracker.reset(event, dependencyIndex.getFields());
+        return segmentsAndScores;
+    }
 
-        List<Scoring> allScoring = this.allScoring;
+    /**
+     * Evaluates the segments and scoring plans level by level, following their dependencies, so that the segments
+     * and scoring plans using {@code profileSegmentCondition} or {@code scoringCondition} see the results computed
+     * for the levels they depend on instead of the ones stored in the profile. The conditions of a level are all
+     * tested at once so that the ones that can't be evaluated locally only need one request per level.
+     * <p>
+     * The memberships and scores are kept as a bit set and an array indexed by the positions of the segments and
+     * scoring plans in the dependency index, and are only converted to a set and a map if they differ from the ones
+     * of the profile. Otherwise the sets and maps of the profile are returned, so that comparing them with the ones
+     * of the profile is immediate.
+     *
+     * @param segmentsToEvaluate the segments impacted by the modifications of the profile, or {@code null} to
+     *                           evaluate all the segments
+     * @param scoringsToEvaluate the scoring plans impacted by the modifications of the profile, or {@code null} to
+     *                           evaluate all the scoring plans
+     */
+    private SegmentsAndScores getSegmentsAndScoresForProfile(Profile profile, ProfileDependencyIndex dependencyIndex, BitSet segmentsToEvaluate, BitSet scoringsToEvaluate) {
+        List<Segment> indexedSegments = dependencyIndex.getSegments();
+        List<Scoring> indexedScorings = dependencyIndex.getScorings();
+        SegmentDependencyGraph dependencyGraph = dependencyIndex.getDependencyGraph();
+        int segmentCount = indexedSegments.size();
         Map<String, Integer> scoreModifiers = (Map<String, Integer>) profile.getSystemProperties().get("scoreModifiers");
-        for (Scoring scoring : allScoring) {
-            if (scoring.getMetadata().isEnabled()) {
-                int score = 0;
-                for (ScoringElement scoringElement : scoring.getElements()) {
-                    if (persistenceService.testMatch(scoringElement.getCondition(), profile)) {
-                        score += scoringElement.getValue();
+
+        // the profile also differs from the result if it has memberships or scores for unknown or disabled items
+        boolean profileDiffers = profile.getSegments() == null || profile.getScores() == null;
+        BitSet previousMemberships = new BitSet(segmentCount);
+        if (profile.getSegments() != null) {
+            for (String segmentId : profile.getSegments()) {
+                int position = dependencyIndex.getSegmentPosition(segmentId);
+                if (position >= 0) {
+                    previousMemberships.set(position);
+                } else {
+                    profileDiffers = true;
+                }
+            }
+        }
+        int[] previousScores = new int[indexedScorings.size()];
+        BitSet previousScored = new BitSet(indexedScorings.size());
+        if (profile.getScores() != null) {
+            for (Map.Entry<String, Integer> score : profile.getScores().entrySet()) {
+                int position = dependencyIndex.getScoringPosition(score.getKey());
+                if (position >= 0 && score.getValue() != null) {
+                    previousScores[position] = score.getValue();
+                    previousScored.set(position);
+                } else {
+                    profileDiffers = true;
+                }
+            }
+        }
+        if (previousScored.cardinality() < indexedScorings.size()) {
+            profileDiffers = true;
+        }
+
+        BitSet memberships = new BitSet(segmentCount);
+        int[] scores = new int[indexedScorings.size()];
+        // the segments and scoring plans whose result differs from the one stored in the profile
+        BitSet changedNodes = new BitSet();
+        Profile evaluatedProfile = profile;
+        for (int[] level : dependencyGraph.getLevels()) {
+            if (!changedNodes.isEmpty()) {
+                evaluatedProfile = getProfileWithResults(profile, dependencyIndex, changedNodes, memberships, scores);
+            }
+
+            BitSet evaluatedNodes = new BitSet();
+            List<Condition> conditions = new ArrayList<>();
+            for (int node : level) {
+                if (!mustEvaluate(node, segmentCount, segmentsToEvaluate, scoringsToEvaluate, previousScored, dependencyGraph, changedNodes)) {
+                    continue;
+                }
+                evaluatedNodes.set(node);
+                if (node < segmentCount) {
+                    conditions.add(getEvaluatedCondition(indexedSegments.get(node), indexedSegments.get(node).getCondition()));
+                } else {
+                    for (ScoringElement scoringElement : indexedScorings.get(node - segmentCount).getElements()) {
+                        conditions.add(getEvaluatedCondition(scoringElement, scoringElement.getCondition()));
                     }
                 }
-                String scoringId = scoring.getMetadata().getId();
-                if (scoreModifiers != null && scoreModifiers.containsKey(scoringId) && scoreModifiers.get(scoringId) != null) {
-                    score += scoreModifiers.get(scoringId);
+            }
+            Iterator<Boolean> matches = conditions.isEmpty() ? Collections.<Boolean>emptyIterator() : persistenceService.testMatch(conditions, evaluatedProfile).iterator();
+
+            for (int node : level) {
+                if (node < segmentCount) {
+                    boolean previous = previousMemberships.get(node);
+                    boolean matching = evaluatedNodes.get(node) ? matches.next() : previous;
+                    memberships.set(node, matching);
+                    if (matching != previous) {
+                        changedNodes.set(node);
+                    }
+                } else {
+                    int position = node - segmentCount;
+                    int score = previousScores[position];
+                    if (evaluatedNodes.get(node)) {
+                        Scoring scoring = indexedScorings.get(position);
+                        score = 0;
+                        for (ScoringElement scoringElement : scoring.getElements()) {
+                            if (matches.next()) {
+                                score += scoringElement.getValue();
+                            }
+                        }
+                        Integer scoreModifier = scoreModifiers != null ? scoreModifiers.get(scoring.getMetadata().getId()) : null;
+                        if (scoreModifier != null) {
+                            score += scoreModifier;
+                        }
+                    }
+                    scores[position] = score;
+                    if (score != previousScores[position] || !previousScored.get(position)) {
+                        changedNodes.set(node);
+                    }
                 }
-                scores.put(scoringId, score);
             }
         }
 
-        return new SegmentsAndScores(segments, scores);
+        if (!profileDiffers && changedNodes.isEmpty()) {
+            return new SegmentsAndScores(profile.getSegments(), profile.getScores());
+        }
+        return new SegmentsAndScores(getSegmentIds(dependencyIndex, memberships), getScores(dependencyIndex, scores));
+    }
+
+    private boolean mustEvaluate(int node, int segmentCount, BitSet segmentsToEvaluate, BitSet scoringsToEvaluate, BitSet previousScored,
+                                 SegmentDependencyGraph dependencyGraph, BitSet changedNodes) {
+        if (node < segmentCount) {
+            if (segmentsToEvaluate == null || segmentsToEvaluate.get(node)) {
+                return true;
+            }
+        } else if (scoringsToEvaluate == null || scoringsToEvaluate.get(node - segmentCount) || !previousScored.get(node - segmentCount)) {
+            return true;
+        }
+        // the result of a segment or scoring plan it depends on changed during this evaluation
+        for (int dependency : dependencyGraph.getDependencies(node)) {
+            if (changedNodes.get(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getSegmentIds(ProfileDependencyIndex dependencyIndex, BitSet memberships) {
+        Set<String> segmentIds = new HashSet<>(Math.max(16, memberships.cardinality() * 2));
+        for (int position = memberships.nextSetBit(0); position >= 0; position = memberships.nextSetBit(position + 1)) {
+            segmentIds.add(dependencyIndex.getSegmentId(position));
+        }
+        return segmentIds;
+    }
+
+    private Map<String, Integer> getScores(ProfileDependencyIndex dependencyIndex, int[] scores) {
+        Map<String, Integer> scoresById = new HashMap<>(Math.max(16, scores.length * 2));
+        for (int position = 0; position < scores.length; position++) {
+            scoresById.put(dependencyIndex.getScoringId(position), scores[position]);
+        }
+        return scoresById;
+    }
+
+    /**
+     * @return a copy of the profile sharing its properties, with the segments and scores computed so far
+     */
+    private Profile getProfileWithResults(Profile profile, ProfileDependencyIndex dependencyIndex, BitSet changedNodes, BitSet memberships, int[] scores) {
+        Set<String> profileSegments = profile.getSegments() != null ? new HashSet<>(profile.getSegments()) : new HashSet<String>();
+        Map<String, Integer> profileScores = profile.getScores() != null ? new HashMap<>(profile.getScores()) : new HashMap<String, Integer>();
+        int segmentCount = dependencyIndex.getSegments().size();
+        for (int node = changedNodes.nextSetBit(0); node >= 0; node = changedNodes.nextSetBit(node + 1)) {
+            if (node < segmentCount) {
+                if (memberships.get(node)) {
+                    profileSegments.add(dependencyIndex.getSegmentId(node));
+                } else {
+                    profileSegments.remove(dependencyIndex.getSegmentId(node));
+                }
+            } else {
+                profileScores.put(dependencyIndex.getScoringId(node - segmentCount), scores[node - segmentCount]);
+            }
+        }
+        Profile evaluatedProfile = new Profile(profile.getItemId());
+        evaluatedProfile.setScope(profile.getScope());
+        evaluatedProfile.setVersion(profile.getVersion());
+        evaluatedProfile.setProperties(profile.getProperties());
+        evaluatedProfile.setSystemProperties(profile.getSystemProperties());
+        evaluatedProfile.getConsents().putAll(profile.getConsents());
+        evaluatedProfile.setMergedWith(profile.getMergedWith());
+        evaluatedProfile.setSegments(profileSegments);
+        evaluatedProfile.setScores(profileScores);
+        return evaluatedProfile;
     }
 
     public List<Metadata> getSegmentMetadatasForProfile(Profile profile) {
@@ -474,7 +856,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
 
         List<Segment> allSegments = this.allSegments;
         for (Segment segment : allSegments) {
-            if (persistenceService.testMatch(segment.getCondition(), profile)) {
+            if (persistenceService.testMatch(getEvaluatedCondition(segment, segment.getCondition()), profile)) {
                 metadatas.add(segment.getMetadata());
             }
         }
@@ -482,6 +864,15 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         return metadatas;
     }
 
+    /**
+     * Returns the optimized copy of the condition of a segment or scoring element, or its own condition if it was
+     * not optimized, e.g. because it was saved since the last refresh.
+     */
+    private Condition getEvaluatedCondition(Object item, Condition condition) {
+        Condition optimizedCondition = optimizedConditions.get(item);
+        return optimizedCondition != null ? optimizedCondition : condition;
+    }
+
     public PartialList<Metadata> getScoringMetadatas(int offset, int size, String sortBy) {
         return getMetadatas(offset, size, sortBy, Scoring.class);
     }
@@ -514,9 +905,15 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         for (ScoringElement element : scoring.getElements()) {
             ParserHelper.resolveConditionType(definitionsService, element.getCondition());
         }
+        if (scoring.getMetadata().isEnabled() && !scoring.getMetadata().isMissingPlugins()) {
+            checkDependencyCycle(scoring, replaceDefinition(allSegments, null), replaceDefinition(allScoring, scoring));
+        }
         for (ScoringElement element : scoring.getElements()) {
             if (scoring.getMetadata().isEnabled() && !scoring.getMetadata().isMissingPlugins()) {
                 updateAutoGeneratedRules(scoring.getMetadata(), element.getCondition());
+                if (element.getCondition() != null && !persistenceService.isLocallyEvaluable(element.getCondition())) {
+                    logger.warn("Scoring {} uses conditions that can't be evaluated locally, each profile evaluation will require a query to the persistence back-end", scoring.getItemId());
+                }
             }
         }
         // make sure we update the name and description metadata that might not match, so first we remove the entry from the map
@@ -737,7 +1134,7 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
                     rule.setLinkedItems(Arrays.asList(metadata.getId()));
                     rules.add(rule);
 
-                    updateExistingProfilesForPastEventCondition(condition, parentCondition);
+                    updateExistingProfilesForPastEventConditions(Collections.singletonList(parentCondition));
                 } else {
                     rule.getLinkedItems().add(metadata.getId());
                     rules.add(rule);
@@ -759,51 +1156,21 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
         }
     }
 
-    private void updateExistingProfilesForPastEventCondition(Condition eventCondition, Condition parentCondition) {
-        long t = System.currentTimeMillis();
-        List<Condition> l = new ArrayList<Condition>();
-        Condition andCondition = new Condition();
-        andCondition.setConditionType(definitionsService.getConditionType("booleanCondition"));
-        andCondition.setParameter("operator", "and");
-        andCondition.setParameter("subConditions", l);
-
-        l.add(eventCondition);
-
-        Integer numberOfDays = (Integer) parentCondition.getParameter("numberOfDays");
-        if (numberOfDays != null) {
-            Condition numberOfDaysCondition = new Condition();
-            numberOfDaysCondition.setConditionType(definitionsService.getConditionType("sessionPropertyCondition"));
-            numberOfDaysCondition.setParameter("propertyName", "timeStamp");
-            numberOfDaysCondition.setParameter("comparisonOperator", "greaterThan");
-            numberOfDaysCondition.setParameter("propertyValue", "now-" + numberOfDays + "d");
-            l.add(numberOfDaysCondition);
-        }
-        String propertyKey = (String) parentCondition.getParameter("generatedPropertyKey");
-
-        Map<String, Double> m = persistenceService.getSingleValuesMetrics(andCondition, new String[]{"card"}, "profileId.keyword", Event.ITEM_TYPE);
-        long card = m.get("_card").longValue();
-
-        int numParts = (int) (card / aggregateQueryBucketSize) + 2;
-        for (int i = 0; i < numParts; i++) {
-            Map<String, Long> eventCountByProfile = persistenceService.aggregateWithOptimizedQuery(andCondition, new TermsAggregate("profileId", i, numParts), Event.ITEM_TYPE);
-            for (Map.Entry<String, Long> entry : eventCountByProfile.entrySet()) {
-                String profileId = entry.getKey();
-                if (!profileId.startsWith("_")) {
-                    Map<String, Long> pastEventCounts = new HashMap<>();
-                    pastEventCounts.put(propertyKey, entry.getValue());
-                    Map<String, Object> systemProperties = new HashMap<>();
-                    systemProperties.put("pastEvents", pastEventCounts);
-                    try {
-                        systemProperties.put("lastUpdated", new Date());
-                        persistenceService.update(profileId, null, Profile.class, "systemProperties", systemProperties);
-                    } catch (Exception e) {
-                        logger.error("Error updating profile {} past event system properties", profileId, e);
-                    }
+    /**
+     * Recomputes in the background the counts of the profiles for past event conditions, the jobs being run one
+     * after the other with the segment backfills.
+     */
+    private void updateExistingProfilesForPastEventConditions(final List<Condition> pastEventConditions) {
+        profileBackfillEngine.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pastEventCountsUpdater.update(pastEventConditions);
+                } catch (Throwable t) {
+                    logger.error("Error while updating profiles for past event conditions", t);
                 }
             }
-        }
-
-        logger.info("Profiles past condition updated in {}ms", System.currentTimeMillis() - t);
+        });
     }
 
     public String getGeneratedPropertyKey(Condition condition, Condition parentCondition) {
@@ -834,15 +1201,17 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
     }
 
     private void updateExistingProfilesForSegment(Segment segment) {
-        long updateProfilesForSegmentStartTime = System.currentTimeMillis();
-        Condition segmentCondition = new Condition();
-
-        long updatedProfileCount = 0;
+        updateExistingProfilesForSegment(segment, null, null);
+    }
 
-        segmentCondition.setConditionType(definitionsService.getConditionType("profilePropertyCondition"));
-        segmentCondition.setParameter("propertyName", "segments");
-        segmentCondition.setParameter("comparisonOperator", "equals");
-        segmentCondition.setParameter("propertyValue", segment.getItemId());
+    /**
+     * @param checkpoint the checkpoint of an interrupted update to resume, or {@code null}
+     * @param scope      the condition restricting the profiles whose membership may have changed, or {@code null} to
+     *                   update all the profiles
+     */
+    private void updateExistingProfilesForSegment(Segment segment, SegmentBackfillCheckpoint checkpoint, Condition scope) {
+        long updateProfilesForSegmentStartTime = System.currentTimeMillis();
+        Condition segmentCondition = getSegmentMembershipCondition(segment.getItemId());
 
         if (segment.getMetadata().isEnabled()) {
 
@@ -856,6 +1225,9 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             Condition notOldSegmentCondition = new Condition(notConditionType);
             notOldSegmentCondition.setParameter("subCondition", segmentCondition);
             profilesToAddSubConditions.add(notOldSegmentCondition);
+            if (scope != null) {
+                profilesToAddSubConditions.add(scope);
+            }
             profilesToAddCondition.setParameter("subConditions", profilesToAddSubConditions);
 
             Condition profilesToRemoveCondition = new Condition(booleanConditionType);
@@ -865,133 +1237,403 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             Condition notNewSegmentCondition = new Condition(notConditionType);
             notNewSegmentCondition.setParameter("subCondition", segment.getCondition());
             profilesToRemoveSubConditions.add(notNewSegmentCondition);
+            if (scope != null) {
+                profilesToRemoveSubConditions.add(scope);
+            }
             profilesToRemoveCondition.setParameter("subConditions", profilesToRemoveSubConditions);
 
-            PartialList<Profile> profilesToRemove = persistenceService.query(profilesToRemoveCondition, null, Profile.class, 0, segmentUpdateBatchSize, "10m");
-            PartialList<Profile> profilesToAdd = persistenceService.query(profilesToAddCondition, null, Profile.class, 0, segmentUpdateBatchSize, "10m");
-
-            while (profilesToAdd.getList().size() > 0) {
-                long profilesToAddStartTime = System.currentTimeMillis();
-                for (Profile profileToAdd : profilesToAdd.getList()) {
-                    profileToAdd.getSegments().add(segment.getItemId());
-                    Map<String,Object> sourceMap = new HashMap<>();
-                    sourceMap.put("segments", profileToAdd.getSegments());
-                    profileToAdd.setSystemProperty("lastUpdated", new Date());
-                    sourceMap.put("systemProperties", profileToAdd.getSystemProperties());
-                    persistenceService.update(profileToAdd.getItemId(), null, Profile.class, sourceMap);
-                    Event profileUpdated = new Event("profileUpdated", null, profileToAdd, null, null, profileToAdd, new Date());
-                    profileUpdated.setPersistent(false);
-                    eventService.send(profileUpdated);
-                    updatedProfileCount++;
+            if (segmentUpdateBulk) {
+                startSegmentRecomputeJob(segment.getItemId(), profilesToAddCondition, profilesToRemoveCondition);
+                return;
+            }
+
+            if (checkpoint == null || checkpoint.isSegmentRemoved()) {
+                checkpoint = new SegmentBackfillCheckpoint(segment.getItemId(), false);
+            }
+            if (SegmentBackfillCheckpoint.PHASE_ADD.equals(checkpoint.getPhase())) {
+                backfillSegment(checkpoint, profilesToAddCondition, true, true);
+                checkpoint.setPhase(SegmentBackfillCheckpoint.PHASE_REMOVE);
+            }
+            backfillSegment(checkpoint, profilesToRemoveCondition, false, true);
+        } else {
+            if (segmentUpdateBulk) {
+                startSegmentRecomputeJob(segment.getItemId(), null, segmentCondition);
+                return;
+            }
+            if (checkpoint == null || !SegmentBackfillCheckpoint.PHASE_REMOVE.equals(checkpoint.getPhase())) {
+                checkpoint = new SegmentBackfillCheckpoint(segment.getItemId(), false);
+                checkpoint.setPhase(SegmentBackfillCheckpoint.PHASE_REMOVE);
+            }
+            backfillSegment(checkpoint, segmentCondition, false, true);
+        }
+        persistenceService.remove(checkpoint.getItemId(), SegmentBackfillCheckpoint.class);
+        logger.info("{} profiles updated in {}ms", checkpoint.getUpdatedCount(), System.currentTimeMillis() - updateProfilesForSegmentStartTime);
+    }
+
+    private Condition getSegmentMembershipCondition(String segmentId) {
+        Condition segmentCondition = new Condition();
+        segmentCondition.setConditionType(definitionsService.getConditionType("profilePropertyCondition"));
+        segmentCondition.setParameter("propertyName", "segments");
+        segmentCondition.setParameter("comparisonOperator", "equals");
+        segmentCondition.setParameter("propertyValue", segmentId);
+        return segmentCondition;
+    }
+
+    /**
+     * Adds the segment to or removes it from the profiles matching a condition, saving the progress in the checkpoint
+     * after each batch. As the updated profiles don't match the condition anymore, resuming the update with the same
+     * checkpoint only processes the remaining profiles.
+     */
+    private void backfillSegment(final SegmentBackfillCheckpoint checkpoint, Condition condition, final boolean add, final boolean sendProfileUpdated) {
+        final String segmentId = checkpoint.getItemId();
+        runningBackfills.add(segmentId);
+        try {
+            persistenceService.save(checkpoint);
+            // the whole profiles are only needed by the profileUpdated events
+            final boolean fullProfiles = sendProfileUpdated && segmentUpdateProfileUpdatedEvents;
+            profileBackfillEngine.backfill(condition, fullProfiles ? null : SEGMENT_MEMBERSHIP_PROPERTIES, new ProfileBackfillEngine.ProfileProcessor() {
+                @Override
+                public Map<String, Object> process(Profile profile) {
+                    boolean changed = add ? profile.getSegments().add(segmentId) : profile.getSegments().remove(segmentId);
+                    if (!changed) {
+                        return null;
+                    }
+                    Map<String, Object> sourceMap = new HashMap<>();
+                    sourceMap.put("segments", profile.getSegments());
+                    Date lastUpdated = new Date();
+                    profile.setSystemProperty("lastUpdated", lastUpdated);
+                    // the system properties are merged with the stored ones by the partial update
+                    sourceMap.put("systemProperties", Collections.singletonMap("lastUpdated", lastUpdated));
+                    return sourceMap;
                 }
-                logger.info("{} profiles added to segment in {}ms", profilesToAdd.size(), System.currentTimeMillis() - profilesToAddStartTime);
-                profilesToAdd = persistenceService.continueScrollQuery(Profile.class, profilesToAdd.getScrollIdentifier(), profilesToAdd.getScrollTimeValidity());
-                if (profilesToAdd == null || profilesToAdd.getList().size() == 0) {
-                    break;
+
+                @Override
+                public void updated(List<Profile> profiles) {
+                    if (segmentMembershipFeed != null) {
+                        Date timestamp = new Date();
+                        SegmentMembershipChange.Type type = add ? SegmentMembershipChange.Type.ENTERED : SegmentMembershipChange.Type.LEFT;
+                        for (Profile profile : profiles) {
+                            segmentMembershipFeed.publish(new SegmentMembershipChange(segmentId, profile.getItemId(), type, timestamp));
+                        }
+                    }
+                    if (!sendProfileUpdated || !segmentUpdateProfileUpdatedEvents) {
+                        return;
+                    }
+                    for (Profile profile : profiles) {
+                        Event profileUpdated = new Event("profileUpdated", null, profile, null, null, profile, new Date());
+                        profileUpdated.setPersistent(false);
+                        eventService.send(profileUpdated);
+                    }
+                }
+            }, new ProfileBackfillEngine.ProgressListener() {
+                @Override
+                public void batchProcessed(int processedCount, int updatedCount) {
+                    synchronized (checkpoint) {
+                        checkpoint.setProcessedCount(checkpoint.getProcessedCount() + processedCount);
+                        checkpoint.setUpdatedCount(checkpoint.getUpdatedCount() + updatedCount);
+                        checkpoint.setLastUpdateDate(new Date());
+                        persistenceService.save(checkpoint);
+                    }
+                    segmentSizeCounters.add(segmentId, add ? updatedCount : -updatedCount);
+                    logger.info("{} profiles {} segment {}", updatedCount, add ? "added to" : "removed from", segmentId);
                 }
+            });
+        } finally {
+            runningBackfills.remove(segmentId);
+        }
+    }
+
+    /**
+     * Resumes the updates of segment memberships whose checkpoint was not saved for a while, because the server
+     * running them was stopped.
+     */
+    private void resumeInterruptedBackfills() {
+        long staleDate = System.currentTimeMillis() - segmentBackfillResumeDelay;
+        for (final SegmentBackfillCheckpoint checkpoint : persistenceService.getAllItems(SegmentBackfillCheckpoint.class)) {
+            if (runningBackfills.contains(checkpoint.getItemId()) || checkpoint.getLastUpdateDate() == null || checkpoint.getLastUpdateDate().getTime() > staleDate) {
+                continue;
+            }
+            // claim the checkpoint before it is picked by the background thread, the update only succeeds on one node
+            long now = System.currentTimeMillis();
+            Map<String, Object> params = new HashMap<>();
+            params.put("staleDate", staleDate);
+            params.put("now", now);
+            if (!persistenceService.conditionalUpdateWithScript(checkpoint.getItemId(), null, SegmentBackfillCheckpoint.class, CLAIM_BACKFILL_SCRIPT, params)) {
+                logger.debug("The update of the profiles of segment {} was already resumed by another node", checkpoint.getItemId());
+                continue;
             }
-            while (profilesToRemove.getList().size() > 0) {
-                long profilesToRemoveStartTime = System.currentTimeMillis();
-                for (Profile profileToRemove : profilesToRemove.getList()) {
-                    profileToRemove.getSegments().remove(segment.getItemId());
-                    Map<String,Object> sourceMap = new HashMap<>();
-                    sourceMap.put("segments", profileToRemove.getSegments());
-                    profileToRemove.setSystemProperty("lastUpdated", new Date());
-                    sourceMap.put("systemProperties", profileToRemove.getSystemProperties());
-                    persistenceService.update(profileToRemove.getItemId(), null, Profile.class, sourceMap);
-                    Event profileUpdated = new Event("profileUpdated", null, profileToRemove, null, null, profileToRemove, new Date());
-                    profileUpdated.setPersistent(false);
-                    eventService.send(profileUpdated);
-                    updatedProfileCount++;
+            checkpoint.setLastUpdateDate(new Date(now));
+            logger.info("Resuming the update of the profiles of segment {} after {} processed profiles", checkpoint.getItemId(), checkpoint.getProcessedCount());
+            profileBackfillEngine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Segment segment = checkpoint.isSegmentRemoved() ? null : getSegmentDefinition(checkpoint.getItemId());
+                        if (segment != null) {
+                            updateExistingProfilesForSegment(segment, checkpoint, null);
+                        } else {
+                            removeSegmentFromProfiles(checkpoint.getItemId(), checkpoint);
+                        }
+                    } catch (Throwable t) {
+                        logger.error("Error while resuming the update of the profiles of segment " + checkpoint.getItemId(), t);
+                    }
                 }
-                logger.info("{} profiles removed from segment in {}ms", profilesToRemove.size(), System.currentTimeMillis() - profilesToRemoveStartTime );
-                profilesToRemove = persistenceService.continueScrollQuery(Profile.class, profilesToRemove.getScrollIdentifier(), profilesToRemove.getScrollTimeValidity());
-                if (profilesToRemove == null || profilesToRemove.getList().size() == 0) {
-                    break;
+            });
+        }
+    }
+
+    /**
+     * Updates the memberships of the profiles whose property values were crossed by the time boundaries of the segments
+     * since the previous check, such as the profiles whose last visit became older than 30 days, instead of updating
+     * all the profiles of the segments.
+     * <p>
+     * The update only runs on the node running the scheduled purges. The date of the last check is persisted, so that
+     * the boundaries crossed while no node was running the update are not missed.
+     */
+    private void updateProfilesCrossingTimeBoundaries() {
+        ProfileDependencyIndex dependencyIndex = this.dependencyIndex;
+        if (dependencyIndex == null || (purgeEngine != null && !purgeEngine.isScheduledPurgeNode())) {
+            return;
+        }
+        Date now = new Date();
+        SegmentTimeBoundariesCheck lastCheck = persistenceService.load(SegmentTimeBoundariesCheck.ID, SegmentTimeBoundariesCheck.class);
+        Date since = lastCheck != null && lastCheck.getLastCheckDate() != null ? lastCheck.getLastCheckDate() : new Date(now.getTime() - segmentTimeBoundariesInterval);
+        for (final Segment segment : dependencyIndex.getSegments()) {
+            Set<TimeBoundary> timeBoundaries = dependencyIndex.getTimeBoundaries().get(segment.getItemId());
+            if (timeBoundaries == null) {
+                continue;
+            }
+            List<Condition> crossedConditions = new ArrayList<>();
+            for (TimeBoundary timeBoundary : timeBoundaries) {
+                crossedConditions.add(timeBoundary.getCrossedCondition(since, definitionsService));
+            }
+            final Condition scope;
+            if (crossedConditions.size() == 1) {
+                scope = crossedConditions.get(0);
+            } else {
+                scope = new Condition(definitionsService.getConditionType("booleanCondition"));
+                scope.setParameter("operator", "or");
+                scope.setParameter("subConditions", crossedConditions);
+            }
+            logger.debug("Updating the profiles of segment {} crossing {} since {}", segment.getItemId(), timeBoundaries, since);
+            profileBackfillEngine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateExistingProfilesForSegment(segment, null, scope);
+                    } catch (Throwable t) {
+                        logger.error("Error while updating the profiles crossing the time boundaries of segment " + segment.getItemId(), t);
+                    }
                 }
+            });
+        }
+        persistenceService.save(new SegmentTimeBoundariesCheck(now));
+    }
+
+    private void removeSegmentFromProfiles(String segmentId, SegmentBackfillCheckpoint checkpoint) {
+        long profileRemovalStartTime = System.currentTimeMillis();
+        if (checkpoint == null) {
+            checkpoint = new SegmentBackfillCheckpoint(segmentId, true);
+        }
+        checkpoint.setPhase(SegmentBackfillCheckpoint.PHASE_REMOVE);
+        backfillSegment(checkpoint, getSegmentMembershipCondition(segmentId), false, false);
+        persistenceService.remove(checkpoint.getItemId(), SegmentBackfillCheckpoint.class);
+        logger.info("Removed segment from {} profiles in {} ms", checkpoint.getUpdatedCount(), System.currentTimeMillis() - profileRemovalStartTime);
+    }
+
+    public List<SegmentRecomputeJob> getSegmentRecomputeJobs() {
+        synchronized (recomputeJobs) {
+            return new ArrayList<>(recomputeJobs.values());
+        }
+    }
+
+    public SegmentRecomputeJob getSegmentRecomputeJob(String jobId) {
+        return recomputeJobs.get(jobId);
+    }
+
+    private SegmentRecomputeJob startSegmentRecomputeJob(String segmentId, Condition profilesToAddCondition, Condition profilesToRemoveCondition) {
+        Map<String, Object> params = Collections.<String, Object>singletonMap("segmentId", segmentId);
+        List<Step> steps = new ArrayList<>();
+        if (profilesToAddCondition != null) {
+            steps.add(new Step(ADD_SEGMENT_SCRIPT, params, profilesToAddCondition, true, true));
+        }
+        steps.add(new Step(REMOVE_SEGMENT_SCRIPT, params, profilesToRemoveCondition, false, true));
+        SegmentRecomputeJob job = new SegmentRecomputeJob(UUID.randomUUID().toString(), segmentId, steps.size());
+        recomputeJobs.put(job.getJobId(), job);
+        new SegmentRecomputeTask(job, steps).start();
+        logger.info("Started job {} to update the profiles of segment {}", job.getJobId(), segmentId);
+        return job;
+    }
+
+    /**
+     * Runs the update by query tasks of a job updating the profiles, each one being sliced and throttled.
+     */
+    private abstract class ProfilesUpdateTask<J extends BackgroundJob> extends BackgroundJobTask<J> {
+        protected final List<Step> steps;
+
+        ProfilesUpdateTask(J job, List<Step> steps) {
+            super(job, SegmentServiceImpl.this.persistenceService, schedulerService.getScheduleExecutorService(), segmentUpdatePollInterval);
+            this.steps = steps;
+        }
+
+        @Override
+        protected String startStep(int step) {
+            Step currentStep = steps.get(step);
+            String taskId = persistenceService.startUpdateWithQueryAndScript(Profile.class, currentStep.script, currentStep.params, currentStep.condition,
+                    segmentUpdateSlices, segmentUpdateRequestsPerSecond);
+            if (taskId == null) {
+                throw new IllegalStateException("Could not start the update of the profiles");
             }
+            return taskId;
+        }
 
-        } else {
-            PartialList<Profile> profilesToRemove = persistenceService.query(segmentCondition, null, Profile.class, 0, 200, "10m");
-            while (profilesToRemove.getList().size() > 0) {
-                long profilesToRemoveStartTime = System.currentTimeMillis();
-                for (Profile profileToRemove : profilesToRemove.getList()) {
-                    profileToRemove.getSegments().remove(segment.getItemId());
-                    Map<String,Object> sourceMap = new HashMap<>();
-                    sourceMap.put("segments", profileToRemove.getSegments());
-                    profileToRemove.setSystemProperty("lastUpdated", new Date());
-                    sourceMap.put("systemProperties", profileToRemove.getSystemProperties());
-                    persistenceService.update(profileToRemove.getItemId(), null, Profile.class, sourceMap);
-                    Event profileUpdated = new Event("profileUpdated", null, profileToRemove, null, null, profileToRemove, new Date());
-                    profileUpdated.setPersistent(false);
-                    eventService.send(profileUpdated);
-                    updatedProfileCount++;
-                }
-                logger.info("{} profiles removed from segment in {}ms", profilesToRemove.size(), System.currentTimeMillis() - profilesToRemoveStartTime);
-                profilesToRemove = persistenceService.continueScrollQuery(Profile.class, profilesToRemove.getScrollIdentifier(), profilesToRemove.getScrollTimeValidity());
-                if (profilesToRemove == null || profilesToRemove.getList().size() == 0) {
-                    break;
-                }
+        @Override
+        protected boolean isRetryable(int step) {
+            return steps.get(step).retryable;
+        }
+    }
+
+    /**
+     * Adds the segment to the profiles entering it, then removes it from the profiles leaving it.
+     */
+    private class SegmentRecomputeTask extends ProfilesUpdateTask<SegmentRecomputeJob> {
+
+        SegmentRecomputeTask(SegmentRecomputeJob job, List<Step> steps) {
+            super(job, steps);
+        }
+
+        @Override
+        protected void updateCounts(int step, long stepModified, long modified) {
+            if (steps.get(step).add) {
+                job.setAdded(stepModified);
+            } else {
+                job.setRemoved(stepModified);
+            }
+        }
+
+        @Override
+        protected void stepCompleted(int step, long stepModified) {
+            boolean add = steps.get(step).add;
+            segmentSizeCounters.add(job.getSegmentId(), add ? stepModified : -stepModified);
+            if (stepModified > 0) {
+                // a single notification for all the profiles updated by the step
+                Event event = new Event("segmentMembershipUpdated", null, null, null, null, null, new Date());
+                event.setProperty("jobId", job.getJobId());
+                event.setProperty("segmentId", job.getSegmentId());
+                event.setProperty("operation", add ? "add" : "remove");
+                event.setProperty("profileCount", stepModified);
+                eventService.send(event);
             }
         }
-        logger.info("{} profiles updated in {}ms", updatedProfileCount, System.currentTimeMillis() - updateProfilesForSegmentStartTime);
+
+        @Override
+        protected String getDescription() {
+            return "updating the profiles of segment " + job.getSegmentId();
+        }
     }
 
-    private void updateExistingProfilesForScoring(Scoring scoring) {
-        long startTime = System.currentTimeMillis();
-        Condition scoringCondition = new Condition();
-        scoringCondition.setConditionType(definitionsService.getConditionType("profilePropertyCondition"));
-        scoringCondition.setParameter("propertyName", "scores." + scoring.getItemId());
-        scoringCondition.setParameter("comparisonOperator", "exists");
+    private static class Step {
+        private final String script;
+        private final Map<String, Object> params;
+        private final Condition condition;
+        private final boolean add;
+        private final boolean retryable;
+
+        Step(String script, Map<String, Object> params, Condition condition, boolean add, boolean retryable) {
+            this.script = script;
+            this.params = params;
+            this.condition = condition;
+            this.add = add;
+            this.retryable = retryable;
+        }
+    }
 
-        String[] scripts = new String[scoring.getElements().size() + 1];
-        HashMap<String, Object>[] scriptParams = new HashMap[scoring.getElements().size() + 1];
-        Condition[] conditions = new Condition[scoring.getElements().size() + 1];
+    public List<ScoringRecomputeJob> getScoringRecomputeJobs() {
+        synchronized (scoringRecomputeJobs) {
+            return new ArrayList<>(scoringRecomputeJobs.values());
+        }
+    }
 
-        String lastUpdatedScriptPart = " if (!ctx._source.containsKey(\"systemProperties\")) { ctx._source.put(\"systemProperties\", [:]) } ctx._source.systemProperties.put(\"lastUpdated\", ZonedDateTime.ofInstant(Instant.ofEpochMilli(System.currentTimeMillis()), ZoneId.of(\"Z\")))";
+    public ScoringRecomputeJob getScoringRecomputeJob(String jobId) {
+        return scoringRecomputeJobs.get(jobId);
+    }
 
-        scriptParams[0] = new HashMap<String, Object>();
-        scriptParams[0].put("scoringId", scoring.getItemId());
-        scripts[0] = "if (ctx._source.containsKey(\"systemProperties\") && ctx._source.systemProperties.containsKey(\"scoreModifiers\") && ctx._source.systemProperties.scoreModifiers.containsKey(params.scoringId) ) { ctx._source.scores.put(params.scoringId, ctx._source.systemProperties.scoreModifiers.get(params.scoringId)) } else { ctx._source.scores.remove(params.scoringId) } " +
-                lastUpdatedScriptPart;
-        conditions[0] = scoringCondition;
+    public boolean cancelScoringRecomputeJob(String jobId) {
+        ScoringRecomputeJob job = scoringRecomputeJobs.get(jobId);
+        if (job == null) {
+            return false;
+        }
+        ScoringRecomputeTask task = runningScoringTasks.get(job.getScoringId());
+        return task != null && task.getJob() == job && task.cancel();
+    }
 
+    private void updateExistingProfilesForScoring(Scoring scoring) {
+        List<Step> steps = new ArrayList<>();
+        steps.add(new Step(RESET_SCORE_SCRIPT, Collections.<String, Object>singletonMap("scoringId", scoring.getItemId()),
+                getScoreExistsCondition(scoring.getItemId()), false, true));
         if (scoring.getMetadata().isEnabled()) {
-            String scriptToAdd = "if (!ctx._source.containsKey(\"scores\")) { ctx._source.put(\"scores\", [:])} if (ctx._source.scores.containsKey(params.scoringId) ) { ctx._source.scores.put(params.scoringId, ctx._source.scores.get(params.scoringId)+params.scoringValue) } else { ctx._source.scores.put(params.scoringId, params.scoringValue) } " +
-                    lastUpdatedScriptPart;
-            int idx = 1;
             for (ScoringElement element : scoring.getElements()) {
-                scriptParams[idx] = new HashMap<>();
-                scriptParams[idx].put("scoringId", scoring.getItemId());
-                scriptParams[idx].put("scoringValue", element.getValue());
-                scripts[idx] = scriptToAdd;
-                conditions[idx] = element.getCondition();
-                idx++;
+                Map<String, Object> params = new HashMap<>();
+                params.put("scoringId", scoring.getItemId());
+                params.put("scoringValue", element.getValue());
+                // adding the value again would count it twice for the profiles already updated
+                steps.add(new Step(ADD_SCORE_SCRIPT, params, element.getCondition(), true, false));
             }
         }
-        persistenceService.updateWithQueryAndScript(null, Profile.class, scripts, scriptParams, conditions);
-        logger.info("Updated scoring for profiles in {}ms", System.currentTimeMillis() - startTime);
+        startScoringRecomputeJob(scoring.getItemId(), steps);
     }
 
     private void updateExistingProfilesForRemovedScoring(String scoringId) {
-        long startTime = System.currentTimeMillis();
+        startScoringRecomputeJob(scoringId, Collections.singletonList(new Step(REMOVE_SCORE_SCRIPT, Collections.<String, Object>singletonMap("scoringId", scoringId),
+                getScoreExistsCondition(scoringId), false, true)));
+    }
+
+    private Condition getScoreExistsCondition(String scoringId) {
         Condition scoringCondition = new Condition();
         scoringCondition.setConditionType(definitionsService.getConditionType("profilePropertyCondition"));
         scoringCondition.setParameter("propertyName", "scores." + scoringId);
         scoringCondition.setParameter("comparisonOperator", "exists");
-        Condition[] conditions = new Condition[1];
-        conditions[0] = scoringCondition;
+        return scoringCondition;
+    }
+
+    private ScoringRecomputeJob startScoringRecomputeJob(String scoringId, List<Step> steps) {
+        ScoringRecomputeJob job = new ScoringRecomputeJob(UUID.randomUUID().toString(), scoringId, steps.size());
+        ScoringRecomputeTask task = new ScoringRecomputeTask(job, steps);
+        // the scores computed by a previous job would be mixed with the new ones
+        ScoringRecomputeTask previousTask = runningScoringTasks.put(scoringId, task);
+        if (previousTask != null) {
+            previousTask.cancel();
+        }
+        scoringRecomputeJobs.put(job.getJobId(), job);
+        task.start();
+        logger.info("Started job {} to update the scores of scoring {} in {} steps", job.getJobId(), scoringId, steps.size());
+        return job;
+    }
+
+    /**
+     * Resets the existing scores, then adds the value of each element to the matching profiles. Cancelling the job
+     * leaves the profiles already updated with their new scores, saving the scoring plan again recomputes them all.
+     */
+    private class ScoringRecomputeTask extends ProfilesUpdateTask<ScoringRecomputeJob> {
 
-        HashMap<String, Object>[] scriptParams = new HashMap[1];
-        scriptParams[0] = new HashMap<String, Object>();
-        scriptParams[0].put("scoringId", scoringId);
+        ScoringRecomputeTask(ScoringRecomputeJob job, List<Step> steps) {
+            super(job, steps);
+        }
 
-        String[] script = new String[1];
-        script[0] = "ctx._source.scores.remove(params.scoringId); if (!ctx._source.containsKey(\"systemProperties\")) { ctx._source.put(\"systemProperties\", [:]) } ctx._source.systemProperties.put(\"lastUpdated\", ZonedDateTime.ofInstant(Instant.ofEpochMilli(System.currentTimeMillis()), ZoneId.of(\"Z\")))";
+        @Override
+        protected void updateCounts(int step, long stepModified, long modified) {
+            job.setUpdated(modified);
+        }
 
-        persistenceService.updateWithQueryAndScript(null, Profile.class, script, scriptParams, conditions);
+        @Override
+        protected String getDescription() {
+            return "updating the scores of scoring " + job.getScoringId();
+        }
 
-        logger.info("Removed scoring from profiles in {}ms", System.currentTimeMillis() - startTime);
+        @Override
+        protected void ended() {
+            runningScoringTasks.remove(job.getScoringId(), this);
+        }
     }
 
     public void bundleChanged(BundleEvent event) {
@@ -1010,17 +1652,29 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             @Override
             public void run() {
                 try {
+                    List<Condition> pastEventConditions = new ArrayList<>();
                     for (Metadata metadata : rulesService.getRuleMetadatas()) {
                         Rule rule = rulesService.getRule(metadata.getId());
                         for (Action action : rule.getActions()) {
                             if (action.getActionTypeId().equals("setEventOccurenceCountAction")) {
                                 Condition pastEventCondition = (Condition) action.getParameterValues().get("pastEventCondition");
                                 if (pastEventCondition.containsParameter("numberOfDays")) {
-                                    updateExistingProfilesForPastEventCondition(rule.getCondition(), pastEventCondition);
+                                    if (!pastEventCondition.containsParameter("eventCondition")) {
+                                        // work on a copy, the condition belongs to the cached rule
+                                        Condition ruleCondition = pastEventCondition;
+                                        pastEventCondition = new Condition();
+                                        pastEventCondition.setConditionType(ruleCondition.getConditionType());
+                                        pastEventCondition.setConditionTypeId(ruleCondition.getConditionTypeId());
+                                        pastEventCondition.setParameterValues(new HashMap<>(ruleCondition.getParameterValues()));
+                                        pastEventCondition.setParameter("eventCondition", rule.getCondition());
+                                    }
+                                    pastEventConditions.add(pastEventCondition);
                                 }
                             }
                         }
                     }
+                    // all the counts are computed in a single pass over the events
+                    updateExistingProfilesForPastEventConditions(pastEventConditions);
                 } catch (Throwable t) {
                     logger.error("Error while updating profiles for past event conditions", t);
                 }
@@ -1032,14 +1686,49 @@ public class SegmentServiceImpl extends AbstractServiceImpl implements SegmentSe
             @Override
             public void run() {
                 try {
-                    allSegments = getAllSegmentDefinitions();
-                    allScoring = getAllScoringDefinitions();
+                    refreshSegmentsAndScoring();
                 } catch (Throwable t) {
                     logger.error("Error while loading segments and scoring definitions from persistence back-end", t);
                 }
             }
         };
         schedulerService.getScheduleExecutorService().scheduleAtFixedRate(task, 0, segmentRefreshInterval, TimeUnit.MILLISECONDS);
+
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    resumeInterruptedBackfills();
+                } catch (Throwable t) {
+                    logger.error("Error while resuming the interrupted updates of segment memberships", t);
+                }
+            }
+        };
+        schedulerService.getScheduleExecutorService().scheduleWithFixedDelay(task, 1, 1, TimeUnit.MINUTES);
+
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    reconcileSegmentSizes();
+                } catch (Throwable t) {
+                    logger.error("Error while reconciling the sizes of the segments", t);
+                }
+            }
+        };
+        schedulerService.getScheduleExecutorService().scheduleWithFixedDelay(task, segmentRefreshInterval, segmentSizeReconciliationInterval, TimeUnit.MILLISECONDS);
+
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    updateProfilesCrossingTimeBoundaries();
+                } catch (Throwable t) {
+                    logger.error("Error while updating the profiles crossing the time boundaries of the segments", t);
+                }
+            }
+        };
+        schedulerService.getScheduleExecutorService().scheduleWithFixedDelay(task, segmentTimeBoundariesInterval, segmentTimeBoundariesInterval, TimeUnit.MILLISECONDS);
     }
 
     public void setTaskExecutionPeriod(long taskExecutionPeriod) {
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.segments.SegmentSize;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The number of profiles of each segment, updated with the membership changes made by this node and replaced by
+ * exact counts on each reconciliation. The changes made too recently to be visible to the search of a reconciliation
+ * are applied again on top of its counts.
+ */
+public class SegmentSizeCounters {
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Queue<Delta> recentDeltas = new ConcurrentLinkedQueue<>();
+    private volatile boolean reconciling;
+    private volatile Date reconciliationDate;
+    private long visibilityDelay = 10000;
+
+    private static class Counter {
+        private final AtomicLong count = new AtomicLong();
+        private volatile Date lastModificationDate;
+    }
+
+    private static class Delta {
+        private final String segmentId;
+        private final long delta;
+        private final long time;
+
+        private Delta(String segmentId, long delta, long time) {
+            this.segmentId = segmentId;
+            this.delta = delta;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Sets the delay after which the membership changes saved by this node are visible to the searches, which covers
+     * the flush interval of the bulk processor and the refresh interval of the indices.
+     *
+     * @param visibilityDelay the delay in milliseconds
+     */
+    public void setVisibilityDelay(long visibilityDelay) {
+        this.visibilityDelay = visibilityDelay;
+    }
+
+    /**
+     * Adds a number of profiles to the size of a segment.
+     *
+     * @param segmentId the identifier of the segment
+     * @param delta     the number of profiles that entered the segment, negative if they left it
+     */
+    public void add(String segmentId, long delta) {
+        add(segmentId, delta, System.currentTimeMillis());
+    }
+
+    void add(String segmentId, long delta, long time) {
+        if (delta == 0) {
+            return;
+        }
+        Counter counter = getCounter(segmentId);
+        counter.count.addAndGet(delta);
+        counter.lastModificationDate = new Date(time);
+        recentDeltas.add(new Delta(segmentId, delta, time));
+        if (!reconciling) {
+            pruneDeltas(time - visibilityDelay);
+        }
+    }
+    /**
+     * Updates the sizes of the segments a profile entered or left.
+     *
+     * @param previousSegments the segments of the profile before the change
+     * @param newSegments      the segments of the profile after the change
+     */
+    public void update(Set<String> previousSegments, Set<String> newSegments) {
+        for (String segmentId : newSegments) {
+            if (!previousSegments.contains(segmentId)) {
+                add(segmentId, 1);
+            }
+        }
+        for (String segmentId : previousSegments) {
+            if (!newSegments.contains(segmentId)) {
+                add(segmentId, -1);
+            }
+        }
+    }
+
+    public void remove(String segmentId) {
+        counters.remove(segmentId);
+    }
+
+    /**
+     * Keeps the changes that may have to be applied on top of the counts of a reconciliation. Must be called before
+     * reading the exact counts.
+     */
+    public synchronized void startReconciliation() {
+        reconciling = true;
+    }
+
+    /**
+     * Replaces the counts by the exact ones, adding the changes that were not visible yet to the search that computed
+     * them, those made less than the visibility delay before the search started.
+     *
+     * @param segmentIds      the identifiers of all the known segments, whose size is 0 if they are not in the counts
+     * @param exactCounts     the number of profiles by segment identifier
+     * @param searchStartTime the time in milliseconds at which the search of the exact counts started
+     */
+    public synchronized void reconcile(Collection<String> segmentIds, Map<String, Long> exactCounts, long searchStartTime) {
+        long visibleTime = searchStartTime - visibilityDelay;
+        Map<String, Long> deltas = new HashMap<>();
+        for (Delta delta : recentDeltas) {
+            if (delta.time > visibleTime) {
+                deltas.merge(delta.segmentId, delta.delta, Long::sum);
+            }
+        }
+        Set<String> reconciledSegmentIds = new HashSet<>(segmentIds);
+        reconciledSegmentIds.addAll(exactCounts.keySet());
+        for (String segmentId : reconciledSegmentIds) {
+            Long exactCount = exactCounts.get(segmentId);
+            Long delta = deltas.get(segmentId);
+            Counter counter = getCounter(segmentId);
+            counter.count.set((exactCount != null ? exactCount : 0) + (delta != null ? delta : 0));
+            if (delta == null) {
+                counter.lastModificationDate = null;
+            }
+        }
+        counters.keySet().retainAll(reconciledSegmentIds);
+        reconciliationDate = new Date();
+        reconciling = false;
+        pruneDeltas(visibleTime);
+    }
+
+    public SegmentSize getSize(String segmentId) {
+        Counter counter = counters.get(segmentId);
+        if (counter == null) {
+            return new SegmentSize(segmentId, 0, reconciliationDate, null);
+        }
+        return new SegmentSize(segmentId, counter.count.get(), reconciliationDate, counter.lastModificationDate);
+    }
+
+    public Map<String, SegmentSize> getSizes() {
+        Map<String, SegmentSize> sizes = new HashMap<>();
+        for (String segmentId : counters.keySet()) {
+            sizes.put(segmentId, getSize(segmentId));
+        }
+        return sizes;
+    }
+
+    private Counter getCounter(String segmentId) {
+        return counters.computeIfAbsent(segmentId, id -> new Counter());
+    }
+
+    private void pruneDeltas(long visibleTime) {
+        Delta delta;
+        while ((delta = recentDeltas.peek()) != null && delta.time <= visibleTime) {
+            recentDeltas.remove(delta);
+        }
+    }
+}
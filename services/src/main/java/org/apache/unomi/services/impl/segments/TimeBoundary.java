@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.services.DefinitionsService;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A profile property compared by a segment condition to a date relative to the current time, such as
+ * {@code now-30d}. As time goes by, the compared date moves and crosses the values of some profiles, whose
+ * membership may then change without any modification of the profiles.
+ */
+public class TimeBoundary {
+
+    private static final String NOW = "now";
+
+    private final String propertyName;
+    private final String dateMath;
+    private final boolean wholeDay;
+
+    /**
+     * @param propertyName the compared property
+     * @param dateMath     the date math applied to the current time, such as {@code -30d/d}
+     * @param wholeDay     whether the property is compared to the whole day of the date, as done by the
+     *                     {@code isDay} and {@code isNotDay} operators
+     */
+    public TimeBoundary(String propertyName, String dateMath, boolean wholeDay) {
+        this.propertyName = propertyName;
+        this.dateMath = dateMath;
+        this.wholeDay = wholeDay;
+    }
+
+    /**
+     * @param propertyName       the compared property
+     * @param dateExpression     the date expression the property is compared to
+     * @param comparisonOperator the comparison operator
+     * @return the boundary, or {@code null} if the expression is not relative to the current time
+     */
+    public static TimeBoundary get(String propertyName, Object dateExpression, Object comparisonOperator) {
+        if (!(dateExpression instanceof String) || !((String) dateExpression).startsWith(NOW)) {
+            return null;
+        }
+        return new TimeBoundary(propertyName, ((String) dateExpression).substring(NOW.length()),
+                "isDay".equals(comparisonOperator) || "isNotDay".equals(comparisonOperator));
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public String getDateMath() {
+        return dateMath;
+    }
+
+    public boolean isWholeDay() {
+        return wholeDay;
+    }
+
+    /**
+     * Builds the condition matching the profiles whose property value was crossed by the boundary since a date,
+     * using date math anchored on that date for the lower bound.
+     *
+     * @param since              the date of the previous evaluation
+     * @param definitionsService the definitions service used to resolve the condition type
+     * @return the condition on the profiles
+     */
+    public Condition getCrossedCondition(Date since, DefinitionsService definitionsService) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String from = dateFormat.format(since) + "||" + dateMath;
+        String to = NOW + dateMath;
+        if (wholeDay) {
+            from += "/d";
+            to += "+1d/d";
+        }
+        Condition condition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", "between");
+        condition.setParameter("propertyValuesDateExpr", Arrays.asList(from, to));
+        return condition;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TimeBoundary that = (TimeBoundary) o;
+        return wholeDay == that.wholeDay && propertyName.equals(that.propertyName) && dateMath.equals(that.dateMath);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * propertyName.hashCode() + dateMath.hashCode()) + (wholeDay ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return propertyName + (wholeDay ? " day of " : " ") + NOW + dateMath;
+    }
+}
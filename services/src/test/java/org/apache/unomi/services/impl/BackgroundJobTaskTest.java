@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl;
+
+import org.apache.unomi.api.BackgroundJob;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class BackgroundJobTaskTest {
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Map<String, Object>> taskStatuses = new ConcurrentHashMap<>();
+    private final List<String> cancelledTasks = Collections.synchronizedList(new ArrayList<String>());
+    private final PersistenceService persistenceService = (PersistenceService) Proxy.newProxyInstance(BackgroundJobTaskTest.class.getClassLoader(),
+            new Class[]{PersistenceService.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getUpdateTaskStatus":
+                            return taskStatuses.get(args[0]);
+                        case "cancelUpdateTask":
+                            cancelledTasks.add((String) args[0]);
+                            return true;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testStepsRunInSequence() throws InterruptedException {
+        TestTask task = new TestTask(3, false);
+        task.statuses.put("0-0", status(true, 10, 10, 0));
+        task.statuses.put("2-0", status(true, 5, 3, 0));
+        task.start();
+        waitForEnd(task);
+
+        assertEquals(Arrays.asList("0-0", "1-0", "2-0"), task.startedTasks);
+        assertEquals(BackgroundJob.Status.COMPLETED, task.getJob().getStatus());
+        assertEquals(3, task.getJob().getStep());
+        assertEquals(15, task.getJob().getTotal());
+        assertEquals(15, task.getJob().getProcessed());
+        assertEquals(13, task.modified);
+        assertEquals(Arrays.asList(10L, 0L, 3L), task.completedSteps);
+    }
+
+    @Test
+    public void testRetryableStepIsRunAgainForVersionConflicts() throws InterruptedException {
+        TestTask task = new TestTask(1, true);
+        task.statuses.put("0-0", status(true, 10, 8, 2));
+        task.statuses.put("0-1", status(true, 10, 2, 0));
+        task.start();
+        waitForEnd(task);
+
+        assertEquals(Arrays.asList("0-0", "0-1"), task.startedTasks);
+        assertEquals(BackgroundJob.Status.COMPLETED, task.getJob().getStatus());
+        assertEquals(0, task.getJob().getVersionConflicts());
+        assertEquals(Collections.singletonList(10L), task.completedSteps);
+    }
+
+    @Test
+    public void testVersionConflictsOfOtherStepsFailTheJob() throws InterruptedException {
+        TestTask task = new TestTask(2, false);
+        task.statuses.put("0-0", status(true, 10, 8, 2));
+        task.statuses.put("1-0", status(true, 4, 4, 0));
+        task.start();
+        waitForEnd(task);
+
+        // the remaining steps are still run
+        assertEquals(Arrays.asList("0-0", "1-0"), task.startedTasks);
+        assertEquals(BackgroundJob.Status.FAILED, task.getJob().getStatus());
+        assertEquals(2, task.getJob().getVersionConflicts());
+        assertEquals(12, task.getJob().getProcessed());
+        assertNotNull(task.getJob().getError());
+        assertTrue(task.ended);
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        TestTask task = new TestTask(2, false);
+        task.statuses.put("0-0", status(false, 10, 1, 0));
+        task.start();
+        while (task.getJob().getProcessed() == 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(task.cancel());
+        assertFalse(task.cancel());
+
+        assertEquals(BackgroundJob.Status.CANCELLED, task.getJob().getStatus());
+        assertEquals(Collections.singletonList("0-0"), cancelledTasks);
+        assertTrue(task.ended);
+        Thread.sleep(20);
+        assertEquals(Collections.singletonList("0-0"), task.startedTasks);
+    }
+
+    @Test
+    public void testStepsThatCannotBeRunAgainCannotBePaused() throws InterruptedException {
+        TestTask task = new TestTask(1, false);
+        task.statuses.put("0-0", status(false, 10, 1, 0));
+        task.start();
+        while (task.getJob().getProcessed() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(task.pause());
+        assertEquals(BackgroundJob.Status.RUNNING, task.getJob().getStatus());
+        assertTrue(cancelledTasks.isEmpty());
+        task.cancel();
+    }
+
+    private void waitForEnd(TestTask task) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!task.ended && System.currentTimeMillis() < timeout) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Map<String, Object> status(boolean completed, long total, long updated, long versionConflicts) {
+        Map<String, Object> status = new HashMap<>();
+        status.put("completed", completed);
+        status.put("total", total);
+        status.put("updated", updated);
+        status.put("deleted", 0L);
+        status.put("noops", total - updated - versionConflicts);
+        status.put("versionConflicts", versionConflicts);
+        return status;
+    }
+
+    private static class TestJob extends BackgroundJob {
+        TestJob(int stepCount) {
+            super(UUID.randomUUID().toString(), stepCount);
+        }
+    }
+
+    /**
+     * Runs steps whose tasks have the statuses registered for their identifiers, made of the index of the step and
+     * the number of previous runs of the step. The steps without status complete without a task.
+     */
+    private class TestTask extends BackgroundJobTask<TestJob> {
+        private final boolean retryable;
+        private final Map<String, Map<String, Object>> statuses = new HashMap<>();
+        private final List<String> startedTasks = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Long> completedSteps = new ArrayList<>();
+        private int runs = 0;
+        private long modified;
+        private volatile boolean ended;
+
+        TestTask(int stepCount, boolean retryable) {
+            super(new TestJob(stepCount), BackgroundJobTaskTest.this.persistenceService, executorService, 1);
+            this.retryable = retryable;
+        }
+
+        @Override
+        protected String startStep(int step) {
+            String taskId = step + "-" + runs++;
+            startedTasks.add(taskId);
+            Map<String, Object> status = statuses.get(taskId);
+            if (status == null) {
+                return null;
+            }
+            taskStatuses.put(taskId, status);
+            return taskId;
+        }
+
+        @Override
+        protected boolean isRetryable(int step) {
+            return retryable;
+        }
+
+        @Override
+        protected void updateCounts(int step, long stepModified, long modified) {
+            this.modified = modified;
+        }
+
+        @Override
+        protected void stepCompleted(int step, long stepModified) {
+            completedSteps.add(stepModified);
+            runs = 0;
+        }
+
+        @Override
+        protected String getDescription() {
+            return "testing";
+        }
+
+        @Override
+        protected void ended() {
+            ended = true;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl;
+
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.metrics.internal.MetricsServiceImpl;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ConditionOptimizerTest {
+
+    private static final ConditionType BOOLEAN = conditionType("booleanCondition", "booleanConditionEvaluator");
+    private static final ConditionType NOT = conditionType("notCondition", "notConditionEvaluator");
+    private static final ConditionType MATCH_ALL = conditionType("matchAllCondition", "matchAllConditionEvaluator");
+    private static final ConditionType PROFILE_PROPERTY = conditionType("profilePropertyCondition", "propertyConditionEvaluator");
+    private static final ConditionType PAST_EVENT = conditionType("pastEventCondition", "pastEventConditionEvaluator");
+
+    private final ConditionOptimizer optimizer = new ConditionOptimizer();
+
+    @Test
+    public void testOptimizationDoesNotModifyCondition() {
+        Condition condition = buildConditions().get(0);
+        Condition expected = buildConditions().get(0);
+        List<?> subConditions = (List<?>) condition.getParameter("subConditions");
+
+        Condition optimized = optimizer.optimize(condition);
+
+        assertNotSame(condition, optimized);
+        assertEquals(expected, condition);
+        assertSame(subConditions, condition.getParameter("subConditions"));
+        assertEquals(2, subConditions.size());
+    }
+
+    @Test
+    public void testOptimizedConditionsStructure() {
+        // nested conditions with the same operator are flattened, and cheap conditions are evaluated first
+        Condition pastEvent = new Condition(PAST_EVENT);
+        Condition condition = and(pastEvent, and(property("city", "Paris"), property("age", "30")));
+        Condition optimized = optimizer.optimize(condition);
+        List<?> subConditions = (List<?>) optimized.getParameter("subConditions");
+        assertEquals(3, subConditions.size());
+        assertEquals(pastEvent, subConditions.get(2));
+
+        // duplicates are removed, and a single remaining sub-condition replaces the boolean condition
+        assertEquals(property("age", "30"), optimizer.optimize(and(property("age", "30"), property("age", "30"))));
+        assertEquals(new Condition(MATCH_ALL), optimizer.optimize(or(property("age", "30"), new Condition(MATCH_ALL))));
+        assertEquals(property("age", "30"), optimizer.optimize(and(new Condition(MATCH_ALL), property("age", "30"))));
+    }
+
+    @Test
+    public void testSelectivityByProperty() {
+        MetricsServiceImpl metricsService = new MetricsServiceImpl();
+        metricsService.setActivated(true);
+        countEvaluations(metricsService, "profilePropertyCondition.city", 100, 90);
+        countEvaluations(metricsService, "profilePropertyCondition.age", 100, 10);
+        optimizer.setMetricsService(metricsService);
+
+        // the conditions using the same evaluator are ordered by the selectivity of their property
+        Condition city = property("city", "Paris");
+        Condition age = property("age", "30");
+        assertEquals(Arrays.asList(age, city), optimizer.optimize(and(city, age)).getParameter("subConditions"));
+        assertEquals(Arrays.asList(city, age), optimizer.optimize(or(age, city)).getParameter("subConditions"));
+        assertEquals(Arrays.asList(age, or(city, property("city", "Geneva"))),
+                optimizer.optimize(and(or(city, property("city", "Geneva")), age)).getParameter("subConditions"));
+    }
+
+    @Test
+    public void testOptimizedConditionsEvaluation() {
+        List<Profile> profiles = new ArrayList<>();
+        for (String age : Arrays.asList("20", "30", null)) {
+            for (String city : Arrays.asList("Paris", "Geneva", null)) {
+                Profile profile = new Profile("profile-" + age + "-" + city);
+                profile.setProperty("age", age);
+                profile.setProperty("city", city);
+                profiles.add(profile);
+            }
+        }
+
+        for (Condition condition : buildConditions()) {
+            Condition optimized = optimizer.optimize(condition);
+            for (Profile profile : profiles) {
+                assertEquals("Different result for " + profile.getItemId(), evaluate(condition, profile), evaluate(optimized, profile));
+            }
+        }
+    }
+
+    private static List<Condition> buildConditions() {
+        return Arrays.asList(
+                and(property("age", "30"), or(property("city", "Paris"), property("city", "Geneva"))),
+                and(and(property("age", "30"), property("city", "Paris")), and(property("age", "30"), new Condition(MATCH_ALL))),
+                or(or(property("age", "20"), property("age", "30")), and(property("city", "Paris"), not(property("age", "20")))),
+                or(property("age", "20"), new Condition(MATCH_ALL)),
+                and(new Condition(MATCH_ALL), new Condition(MATCH_ALL)),
+                not(and(or(property("age", "20"), property("age", "20")), property("city", "Geneva"))),
+                and(or(property("age", "20"), and(property("city", "Paris"), property("city", "Geneva"))), not(new Condition(MATCH_ALL))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean evaluate(Condition condition, Profile profile) {
+        switch (condition.getConditionTypeId()) {
+            case "booleanCondition":
+                boolean isAnd = "and".equals(condition.getParameter("operator"));
+                for (Condition subCondition : (List<Condition>) condition.getParameter("subConditions")) {
+                    if (evaluate(subCondition, profile) != isAnd) {
+                        return !isAnd;
+                    }
+                }
+                return isAnd;
+            case "notCondition":
+                return !evaluate((Condition) condition.getParameter("subCondition"), profile);
+            case "matchAllCondition":
+                return true;
+            case "profilePropertyCondition":
+                return Objects.equals(condition.getParameter("propertyValue"), profile.getProperty((String) condition.getParameter("propertyName")));
+            default:
+                throw new IllegalArgumentException(condition.getConditionTypeId());
+        }
+    }
+
+    private static void countEvaluations(MetricsServiceImpl metricsService, String condition, int evaluations, int matches) {
+        String counterName = "org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher.selectivity." + condition;
+        for (int i = 0; i < evaluations; i++) {
+            metricsService.incrementCounter(counterName);
+            if (i < matches) {
+                metricsService.incrementCounter(counterName + ".matched");
+            }
+        }
+    }
+
+    private static ConditionType conditionType(String id, String evaluator) {
+        ConditionType conditionType = new ConditionType(new Metadata(id));
+        conditionType.setConditionEvaluator(evaluator);
+        return conditionType;
+    }
+
+    private static Condition property(String propertyName, String value) {
+        Condition condition = new Condition(PROFILE_PROPERTY);
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", "equals");
+        condition.setParameter("propertyValue", value);
+        return condition;
+    }
+
+    private static Condition and(Condition... subConditions) {
+        return booleanCondition("and", subConditions);
+    }
+
+    private static Condition or(Condition... subConditions) {
+        return booleanCondition("or", subConditions);
+    }
+
+    private static Condition booleanCondition(String operator, Condition... subConditions) {
+        Condition condition = new Condition(BOOLEAN);
+        condition.setParameter("operator", operator);
+        condition.setParameter("subConditions", new ArrayList<>(Arrays.asList(subConditions)));
+        return condition;
+    }
+
+    private static Condition not(Condition subCondition) {
+        Condition condition = new Condition(NOT);
+        condition.setParameter("subCondition", subCondition);
+        return condition;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.cluster;
+
+import org.apache.karaf.cellar.core.ClusterManager;
+import org.apache.karaf.cellar.core.Node;
+import org.apache.unomi.api.PurgeJob;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class PurgeEngineTest {
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> cancelledTasks = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Map<String, Object>> taskStatuses = new ConcurrentHashMap<>();
+    private volatile List<String> removedIndices = Arrays.asList("context-event-date-2020-01", "context-session-date-2020-01");
+    private PurgeEngine purgeEngine;
+
+    private final PersistenceService persistenceService = (PersistenceService) Proxy.newProxyInstance(PurgeEngineTest.class.getClassLoader(),
+            new Class[]{PersistenceService.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "removeIndicesBefore":
+                            calls.add(method.getName());
+                            return removedIndices;
+                        case "startPurge":
+                        case "startRemoveByQuery":
+                            // the tasks are identified by the method and the number of tasks started before
+                            String taskId = method.getName() + "-" + calls.size();
+                            calls.add(taskId);
+                            return taskId;
+                        case "getUpdateTaskStatus":
+                            return taskStatuses.get(args[0]);
+                        case "cancelUpdateTask":
+                            cancelledTasks.add((String) args[0]);
+                            return true;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+
+    @Before
+    public void setUp() {
+        purgeEngine = new PurgeEngine();
+        purgeEngine.setPersistenceService(persistenceService);
+        purgeEngine.setSchedulerService(() -> executorService);
+        purgeEngine.setPollInterval(1);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testStepsRunInSequence() throws InterruptedException {
+        taskStatuses.put("startPurge-1", status(true, 5, 5, null));
+        taskStatuses.put("startPurge-2", status(true, 3, 3, null));
+        List<PurgeEngine.Step> steps = new ArrayList<>(PurgeEngine.purgeSteps(new Date()));
+        steps.add(PurgeEngine.purgeStep("scope"));
+        PurgeJob job = purgeEngine.start("test", steps);
+        waitForEnd(job);
+
+        assertEquals(Arrays.asList("removeIndicesBefore", "startPurge-1", "startPurge-2"), calls);
+        assertEquals(PurgeJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getStep());
+        assertEquals(2, job.getRemovedIndices());
+        assertEquals(8, job.getTotal());
+        assertEquals(8, job.getDeleted());
+        assertEquals(0, job.getEstimatedRemainingTime());
+        assertSame(job, purgeEngine.getPurgeJob(job.getJobId()));
+    }
+
+    @Test
+    public void testPauseAndResume() throws InterruptedException {
+        taskStatuses.put("startPurge-0", status(false, 10, 4, null));
+        taskStatuses.put("startPurge-1", status(true, 6, 6, null));
+        PurgeJob job = purgeEngine.start("test", Collections.singletonList(PurgeEngine.purgeStep("scope")));
+        while (job.getDeleted() == 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(purgeEngine.pause(job.getJobId()));
+        assertFalse(purgeEngine.pause(job.getJobId()));
+        assertEquals(PurgeJob.Status.PAUSED, job.getStatus());
+        assertEquals(-1, job.getEstimatedRemainingTime());
+        assertEquals(Collections.singletonList("startPurge-0"), cancelledTasks);
+
+        // the polls scheduled before the pause do nothing
+        Thread.sleep(20);
+        assertEquals(Collections.singletonList("startPurge-0"), calls);
+        assertEquals(PurgeJob.Status.PAUSED, job.getStatus());
+
+        // the step is started again for the remaining items
+        assertTrue(purgeEngine.resume(job.getJobId()));
+        assertFalse(purgeEngine.resume(job.getJobId()));
+        waitForEnd(job);
+        assertEquals(Arrays.asList("startPurge-0", "startPurge-1"), calls);
+        assertEquals(PurgeJob.Status.COMPLETED, job.getStatus());
+        assertEquals(10, job.getTotal());
+        assertEquals(10, job.getDeleted());
+        assertFalse(purgeEngine.pause(job.getJobId()));
+    }
+
+    @Test
+    public void testFailures() throws InterruptedException {
+        removedIndices = null;
+        PurgeJob job = purgeEngine.start("test", PurgeEngine.purgeSteps(new Date()));
+        waitForEnd(job);
+        assertEquals(PurgeJob.Status.FAILED, job.getStatus());
+        assertEquals(0, job.getStep());
+        assertTrue(job.getError().startsWith("Could not remove the indices"));
+        assertNotNull(job.getEndDate());
+
+        taskStatuses.put("startPurge-1", status(false, 10, 2, "failure"));
+        job = purgeEngine.start("test", Arrays.asList(PurgeEngine.purgeStep("scope"), PurgeEngine.purgeStep("other")));
+        waitForEnd(job);
+        assertEquals(PurgeJob.Status.FAILED, job.getStatus());
+        assertEquals("failure", job.getError());
+        assertEquals(2, job.getDeleted());
+        // the next steps are not started
+        assertEquals(Arrays.asList("removeIndicesBefore", "startPurge-1"), calls);
+    }
+
+    @Test
+    public void testScheduledPurgeNode() {
+        assertTrue(purgeEngine.isScheduledPurgeNode());
+        purgeEngine.setKarafCellarClusterManager(clusterManager("node-b", "node-a", "node-b"));
+        assertFalse(purgeEngine.isScheduledPurgeNode());
+        purgeEngine.setKarafCellarClusterManager(clusterManager("node-b", "node-b", "node-c"));
+        assertTrue(purgeEngine.isScheduledPurgeNode());
+    }
+
+    private static void waitForEnd(PurgeJob job) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (job.getEndDate() == null && System.currentTimeMillis() < timeout) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Map<String, Object> status(boolean completed, long total, long deleted, String error) {
+        Map<String, Object> status = new HashMap<>();
+        status.put("completed", completed);
+        status.put("total", total);
+        status.put("updated", 0L);
+        status.put("deleted", deleted);
+        status.put("noops", 0L);
+        status.put("versionConflicts", 0L);
+        status.put("error", error);
+        return status;
+    }
+
+    private static ClusterManager clusterManager(String localNodeId, String... nodeIds) {
+        final Node localNode = node(localNodeId);
+        final Set<Node> nodes = new LinkedHashSet<>();
+        for (String nodeId : nodeIds) {
+            nodes.add(nodeId.equals(localNodeId) ? localNode : node(nodeId));
+        }
+        return (ClusterManager) Proxy.newProxyInstance(PurgeEngineTest.class.getClassLoader(), new Class[]{ClusterManager.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getNode":
+                                return localNode;
+                            case "listNodes":
+                                return nodes;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    private static Node node(final String id) {
+        return (Node) Proxy.newProxyInstance(PurgeEngineTest.class.getClassLoader(), new Class[]{Node.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getId":
+                        return id;
+                    case "hashCode":
+                        return id.hashCode();
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+}
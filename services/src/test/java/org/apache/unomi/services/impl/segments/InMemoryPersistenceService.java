@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.PartialList;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.PersistenceService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Minimal persistence service backed by in-memory lists, so that services can be tested without ElasticSearch.
+ * Conditions are evaluated with the given evaluator, the other operations return the items registered with
+ * {@link #setItems(Class, List)} or default values.
+ */
+public class InMemoryPersistenceService implements InvocationHandler {
+
+    private final BiPredicate<Condition, Item> evaluator;
+    private final Predicate<Condition> locallyEvaluable;
+    private final Map<Class<?>, List<? extends Item>> itemsByClass = new HashMap<>();
+
+    private InMemoryPersistenceService(BiPredicate<Condition, Item> evaluator, Predicate<Condition> locallyEvaluable) {
+        this.evaluator = evaluator;
+        this.locallyEvaluable = locallyEvaluable;
+    }
+
+    /**
+     * @param evaluator        evaluates the conditions passed to {@link PersistenceService#testMatch(Condition, Item)}
+     * @param locallyEvaluable the result of {@link PersistenceService#isLocallyEvaluable(Condition)}
+     * @return a persistence service without any item
+     */
+    public static PersistenceService create(BiPredicate<Condition, Item> evaluator, Predicate<Condition> locallyEvaluable) {
+        return (PersistenceService) Proxy.newProxyInstance(InMemoryPersistenceService.class.getClassLoader(),
+                new Class[]{PersistenceService.class}, new InMemoryPersistenceService(evaluator, locallyEvaluable));
+    }
+
+    public static <T extends Item> void setItems(PersistenceService persistenceService, Class<T> clazz, List<T> items) {
+        ((InMemoryPersistenceService) Proxy.getInvocationHandler(persistenceService)).setItems(clazz, items);
+    }
+
+    public <T extends Item> void setItems(Class<T> clazz, List<T> items) {
+        itemsByClass.put(clazz, items);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "testMatch":
+                if (args[0] instanceof List) {
+                    List<Boolean> results = new ArrayList<>();
+                    for (Condition condition : (List<Condition>) args[0]) {
+                        results.add(testMatch(condition, (Item) args[1]));
+                    }
+                    return results;
+                }
+                return testMatch((Condition) args[0], (Item) args[1]);
+            case "isLocallyEvaluable":
+                return locallyEvaluable.test((Condition) args[0]);
+            case "getAllItems":
+                List<? extends Item> items = itemsByClass.containsKey(args[0]) ? itemsByClass.get(args[0]) : Collections.<Item>emptyList();
+                // return a copy as the services resolve condition types on the loaded items
+                items = new ArrayList<>(items);
+                if (method.getReturnType() == PartialList.class) {
+                    return new PartialList<>(items, 0, items.size(), items.size(), PartialList.Relation.EQUAL);
+                }
+                return items;
+            case "toString":
+                return "InMemoryPersistenceService";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private boolean testMatch(Condition condition, Item item) {
+        return condition != null && evaluator.test(condition, item);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == double.class) {
+            return 0d;
+        }
+        return null;
+    }
+}
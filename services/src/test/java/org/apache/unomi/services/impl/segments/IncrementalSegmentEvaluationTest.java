@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.api.segments.SegmentsAndScores;
+import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.services.impl.ConditionOptimizer;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+import org.apache.unomi.services.impl.definitions.DefinitionsServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that evaluating only the segments and scoring plans impacted by the modifications of a profile gives the
+ * same result as a complete evaluation.
+ */
+public class IncrementalSegmentEvaluationTest {
+
+    private static final String[] CITIES = {"Geneva", "Paris", "London"};
+
+    private SegmentServiceImpl segmentService;
+    private ProfileChangeTracker profileChangeTracker;
+    private List<Profile> profiles;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        SyntheticData data = new SyntheticData(7);
+        random = new Random(7);
+        profiles = data.profiles(50);
+
+        List<Segment> segments = data.segments(600);
+        List<Scoring> scorings = data.scorings(10, 5);
+        // segments depending on the segments and scores computed for the profile
+        for (int i = 0; i < 50; i++) {
+            Condition condition = i % 2 == 0 ?
+                    SyntheticData.profileSegmentCondition("in", "segment-" + random.nextInt(600), "segment-" + random.nextInt(600)) :
+                    SyntheticData.scoringCondition("scoring-" + random.nextInt(10), "greaterThan", random.nextInt(20));
+            Segment segment = new Segment(new Metadata(SyntheticData.SCOPE, "dependent-" + i, "Dependent " + i, ""));
+            segment.setCondition(condition);
+            segments.add(segment);
+        }
+        profileChangeTracker = new ProfileChangeTracker();
+        segmentService = createSegmentService(segments, scorings, profileChangeTracker);
+        for (Profile profile : profiles) {
+            // segments depending on other segments need several evaluations to be up to date
+            SegmentsAndScores segmentsAndScores;
+            do {
+                segmentsAndScores = segmentService.getSegmentsAndScoresForProfile(profile);
+            } while (apply(profile, segmentsAndScores));
+        }
+    }
+
+    @Test
+    public void testIncrementalEvaluation() {
+        for (int i = 0; i < 500; i++) {
+            Profile profile = profiles.get(random.nextInt(profiles.size()));
+            Event event = new Event("view", null, profile, SyntheticData.SCOPE, null, null, new Date());
+            profileChangeTracker.startTracking(event);
+            int modificationCount = random.nextInt(3);
+            for (int j = 0; j < modificationCount; j++) {
+                modify(profile);
+            }
+
+            // segments are evaluated again as long as they change, as done with the profileUpdated events
+            for (int round = 0; round < 5; round++) {
+                SegmentsAndScores expected = segmentService.getSegmentsAndScoresForProfile(profile);
+                SegmentsAndScores actual = segmentService.getSegmentsAndScoresForProfile(event);
+                assertEquals("Segments of " + profile.getItemId() + " at step " + i, expected.getSegments(), actual.getSegments());
+                assertEquals("Scores of " + profile.getItemId() + " at step " + i, expected.getScores(), actual.getScores());
+                if (!apply(profile, actual)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownModifications() {
+        Profile profile = profiles.get(0);
+        profile.setProperty("age", 99);
+        profile.setProperty("city", "Paris");
+        // the profile was not modified while processing an event, everything is evaluated
+        Event event = new Event("profileUpdated", null, profile, SyntheticData.SCOPE, null, profile, new Date());
+        profileChangeTracker.startTracking(event);
+        SegmentsAndScores expected = segmentService.getSegmentsAndScoresForProfile(profile);
+        SegmentsAndScores actual = segmentService.getSegmentsAndScoresForProfile(event);
+        assertEquals(expected.getSegments(), actual.getSegments());
+        assertEquals(expected.getScores(), actual.getScores());
+    }
+
+    /**
+     * Wires the segment service with the synthetic condition evaluator and condition types on top of an
+     * {@link InMemoryPersistenceService}.
+     */
+    private static SegmentServiceImpl createSegmentService(List<Segment> segments, List<Scoring> scorings, ProfileChangeTracker profileChangeTracker) {
+        PersistenceService persistenceService = InMemoryPersistenceService.create(SyntheticConditionEvaluator::eval, condition -> true);
+
+        DefinitionsServiceImpl definitionsService = new DefinitionsServiceImpl();
+        definitionsService.setPersistenceService(persistenceService);
+        for (ConditionType conditionType : SyntheticConditionEvaluator.getConditionTypes()) {
+            definitionsService.setConditionType(conditionType);
+        }
+
+        ConditionOptimizer conditionOptimizer = new ConditionOptimizer();
+        conditionOptimizer.setDefinitionsService(definitionsService);
+
+        InMemoryPersistenceService.setItems(persistenceService, Segment.class, segments);
+        InMemoryPersistenceService.setItems(persistenceService, Scoring.class, scorings);
+        SegmentServiceImpl segmentService = new SegmentServiceImpl();
+        segmentService.setPersistenceService(persistenceService);
+        segmentService.setDefinitionsService(definitionsService);
+        segmentService.setConditionOptimizer(conditionOptimizer);
+        segmentService.setProfileChangeTracker(profileChangeTracker);
+        segmentService.refreshSegmentsAndScoring();
+        return segmentService;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void modify(Profile profile) {
+        switch (random.nextInt(6)) {
+            case 0:
+                profile.setProperty("age", 18 + random.nextInt(60));
+                break;
+            case 1:
+                profile.setProperty("city", CITIES[random.nextInt(CITIES.length)]);
+                break;
+            case 2:
+                profile.setProperty("nbOfVisits", random.nextInt(50));
+                break;
+            case 3:
+                // past event counts are updated in place
+                Map<String, Object> pastEvents = (Map<String, Object>) profile.getSystemProperties().get("pastEvents");
+                String key = "eventTriggered" + random.nextInt(20);
+                Number count = (Number) pastEvents.get(key);
+                pastEvents.put(key, count != null ? count.longValue() + 1 : 1L);
+                break;
+            case 4:
+                Map<String, Integer> scoreModifiers = new HashMap<>();
+                scoreModifiers.put("scoring-" + random.nextInt(10), random.nextInt(10));
+                profile.setSystemProperty("scoreModifiers", scoreModifiers);
+                break;
+            default:
+                profile.setProperty("firstName", "Name" + random.nextInt());
+        }
+    }
+
+    private static boolean apply(Profile profile, SegmentsAndScores segmentsAndScores) {
+        if (segmentsAndScores.getSegments().equals(profile.getSegments()) && segmentsAndScores.getScores().equals(profile.getScores())) {
+            return false;
+        }
+        profile.setSegments(segmentsAndScores.getSegments());
+        profile.setScores(segmentsAndScores.getScores());
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringElement;
+import org.apache.unomi.api.segments.Segment;
+import org.apache.unomi.services.impl.ProfileChangeTracker;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ProfileDependencyIndexTest {
+
+    private static final ConditionType BOOLEAN = conditionType("booleanCondition", "booleanConditionEvaluator", null);
+    private static final ConditionType NOT = conditionType("notCondition", "notConditionEvaluator", null);
+    private static final ConditionType PROFILE_PROPERTY = conditionType("profilePropertyCondition", "propertyConditionEvaluator", null);
+    private static final ConditionType PAST_EVENT = conditionType("pastEventCondition", "pastEventConditionEvaluator", null);
+    private static final ConditionType GEO = conditionType("geoLocationByPointSessionCondition", "geoLocationByPointSessionConditionEvaluator", null);
+    private static final ConditionType PROFILE_SEGMENT;
+    private static final ConditionType SCORING;
+
+    static {
+        Condition segmentsParent = new Condition(PROFILE_PROPERTY);
+        segmentsParent.setParameter("propertyName", "segments");
+        segmentsParent.setParameter("propertyValues", "parameter::segments");
+        segmentsParent.setParameter("comparisonOperator", "parameter::matchType");
+        PROFILE_SEGMENT = conditionType("profileSegmentCondition", null, segmentsParent);
+
+        Condition scoringParent = new Condition(PROFILE_PROPERTY);
+        scoringParent.setParameter("propertyName", "script::'scores.'+scoringPlanId");
+        scoringParent.setParameter("propertyValueInteger", "parameter::scoreValue");
+        scoringParent.setParameter("comparisonOperator", "parameter::comparisonOperator");
+        SCORING = conditionType("scoringCondition", null, scoringParent);
+    }
+
+    @Test
+    public void testDependencies() {
+        Condition condition = and(property("properties.age", "greaterThan"), not(property("properties.address.city", "equals")),
+                segment("s1"), scoring("plan1"));
+        assertEquals(new HashSet<>(Arrays.asList("properties.age", "properties.address", "segments", "scores")),
+                ProfileDependencyIndex.getDependencies(condition, null));
+
+        Condition pastEvent = new Condition(PAST_EVENT);
+        pastEvent.setParameter("generatedPropertyKey", "eventTriggered123");
+        assertEquals(new HashSet<>(Arrays.asList("systemProperties.pastEvents", "systemProperties.pastEventCounters")),
+                ProfileDependencyIndex.getDependencies(pastEvent, null));
+    }
+
+    @Test
+    public void testVolatileConditions() {
+        Condition dateExpr = property("properties.lastVisit", "greaterThan");
+        dateExpr.setParameter("propertyValueDateExpr", "now-7d");
+        assertNull(ProfileDependencyIndex.getDependencies(and(property("properties.age", "equals"), dateExpr), null));
+        assertNull(ProfileDependencyIndex.getDependencies(property("properties.birthDate", "isDay"), null));
+        assertNull(ProfileDependencyIndex.getDependencies(new Condition(GEO), null));
+        assertNull(ProfileDependencyIndex.getDependencies(property("session.size", "equals"), null));
+
+        Condition slidingWindow = new Condition(PAST_EVENT);
+        slidingWindow.setParameter("generatedPropertyKey", "eventTriggered123");
+        slidingWindow.setParameter("numberOfDays", 7);
+        assertNull(ProfileDependencyIndex.getDependencies(slidingWindow, null));
+        assertNull(ProfileDependencyIndex.getDependencies(new Condition(PAST_EVENT), null));
+    }
+
+    @Test
+    public void testAffectedSegments() {
+        List<Segment> segments = Arrays.asList(
+                segment("age", property("properties.age", "greaterThan")),
+                segment("city", property("properties.address.city", "equals")),
+                segment("dependent", segment("age")),
+                segment("volatile", new Condition(GEO)));
+        Scoring scoring = new Scoring(new Metadata("scope", "plan", "plan", ""));
+        ScoringElement scoringElement = new ScoringElement();
+        scoringElement.setCondition(property("properties.age", "lessThan"));
+        scoringElement.setValue(5);
+        scoring.setElements(Collections.singletonList(scoringElement));
+
+        ProfileDependencyIndex index = new ProfileDependencyIndex(segments, Collections.singletonList(scoring), null);
+        assertEquals(bits(3), index.getAffectedSegments(Collections.<String>emptySet()));
+        assertEquals(bits(0, 3), index.getAffectedSegments(Collections.singleton("properties.age")));
+        assertEquals(bits(1, 3), index.getAffectedSegments(Collections.singleton("properties.address")));
+        assertEquals(bits(2, 3), index.getAffectedSegments(Collections.singleton("segments")));
+        assertEquals(bits(0), index.getAffectedScorings(Collections.singleton("properties.age")));
+        assertEquals(bits(0), index.getAffectedScorings(Collections.singleton("systemProperties.scoreModifiers")));
+        assertEquals(bits(), index.getAffectedScorings(Collections.singleton("properties.address")));
+    }
+
+    @Test
+    public void testTimeBoundaries() {
+        Condition lastVisit = property("properties.lastVisit", "lessThan");
+        lastVisit.setParameter("propertyValueDateExpr", "now-30d/d");
+        Condition birthday = property("properties.birthDate", "isDay");
+        birthday.setParameter("propertyValueDateExpr", "now");
+        Condition fixedDate = property("properties.firstVisit", "greaterThan");
+        fixedDate.setParameter("propertyValueDateExpr", "2020-01-01||+1M");
+        Condition between = property("properties.lastVisit", "between");
+        between.setParameter("propertyValuesDateExpr", Arrays.asList("now-30d/d", "now-7d"));
+
+        assertEquals(new HashSet<>(Arrays.asList(new TimeBoundary("properties.lastVisit", "-30d/d", false), new TimeBoundary("properties.birthDate", "", true),
+                new TimeBoundary("properties.lastVisit", "-7d", false))),
+                ProfileDependencyIndex.getTimeBoundaries(and(lastVisit, not(birthday), fixedDate, between), null));
+        assertEquals(Collections.<TimeBoundary>emptySet(), ProfileDependencyIndex.getTimeBoundaries(property("properties.age", "greaterThan"), null));
+    }
+
+    @Test
+    public void testChangeTracking() {
+        ProfileChangeTracker tracker = new ProfileChangeTracker();
+        Set<String> fields = new HashSet<>(Arrays.asList("properties.age", "systemProperties.pastEvents", "segments", "scores"));
+        tracker.setTrackedFields(fields);
+
+        Profile profile = new Profile("profileId");
+        profile.setProperty("age", 30);
+        Map<String, Object> pastEvents = new HashMap<>();
+        pastEvents.put("eventTriggered123", 1L);
+        profile.setSystemProperty("pastEvents", pastEvents);
+        Event event = new Event("view", null, profile, "scope", null, null, new Date());
+        tracker.startTracking(event);
+        assertEquals(Collections.<String>emptySet(), tracker.getChangedFields(event, fields));
+
+        // nested values modified in place must be detected
+        pastEvents.put("eventTriggered123", 2L);
+        profile.setProperty("firstName", "John");
+        profile.setScores(Collections.singletonMap("plan", 10));
+        assertEquals(new HashSet<>(Arrays.asList("systemProperties.pastEvents", "scores")), tracker.getChangedFields(event, fields));
+
+        // the snapshot is shared with the profileUpdated events sent while processing the event
+        Event profileUpdated = new Event("profileUpdated", null, profile, "scope", null, profile, new Date());
+        profileUpdated.getAttributes().putAll(event.getAttributes());
+        tracker.startTracking(profileUpdated);
+        tracker.reset(profileUpdated, fields);
+        profile.setProperty("age", 31);
+        assertEquals(Collections.singleton("properties.age"), tracker.getChangedFields(event, fields));
+
+        // changes are unknown if the profile was replaced, if other fields are tracked or if the event was not tracked
+        event.setProfile(new Profile("otherProfileId"));
+        assertNull(tracker.getChangedFields(event, fields));
+        assertNull(tracker.getChangedFields(profileUpdated, Collections.singleton("properties.age")));
+        Event otherProfileUpdated = new Event("profileUpdated", null, profile, "scope", null, profile, new Date());
+        tracker.startTracking(otherProfileUpdated);
+        assertNull(tracker.getChangedFields(otherProfileUpdated, fields));
+    }
+
+    private static ConditionType conditionType(String id, String evaluator, Condition parentCondition) {
+        ConditionType conditionType = new ConditionType(new Metadata(id));
+        conditionType.setConditionEvaluator(evaluator);
+        conditionType.setParentCondition(parentCondition);
+        return conditionType;
+    }
+
+    private static Condition property(String propertyName, String comparisonOperator) {
+        Condition condition = new Condition(PROFILE_PROPERTY);
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", comparisonOperator);
+        condition.setParameter("propertyValue", "value");
+        return condition;
+    }
+
+    private static Condition and(Condition... subConditions) {
+        Condition condition = new Condition(BOOLEAN);
+        condition.setParameter("operator", "and");
+        condition.setParameter("subConditions", Arrays.asList(subConditions));
+        return condition;
+    }
+
+    private static Condition not(Condition subCondition) {
+        Condition condition = new Condition(NOT);
+        condition.setParameter("subCondition", subCondition);
+        return condition;
+    }
+
+    private static Condition segment(String segmentId) {
+        Condition condition = new Condition(PROFILE_SEGMENT);
+        condition.setParameter("segments", Collections.singletonList(segmentId));
+        condition.setParameter("matchType", "in");
+        return condition;
+    }
+
+    private static Condition scoring(String scoringPlanId) {
+        Condition condition = new Condition(SCORING);
+        condition.setParameter("scoringPlanId", scoringPlanId);
+        condition.setParameter("scoreValue", 10);
+        condition.setParameter("comparisonOperator", "greaterThan");
+        return condition;
+    }
+
+    private static Segment segment(String id, Condition condition) {
+        Segment segment = new Segment(new Metadata("scope", id, id, ""));
+        segment.setCondition(condition);
+        return segment;
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bitSet = new BitSet();
+        for (int index : indexes) {
+            bitSet.set(index);
+        }
+        return bitSet;
+    }
+}
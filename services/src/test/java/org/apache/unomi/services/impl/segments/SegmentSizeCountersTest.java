@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.unomi.services.impl.segments;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SegmentSizeCountersTest {
+
+    @Test
+    public void testMembershipChanges() {
+        SegmentSizeCounters counters = new SegmentSizeCounters();
+        counters.update(Collections.<String>emptySet(), new HashSet<>(Arrays.asList("s1", "s2")));
+        counters.update(new HashSet<>(Arrays.asList("s1", "s2")), new HashSet<>(Arrays.asList("s2", "s3")));
+        assertEquals(0, counters.getSize("s1").getCount());
+        assertEquals(1, counters.getSize("s2").getCount());
+        assertEquals(1, counters.getSize("s3").getCount());
+        assertEquals(0, counters.getSize("unknown").getCount());
+        assertNotNull(counters.getSize("s2").getLastModificationDate());
+        assertNull(counters.getSize("s2").getReconciliationDate());
+    }
+
+    @Test
+    public void testReconciliation() {
+        SegmentSizeCounters counters = new SegmentSizeCounters();
+        counters.setVisibilityDelay(1000);
+        counters.add("s1", 10, 0);
+        counters.add("removed", 3, 0);
+
+        counters.startReconciliation();
+        // changes not visible yet to the search of the exact counts are kept
+        counters.add("s1", 2, 4500);
+        Map<String, Long> exactCounts = new HashMap<>();
+        exactCounts.put("s1", 100L);
+        counters.reconcile(Arrays.asList("s1", "s2"), exactCounts, 5000);
+
+        assertEquals(102, counters.getSize("s1").getCount());
+        assertEquals(0, counters.getSize("s2").getCount());
+        assertNotNull(counters.getSize("s1").getReconciliationDate());
+        assertNotNull(counters.getSize("s1").getLastModificationDate());
+        assertNull(counters.getSize("s2").getLastModificationDate());
+        assertEquals(new HashSet<>(Arrays.asList("s1", "s2")), counters.getSizes().keySet());
+
+        // changes visible to the next search are only applied once
+        counters.add("s1", -1, 6000);
+        counters.startReconciliation();
+        counters.reconcile(Arrays.asList("s1", "s2"), exactCounts, 10000);
+        assertEquals(100, counters.getSize("s1").getCount());
+    }
+
+    @Test
+    public void testChangesRefreshedBeforeTheSearchAreNotReplayed() {
+        SegmentSizeCounters counters = new SegmentSizeCounters();
+        counters.setVisibilityDelay(1000);
+        counters.add("s1", 10, 0);
+
+        counters.startReconciliation();
+        // saved and refreshed before the search started, so already in the exact counts
+        counters.add("s1", 3, 100);
+        // not refreshed yet when the search started
+        counters.add("s1", 2, 4500);
+        // made while the search was running
+        counters.add("s1", 1, 5200);
+        Map<String, Long> exactCounts = new HashMap<>();
+        exactCounts.put("s1", 103L);
+        counters.reconcile(Collections.singletonList("s1"), exactCounts, 5000);
+
+        assertEquals(106, counters.getSize("s1").getCount());
+    }
+
+    @Test
+    public void testChangesBeforeTheReconciliationStartAreReplayed() {
+        SegmentSizeCounters counters = new SegmentSizeCounters();
+        counters.setVisibilityDelay(1000);
+        // saved just before the reconciliation started, not refreshed yet when the search started
+        counters.add("s1", 1, 4800);
+        counters.startReconciliation();
+        counters.reconcile(Collections.singletonList("s1"), Collections.singletonMap("s1", 50L), 5000);
+
+        assertEquals(51, counters.getSize("s1").getCount());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.Metadata;
+import org.apache.unomi.api.Profile;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.conditions.ConditionType;
+
+import java.util.*;
+
+/**
+ * Evaluates the conditions generated by {@link SyntheticData} against profiles, with the semantics of the base plugin
+ * condition evaluators, so that the services can be tested without the persistence implementation.
+ */
+public class SyntheticConditionEvaluator {
+
+    /**
+     * @return the condition types of the conditions generated by {@link SyntheticData}, with the same evaluators and
+     * parent conditions as the base plugin definitions
+     */
+    public static List<ConditionType> getConditionTypes() {
+        List<ConditionType> conditionTypes = new ArrayList<>();
+        conditionTypes.add(conditionType("booleanCondition", "booleanConditionEvaluator", null));
+        conditionTypes.add(conditionType("notCondition", "notConditionEvaluator", null));
+        conditionTypes.add(conditionType("matchAllCondition", "matchAllConditionEvaluator", null));
+        conditionTypes.add(conditionType("profilePropertyCondition", "propertyConditionEvaluator", null));
+        conditionTypes.add(conditionType("eventPropertyCondition", "propertyConditionEvaluator", null));
+        conditionTypes.add(conditionType("pastEventCondition", "pastEventConditionEvaluator", null));
+
+        Condition eventTypeParent = parentCondition("eventPropertyCondition", "eventType", "equals");
+        eventTypeParent.setParameter("propertyValue", "parameter::eventTypeId");
+        conditionTypes.add(conditionType("eventTypeCondition", null, eventTypeParent));
+
+        Condition segmentsParent = parentCondition("profilePropertyCondition", "segments", "parameter::matchType");
+        segmentsParent.setParameter("propertyValues", "parameter::segments");
+        conditionTypes.add(conditionType("profileSegmentCondition", null, segmentsParent));
+
+        Condition scoringParent = parentCondition("profilePropertyCondition", "script::'scores.'+scoringPlanId", "parameter::comparisonOperator");
+        scoringParent.setParameter("propertyValueInteger", "parameter::scoreValue");
+        conditionTypes.add(conditionType("scoringCondition", null, scoringParent));
+        return conditionTypes;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static boolean eval(Condition condition, Item item) {
+        Profile profile = (Profile) item;
+        switch (condition.getConditionTypeId()) {
+            case "booleanCondition":
+                boolean and = "and".equals(condition.getParameter("operator"));
+                for (Condition subCondition : (List<Condition>) condition.getParameter("subConditions")) {
+                    if (eval(subCondition, item) != and) {
+                        return !and;
+                    }
+                }
+                return and;
+            case "notCondition":
+                return !eval((Condition) condition.getParameter("subCondition"), item);
+            case "matchAllCondition":
+                return true;
+            case "profilePropertyCondition":
+                String propertyName = (String) condition.getParameter("propertyName");
+                Object expected = condition.getParameter("propertyValueInteger") != null ?
+                        condition.getParameter("propertyValueInteger") : condition.getParameter("propertyValue");
+                return compare(profile.getProperty(propertyName.substring("properties.".length())), (String) condition.getParameter("comparisonOperator"), expected);
+            case "pastEventCondition":
+                Map<String, Object> pastEvents = (Map<String, Object>) profile.getSystemProperties().get("pastEvents");
+                Number count = pastEvents != null ? (Number) pastEvents.get(condition.getParameter("generatedPropertyKey")) : null;
+                Integer minimumEventCount = (Integer) condition.getParameter("minimumEventCount");
+                return count != null && count.longValue() > 0 && (minimumEventCount == null || count.longValue() >= minimumEventCount);
+            case "profileSegmentCondition":
+                Set<String> segments = profile.getSegments() != null ? profile.getSegments() : Collections.<String>emptySet();
+                boolean any = !Collections.disjoint(segments, (Collection<String>) condition.getParameter("segments"));
+                return "in".equals(condition.getParameter("matchType")) == any;
+            case "scoringCondition":
+                Integer score = profile.getScores() != null ? profile.getScores().get(condition.getParameter("scoringPlanId")) : null;
+                return compare(score, (String) condition.getParameter("comparisonOperator"), condition.getParameter("scoreValue"));
+            default:
+                throw new IllegalArgumentException("Unsupported condition type " + condition.getConditionTypeId());
+        }
+    }
+
+    private static boolean compare(Object actual, String comparisonOperator, Object expected) {
+        if ("equals".equals(comparisonOperator)) {
+            return expected.equals(actual);
+        }
+        if (!(actual instanceof Number)) {
+            return false;
+        }
+        int comparison = Long.compare(((Number) actual).longValue(), ((Number) expected).longValue());
+        switch (comparisonOperator) {
+            case "greaterThan":
+                return comparison > 0;
+            case "greaterThanOrEqualTo":
+                return comparison >= 0;
+            case "lessThan":
+                return comparison < 0;
+            case "lessThanOrEqualTo":
+                return comparison <= 0;
+            default:
+                throw new IllegalArgumentException("Unsupported comparison operator " + comparisonOperator);
+        }
+    }
+
+    private static ConditionType conditionType(String id, String evaluator, Condition parentCondition) {
+        ConditionType conditionType = new ConditionType(new Metadata(id));
+        conditionType.setConditionEvaluator(evaluator);
+        conditionType.setParentCondition(parentCondition);
+        // mark the type as up to date so that it is never reloaded from the persistence service
+        conditionType.setVersion(1L);
+        return conditionType;
+    }
+
+    private static Condition parentCondition(String conditionTypeId, String propertyName, String comparisonOperator) {
+        Condition condition = new Condition();
+        condition.setConditionTypeId(conditionTypeId);
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", comparisonOperator);
+        return condition;
+    }
+}
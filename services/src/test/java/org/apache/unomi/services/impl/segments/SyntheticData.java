@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.impl.segments;
+
+import org.apache.unomi.api.*;
+import org.apache.unomi.api.actions.Action;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.rules.Rule;
+import org.apache.unomi.api.segments.Scoring;
+import org.apache.unomi.api.segments.ScoringElement;
+import org.apache.unomi.api.segments.Segment;
+
+import java.util.*;
+
+/**
+ * Generates reproducible profiles, events, rules, segments and scoring plans. Conditions are returned with unresolved
+ * condition types, as they would be when loaded from the persistence service.
+ */
+public class SyntheticData {
+
+    public static final String SCOPE = "test";
+
+    private static final String[] EVENT_TYPES = {"view", "click", "form", "login", "download", "videoView"};
+    private static final String[] GENDERS = {"male", "female", "other"};
+    private static final String[] CITIES = {"Geneva", "Paris", "London", "Berlin", "Madrid", "Rome", "Lisbon", "Vienna"};
+    private static final String[] PAGES = {"/home", "/products", "/products/shoes", "/products/bags", "/about", "/contact", "/blog"};
+    private static final int PAST_EVENT_KEYS = 20;
+
+    private final Random random;
+
+    public SyntheticData(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public List<Profile> profiles(int count) {
+        List<Profile> profiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Profile profile = new Profile("profile-" + i);
+            profile.setProperty("firstName", "First" + i);
+            profile.setProperty("lastName", "Lást" + i);
+            profile.setProperty("age", 18 + random.nextInt(60));
+            profile.setProperty("gender", pick(GENDERS));
+            profile.setProperty("city", pick(CITIES));
+            profile.setProperty("nbOfVisits", random.nextInt(50));
+            profile.setProperty("firstVisit", new Date(System.currentTimeMillis() - random.nextInt(365) * 86400000L));
+            Map<String, Object> pastEvents = new LinkedHashMap<>();
+            for (int k = 0; k < PAST_EVENT_KEYS; k++) {
+                if (random.nextBoolean()) {
+                    pastEvents.put(pastEventKey(k), (long) random.nextInt(10));
+                }
+            }
+            profile.getSystemProperties().put("pastEvents", pastEvents);
+            profiles.add(profile);
+        }
+        return profiles;
+    }
+
+    public List<Event> events(List<Profile> profiles, int count) {
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Profile profile = profiles.get(random.nextInt(profiles.size()));
+            Session session = new Session("session-" + i, profile, new Date(), SCOPE);
+            session.setProperty("deviceCategory", random.nextBoolean() ? "Personal computer" : "Smartphone");
+            CustomItem page = new CustomItem("page-" + random.nextInt(100), "page");
+            page.setScope(SCOPE);
+            Map<String, Object> pageInfo = new HashMap<>();
+            pageInfo.put("pagePath", pick(PAGES));
+            page.getProperties().put("pageInfo", pageInfo);
+            Event event = new Event(pick(EVENT_TYPES), session, profile, SCOPE, null, page, new Date());
+            event.setItemId("event-" + i);
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Rules triggered by an event type, with an additional profile condition for most of them.
+     */
+    public List<Rule> rules(int count) {
+        List<Rule> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<Condition> subConditions = new ArrayList<>();
+            subConditions.add(condition("eventTypeCondition", "eventTypeId", pick(EVENT_TYPES)));
+            if (random.nextInt(4) > 0) {
+                subConditions.add(randomProfileCondition());
+            }
+            Rule rule = new Rule(new Metadata(Metadata.SYSTEM_SCOPE, "rule-" + i, "Rule " + i, ""));
+            rule.setCondition(booleanCondition("and", subConditions));
+            rule.setActions(new ArrayList<Action>());
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    public List<Segment> segments(int count) {
+        List<Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(new Metadata(SCOPE, "segment-" + i, "Segment " + i, ""));
+            segment.setCondition(randomSegmentCondition(2));
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    public List<Scoring> scorings(int count, int elementCount) {
+        List<Scoring> scorings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Scoring scoring = new Scoring(new Metadata(SCOPE, "scoring-" + i, "Scoring " + i, ""));
+            List<ScoringElement> elements = new ArrayList<>();
+            for (int j = 0; j < elementCount; j++) {
+                ScoringElement element = new ScoringElement();
+                element.setCondition(randomSegmentCondition(1));
+                element.setValue(1 + random.nextInt(10));
+                elements.add(element);
+            }
+            scoring.setElements(elements);
+            scorings.add(scoring);
+        }
+        return scorings;
+    }
+
+    public Condition randomSegmentCondition(int depth) {
+        int kind = random.nextInt(depth > 0 ? 5 : 3);
+        switch (kind) {
+            case 0:
+                return randomProfileCondition();
+            case 1:
+                return pastEventCondition(random.nextInt(PAST_EVENT_KEYS), 1 + random.nextInt(3));
+            case 2:
+                return notCondition(randomProfileCondition());
+            default:
+                List<Condition> subConditions = new ArrayList<>();
+                int size = 2 + random.nextInt(3);
+                for (int i = 0; i < size; i++) {
+                    subConditions.add(randomSegmentCondition(depth - 1));
+                }
+                return booleanCondition(kind == 3 ? "and" : "or", subConditions);
+        }
+    }
+
+    public Condition randomProfileCondition() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return profilePropertyCondition("properties.age", "greaterThan", 18 + random.nextInt(60));
+            case 1:
+                return profilePropertyCondition("properties.gender", "equals", pick(GENDERS));
+            case 2:
+                return profilePropertyCondition("properties.city", "equals", pick(CITIES));
+            default:
+                return profilePropertyCondition("properties.nbOfVisits", "lessThan", random.nextInt(50));
+        }
+    }
+
+    public static Condition profilePropertyCondition(String propertyName, String comparisonOperator, Object value) {
+        Condition condition = condition("profilePropertyCondition", "propertyName", propertyName);
+        condition.setParameter("comparisonOperator", comparisonOperator);
+        condition.setParameter(value instanceof Integer ? "propertyValueInteger" : "propertyValue", value);
+        return condition;
+    }
+
+    public static Condition booleanCondition(String operator, List<Condition> subConditions) {
+        Condition condition = condition("booleanCondition", "operator", operator);
+        condition.setParameter("subConditions", subConditions);
+        return condition;
+    }
+
+    public static Condition notCondition(Condition subCondition) {
+        return condition("notCondition", "subCondition", subCondition);
+    }
+
+    public static Condition pastEventCondition(int key, int minimumEventCount) {
+        Condition condition = condition("pastEventCondition", "generatedPropertyKey", pastEventKey(key));
+        condition.setParameter("minimumEventCount", minimumEventCount);
+        condition.setParameter("eventCondition", condition("eventTypeCondition", "eventTypeId", EVENT_TYPES[key % EVENT_TYPES.length]));
+        return condition;
+    }
+
+    public static Condition profileSegmentCondition(String matchType, String... segmentIds) {
+        Condition condition = condition("profileSegmentCondition", "matchType", matchType);
+        condition.setParameter("segments", new ArrayList<>(Arrays.asList(segmentIds)));
+        return condition;
+    }
+
+    public static Condition scoringCondition(String scoringPlanId, String comparisonOperator, int scoreValue) {
+        Condition condition = condition("scoringCondition", "scoringPlanId", scoringPlanId);
+        condition.setParameter("comparisonOperator", comparisonOperator);
+        condition.setParameter("scoreValue", scoreValue);
+        return condition;
+    }
+
+    private static Condition condition(String conditionTypeId, String parameterName, Object parameterValue) {
+        Condition condition = new Condition();
+        condition.setConditionTypeId(conditionTypeId);
+        condition.setParameter(parameterName, parameterValue);
+        return condition;
+    }
+
+    private static String pastEventKey(int key) {
+        return "eventTriggered" + key;
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
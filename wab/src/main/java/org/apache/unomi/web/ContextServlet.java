@@ -38,6 +38,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A servlet filter to serve a context-specific Javascript containing the current request context object.
@@ -149,12 +150,19 @@ public class ContextServlet extends HttpServlet {
 
             boolean invalidateProfile = request.getParameter("invalidateProfile") != null ?
                     new Boolean(request.getParameter("invalidateProfile")) : false;
-            if (cookieProfileId == null || invalidateProfile) {
+            boolean invalidateSession = request.getParameter("invalidateSession") != null ?
+                    new Boolean(request.getParameter("invalidateSession")) : false;
+
+            // the profile and the session are independent, load them at the same time
+            CompletableFuture<Profile> profileFuture = cookieProfileId == null || invalidateProfile ? null : profileService.loadAsync(cookieProfileId);
+            CompletableFuture<Session> sessionFuture = StringUtils.isNotBlank(sessionId) && !invalidateSession ? profileService.loadSessionAsync(sessionId, timestamp) : null;
+
+            if (profileFuture == null) {
                 // no profileId cookie was found or the profile has to be invalidated, we generate a new one and create the profile in the profile service
                 profile = createNewProfile(null, response, timestamp);
                 profileCreated = true;
             } else {
-                profile = profileService.load(cookieProfileId);
+                profile = profileFuture.join();
                 if (profile == null) {
                     // this can happen if we have an old cookie but have reset the server,
                     // or if we merged the profiles and somehow this cookie didn't get updated.
@@ -168,10 +176,8 @@ public class ContextServlet extends HttpServlet {
             }
 
             Profile sessionProfile;
-            boolean invalidateSession = request.getParameter("invalidateSession") != null ?
-                    new Boolean(request.getParameter("invalidateSession")) : false;
-            if (StringUtils.isNotBlank(sessionId) && !invalidateSession) {
-                session = profileService.loadSession(sessionId, timestamp);
+            if (sessionFuture != null) {
+                session = sessionFuture.join();
                 if (session != null) {
                     sessionProfile = session.getProfile();
 